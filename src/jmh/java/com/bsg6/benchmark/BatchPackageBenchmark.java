@@ -0,0 +1,101 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.service.invoice.BatchPackage;
+import com.bsg6.service.invoice.BatchPackageWriter;
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Building a batch package: rendering invoices into a ZIP, splitting it into parts and encrypting each part.
+ * {@link #zipOnly} gives the compression cost alone for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class BatchPackageBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int invoiceCount;
+
+    @Param({"256", "4096"})
+    public int partSizeKb;
+
+    private byte[] cipherKey;
+    private byte[] cipherIv;
+    private CompiledInvoiceTemplate template;
+    private List<Map<String, String>> values;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SecureRandom random = new SecureRandom();
+        cipherKey = new byte[32];
+        cipherIv = new byte[16];
+        random.nextBytes(cipherKey);
+        random.nextBytes(cipherIv);
+
+        template = BenchmarkInvoices.template(0);
+        values = new ArrayList<>(invoiceCount);
+        for (int i = 0; i < invoiceCount; i++) {
+            values.add(BenchmarkInvoices.values(i));
+        }
+    }
+
+    @Benchmark
+    public int writePackage() throws IOException {
+        try (BatchPackageWriter writer = new BatchPackageWriter(cipherKey, cipherIv, partSizeKb * 1024L, Integer.MAX_VALUE)) {
+            for (int i = 0; i < invoiceCount; i++) {
+                writer.addInvoice("invoice_" + i + ".xml", template, values.get(i));
+            }
+            try (BatchPackage batchPackage = writer.finish()) {
+                return batchPackage.parts().size();
+            }
+        }
+    }
+
+    @Benchmark
+    public long zipOnly() throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(counter)) {
+            for (int i = 0; i < invoiceCount; i++) {
+                zip.putNextEntry(new ZipEntry("invoice_" + i + ".xml"));
+                template.renderTo(zip, values.get(i));
+                zip.closeEntry();
+            }
+        }
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Invoice inputs shared by the benchmarks: the default FA(2) template, optionally padded to a target size.
+ */
+final class BenchmarkInvoices {
+
+    static final String TEMPLATE_PATH = "/invoice/output/ksef/fa_2/invoice-template-min-fields.xml";
+
+    private BenchmarkInvoices() {
+    }
+
+    /**
+     * Raw template bytes padded with an XML comment before the closing root tag, so rendered invoices are
+     * roughly {@code sizeKb} kilobytes. Sizes below the template size leave it unchanged.
+     */
+    static byte[] templateBytes(int sizeKb) throws IOException {
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+        String xml = new String(template.render(Map.of()), StandardCharsets.UTF_8);
+
+        int padding = sizeKb * 1024 - xml.length() - 10;
+        if (padding <= 0) {
+            return xml.getBytes(StandardCharsets.UTF_8);
+        }
+        int closingTag = xml.lastIndexOf("</");
+        return (xml.substring(0, closingTag) + "<!--" + "x".repeat(padding) + "-->\n" + xml.substring(closingTag))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    static CompiledInvoiceTemplate template(int sizeKb) throws IOException {
+        return CompiledInvoiceTemplate.compile(templateBytes(sizeKb));
+    }
+
+    /**
+     * Same placeholder values as {@code InvoiceService} uses for an online invoice.
+     */
+    static Map<String, String> values(int invoiceNumber) {
+        Map<String, String> values = new HashMap<>(16);
+        values.put("seller_nip", "1234563218");
+        values.put("nip", "1234563218");
+        values.put("buyer_nip", "8567346215");
+        values.put("invoicing_date", "2025-12-09");
+        values.put("invoice_number", "FV/" + invoiceNumber + "/12/2025");
+        values.put("net", "100.00");
+        values.put("vat", "23.00");
+        values.put("gross", "123.00");
+        return values;
+    }
+}
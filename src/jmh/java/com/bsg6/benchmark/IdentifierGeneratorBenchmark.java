@@ -0,0 +1,52 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test data generators used per invoice and per authenticated context. The generators share one {@code Random},
+ * so {@link #randomNipContended} shows the cost under the parallel TestNG suites.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class IdentifierGeneratorBenchmark {
+
+    @Benchmark
+    public String randomNip() {
+        return IdentifierGeneratorUtils.generateRandomNIP();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String randomNipContended() {
+        return IdentifierGeneratorUtils.generateRandomNIP();
+    }
+
+    @Benchmark
+    public String validNip() {
+        return IdentifierGeneratorUtils.getRandomNip();
+    }
+
+    @Benchmark
+    public String pesel() {
+        return IdentifierGeneratorUtils.getRandomPesel();
+    }
+
+    @Benchmark
+    public String nipVatEu() {
+        return IdentifierGeneratorUtils.getRandomNipVatEU();
+    }
+
+    @Benchmark
+    public String iban() {
+        return IdentifierGeneratorUtils.generateIban();
+    }
+}
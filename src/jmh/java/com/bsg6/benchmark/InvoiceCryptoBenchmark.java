@@ -0,0 +1,84 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.service.invoice.OnlineInvoiceEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
+import pl.akmf.ksef.sdk.client.model.session.FileMetadata;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps of an online invoice send after rendering: AES-256 encryption, SHA-256 metadata of the plain and
+ * encrypted invoice, and Base64 encoding of the request body. {@link #sendPayload} runs them one after another,
+ * {@link #sendPayloadFused} in the single pass that {@code InvoiceService} uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class InvoiceCryptoBenchmark {
+
+    @Param({"2", "64", "1024"})
+    public int invoiceSizeKb;
+
+    // Only key exchange needs the KSeF client; symmetric encryption and hashing are local
+    private final DefaultCryptographyService cryptographyService = new DefaultCryptographyService(null);
+
+    private byte[] cipherKey;
+    private byte[] cipherIv;
+    private byte[] invoice;
+    private byte[] encryptedInvoice;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SecureRandom random = new SecureRandom();
+        cipherKey = new byte[32];
+        cipherIv = new byte[16];
+        random.nextBytes(cipherKey);
+        random.nextBytes(cipherIv);
+
+        invoice = BenchmarkInvoices.template(invoiceSizeKb).render(BenchmarkInvoices.values(1));
+        encryptedInvoice = cryptographyService.encryptBytesWithAES256(invoice, cipherKey, cipherIv);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return cryptographyService.encryptBytesWithAES256(invoice, cipherKey, cipherIv);
+    }
+
+    @Benchmark
+    public FileMetadata metadata() {
+        return cryptographyService.getMetaData(invoice);
+    }
+
+    @Benchmark
+    public String base64() {
+        return Base64.getEncoder().encodeToString(encryptedInvoice);
+    }
+
+    @Benchmark
+    public void sendPayload(Blackhole blackhole) {
+        byte[] encrypted = cryptographyService.encryptBytesWithAES256(invoice, cipherKey, cipherIv);
+        blackhole.consume(cryptographyService.getMetaData(invoice));
+        blackhole.consume(cryptographyService.getMetaData(encrypted));
+        blackhole.consume(Base64.getEncoder().encodeToString(encrypted));
+    }
+
+    @Benchmark
+    public OnlineInvoiceEncoder.EncodedInvoice sendPayloadFused() {
+        return OnlineInvoiceEncoder.encode(invoice, cipherKey, cipherIv);
+    }
+}
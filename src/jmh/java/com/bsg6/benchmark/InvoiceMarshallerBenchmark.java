@@ -0,0 +1,62 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.InvoiceData;
+import com.bsg6.model.fa2.Faktura;
+import com.bsg6.service.invoice.InvoiceMarshaller;
+import com.bsg6.service.invoice.InvoiceModelFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed FA(2) invoices: building the model and marshalling it to a stream, by number of invoice lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class InvoiceMarshallerBenchmark {
+
+    private static final InvoiceData INVOICE_DATA = new InvoiceData("1234563218", "8567346215",
+            new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"));
+
+    @Param({"1", "100", "10000"})
+    public int lineCount;
+
+    private InvoiceMarshaller marshaller;
+    private Faktura invoice;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        marshaller = new InvoiceMarshaller(new ConfigurationProps());
+        invoice = build();
+        out = new ByteArrayOutputStream(marshaller.marshal(invoice).length);
+    }
+
+    @Benchmark
+    public Faktura build() {
+        return InvoiceModelFactory.fa2(INVOICE_DATA, "FV/1/12/2025", LocalDate.of(2025, 12, 9), lineCount);
+    }
+
+    @Benchmark
+    public int marshalToStream() throws IOException {
+        out.reset();
+        marshaller.marshal(invoice, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,61 @@
+package com.bsg6.benchmark;
+
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invoice template parsing and rendering, to an exactly sized array and to a stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class InvoiceTemplateBenchmark {
+
+    @Param({"2", "64", "1024"})
+    public int invoiceSizeKb;
+
+    private byte[] templateBytes;
+    private CompiledInvoiceTemplate template;
+    private Map<String, String> values;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        templateBytes = BenchmarkInvoices.templateBytes(invoiceSizeKb);
+        template = CompiledInvoiceTemplate.compile(templateBytes);
+        values = BenchmarkInvoices.values(1);
+        out = new ByteArrayOutputStream(templateBytes.length + 256);
+    }
+
+    @Benchmark
+    public CompiledInvoiceTemplate compile() {
+        return CompiledInvoiceTemplate.compile(templateBytes);
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return template.render(values);
+    }
+
+    @Benchmark
+    public int renderToStream() throws IOException {
+        out.reset();
+        template.renderTo(out, values);
+        return out.size();
+    }
+}
@@ -4,7 +4,10 @@ import pl.akmf.ksef.sdk.api.KsefApiProperties;
 
 import java.io.InputStream;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -13,6 +16,9 @@ public class ConfigurationProps extends KsefApiProperties {
     private final String baseUri;
     private final Map<String, String> defaultHeaders;
     private final Duration requestTimeout;
+    private final Map<EndpointFamily, Duration> requestTimeouts;
+    private final HttpClient.Version httpVersion;
+    private final boolean httpVirtualThreads;
 
     // Authentication configuration
     private final String defaultCompanyName;
@@ -22,6 +28,13 @@ public class ConfigurationProps extends KsefApiProperties {
     private final String defaultPersonIdentifier;
     private final Duration authPollingTimeout;
     private final Duration authPollingInterval;
+    private final Duration authTokenRefreshAhead;
+    private final Duration authTokenDefaultLifetime;
+    private final int certificateCacheMaxSize;
+    private final Duration certificateCacheTtl;
+    private final Path certificateStoreDir;
+    private final String certificateStorePassword;
+    private final int certificateWarmUpThreads;
 
     // Session configuration
     private final Duration sessionProcessingTimeout;
@@ -30,9 +43,69 @@ public class ConfigurationProps extends KsefApiProperties {
     private final Duration sessionUpoInterval;
     private final Duration batchStatusTimeout;
     private final Duration batchStatusInterval;
+    private final Duration pollingInitialDelay;
+    private final int sessionInvoicesPageSize;
+    private final int sessionPoolSize;
+    private final int sessionPoolMaxInvoices;
+    private final Duration sessionPoolMaxAge;
+    private final int sessionPoolMaxInFlight;
+
+    // Encryption configuration
+    private final int encryptionPoolSize;
+    private final Duration encryptionCertificateRefreshInterval;
+
+    // Submission configuration
+    private final int submissionBatchQueueDepth;
+    private final Duration submissionLatencySla;
+    private final int submissionBatchMaxInvoices;
+    private final Duration submissionBatchMaxWait;
+
+    // UPO archive configuration
+    private final Path upoArchiveDir;
+    private final int upoArchiveMaxInFlight;
+
+    // Metadata sync configuration
+    private final Path metadataSyncDir;
+    private final int metadataSyncPageSize;
+    private final int metadataSyncParallelism;
+
+    // Export configuration
+    private final Path exportDir;
+    private final Duration exportTimeout;
+    private final Duration exportInterval;
+
+    // Validation configuration
+    private final boolean validationEnabled;
+    private final Path validationSchemaDir;
+    private final boolean validationSchemaDownload;
+    private final int validationValidatorPoolSize;
+    private final int validationMaxErrors;
+
+    // Rule engine configuration
+    private final boolean rulesEnabled;
+    private final String rulesFile;
+    private final int rulesParallelism;
 
     // Invoice configuration
     private final String defaultInvoiceTemplatePath;
+    private final long invoiceCacheHeapMaxBytes;
+    private final Path invoiceCacheDir;
+    private final int invoiceCachePrefetchMaxInFlight;
+    private final int invoiceMarshallerPoolSize;
+
+    // Batch configuration
+    private final long batchPartSize;
+    private final int batchSpillThreshold;
+    private final int batchEncryptionParallelism;
+    private final int batchUploadMaxInFlight;
+    private final int batchUploadMaxAttempts;
+    private final Duration batchUploadRetryBackoff;
+    private final Path batchUploadJournalDir;
+
+    // API error configuration
+    private final String apiErrorListFile;
+    private final int apiRetryMaxAttempts;
+    private final Duration apiRetryBackoff;
 
     public  Properties load() {
         try (InputStream in = ConfigurationProps.class.getClassLoader().getResourceAsStream("application.properties")) {
@@ -49,12 +122,21 @@ public class ConfigurationProps extends KsefApiProperties {
 
     public ConfigurationProps() {
         Properties props = this.load();
-        this.baseUri = URI.create(props.getProperty("KSEF_API")).toString();
+        // -DKSEF_API=... points the client at another environment, e.g. the local mock server used in tests
+        this.baseUri = URI.create(System.getProperty("KSEF_API", props.getProperty("KSEF_API"))).toString();
         this.defaultHeaders = Map.of(
                 "KSeF-Token", props.getProperty("KSEF_TOKEN"),
                 "Accept", "application/json"
         );
-        this.requestTimeout = Duration.ofSeconds(30);
+        this.requestTimeout = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.http.timeout.default.seconds")));
+        Map<EndpointFamily, Duration> timeouts = new EnumMap<>(EndpointFamily.class);
+        for (EndpointFamily family : EndpointFamily.values()) {
+            String seconds = props.getProperty("ksef.http.timeout." + family.getPropertyName() + ".seconds");
+            timeouts.put(family, seconds == null ? requestTimeout : Duration.ofSeconds(Long.parseLong(seconds)));
+        }
+        this.requestTimeouts = Map.copyOf(timeouts);
+        this.httpVersion = HttpClient.Version.valueOf(props.getProperty("ksef.http.version"));
+        this.httpVirtualThreads = Boolean.parseBoolean(props.getProperty("ksef.http.virtual.threads"));
 
         // Initialize authentication configuration
         this.defaultCompanyName = props.getProperty("ksef.auth.default.company.name");
@@ -64,6 +146,15 @@ public class ConfigurationProps extends KsefApiProperties {
         this.defaultPersonIdentifier = props.getProperty("ksef.auth.default.person.identifier");
         this.authPollingTimeout = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.auth.polling.timeout.seconds")));
         this.authPollingInterval = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.auth.polling.interval.seconds")));
+        this.authTokenRefreshAhead = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.auth.token.refresh.ahead.seconds")));
+        this.authTokenDefaultLifetime = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.auth.token.default.lifetime.seconds")));
+        this.certificateCacheMaxSize = Integer.parseInt(props.getProperty("ksef.auth.certificate.cache.max.size"));
+        this.certificateCacheTtl = Duration.ofMinutes(Long.parseLong(props.getProperty("ksef.auth.certificate.cache.ttl.minutes")));
+        String storeDir = props.getProperty("ksef.auth.certificate.store.dir", "");
+        this.certificateStoreDir = storeDir.isBlank() ? null : Path.of(storeDir);
+        this.certificateStorePassword = props.getProperty("ksef.auth.certificate.store.password", "");
+        int warmUpThreads = Integer.parseInt(props.getProperty("ksef.auth.certificate.warmup.threads"));
+        this.certificateWarmUpThreads = warmUpThreads > 0 ? warmUpThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 
         // Initialize session configuration
         this.sessionProcessingTimeout = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.session.processing.timeout.seconds")));
@@ -72,9 +163,72 @@ public class ConfigurationProps extends KsefApiProperties {
         this.sessionUpoInterval = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.session.upo.interval.seconds")));
         this.batchStatusTimeout = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.session.batch.status.timeout.seconds")));
         this.batchStatusInterval = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.session.batch.status.interval.seconds")));
+        this.pollingInitialDelay = Duration.ofMillis(Long.parseLong(props.getProperty("ksef.polling.initial.delay.millis")));
+        this.sessionInvoicesPageSize = Integer.parseInt(props.getProperty("ksef.session.invoices.page.size"));
+        this.sessionPoolSize = Integer.parseInt(props.getProperty("ksef.session.pool.size"));
+        this.sessionPoolMaxInvoices = Integer.parseInt(props.getProperty("ksef.session.pool.max.invoices"));
+        this.sessionPoolMaxAge = Duration.ofMinutes(Long.parseLong(props.getProperty("ksef.session.pool.max.age.minutes")));
+        this.sessionPoolMaxInFlight = Integer.parseInt(props.getProperty("ksef.session.pool.max.in.flight"));
+
+        // Initialize encryption configuration
+        this.encryptionPoolSize = Integer.parseInt(props.getProperty("ksef.encryption.pool.size"));
+        this.encryptionCertificateRefreshInterval = Duration.ofMinutes(Long.parseLong(props.getProperty("ksef.encryption.certificate.refresh.minutes")));
+
+        // Initialize submission configuration
+        this.submissionBatchQueueDepth = Integer.parseInt(props.getProperty("ksef.submission.batch.queue.depth"));
+        this.submissionLatencySla = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.submission.latency.sla.seconds")));
+        this.submissionBatchMaxInvoices = Integer.parseInt(props.getProperty("ksef.submission.batch.max.invoices"));
+        this.submissionBatchMaxWait = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.submission.batch.max.wait.seconds")));
+
+        // Initialize UPO archive configuration
+        this.upoArchiveDir = Path.of(props.getProperty("ksef.upo.archive.dir"));
+        this.upoArchiveMaxInFlight = Integer.parseInt(props.getProperty("ksef.upo.archive.max.in.flight"));
+
+        // Initialize metadata sync configuration
+        this.metadataSyncDir = Path.of(props.getProperty("ksef.metadata.sync.dir"));
+        this.metadataSyncPageSize = Integer.parseInt(props.getProperty("ksef.metadata.sync.page.size"));
+        this.metadataSyncParallelism = Integer.parseInt(props.getProperty("ksef.metadata.sync.parallelism"));
+
+        // Initialize export configuration
+        this.exportDir = Path.of(props.getProperty("ksef.export.dir"));
+        this.exportTimeout = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.export.timeout.seconds")));
+        this.exportInterval = Duration.ofSeconds(Long.parseLong(props.getProperty("ksef.export.interval.seconds")));
+
+        // Initialize validation configuration
+        this.validationEnabled = Boolean.parseBoolean(props.getProperty("ksef.validation.enabled"));
+        this.validationSchemaDir = Path.of(props.getProperty("ksef.validation.schema.dir"));
+        this.validationSchemaDownload = Boolean.parseBoolean(props.getProperty("ksef.validation.schema.download"));
+        this.validationValidatorPoolSize = Integer.parseInt(props.getProperty("ksef.validation.validator.pool.size"));
+        this.validationMaxErrors = Integer.parseInt(props.getProperty("ksef.validation.max.errors"));
+
+        // Initialize rule engine configuration
+        this.rulesEnabled = Boolean.parseBoolean(props.getProperty("ksef.rules.enabled"));
+        this.rulesFile = props.getProperty("ksef.rules.file");
+        this.rulesParallelism = Integer.parseInt(props.getProperty("ksef.rules.parallelism"));
 
         // Initialize invoice configuration
         this.defaultInvoiceTemplatePath = props.getProperty("ksef.invoice.template.default");
+        this.invoiceCacheHeapMaxBytes = Long.parseLong(props.getProperty("ksef.invoice.cache.heap.max.bytes"));
+        String invoiceCacheDir = props.getProperty("ksef.invoice.cache.dir", "");
+        this.invoiceCacheDir = invoiceCacheDir.isBlank() ? null : Path.of(invoiceCacheDir);
+        this.invoiceCachePrefetchMaxInFlight = Integer.parseInt(props.getProperty("ksef.invoice.cache.prefetch.max.in.flight"));
+        this.invoiceMarshallerPoolSize = Integer.parseInt(props.getProperty("ksef.invoice.marshaller.pool.size"));
+
+        // Initialize batch configuration
+        this.batchPartSize = Long.parseLong(props.getProperty("ksef.batch.part.size.bytes"));
+        this.batchSpillThreshold = Integer.parseInt(props.getProperty("ksef.batch.spill.threshold.bytes"));
+        int encryptionParallelism = Integer.parseInt(props.getProperty("ksef.batch.encryption.parallelism"));
+        this.batchEncryptionParallelism = encryptionParallelism > 0 ? encryptionParallelism : Runtime.getRuntime().availableProcessors();
+        this.batchUploadMaxInFlight = Integer.parseInt(props.getProperty("ksef.batch.upload.max.in.flight"));
+        this.batchUploadMaxAttempts = Integer.parseInt(props.getProperty("ksef.batch.upload.max.attempts"));
+        this.batchUploadRetryBackoff = Duration.ofMillis(Long.parseLong(props.getProperty("ksef.batch.upload.retry.backoff.millis")));
+        String batchUploadJournalDir = props.getProperty("ksef.batch.upload.journal.dir", "");
+        this.batchUploadJournalDir = batchUploadJournalDir.isBlank() ? null : Path.of(batchUploadJournalDir);
+
+        // Initialize API error configuration
+        this.apiErrorListFile = props.getProperty("ksef.api.error.list.file");
+        this.apiRetryMaxAttempts = Integer.parseInt(props.getProperty("ksef.api.retry.max.attempts"));
+        this.apiRetryBackoff = Duration.ofMillis(Long.parseLong(props.getProperty("ksef.api.retry.backoff.millis")));
     }
 
     public String getBaseUri() {
@@ -94,6 +248,22 @@ public class ConfigurationProps extends KsefApiProperties {
         return requestTimeout;
     }
 
+    public Duration getRequestTimeout(EndpointFamily family) {
+        return requestTimeouts.get(family);
+    }
+
+    public Map<EndpointFamily, Duration> getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    public HttpClient.Version getHttpVersion() {
+        return httpVersion;
+    }
+
+    public boolean isHttpVirtualThreads() {
+        return httpVirtualThreads;
+    }
+
     // Authentication configuration getters
     public String getDefaultCompanyName() {
         return defaultCompanyName;
@@ -123,6 +293,37 @@ public class ConfigurationProps extends KsefApiProperties {
         return authPollingInterval;
     }
 
+    public Duration getAuthTokenRefreshAhead() {
+        return authTokenRefreshAhead;
+    }
+
+    public Duration getAuthTokenDefaultLifetime() {
+        return authTokenDefaultLifetime;
+    }
+
+    public int getCertificateCacheMaxSize() {
+        return certificateCacheMaxSize;
+    }
+
+    public Duration getCertificateCacheTtl() {
+        return certificateCacheTtl;
+    }
+
+    /**
+     * Directory for persisted PKCS#12 certificates, or {@code null} when persistence is disabled.
+     */
+    public Path getCertificateStoreDir() {
+        return certificateStoreDir;
+    }
+
+    public String getCertificateStorePassword() {
+        return certificateStorePassword;
+    }
+
+    public int getCertificateWarmUpThreads() {
+        return certificateWarmUpThreads;
+    }
+
     // Session configuration getters
     public Duration getSessionProcessingTimeout() {
         return sessionProcessingTimeout;
@@ -148,8 +349,188 @@ public class ConfigurationProps extends KsefApiProperties {
         return batchStatusInterval;
     }
 
+    public Duration getPollingInitialDelay() {
+        return pollingInitialDelay;
+    }
+
+    public int getSessionInvoicesPageSize() {
+        return sessionInvoicesPageSize;
+    }
+
+    public int getSessionPoolSize() {
+        return sessionPoolSize;
+    }
+
+    public int getSessionPoolMaxInvoices() {
+        return sessionPoolMaxInvoices;
+    }
+
+    public Duration getSessionPoolMaxAge() {
+        return sessionPoolMaxAge;
+    }
+
+    public int getSessionPoolMaxInFlight() {
+        return sessionPoolMaxInFlight;
+    }
+
+    // Encryption configuration getters
+    public int getEncryptionPoolSize() {
+        return encryptionPoolSize;
+    }
+
+    public Duration getEncryptionCertificateRefreshInterval() {
+        return encryptionCertificateRefreshInterval;
+    }
+
+    // Submission configuration getters
+    public int getSubmissionBatchQueueDepth() {
+        return submissionBatchQueueDepth;
+    }
+
+    public Duration getSubmissionLatencySla() {
+        return submissionLatencySla;
+    }
+
+    public int getSubmissionBatchMaxInvoices() {
+        return submissionBatchMaxInvoices;
+    }
+
+    public Duration getSubmissionBatchMaxWait() {
+        return submissionBatchMaxWait;
+    }
+
+    // UPO archive configuration getters
+    public Path getUpoArchiveDir() {
+        return upoArchiveDir;
+    }
+
+    public int getUpoArchiveMaxInFlight() {
+        return upoArchiveMaxInFlight;
+    }
+
+    // Metadata sync configuration getters
+    public Path getMetadataSyncDir() {
+        return metadataSyncDir;
+    }
+
+    public int getMetadataSyncPageSize() {
+        return metadataSyncPageSize;
+    }
+
+    public int getMetadataSyncParallelism() {
+        return metadataSyncParallelism;
+    }
+
+    // Export configuration getters
+    public Path getExportDir() {
+        return exportDir;
+    }
+
+    public Duration getExportTimeout() {
+        return exportTimeout;
+    }
+
+    public Duration getExportInterval() {
+        return exportInterval;
+    }
+
+    // Validation configuration getters
+    public boolean isValidationEnabled() {
+        return validationEnabled;
+    }
+
+    public Path getValidationSchemaDir() {
+        return validationSchemaDir;
+    }
+
+    public boolean isValidationSchemaDownload() {
+        return validationSchemaDownload;
+    }
+
+    public int getValidationValidatorPoolSize() {
+        return validationValidatorPoolSize;
+    }
+
+    public int getValidationMaxErrors() {
+        return validationMaxErrors;
+    }
+
+    // Rule engine configuration getters
+    public boolean isRulesEnabled() {
+        return rulesEnabled;
+    }
+
+    public String getRulesFile() {
+        return rulesFile;
+    }
+
+    public int getRulesParallelism() {
+        return rulesParallelism;
+    }
+
     // Invoice configuration getters
     public String getDefaultInvoiceTemplatePath() {
         return defaultInvoiceTemplatePath;
     }
+
+    public long getInvoiceCacheHeapMaxBytes() {
+        return invoiceCacheHeapMaxBytes;
+    }
+
+    /**
+     * @return the invoice store directory, or {@code null} to cache invoices in heap only
+     */
+    public Path getInvoiceCacheDir() {
+        return invoiceCacheDir;
+    }
+
+    public int getInvoiceCachePrefetchMaxInFlight() {
+        return invoiceCachePrefetchMaxInFlight;
+    }
+
+    public int getInvoiceMarshallerPoolSize() {
+        return invoiceMarshallerPoolSize;
+    }
+
+    // Batch configuration getters
+    public long getBatchPartSize() {
+        return batchPartSize;
+    }
+
+    public int getBatchSpillThreshold() {
+        return batchSpillThreshold;
+    }
+
+    public int getBatchEncryptionParallelism() {
+        return batchEncryptionParallelism;
+    }
+
+    public int getBatchUploadMaxInFlight() {
+        return batchUploadMaxInFlight;
+    }
+
+    public int getBatchUploadMaxAttempts() {
+        return batchUploadMaxAttempts;
+    }
+
+    public Duration getBatchUploadRetryBackoff() {
+        return batchUploadRetryBackoff;
+    }
+
+    public Path getBatchUploadJournalDir() {
+        return batchUploadJournalDir;
+    }
+
+    // API error configuration getters
+    public String getApiErrorListFile() {
+        return apiErrorListFile;
+    }
+
+    public int getApiRetryMaxAttempts() {
+        return apiRetryMaxAttempts;
+    }
+
+    public Duration getApiRetryBackoff() {
+        return apiRetryBackoff;
+    }
 }
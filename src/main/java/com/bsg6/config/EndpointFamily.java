@@ -0,0 +1,45 @@
+package com.bsg6.config;
+
+import java.net.URI;
+
+/**
+ * Groups of KSeF endpoints that share a request timeout ({@code ksef.http.timeout.<family>.seconds}).
+ */
+public enum EndpointFamily {
+    AUTH("auth"),
+    SESSION("session"),
+    INVOICE("invoice"),
+    /** Batch part uploads, which go to the storage URLs returned by KSeF rather than to the API host. */
+    UPLOAD("upload"),
+    DEFAULT("default");
+
+    private final String propertyName;
+
+    EndpointFamily(String propertyName) {
+        this.propertyName = propertyName;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * Resolves the family of a request URI; {@code apiHost} is the host of the configured KSeF base URI.
+     */
+    public static EndpointFamily of(URI uri, String apiHost) {
+        if (uri.getHost() != null && !uri.getHost().equalsIgnoreCase(apiHost)) {
+            return UPLOAD;
+        }
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        if (path.startsWith("/api/v2/auth")) {
+            return AUTH;
+        }
+        if (path.startsWith("/api/v2/sessions")) {
+            return SESSION;
+        }
+        if (path.startsWith("/api/v2/invoices")) {
+            return INVOICE;
+        }
+        return DEFAULT;
+    }
+}
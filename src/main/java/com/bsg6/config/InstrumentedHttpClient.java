@@ -0,0 +1,208 @@
+package com.bsg6.config;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link HttpClient} shared by the SDK client and our own KSeF calls.
+ * <p>
+ * Every request gets the timeout of its {@link EndpointFamily} and is counted per family. The JDK client does not
+ * expose its connection pool, so {@link #stats()} reports what can be observed from the outside: requests in flight
+ * (current and peak), completions, failures, latency per family and the protocol version of the responses.
+ * Mostly-HTTP/2 responses with a low peak in flight mean that requests are multiplexed over a few reused connections.
+ * </p>
+ */
+public class InstrumentedHttpClient extends HttpClient {
+
+    /**
+     * Counters of one endpoint family.
+     */
+    public record FamilyStats(long requests, long failures, Duration averageLatency) {
+    }
+
+    /**
+     * Snapshot of the client counters.
+     */
+    public record Stats(long inFlight, long peakInFlight, long completed, long failed,
+                        long http2Responses, long http11Responses, Map<EndpointFamily, FamilyStats> families) {
+    }
+
+    private static final class FamilyCounters {
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+    }
+
+    private final HttpClient delegate;
+    private final String apiHost;
+    private final Map<EndpointFamily, Duration> timeouts;
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong peakInFlight = new AtomicLong();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder http2Responses = new LongAdder();
+    private final LongAdder http11Responses = new LongAdder();
+    private final Map<EndpointFamily, FamilyCounters> families = new EnumMap<>(EndpointFamily.class);
+
+    public InstrumentedHttpClient(HttpClient delegate, String apiHost, Map<EndpointFamily, Duration> timeouts) {
+        this.delegate = delegate;
+        this.apiHost = apiHost;
+        this.timeouts = new EnumMap<>(timeouts);
+        for (EndpointFamily family : EndpointFamily.values()) {
+            families.put(family, new FamilyCounters());
+        }
+    }
+
+    public Stats stats() {
+        Map<EndpointFamily, FamilyStats> familyStats = new EnumMap<>(EndpointFamily.class);
+        families.forEach((family, counters) -> {
+            long requests = counters.requests.sum();
+            familyStats.put(family, new FamilyStats(requests, counters.failures.sum(),
+                    Duration.ofNanos(requests == 0 ? 0 : counters.latencyNanos.sum() / requests)));
+        });
+        return new Stats(inFlight.get(), peakInFlight.get(), completed.sum(), failed.sum(),
+                http2Responses.sum(), http11Responses.sum(), familyStats);
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler)
+            throws IOException, InterruptedException {
+        EndpointFamily family = EndpointFamily.of(request.uri(), apiHost);
+        long start = begin();
+        try {
+            HttpResponse<T> response = delegate.send(withTimeout(request, family), responseBodyHandler);
+            end(family, start, response);
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            end(family, start, null);
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        return sendAsync(request, responseBodyHandler, null);
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler,
+                                                            HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+        EndpointFamily family = EndpointFamily.of(request.uri(), apiHost);
+        long start = begin();
+        return delegate.sendAsync(withTimeout(request, family), responseBodyHandler, pushPromiseHandler)
+                .whenComplete((response, failure) -> end(family, start, response));
+    }
+
+    private HttpRequest withTimeout(HttpRequest request, EndpointFamily family) {
+        Duration timeout = timeouts.getOrDefault(family, timeouts.get(EndpointFamily.DEFAULT));
+        if (timeout == null || request.timeout().filter(timeout::equals).isPresent()) {
+            return request;
+        }
+        return HttpRequest.newBuilder(request, (name, value) -> true).timeout(timeout).build();
+    }
+
+    private long begin() {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        return System.nanoTime();
+    }
+
+    private void end(EndpointFamily family, long start, HttpResponse<?> response) {
+        inFlight.decrementAndGet();
+        FamilyCounters counters = families.get(family);
+        counters.requests.increment();
+        counters.latencyNanos.add(System.nanoTime() - start);
+
+        if (response == null) {
+            failed.increment();
+            counters.failures.increment();
+            return;
+        }
+        completed.increment();
+        if (response.version() == Version.HTTP_2) {
+            http2Responses.increment();
+        } else {
+            http11Responses.increment();
+        }
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() {
+        return delegate.cookieHandler();
+    }
+
+    @Override
+    public Optional<Duration> connectTimeout() {
+        return delegate.connectTimeout();
+    }
+
+    @Override
+    public Redirect followRedirects() {
+        return delegate.followRedirects();
+    }
+
+    @Override
+    public Optional<ProxySelector> proxy() {
+        return delegate.proxy();
+    }
+
+    @Override
+    public SSLContext sslContext() {
+        return delegate.sslContext();
+    }
+
+    @Override
+    public SSLParameters sslParameters() {
+        return delegate.sslParameters();
+    }
+
+    @Override
+    public Optional<Authenticator> authenticator() {
+        return delegate.authenticator();
+    }
+
+    @Override
+    public Version version() {
+        return delegate.version();
+    }
+
+    @Override
+    public Optional<Executor> executor() {
+        return delegate.executor();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public void shutdownNow() {
+        delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean awaitTermination(Duration duration) throws InterruptedException {
+        return delegate.awaitTermination(duration);
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+}
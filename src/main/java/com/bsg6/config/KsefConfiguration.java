@@ -12,7 +12,9 @@ import pl.akmf.ksef.sdk.api.services.*;
 import pl.akmf.ksef.sdk.client.interfaces.*;
 import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
 
+import java.net.URI;
 import java.net.http.HttpClient;
+import java.util.concurrent.Executors;
 
 @Configuration
 public class KsefConfiguration {
@@ -51,10 +53,14 @@ public class KsefConfiguration {
     }
 
     @Bean
-    public HttpClient ksefHttpClient(ConfigurationProps props) {
-        return HttpClient.newBuilder()
-                .connectTimeout(props.getRequestTimeout())
-                .build();
+    public InstrumentedHttpClient ksefHttpClient(ConfigurationProps props) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(props.getHttpVersion())
+                .connectTimeout(props.getRequestTimeout());
+        if (props.isHttpVirtualThreads()) {
+            builder.executor(Executors.newVirtualThreadPerTaskExecutor());
+        }
+        return new InstrumentedHttpClient(builder.build(), URI.create(props.getBaseUri()).getHost(), props.getRequestTimeouts());
     }
 
     @Bean
@@ -1,54 +1,108 @@
 package com.bsg6.service.auth;
 
 import com.bsg6.model.AuthTokensPair;
+import com.bsg6.service.error.ErrorCatalog;
+import com.bsg6.service.error.ErrorCategory;
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.error.KsefError;
+import com.bsg6.service.polling.StatusPoller;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.xml.bind.JAXBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import pl.akmf.ksef.sdk.api.DefaultKsefClient;
 import pl.akmf.ksef.sdk.api.builders.auth.AuthTokenRequestBuilder;
 import pl.akmf.ksef.sdk.api.builders.auth.AuthTokenRequestSerializer;
-import pl.akmf.ksef.sdk.client.interfaces.CertificateService;
 import pl.akmf.ksef.sdk.client.interfaces.QrCodeService;
 import pl.akmf.ksef.sdk.client.interfaces.SignatureService;
 import pl.akmf.ksef.sdk.client.interfaces.VerificationLinkService;
 import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.akmf.ksef.sdk.client.model.auth.*;
-import pl.akmf.ksef.sdk.client.model.certificate.SelfSignedCertificate;
 import pl.akmf.ksef.sdk.client.model.xml.AuthTokenRequest;
 import pl.akmf.ksef.sdk.client.model.xml.SubjectIdentifierTypeEnum;
 
 import java.io.IOException;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-import static org.awaitility.Awaitility.await;
 
 @Service
 public class AuthService {
-    private final CertificateService certificateService;
+    private static final Logger log = LoggerFactory.getLogger(AuthService.class);
+
+    private final CertificateCache certificateCache;
     private final SignatureService signatureService;
     private final DefaultKsefClient ksefClient;
     private final com.bsg6.config.ConfigurationProps config;
-
-    public AuthService(CertificateService certificateService, SignatureService signatureService, DefaultKsefClient ksefClient, com.bsg6.config.ConfigurationProps config) {
-        this.certificateService = certificateService;
+    private final AuthTokenCache tokenCache;
+    private final StatusPoller statusPoller;
+    private final KsefApiCalls apiCalls;
+    private final ErrorCatalog errorCatalog;
+
+    public AuthService(CertificateCache certificateCache, SignatureService signatureService, DefaultKsefClient ksefClient,
+                       com.bsg6.config.ConfigurationProps config, AuthTokenCache tokenCache, StatusPoller statusPoller,
+                       KsefApiCalls apiCalls, ErrorCatalog errorCatalog) {
+        this.certificateCache = certificateCache;
         this.signatureService = signatureService;
         this.ksefClient = ksefClient;
         this.config = config;
+        this.tokenCache = tokenCache;
+        this.statusPoller = statusPoller;
+        this.apiCalls = apiCalls;
+        this.errorCatalog = errorCatalog;
     }
 
+    /**
+     * Returns tokens for the NIP context, reusing cached tokens until they expire.
+     */
     public AuthTokensPair authWithCustomNipAndRsa(String nip) throws ApiException, JAXBException, IOException {
-        return authWithCustomNip(nip, EncryptionMethod.Rsa);
+        return tokenCache.getTokens(nipContextKey(nip), () -> restartingIfExpired(() -> authWithCustomNip(nip, EncryptionMethod.Rsa)));
     }
 
+    /**
+     * Returns tokens for the PESEL subject in the given NIP context, reusing cached tokens until they expire.
+     */
     public AuthTokensPair authWithCustomPeselAndRsa(String context, String subject) throws ApiException, JAXBException, IOException {
-        return authWithCustomPesel(context, subject, EncryptionMethod.Rsa);
+        return tokenCache.getTokens(peselContextKey(context, subject),
+                () -> restartingIfExpired(() -> authWithCustomPesel(context, subject, EncryptionMethod.Rsa)));
+    }
+
+    /**
+     * Forgets cached tokens of the NIP context, forcing the next call to authenticate again.
+     */
+    public void invalidateNipTokens(String nip) {
+        tokenCache.invalidate(nipContextKey(nip));
+    }
+
+    /**
+     * Runs an authentication flow, starting it over once from a new challenge if KSeF reports that the
+     * authentication request or its token expired on the way, e.g. behind a slow status poll.
+     */
+    private AuthTokensPair restartingIfExpired(AuthTokenCache.Authenticator flow) throws ApiException, JAXBException, IOException {
+        try {
+            return flow.authenticate();
+        } catch (ApiException e) {
+            KsefError error = errorCatalog.classify(e);
+            if (error.category() != ErrorCategory.AUTH_EXPIRED) {
+                throw e;
+            }
+            log.warn("Authentication expired before tokens were redeemed, starting over: {}", error);
+            return flow.authenticate();
+        }
+    }
+
+    private static String nipContextKey(String nip) {
+        return "NIP:" + nip;
+    }
+
+    private static String peselContextKey(String context, String pesel) {
+        return "PESEL:" + context + ":" + pesel;
     }
 
     private AuthTokensPair authWithCustomNip(String nip, EncryptionMethod encryptionMethod) throws ApiException, JAXBException, IOException {
         // Get authentication challenge
-        AuthenticationChallengeResponse challenge = ksefClient.getAuthChallenge();
+        AuthenticationChallengeResponse challenge = apiCalls.call("Authentication challenge", ksefClient::getAuthChallenge);
 
         // Build auth token request with NIP context
         AuthTokenRequest authTokenRequest = new AuthTokenRequestBuilder()
@@ -58,11 +112,7 @@ public class AuthService {
                 .build();
 
         //TODO: Can we get Company name from third party service here using NIP?
-        SelfSignedCertificate certificate = certificateService.getCompanySeal(
-                config.getDefaultCompanyName(),
-                "VATPL-" + nip,
-                config.getDefaultCompanySubject(),
-                encryptionMethod);
+        CertificateCache.Credentials certificate = certificateCache.companySeal(nip, encryptionMethod);
 
         // Use unified authentication flow
         return authenticate(authTokenRequest, certificate);
@@ -70,7 +120,7 @@ public class AuthService {
 
     private AuthTokensPair authWithCustomPesel(String context, String pesel, EncryptionMethod encryptionMethod) throws ApiException, JAXBException, IOException {
         // Get authentication challenge
-        AuthenticationChallengeResponse challenge = ksefClient.getAuthChallenge();
+        AuthenticationChallengeResponse challenge = apiCalls.call("Authentication challenge", ksefClient::getAuthChallenge);
 
         // Build auth token request with context NIP
         AuthTokenRequest authTokenRequest = new AuthTokenRequestBuilder()
@@ -80,13 +130,7 @@ public class AuthService {
                 .build();
 
         // Get personal certificate
-        SelfSignedCertificate certificate = certificateService.getPersonalCertificate(
-                config.getDefaultPersonGivenName(),
-                config.getDefaultPersonSurname(),
-                config.getDefaultPersonIdentifier(),
-                pesel,
-                config.getDefaultPersonGivenName() + " " + config.getDefaultPersonSurname(),
-                encryptionMethod);
+        CertificateCache.Credentials certificate = certificateCache.personalCertificate(pesel, encryptionMethod);
 
         // Use unified authentication flow
         return authenticate(authTokenRequest, certificate);
@@ -96,33 +140,36 @@ public class AuthService {
      * Unified authentication method that handles the common authentication flow.
      * This eliminates code duplication across NIP, PESEL, and PEPPOL authentication methods.
      */
-    private AuthTokensPair authenticate(AuthTokenRequest authTokenRequest, SelfSignedCertificate certificate)
+    private AuthTokensPair authenticate(AuthTokenRequest authTokenRequest, CertificateCache.Credentials certificate)
             throws ApiException, JAXBException, IOException {
         // Serialize auth token request to XML
         String xml = AuthTokenRequestSerializer.authTokenRequestSerializer(authTokenRequest);
 
         // Sign the XML with the certificate
-        String signedXml = signatureService.sign(xml.getBytes(), certificate.certificate(), certificate.getPrivateKey());
+        String signedXml = signatureService.sign(xml.getBytes(), certificate.certificate(), certificate.privateKey());
 
-        // Submit the signed auth token request
-        SignatureResponse submitAuthTokenResponse = ksefClient.submitAuthTokenRequest(signedXml, false);
+        // Submit the signed auth token request; each submission starts a new authentication, so only throttling is retried
+        SignatureResponse submitAuthTokenResponse = apiCalls.callNonIdempotent("Authentication request",
+                () -> ksefClient.submitAuthTokenRequest(signedXml, false));
 
-        // Poll until authentication process is ready
-        await().atMost(config.getAuthPollingTimeout())
-                .pollInterval(config.getAuthPollingInterval())
-                .until(() -> isAuthProcessReady(submitAuthTokenResponse.getReferenceNumber(),
-                        submitAuthTokenResponse.getAuthenticationToken().getToken()));
+        // Poll until authentication process is ready; an expired or rejected authentication ends polling at once
+        KsefApiCalls.await(statusPoller.poll("Authentication " + submitAuthTokenResponse.getReferenceNumber(),
+                apiCalls.probe("Authentication status " + submitAuthTokenResponse.getReferenceNumber(),
+                        () -> ksefClient.getAuthStatus(submitAuthTokenResponse.getReferenceNumber(),
+                                submitAuthTokenResponse.getAuthenticationToken().getToken())),
+                AuthService::isAuthProcessReady,
+                config.getAuthPollingTimeout(),
+                config.getAuthPollingInterval()));
 
         // Redeem the token to get access and refresh tokens
-        AuthOperationStatusResponse tokenResponse = ksefClient.redeemToken(
-                submitAuthTokenResponse.getAuthenticationToken().getToken());
+        AuthOperationStatusResponse tokenResponse = apiCalls.callNonIdempotent("Token redemption",
+                () -> ksefClient.redeemToken(submitAuthTokenResponse.getAuthenticationToken().getToken()));
 
         return new AuthTokensPair(tokenResponse.getAccessToken().getToken(),
                 tokenResponse.getRefreshToken().getToken());
     }
 
-    private boolean isAuthProcessReady(String referenceNumber, String tempAuthToken) throws ApiException {
-        AuthStatus checkAuthStatus = ksefClient.getAuthStatus(referenceNumber, tempAuthToken);
+    private static boolean isAuthProcessReady(AuthStatus checkAuthStatus) {
         return checkAuthStatus.getStatus().getCode() == 200;
     }
 }
@@ -0,0 +1,202 @@
+package com.bsg6.service.auth;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.AuthTokensPair;
+import com.bsg6.service.rest.KsefRestClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.xml.bind.JAXBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Per-context cache of KSeF access tokens.
+ * <p>
+ * A cached {@link AuthTokensPair} is handed out until its access token expires. Once the token enters the refresh
+ * window ({@code ksef.auth.token.refresh.ahead.seconds} before expiry) it is still returned, while a new access token
+ * is obtained from {@code /api/v2/auth/token/refresh} in the background. A full authentication is only performed when
+ * there is no usable token at all. Concurrent requests for the same context share a single authentication or refresh.
+ * </p>
+ */
+@Component
+public class AuthTokenCache {
+    private static final Logger log = LoggerFactory.getLogger(AuthTokenCache.class);
+
+    private static final String REFRESH_PATH = "/api/v2/auth/token/refresh";
+
+    /**
+     * Performs a full authentication for one context.
+     */
+    @FunctionalInterface
+    public interface Authenticator {
+        AuthTokensPair authenticate() throws ApiException, JAXBException, IOException;
+    }
+
+    private record CachedTokens(AuthTokensPair tokens, Instant accessValidUntil, Instant refreshValidUntil) {
+    }
+
+    private final KsefRestClient restClient;
+    private final Duration refreshAhead;
+    private final Duration defaultAccessTokenLifetime;
+    private final Clock clock = Clock.systemUTC();
+    private final Executor refreshExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-token-refresh-", 1).factory());
+
+    private final Map<String, CachedTokens> tokens = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<CachedTokens>> inFlight = new ConcurrentHashMap<>();
+
+    public AuthTokenCache(KsefRestClient restClient, ConfigurationProps config) {
+        this.restClient = restClient;
+        this.refreshAhead = config.getAuthTokenRefreshAhead();
+        this.defaultAccessTokenLifetime = config.getAuthTokenDefaultLifetime();
+    }
+
+    /**
+     * Returns valid tokens for the context, authenticating or refreshing only when needed.
+     *
+     * @param contextKey    identifies the authentication context, e.g. {@code "NIP:1234567890"}
+     * @param authenticator performs a full authentication when nothing usable is cached
+     */
+    public AuthTokensPair getTokens(String contextKey, Authenticator authenticator) throws ApiException, JAXBException, IOException {
+        Instant now = clock.instant();
+        CachedTokens cached = tokens.get(contextKey);
+
+        if (cached != null && now.isBefore(cached.accessValidUntil())) {
+            if (!now.isBefore(cached.accessValidUntil().minus(refreshAhead))) {
+                refreshInBackground(contextKey, cached);
+            }
+            return cached.tokens();
+        }
+
+        CompletableFuture<CachedTokens> load = new CompletableFuture<>();
+        CompletableFuture<CachedTokens> running = inFlight.putIfAbsent(contextKey, load);
+        if (running != null) {
+            CachedTokens loaded = await(running);
+            if (now.isBefore(loaded.accessValidUntil())) {
+                return loaded.tokens();
+            }
+            return getTokens(contextKey, authenticator);
+        }
+
+        try {
+            CachedTokens loaded = null;
+            if (cached != null && now.isBefore(cached.refreshValidUntil())) {
+                try {
+                    loaded = refresh(cached);
+                } catch (ApiException | IOException e) {
+                    log.info("Refreshing access token for {} failed, re-authenticating: {}", contextKey, e.getMessage());
+                }
+            }
+            if (loaded == null) {
+                loaded = cache(authenticator.authenticate());
+            }
+            tokens.put(contextKey, loaded);
+            load.complete(loaded);
+            return loaded.tokens();
+        } catch (ApiException | JAXBException | IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(contextKey, load);
+        }
+    }
+
+    /**
+     * Drops the cached tokens of a context, e.g. after KSeF rejected them.
+     */
+    public void invalidate(String contextKey) {
+        tokens.remove(contextKey);
+    }
+
+    private void refreshInBackground(String contextKey, CachedTokens cached) {
+        CompletableFuture<CachedTokens> refresh = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(contextKey, refresh) != null) {
+            return;
+        }
+
+        refreshExecutor.execute(() -> {
+            try {
+                CachedTokens refreshed = refresh(cached);
+                tokens.put(contextKey, refreshed);
+                refresh.complete(refreshed);
+                log.debug("Access token for {} refreshed, valid until {}", contextKey, refreshed.accessValidUntil());
+            } catch (Exception e) {
+                // the current token stays cached; the next call after expiry retries synchronously
+                log.warn("Background refresh of access token for {} failed: {}", contextKey, e.getMessage());
+                refresh.complete(cached);
+            } finally {
+                inFlight.remove(contextKey, refresh);
+            }
+        });
+    }
+
+    private CachedTokens refresh(CachedTokens cached) throws ApiException, IOException {
+        JsonNode accessToken = restClient.post(REFRESH_PATH, null, cached.tokens().refreshToken()).path("accessToken");
+        String token = accessToken.path("token").asText(null);
+        if (token == null) {
+            throw new IOException("Token refresh response contains no access token");
+        }
+
+        Instant validUntil = accessToken.hasNonNull("validUntil")
+                ? OffsetDateTime.parse(accessToken.get("validUntil").asText()).toInstant()
+                : expiryOf(token, defaultAccessTokenLifetime);
+
+        return new CachedTokens(new AuthTokensPair(token, cached.tokens().refreshToken()), validUntil, cached.refreshValidUntil());
+    }
+
+    private CachedTokens cache(AuthTokensPair pair) {
+        Instant accessValidUntil = expiryOf(pair.accessToken(), defaultAccessTokenLifetime);
+        Instant refreshValidUntil = pair.refreshToken() == null ? Instant.MIN : expiryOf(pair.refreshToken(), Duration.ZERO);
+        return new CachedTokens(pair, accessValidUntil, refreshValidUntil);
+    }
+
+    /**
+     * Reads the {@code exp} claim of a JWT; falls back to now + fallbackLifetime if the token cannot be decoded.
+     */
+    private Instant expiryOf(String jwt, Duration fallbackLifetime) {
+        String[] segments = jwt.split("\\.");
+        if (segments.length >= 2) {
+            try {
+                JsonNode claims = restClient.objectMapper().readTree(Base64.getUrlDecoder().decode(segments[1]));
+                if (claims.path("exp").canConvertToLong()) {
+                    return Instant.ofEpochSecond(claims.get("exp").asLong());
+                }
+            } catch (IllegalArgumentException | IOException e) {
+                log.debug("Token is not a decodable JWT: {}", e.getMessage());
+            }
+        }
+        return clock.instant().plus(fallbackLifetime);
+    }
+
+    private static CachedTokens await(CompletableFuture<CachedTokens> future) throws ApiException, JAXBException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for authentication");
+        } catch (ExecutionException e) {
+            switch (e.getCause()) {
+                case ApiException apiException -> throw apiException;
+                case JAXBException jaxbException -> throw jaxbException;
+                case IOException ioException -> throw ioException;
+                case RuntimeException runtimeException -> throw runtimeException;
+                default -> throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.bsg6.service.auth;
+
+import com.bsg6.config.ConfigurationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.interfaces.CertificateService;
+import pl.akmf.ksef.sdk.client.model.auth.EncryptionMethod;
+import pl.akmf.ksef.sdk.client.model.certificate.SelfSignedCertificate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of the self-signed certificates used to sign authentication requests.
+ * <p>
+ * Generating a certificate creates a new key pair, so each (subject, NIP/PESEL, {@link EncryptionMethod}) combination
+ * is generated once and reused for {@code ksef.auth.certificate.cache.ttl.minutes}, or until the certificate expires
+ * if that is sooner. Certificates close to the end of their TTL are regenerated ahead of time on a small pool of
+ * low-priority threads, which also serves {@link #warmUpCompanySeals}. If {@code ksef.auth.certificate.store.dir} is set,
+ * every certificate is also kept there as a PKCS#12 file, so a restarted process does not generate it again.
+ * </p>
+ */
+@Component
+public class CertificateCache {
+    private static final Logger log = LoggerFactory.getLogger(CertificateCache.class);
+
+    /**
+     * Certificate and private key used to sign the XAdES authentication request.
+     */
+    public record Credentials(X509Certificate certificate, PrivateKey privateKey) {
+    }
+
+    private record CacheKey(String subject, String identifier, EncryptionMethod encryptionMethod) {
+        String fileName() {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                        .digest((subject + '|' + identifier + '|' + encryptionMethod).getBytes(StandardCharsets.UTF_8));
+                return HexFormat.of().formatHex(digest) + ".p12";
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private record Entry(Credentials credentials, Instant createdAt, Instant expiresAt) {
+    }
+
+    private static final String KEY_ALIAS = "ksef-auth";
+
+    private final CertificateService certificateService;
+    private final ConfigurationProps config;
+    private final int maxSize;
+    private final Duration ttl;
+    private final Path storeDir;
+    private final char[] storePassword;
+    private final Clock clock = Clock.systemUTC();
+    private final ExecutorService warmUpPool;
+
+    private final Map<CacheKey, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+    private final Set<CacheKey> renewing = ConcurrentHashMap.newKeySet();
+
+    public CertificateCache(CertificateService certificateService, ConfigurationProps config) {
+        this.certificateService = certificateService;
+        this.config = config;
+        this.maxSize = config.getCertificateCacheMaxSize();
+        this.ttl = config.getCertificateCacheTtl();
+        this.storeDir = config.getCertificateStoreDir();
+        this.storePassword = config.getCertificateStorePassword().toCharArray();
+        this.warmUpPool = Executors.newFixedThreadPool(config.getCertificateWarmUpThreads(), Thread.ofPlatform()
+                .name("ksef-cert-warmup-", 1)
+                .daemon(true)
+                .priority(Thread.MIN_PRIORITY)
+                .factory());
+    }
+
+    /**
+     * Returns the company seal of the NIP context, generating it only on a cache miss.
+     */
+    public Credentials companySeal(String nip, EncryptionMethod encryptionMethod) {
+        return get(companySealKey(nip, encryptionMethod), () -> certificateService.getCompanySeal(
+                config.getDefaultCompanyName(),
+                "VATPL-" + nip,
+                config.getDefaultCompanySubject(),
+                encryptionMethod));
+    }
+
+    /**
+     * Returns the personal certificate of the PESEL subject, generating it only on a cache miss.
+     */
+    public Credentials personalCertificate(String pesel, EncryptionMethod encryptionMethod) {
+        String commonName = config.getDefaultPersonGivenName() + " " + config.getDefaultPersonSurname();
+        return get(new CacheKey(commonName, pesel, encryptionMethod), () -> certificateService.getPersonalCertificate(
+                config.getDefaultPersonGivenName(),
+                config.getDefaultPersonSurname(),
+                config.getDefaultPersonIdentifier(),
+                pesel,
+                commonName,
+                encryptionMethod));
+    }
+
+    /**
+     * Generates company seals for the given NIPs in the background, so the first authentication finds them ready.
+     */
+    public void warmUpCompanySeals(Collection<String> nips, EncryptionMethod encryptionMethod) {
+        for (String nip : nips) {
+            warmUpPool.execute(() -> companySeal(nip, encryptionMethod));
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private CacheKey companySealKey(String nip, EncryptionMethod encryptionMethod) {
+        return new CacheKey(config.getDefaultCompanySubject(), nip, encryptionMethod);
+    }
+
+    private Credentials get(CacheKey key, Supplier<SelfSignedCertificate> generator) {
+        Instant now = clock.instant();
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        CompletableFuture<Entry> future = entries.compute(key, (k, existing) ->
+                existing != null && (!existing.isDone() || isUsable(existing, now)) ? existing : created);
+
+        if (future == created) {
+            load(key, created, generator);
+            evictIfFull();
+        }
+
+        Entry entry;
+        try {
+            entry = future.join();
+        } catch (CompletionException e) {
+            entries.remove(key, future);
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+        }
+
+        if (isDueForRenewal(entry, now)) {
+            renewInBackground(key, future, generator);
+        }
+        return entry.credentials();
+    }
+
+    private void load(CacheKey key, CompletableFuture<Entry> future, Supplier<SelfSignedCertificate> generator) {
+        try {
+            Entry entry = loadStored(key);
+            future.complete(entry != null ? entry : generate(key, generator));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void renewInBackground(CacheKey key, CompletableFuture<Entry> current, Supplier<SelfSignedCertificate> generator) {
+        if (!renewing.add(key)) {
+            return;
+        }
+        warmUpPool.execute(() -> {
+            try {
+                entries.replace(key, current, CompletableFuture.completedFuture(generate(key, generator)));
+            } catch (RuntimeException e) {
+                log.warn("Renewing certificate for {} failed: {}", key.identifier(), e.getMessage());
+            } finally {
+                renewing.remove(key);
+            }
+        });
+    }
+
+    private Entry generate(CacheKey key, Supplier<SelfSignedCertificate> generator) {
+        long start = System.nanoTime();
+        SelfSignedCertificate certificate = generator.get();
+        Entry entry = newEntry(new Credentials(certificate.certificate(), certificate.getPrivateKey()), clock.instant());
+        log.debug("Generated {} certificate for {} in {} ms", key.encryptionMethod(), key.identifier(),
+                (System.nanoTime() - start) / 1_000_000);
+        store(key, entry);
+        return entry;
+    }
+
+    private Entry newEntry(Credentials credentials, Instant createdAt) {
+        Instant expiresAt = createdAt.plus(ttl);
+        Instant notAfter = credentials.certificate().getNotAfter().toInstant();
+        return new Entry(credentials, createdAt, expiresAt.isBefore(notAfter) ? expiresAt : notAfter);
+    }
+
+    private boolean isUsable(Entry entry, Instant now) {
+        return now.isBefore(entry.expiresAt());
+    }
+
+    private boolean isUsable(CompletableFuture<Entry> future, Instant now) {
+        return !future.isCompletedExceptionally() && isUsable(future.join(), now);
+    }
+
+    /**
+     * Entries in the last tenth of their lifetime are renewed ahead of expiry.
+     */
+    private boolean isDueForRenewal(Entry entry, Instant now) {
+        Duration lifetime = Duration.between(entry.createdAt(), entry.expiresAt());
+        return !now.isBefore(entry.expiresAt().minus(lifetime.dividedBy(10)));
+    }
+
+    /**
+     * Drops the oldest completed entries once the cache grows beyond its bound.
+     */
+    private void evictIfFull() {
+        while (entries.size() > maxSize) {
+            Map.Entry<CacheKey, CompletableFuture<Entry>> oldest = entries.entrySet().stream()
+                    .filter(e -> e.getValue().isDone() && !e.getValue().isCompletedExceptionally())
+                    .min(Comparator.comparing(e -> e.getValue().join().createdAt()))
+                    .orElse(null);
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private Entry loadStored(CacheKey key) {
+        if (storeDir == null) {
+            return null;
+        }
+        Path file = storeDir.resolve(key.fileName());
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, storePassword);
+            Entry entry = newEntry(new Credentials((X509Certificate) keyStore.getCertificate(KEY_ALIAS),
+                    (PrivateKey) keyStore.getKey(KEY_ALIAS, storePassword)), Files.getLastModifiedTime(file).toInstant());
+            return isUsable(entry, clock.instant()) ? entry : null;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            log.warn("Ignoring unreadable certificate store {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(CacheKey key, Entry entry) {
+        if (storeDir == null) {
+            return;
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, storePassword);
+            keyStore.setKeyEntry(KEY_ALIAS, entry.credentials().privateKey(), storePassword,
+                    new Certificate[]{entry.credentials().certificate()});
+
+            Files.createDirectories(storeDir);
+            Path temp = Files.createTempFile(storeDir, "cert-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                keyStore.store(out, storePassword);
+            }
+            Files.move(temp, storeDir.resolve(key.fileName()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("Could not persist certificate for {}: {}", key.identifier(), e.getMessage());
+        }
+    }
+}
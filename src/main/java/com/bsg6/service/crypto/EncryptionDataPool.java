@@ -0,0 +1,152 @@
+package com.bsg6.service.crypto;
+
+import com.bsg6.config.ConfigurationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.api.DefaultKsefClient;
+import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.bsg6.service.crypto.PublicKeyCertificateCache.SYMMETRIC_KEY_ENCRYPTION;
+
+/**
+ * Pre-generated session key material, so opening a session does not wait on key generation and RSA key wrapping.
+ * <p>
+ * A low-priority background thread keeps up to {@code ksef.encryption.pool.size} {@link EncryptionData} ready, each
+ * wrapped with the current {@code SymmetricKeyEncryption} certificate from {@link PublicKeyCertificateCache}. Every
+ * entry is handed out once: an AES key and IV are never shared between sessions. When KSeF publishes a new
+ * certificate, entries wrapped with the old one are discarded and generation continues with a fresh
+ * {@link DefaultCryptographyService}. If the pool is empty, {@link #take()} generates on the calling thread.
+ * </p>
+ * The thread starts with the first {@link #take()}, so merely creating the bean makes no calls to KSeF.
+ */
+@Service
+public class EncryptionDataPool {
+    private static final Logger log = LoggerFactory.getLogger(EncryptionDataPool.class);
+
+    private static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+    private record Pooled(EncryptionData encryptionData, String certificate) {
+    }
+
+    /**
+     * Cryptography service bound to the certificate that was current when it was created.
+     */
+    private record Generator(DefaultCryptographyService cryptographyService, String certificate) {
+    }
+
+    private final DefaultKsefClient ksefClient;
+    private final PublicKeyCertificateCache certificates;
+    private final BlockingQueue<Pooled> ready;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private volatile Generator generator;
+
+    public EncryptionDataPool(DefaultKsefClient ksefClient, DefaultCryptographyService cryptographyService,
+                              PublicKeyCertificateCache certificates, ConfigurationProps config) {
+        this.ksefClient = ksefClient;
+        this.certificates = certificates;
+        this.ready = new ArrayBlockingQueue<>(config.getEncryptionPoolSize());
+        this.generator = new Generator(cryptographyService, null);
+    }
+
+    /**
+     * Returns key material for one new session, wrapped with the currently published certificate.
+     */
+    public EncryptionData take() throws ApiException, IOException {
+        start();
+        String certificate = certificates.current(SYMMETRIC_KEY_ENCRYPTION).encoded();
+        for (Pooled pooled; (pooled = ready.poll()) != null; ) {
+            if (pooled.certificate().equals(certificate)) {
+                hits.increment();
+                return pooled.encryptionData();
+            }
+        }
+        misses.increment();
+        return generate().encryptionData();
+    }
+
+    /**
+     * Number of entries currently ready to be taken.
+     */
+    public int available() {
+        return ready.size();
+    }
+
+    /**
+     * Number of {@link #take()} calls served from the pool.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of {@link #take()} calls that had to generate on the calling thread.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            Thread.ofPlatform()
+                    .name("ksef-encryption-pregen")
+                    .daemon(true)
+                    .priority(Thread.MIN_PRIORITY)
+                    .start(this::fill);
+        }
+    }
+
+    private void fill() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ready.put(generate());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // take() falls back to generating on the caller until the next attempt succeeds
+                log.warn("Pre-generating session encryption data failed: {}", e.getMessage());
+                try {
+                    Thread.sleep(FAILURE_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Pooled generate() throws ApiException, IOException {
+        String certificate = certificates.current(SYMMETRIC_KEY_ENCRYPTION).encoded();
+        Generator current = generator;
+        if (!certificate.equals(current.certificate())) {
+            current = rotate(current, certificate);
+        }
+        return new Pooled(current.cryptographyService().getEncryptionData(), certificate);
+    }
+
+    private synchronized Generator rotate(Generator previous, String certificate) {
+        if (generator != previous) {
+            return generator;
+        }
+        // the first certificate seen keeps the configured service; a rotation needs one that reloads the key
+        Generator rotated = previous.certificate() == null
+                ? new Generator(previous.cryptographyService(), certificate)
+                : new Generator(new DefaultCryptographyService(ksefClient), certificate);
+        if (previous.certificate() != null) {
+            log.info("KSeF symmetric key encryption certificate changed, discarding {} pre-generated entries", ready.size());
+            ready.clear();
+        }
+        generator = rotated;
+        return rotated;
+    }
+}
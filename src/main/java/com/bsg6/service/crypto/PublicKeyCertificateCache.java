@@ -0,0 +1,159 @@
+package com.bsg6.service.crypto;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.rest.KsefRestClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache of the KSeF public key certificates published at {@code /api/v2/security/public-key-certificates}.
+ * <p>
+ * The list is fetched once and served from memory. After {@code ksef.encryption.certificate.refresh.minutes}, or
+ * once the selected certificate is within that interval of its {@code validTo}, the cached list is still returned
+ * while a fresh one is fetched in the background. Callers only wait on the network when nothing valid is cached.
+ * </p>
+ */
+@Component
+public class PublicKeyCertificateCache {
+    private static final Logger log = LoggerFactory.getLogger(PublicKeyCertificateCache.class);
+
+    private static final String PATH = "/api/v2/security/public-key-certificates";
+
+    public static final String SYMMETRIC_KEY_ENCRYPTION = "SymmetricKeyEncryption";
+    public static final String KSEF_TOKEN_ENCRYPTION = "KsefTokenEncryption";
+
+    /**
+     * A published certificate; {@code encoded} is the Base64 DER form as returned by KSeF.
+     */
+    public record PublicKeyCertificate(X509Certificate certificate, String encoded, Instant validFrom, Instant validTo,
+                                       Set<String> usage) {
+    }
+
+    private record Snapshot(List<PublicKeyCertificate> certificates, Instant fetchedAt) {
+    }
+
+    private final KsefRestClient restClient;
+    private final Duration refreshInterval;
+    private final Clock clock = Clock.systemUTC();
+    private final Executor refreshExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-public-key-refresh-", 1).factory());
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    public PublicKeyCertificateCache(KsefRestClient restClient, ConfigurationProps config) {
+        this.restClient = restClient;
+        this.refreshInterval = config.getEncryptionCertificateRefreshInterval();
+    }
+
+    /**
+     * Returns the newest currently valid certificate for the usage, e.g. {@link #SYMMETRIC_KEY_ENCRYPTION}.
+     *
+     * @throws IllegalStateException if KSeF publishes no valid certificate for the usage
+     */
+    public PublicKeyCertificate current(String usage) throws ApiException, IOException {
+        Instant now = clock.instant();
+        Snapshot cached = snapshot;
+        PublicKeyCertificate selected = cached == null ? null : select(cached, usage, now);
+
+        if (selected == null) {
+            selected = select(fetch(cached), usage, now);
+            if (selected == null) {
+                throw new IllegalStateException("KSeF publishes no valid public key certificate for " + usage);
+            }
+        } else if (!now.isBefore(cached.fetchedAt().plus(refreshInterval))
+                || !now.isBefore(selected.validTo().minus(refreshInterval))) {
+            refreshInBackground();
+        }
+        return selected;
+    }
+
+    /**
+     * Drops the cached list, e.g. after KSeF rejected a key encrypted with it.
+     */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            try {
+                snapshot = load();
+            } catch (Exception e) {
+                // the current list stays cached; once its certificates expire the next call fetches synchronously
+                log.warn("Background refresh of KSeF public key certificates failed: {}", e.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private synchronized Snapshot fetch(Snapshot stale) throws ApiException, IOException {
+        // another caller may have fetched while this one waited for the lock
+        Snapshot current = snapshot;
+        if (current != null && current != stale) {
+            return current;
+        }
+        Snapshot loaded = load();
+        snapshot = loaded;
+        return loaded;
+    }
+
+    private Snapshot load() throws ApiException, IOException {
+        JsonNode response = restClient.get(PATH, null);
+        List<PublicKeyCertificate> certificates = new ArrayList<>();
+        for (JsonNode node : response) {
+            String encoded = node.path("certificate").asText();
+            Set<String> usage = new HashSet<>();
+            node.path("usage").forEach(value -> usage.add(value.asText()));
+            certificates.add(new PublicKeyCertificate(parse(encoded), encoded,
+                    OffsetDateTime.parse(node.path("validFrom").asText()).toInstant(),
+                    OffsetDateTime.parse(node.path("validTo").asText()).toInstant(),
+                    Set.copyOf(usage)));
+        }
+        log.debug("Fetched {} KSeF public key certificates", certificates.size());
+        return new Snapshot(List.copyOf(certificates), clock.instant());
+    }
+
+    private static PublicKeyCertificate select(Snapshot snapshot, String usage, Instant now) {
+        return snapshot.certificates().stream()
+                .filter(certificate -> certificate.usage().contains(usage))
+                .filter(certificate -> !now.isBefore(certificate.validFrom()) && now.isBefore(certificate.validTo()))
+                .max(Comparator.comparing(PublicKeyCertificate::validFrom))
+                .orElse(null);
+    }
+
+    private static X509Certificate parse(String encoded) throws IOException {
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(Base64.getDecoder().decode(encoded)));
+        } catch (CertificateException | IllegalArgumentException e) {
+            throw new IOException("KSeF returned an unreadable public key certificate", e);
+        }
+    }
+}
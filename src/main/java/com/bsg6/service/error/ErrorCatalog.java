@@ -0,0 +1,205 @@
+package com.bsg6.service.error;
+
+import com.bsg6.config.ConfigurationProps;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * KSeF error codes from {@code ksef.api.error.list.file}, each classified as an {@link ErrorCategory}, so a failed
+ * call can be retried, backed off, re-authenticated or given up on without reading its message.
+ * <p>
+ * The list is loaded once at startup into an open-addressing table keyed by the primitive code, so a lookup is a
+ * hash and usually one probe, with no boxing. Listed codes are permanent unless named below; codes that are not
+ * listed, and responses without a KSeF error code, are classified by their HTTP status.
+ * </p>
+ */
+@Service
+public class ErrorCatalog {
+    private static final Logger log = LoggerFactory.getLogger(ErrorCatalog.class);
+
+    private static final int[] THROTTLING_CODES = {
+            21121  // Limit żądań osiągnięty
+    };
+    private static final int[] AUTH_EXPIRED_CODES = {
+            21112, // Nieprawidłowy czas tokena
+            21113, // Żądanie autoryzacji wygasło
+            21116, // Nieprawidłowy token
+            21171, // Brak tokena sesyjnego
+            21301, // Brak autoryzacji
+            21302, // Token nieaktywny
+            21303, // Token unieważniony
+            21304, // Brak uwierzytelnienia
+            21305  // Brak uwierzytelnienia certyfikatu
+    };
+    // Right after a session or query is created KSeF may not know it yet
+    private static final int[] RETRYABLE_CODES = {
+            21173, // Brak sesji o wskazanym numerze referencyjnym
+            21175  // Wynik zapytania o podanym identyfikatorze nie istnieje
+    };
+
+    private final ObjectMapper objectMapper;
+    // keys[slot] == 0 marks an empty slot; KSeF error codes are positive
+    private final int[] keys;
+    private final KsefError[] errors;
+    private final int shift;
+    private final int size;
+
+    public ErrorCatalog(ObjectMapper objectMapper, ConfigurationProps config) {
+        this(objectMapper, load(config.getApiErrorListFile()), config.getApiErrorListFile());
+    }
+
+    private ErrorCatalog(ObjectMapper objectMapper, List<String> lines, String source) {
+        this.objectMapper = objectMapper;
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, lines.size()) * 2 - 1) << 1);
+        this.keys = new int[capacity];
+        this.errors = new KsefError[capacity];
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+
+        int count = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.indexOf(':');
+            int code;
+            try {
+                code = separator > 0 ? Integer.parseInt(line.substring(0, separator).strip()) : 0;
+            } catch (NumberFormatException e) {
+                code = 0;
+            }
+            if (code <= 0) {
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": expected <code> : <message>");
+            }
+            if (!put(new KsefError(code, line.substring(separator + 1).strip(), categoryOf(code)))) {
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": duplicate error code " + code);
+            }
+            count++;
+        }
+        this.size = count;
+        log.info("Loaded {} KSeF error codes from {}", size, source);
+    }
+
+    /**
+     * Number of listed error codes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the listed error, or {@code null} if the code is not in the list
+     */
+    public KsefError lookup(int code) {
+        for (int slot = slot(code); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == code) {
+                return errors[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classifies a failed call by the first KSeF error code of the response body, or by the HTTP status when the
+     * code is missing or not listed.
+     */
+    public KsefError classify(ApiException e) {
+        JsonNode detail = firstExceptionDetail(e.getResponseBody());
+        int code = detail.path("exceptionCode").asInt(0);
+        KsefError listed = code > 0 ? lookup(code) : null;
+        if (listed != null) {
+            return listed;
+        }
+        String message = detail.path("exceptionDescription").asText(e.getMessage());
+        return new KsefError(code, message, categoryOfStatus(e.getCode()));
+    }
+
+    private JsonNode firstExceptionDetail(String body) {
+        if (body == null || body.isBlank()) {
+            return objectMapper.missingNode();
+        }
+        try {
+            return objectMapper.readTree(body).path("exception").path("exceptionDetailList").path(0);
+        } catch (IOException e) {
+            // Gateways answer some errors with HTML; the HTTP status still classifies them
+            return objectMapper.missingNode();
+        }
+    }
+
+    private boolean put(KsefError error) {
+        int slot = slot(error.code());
+        for (; keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == error.code()) {
+                return false;
+            }
+        }
+        keys[slot] = error.code();
+        errors[slot] = error;
+        return true;
+    }
+
+    private int slot(int code) {
+        // Fibonacci hashing spreads the clustered codes (211xx, 212xx...) over the whole table
+        return (code * 0x9E3779B9) >>> shift;
+    }
+
+    private static ErrorCategory categoryOf(int code) {
+        if (contains(THROTTLING_CODES, code)) {
+            return ErrorCategory.THROTTLING;
+        }
+        if (contains(AUTH_EXPIRED_CODES, code)) {
+            return ErrorCategory.AUTH_EXPIRED;
+        }
+        if (contains(RETRYABLE_CODES, code)) {
+            return ErrorCategory.RETRYABLE;
+        }
+        return ErrorCategory.PERMANENT_VALIDATION;
+    }
+
+    private static ErrorCategory categoryOfStatus(int status) {
+        if (status == 429) {
+            return ErrorCategory.THROTTLING;
+        }
+        if (status == 401) {
+            return ErrorCategory.AUTH_EXPIRED;
+        }
+        // 0: the SDK got no response at all
+        if (status == 0 || status == 408 || status >= 500) {
+            return ErrorCategory.RETRYABLE;
+        }
+        return ErrorCategory.PERMANENT_VALIDATION;
+    }
+
+    private static boolean contains(int[] codes, int code) {
+        for (int c : codes) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> load(String resource) {
+        try (InputStream is = ErrorCatalog.class.getResourceAsStream(resource)) {
+            if (is == null) {
+                throw new IllegalStateException("KSeF error list " + resource + " not found on the classpath");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            return reader.lines().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read KSeF error list " + resource, e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.bsg6.service.error;
+
+/**
+ * What a caller can do about a failed KSeF API call.
+ */
+public enum ErrorCategory {
+    /**
+     * Transient server or network failure; the same request may succeed later.
+     */
+    RETRYABLE,
+    /**
+     * A request limit was reached; the same request succeeds after backing off.
+     */
+    THROTTLING,
+    /**
+     * The request itself was rejected (schema, signature, missing data, unknown reference); retrying cannot help.
+     */
+    PERMANENT_VALIDATION,
+    /**
+     * The access token or authentication request expired or was revoked; authenticate again, then retry.
+     */
+    AUTH_EXPIRED;
+
+    /**
+     * {@code true} if repeating the request unchanged may succeed.
+     */
+    public boolean isRetryable() {
+        return this == RETRYABLE || this == THROTTLING;
+    }
+}
@@ -0,0 +1,180 @@
+package com.bsg6.service.error;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.polling.StatusPollAbortedException;
+import com.bsg6.service.polling.StatusPoller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Runs KSeF API calls, repeating those that fail with a {@link ErrorCategory#RETRYABLE} or
+ * {@link ErrorCategory#THROTTLING} error according to {@link ErrorCatalog}.
+ * <p>
+ * Up to {@code ksef.api.retry.max.attempts} attempts are made, with exponential backoff and jitter from
+ * {@code ksef.api.retry.backoff.millis}; a throttled call waits at least as long as its {@code Retry-After} header
+ * asks. Permanent and auth-expired errors, and the last failure, are rethrown unchanged.
+ * </p>
+ * <p>
+ * Calls that change state in KSeF, such as sending an invoice or redeeming a token, go through
+ * {@link #callNonIdempotent} and are repeated only when throttled: a throttled request was turned away before KSeF
+ * handled it, whereas one that failed otherwise may have been applied with only its response lost, and repeating it
+ * would be rejected (e.g. as a duplicate invoice, 21176) although the first attempt succeeded.
+ * </p>
+ * <p>
+ * Status checks polled by {@link StatusPoller} are wrapped with {@link #probe} instead, so that the poller keeps
+ * probing through transient failures but stops at the first permanent or auth-expired one.
+ * </p>
+ */
+@Service
+public class KsefApiCalls {
+    private static final Logger log = LoggerFactory.getLogger(KsefApiCalls.class);
+
+    /**
+     * A single KSeF API request.
+     */
+    @FunctionalInterface
+    public interface ApiCall<T> {
+        T call() throws ApiException;
+    }
+
+    /**
+     * A single KSeF API request without a result.
+     */
+    @FunctionalInterface
+    public interface VoidApiCall {
+        void call() throws ApiException;
+    }
+
+    private final ErrorCatalog errorCatalog;
+    private final int maxAttempts;
+    private final Duration backoff;
+
+    public KsefApiCalls(ErrorCatalog errorCatalog, ConfigurationProps config) {
+        this.errorCatalog = errorCatalog;
+        this.maxAttempts = Math.max(1, config.getApiRetryMaxAttempts());
+        this.backoff = config.getApiRetryBackoff();
+    }
+
+    /**
+     * @param operation used in logs
+     */
+    public <T> T call(String operation, ApiCall<T> call) throws ApiException {
+        return call(operation, call, ErrorCategory::isRetryable);
+    }
+
+    public void run(String operation, VoidApiCall call) throws ApiException {
+        call(operation, () -> {
+            call.call();
+            return null;
+        });
+    }
+
+    /**
+     * Like {@link #call}, but repeats the call only when it was throttled.
+     *
+     * @param operation used in logs
+     */
+    public <T> T callNonIdempotent(String operation, ApiCall<T> call) throws ApiException {
+        return call(operation, call, category -> category == ErrorCategory.THROTTLING);
+    }
+
+    public void runNonIdempotent(String operation, VoidApiCall call) throws ApiException {
+        callNonIdempotent(operation, () -> {
+            call.call();
+            return null;
+        });
+    }
+
+    private <T> T call(String operation, ApiCall<T> call, Predicate<ErrorCategory> repeatable) throws ApiException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (ApiException e) {
+                KsefError error = errorCatalog.classify(e);
+                if (!repeatable.test(error.category()) || attempt >= maxAttempts) {
+                    log.debug("{} failed after {} attempt(s): {}", operation, attempt, error);
+                    throw e;
+                }
+                log.warn("{} failed, attempt {}/{}: {}", operation, attempt, maxAttempts, error);
+                try {
+                    pause(e, error, attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a status check for {@link StatusPoller}. A {@link ErrorCategory#PERMANENT_VALIDATION} or
+     * {@link ErrorCategory#AUTH_EXPIRED} failure aborts the poll with {@link StatusPollAbortedException}; any other
+     * failure is left to the poller to probe again.
+     *
+     * @param operation used in logs and in the abort message
+     */
+    public <T> StatusPoller.Probe<T> probe(String operation, ApiCall<T> call) {
+        return () -> {
+            try {
+                return call.call();
+            } catch (ApiException e) {
+                KsefError error = errorCatalog.classify(e);
+                if (error.category() == ErrorCategory.PERMANENT_VALIDATION || error.category() == ErrorCategory.AUTH_EXPIRED) {
+                    throw new StatusPollAbortedException(operation + " failed: " + error, e);
+                }
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * {@link StatusPoller#await}, rethrowing the API error that aborted a poll of {@link #probe} checks, so callers
+     * can classify it like the error of any other call.
+     */
+    public static <T> T await(CompletableFuture<T> poll) throws ApiException {
+        try {
+            return StatusPoller.await(poll);
+        } catch (StatusPollAbortedException e) {
+            if (e.getCause() instanceof ApiException apiException) {
+                throw apiException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: waits between half and all of backoff * 2^(attempt - 1), and for throttling
+     * at least {@code Retry-After} seconds.
+     */
+    private void pause(ApiException e, KsefError error, int attempt) throws InterruptedException {
+        long ceiling = backoff.toMillis() << Math.min(attempt - 1, 10);
+        long millis = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1) : 0;
+        if (error.category() == ErrorCategory.THROTTLING) {
+            millis = Math.max(millis, retryAfterMillis(e));
+        }
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static long retryAfterMillis(ApiException e) {
+        if (e.getResponseHeaders() == null) {
+            return 0;
+        }
+        try {
+            return e.getResponseHeaders().firstValue("Retry-After")
+                    .map(seconds -> Long.parseLong(seconds.strip()) * 1000)
+                    .orElse(0L);
+        } catch (NumberFormatException ignored) {
+            // an HTTP date instead of seconds; the exponential backoff applies
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.bsg6.service.error;
+
+/**
+ * A KSeF error code with its message and category; code 0 if the response carried no KSeF error code.
+ */
+public record KsefError(int code, String message, ErrorCategory category) {
+
+    @Override
+    public String toString() {
+        return (code == 0 ? "" : code + " ") + category + ": " + message;
+    }
+}
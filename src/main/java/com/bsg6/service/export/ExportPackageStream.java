@@ -0,0 +1,158 @@
+package com.bsg6.service.export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The decrypted ZIP of an export package, read part by part straight from storage.
+ * <p>
+ * Each part is encrypted on its own with the export key, so parts are decrypted one after another and their plain
+ * bytes concatenated. A part is opened only when the previous one is exhausted, and its encrypted and plain SHA-256
+ * hashes are checked as soon as its last byte has been read.
+ * </p>
+ */
+final class ExportPackageStream extends InputStream {
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    @FunctionalInterface
+    interface PartOpener {
+        InputStream open(String url) throws IOException;
+    }
+
+    private final Iterator<JsonNode> parts;
+    private final PartOpener opener;
+    private final byte[] cipherKey;
+    private final byte[] cipherIv;
+    private InputStream current;
+
+    ExportPackageStream(List<JsonNode> parts, PartOpener opener, byte[] cipherKey, byte[] cipherIv) {
+        this.parts = parts.iterator();
+        this.opener = opener;
+        this.cipherKey = cipherKey;
+        this.cipherIv = cipherIv;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        while (true) {
+            if (current == null) {
+                if (!parts.hasNext()) {
+                    return -1;
+                }
+                current = openPart(parts.next());
+            }
+            int read = current.read(buffer, offset, length);
+            if (read != -1) {
+                return read;
+            }
+            current.close();
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private InputStream openPart(JsonNode part) throws IOException {
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(cipherIv));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        String name = part.path("partName").asText();
+        InputStream encrypted = new VerifyingInputStream(opener.open(part.path("url").asText()), name + " (encrypted)",
+                part.path("encryptedPartSize").asLong(), part.path("encryptedPartHash").asText());
+        return new VerifyingInputStream(new CipherInputStream(encrypted, cipher), name,
+                part.path("partSize").asLong(), part.path("partHash").asText());
+    }
+
+    /**
+     * Checks size and SHA-256 of everything read through it once the end is reached.
+     */
+    private static final class VerifyingInputStream extends FilterInputStream {
+        private final String name;
+        private final long expectedSize;
+        private final String expectedHash;
+        private final MessageDigest digest;
+        private long size;
+        private boolean verified;
+
+        VerifyingInputStream(InputStream in, String name, long expectedSize, String expectedHash) {
+            super(in);
+            this.name = name;
+            this.expectedSize = expectedSize;
+            this.expectedHash = expectedHash;
+            this.digest = sha256();
+            this.in = new DigestInputStream(in, digest);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read == -1) {
+                verify();
+            } else {
+                size += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            // skipping would bypass the digest
+            return 0;
+        }
+
+        private void verify() throws InvoiceExportException {
+            if (verified) {
+                return;
+            }
+            verified = true;
+            String hash = Base64.getEncoder().encodeToString(digest.digest());
+            if (size != expectedSize || !hash.equals(expectedHash)) {
+                throw new InvoiceExportException("Export part " + name + " has " + size + " bytes with hash " + hash
+                        + ", expected " + expectedSize + " bytes with hash " + expectedHash);
+            }
+        }
+
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.bsg6.service.export;
+
+import java.io.IOException;
+
+/**
+ * Thrown when KSeF fails an export, or a downloaded package part does not match its declared size or hash.
+ */
+public class InvoiceExportException extends IOException {
+
+    public InvoiceExportException(String message) {
+        super(message);
+    }
+
+    public InvoiceExportException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,279 @@
+package com.bsg6.service.export;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.crypto.EncryptionDataPool;
+import com.bsg6.service.metadata.InvoiceMetadataSync.SubjectType;
+import com.bsg6.service.polling.StatusPoller;
+import com.bsg6.service.rest.KsefRestClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Bulk download of invoices through the asynchronous export API ({@code POST /api/v2/invoices/exports}).
+ * <p>
+ * An export job pulls all invoices of a subject type with a permanent storage date in a range. KSeF prepares them as
+ * encrypted ZIP packages of at most 10 000 invoices; a truncated package names the date the next export must start
+ * from, so the job starts exports one after another until a package is not truncated. Each export gets fresh
+ * encryption data from {@link EncryptionDataPool}, its status is polled with {@link StatusPoller}, and its parts are
+ * streamed from storage, decrypted and unzipped entry by entry into {@code ksef.export.dir/<job>/invoices}, so no
+ * package is ever held in heap. Package metadata ({@code _metadata.json}) is kept next to them.
+ * </p>
+ * <p>
+ * After every package the job's {@code checkpoint.json} records the start date of the next export. A job that is run
+ * again after a crash continues from there; invoice files are replaced atomically, so a package interrupted half-way
+ * is simply exported and written again.
+ * </p>
+ */
+@Service
+public class InvoiceExportService {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceExportService.class);
+
+    private static final String EXPORTS_PATH = "/api/v2/invoices/exports";
+    private static final String CHECKPOINT_FILE = "checkpoint.json";
+    private static final String INVOICES_DIR = "invoices";
+    private static final String METADATA_DIR = "metadata";
+    private static final String METADATA_ENTRY = "_metadata.json";
+    private static final int STATUS_IN_PROGRESS = 100;
+    private static final int STATUS_SUCCESS = 200;
+
+    private static final Pattern JOB_ID = Pattern.compile("[0-9A-Za-z_-]+");
+    // also keeps entries from escaping the job directory
+    private static final Pattern ENTRY_NAME = Pattern.compile("[0-9A-Za-z_-][0-9A-Za-z_.-]*");
+
+    /**
+     * Totals of a job over all its runs; {@code invoices} counts distinct invoice files and {@code from} is the start
+     * date of the last export.
+     */
+    public record ExportResult(String jobId, Path directory, int packages, long invoices, Instant from) {
+    }
+
+    private record Checkpoint(Instant from, int packages, long invoices, boolean complete) {
+    }
+
+    private final KsefRestClient restClient;
+    private final EncryptionDataPool encryptionDataPool;
+    private final StatusPoller statusPoller;
+    private final ConfigurationProps config;
+    private final ObjectMapper objectMapper;
+    private final Path root;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-export-", 1).factory());
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    public InvoiceExportService(KsefRestClient restClient, EncryptionDataPool encryptionDataPool,
+                                StatusPoller statusPoller, ConfigurationProps config) {
+        this.restClient = restClient;
+        this.encryptionDataPool = encryptionDataPool;
+        this.statusPoller = statusPoller;
+        this.config = config;
+        this.objectMapper = restClient.objectMapper();
+        this.root = config.getExportDir();
+    }
+
+    /**
+     * Runs or resumes an export job. KSeF allows 10 concurrent exports per context, so keep the number of jobs
+     * running for one context below that.
+     *
+     * @param jobId names the job directory; running the same job again resumes it
+     * @param to    end of the range, or {@code null} for all invoices up to the permanent storage high-water mark
+     * @return a future completed once the last package is unpacked
+     */
+    public CompletableFuture<ExportResult> export(String jobId, SubjectType subjectType, Instant from, Instant to,
+                                                  String accessToken) {
+        if (!JOB_ID.matcher(jobId).matches()) {
+            throw new IllegalArgumentException("Not a job id: " + jobId);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            if (!running.add(jobId)) {
+                throw new IllegalStateException("Export job " + jobId + " is already running");
+            }
+            try {
+                return run(jobId, subjectType, from, to, accessToken);
+            } catch (ApiException | IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                running.remove(jobId);
+            }
+        }, executor);
+    }
+
+    private ExportResult run(String jobId, SubjectType subjectType, Instant from, Instant to, String accessToken)
+            throws ApiException, IOException {
+        Path jobDir = root.resolve(jobId);
+        Files.createDirectories(jobDir.resolve(INVOICES_DIR));
+        Files.createDirectories(jobDir.resolve(METADATA_DIR));
+        Checkpoint checkpoint = readCheckpoint(jobDir);
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint(from, 0, 0, false);
+        } else {
+            log.info("Resuming export job {} from {} after {} packages", jobId, checkpoint.from(), checkpoint.packages());
+        }
+
+        while (!checkpoint.complete()) {
+            EncryptionData encryptionData = encryptionDataPool.take();
+            String referenceNumber = restClient.post(EXPORTS_PATH,
+                    request(encryptionData, subjectType, checkpoint.from(), to), accessToken)
+                    .path("referenceNumber").asText();
+            JsonNode exportPackage = awaitPackage(referenceNumber, accessToken);
+
+            int packageNumber = checkpoint.packages() + 1;
+            long invoices = unpack(exportPackage, encryptionData, jobDir, packageNumber);
+            boolean truncated = exportPackage.path("isTruncated").asBoolean();
+            Instant next = truncated
+                    ? Instant.parse(exportPackage.path("lastPermanentStorageDate").asText())
+                    : checkpoint.from();
+            if (truncated && !next.isAfter(checkpoint.from())) {
+                throw new InvoiceExportException("Export " + referenceNumber + " of job " + jobId
+                        + " was truncated without advancing past " + checkpoint.from());
+            }
+            checkpoint = new Checkpoint(next, packageNumber, checkpoint.invoices() + invoices, !truncated);
+            writeCheckpoint(jobDir, checkpoint);
+            log.info("Export job {}: package {} ({}) with {} invoices unpacked", jobId, packageNumber, referenceNumber, invoices);
+        }
+        return new ExportResult(jobId, jobDir, checkpoint.packages(), checkpoint.invoices(), checkpoint.from());
+    }
+
+    private JsonNode awaitPackage(String referenceNumber, String accessToken) throws InvoiceExportException {
+        JsonNode status = StatusPoller.await(statusPoller.poll("Invoice export " + referenceNumber,
+                () -> restClient.get(EXPORTS_PATH + "/" + referenceNumber, accessToken),
+                response -> response.path("status").path("code").asInt() != STATUS_IN_PROGRESS,
+                config.getExportTimeout(),
+                config.getExportInterval()));
+        JsonNode code = status.path("status");
+        if (code.path("code").asInt() != STATUS_SUCCESS) {
+            throw new InvoiceExportException("Invoice export " + referenceNumber + " failed with status "
+                    + code.path("code").asInt() + ": " + code.path("description").asText() + " " + code.path("details"));
+        }
+        return status.path("package");
+    }
+
+    /**
+     * Streams the package parts through decryption and unzipping into the job directory.
+     *
+     * @return number of invoices of the package not already in the job directory
+     */
+    private long unpack(JsonNode exportPackage, EncryptionData encryptionData, Path jobDir, int packageNumber)
+            throws ApiException, IOException {
+        List<JsonNode> parts = new ArrayList<>();
+        exportPackage.path("parts").forEach(parts::add);
+        parts.sort((a, b) -> Integer.compare(a.path("ordinalNumber").asInt(), b.path("ordinalNumber").asInt()));
+        if (parts.isEmpty()) {
+            return 0;
+        }
+
+        long invoices = 0;
+        try (InputStream zip = new ExportPackageStream(parts, this::openPart, encryptionData.cipherKey(), encryptionData.cipherIv());
+             ZipInputStream entries = new ZipInputStream(zip)) {
+            for (ZipEntry entry; (entry = entries.getNextEntry()) != null; ) {
+                String name = entry.getName();
+                if (entry.isDirectory() || !ENTRY_NAME.matcher(name).matches()) {
+                    throw new InvoiceExportException("Unexpected entry " + name + " in export package");
+                }
+                if (name.equals(METADATA_ENTRY)) {
+                    writeAtomically(entries, jobDir.resolve(METADATA_DIR).resolve(packageNumber + ".json"));
+                } else {
+                    // invoices at a truncation date are exported again with the next package
+                    Path target = jobDir.resolve(INVOICES_DIR).resolve(name);
+                    if (!Files.exists(target)) {
+                        invoices++;
+                    }
+                    writeAtomically(entries, target);
+                }
+            }
+            // the central directory follows the entries; reading it lets the last part's hashes be checked
+            zip.transferTo(OutputStream.nullOutputStream());
+        } catch (InvoiceExportException e) {
+            if (e.getCause() instanceof ApiException apiException) {
+                throw apiException;
+            }
+            throw e;
+        }
+        return invoices;
+    }
+
+    private InputStream openPart(String url) throws IOException {
+        try {
+            // parts are fetched from pre-signed storage links, which take no access token
+            return restClient.download(url, null);
+        } catch (ApiException e) {
+            throw new InvoiceExportException("Downloading export part failed", e);
+        }
+    }
+
+    private static void writeAtomically(InputStream content, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.copy(content, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Map<String, Object> request(EncryptionData encryptionData, SubjectType subjectType, Instant from, Instant to) {
+        Map<String, Object> dateRange = new LinkedHashMap<>();
+        dateRange.put("dateType", "PermanentStorage");
+        dateRange.put("from", from.toString());
+        if (to != null) {
+            dateRange.put("to", to.toString());
+        }
+        dateRange.put("restrictToPermanentStorageHwmDate", true);
+        return Map.of(
+                "encryption", Map.of(
+                        "encryptedSymmetricKey", encryptionData.encryptionInfo().getEncryptedSymmetricKey(),
+                        "initializationVector", encryptionData.encryptionInfo().getInitializationVector()),
+                "filters", Map.of(
+                        "subjectType", subjectType.apiValue(),
+                        "dateRange", dateRange));
+    }
+
+    private Checkpoint readCheckpoint(Path jobDir) throws IOException {
+        Path file = jobDir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        JsonNode checkpoint = objectMapper.readTree(file.toFile());
+        return new Checkpoint(Instant.parse(checkpoint.path("from").asText()), checkpoint.path("packages").asInt(),
+                checkpoint.path("invoices").asLong(), checkpoint.path("complete").asBoolean());
+    }
+
+    private void writeCheckpoint(Path jobDir, Checkpoint checkpoint) throws IOException {
+        ObjectNode json = objectMapper.createObjectNode()
+                .put("from", checkpoint.from().toString())
+                .put("packages", checkpoint.packages())
+                .put("invoices", checkpoint.invoices())
+                .put("complete", checkpoint.complete());
+        Path target = jobDir.resolve(CHECKPOINT_FILE);
+        Path temp = target.resolveSibling(CHECKPOINT_FILE + ".tmp");
+        Files.write(temp, objectMapper.writeValueAsBytes(json));
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
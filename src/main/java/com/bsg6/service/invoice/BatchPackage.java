@@ -0,0 +1,32 @@
+package com.bsg6.service.invoice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Metadata of the whole (unencrypted) ZIP and its encrypted parts, as returned by {@link BatchPackageWriter#finish()}.
+ * Closing the package removes any temporary files backing the parts.
+ *
+ * @param zipSize size of the unencrypted ZIP in bytes
+ * @param zipHash Base64 encoded SHA-256 of the unencrypted ZIP
+ * @param invoiceCount number of invoices written to the ZIP
+ * @param parts encrypted parts ordered by ordinal number
+ */
+public record BatchPackage(long zipSize, String zipHash, int invoiceCount, List<BatchPart> parts) implements AutoCloseable {
+
+    @Override
+    public void close() {
+        IOException failure = null;
+        for (BatchPart part : parts) {
+            try {
+                part.delete();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Failed to delete batch part files", failure);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.bsg6.service.invoice;
+
+import com.bsg6.service.validation.InvoiceSchemaValidator;
+import com.bsg6.service.validation.InvoiceValidationException;
+import com.bsg6.service.validation.ValidationResult;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams invoices into a batch ZIP that is cut into parts on the fly.
+ * <p>
+ * Every byte of the ZIP passes through the writer exactly once: it is hashed for the package metadata, then
+ * AES-256-CBC encrypted into the current part while the ciphertext is hashed for the part metadata. Parts are
+ * buffered in heap up to the spill threshold and moved to a temporary file beyond it, so the whole batch is never
+ * held in memory. Each part is encrypted independently with the same key and IV, as KSeF expects.
+ * </p>
+ * <p>
+ * With an {@link InvoiceSchemaValidator}, each invoice is first written to a reused buffer and validated, so an
+ * invalid invoice fails the package before it is encrypted; only one invoice is held in memory at a time.
+ * </p>
+ * Not thread-safe.
+ */
+public class BatchPackageWriter implements Closeable {
+
+    /** KSeF limit for the number of parts in a single batch. */
+    public static final int MAX_PARTS = 50;
+
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String SHA_256 = "SHA-256";
+
+    private final byte[] cipherKey;
+    private final byte[] cipherIv;
+    private final long partSize;
+    private final int spillThreshold;
+    private final InvoiceSchemaValidator validator;
+    private final InvoiceBuffer invoiceBuffer;
+
+    private final PartSplittingOutputStream splitter;
+    private final ZipOutputStream zip;
+    private int invoiceCount;
+    private boolean finished;
+
+    /**
+     * @param cipherKey AES-256 key of the batch session
+     * @param cipherIv AES IV of the batch session
+     * @param partSize maximum size of a ZIP slice before encryption
+     * @param spillThreshold encrypted part size above which the part is moved from heap to a temporary file
+     */
+    public BatchPackageWriter(byte[] cipherKey, byte[] cipherIv, long partSize, int spillThreshold) {
+        this(cipherKey, cipherIv, partSize, spillThreshold, null);
+    }
+
+    /**
+     * @param validator validates every invoice before it is packaged; {@code null} or disabled to skip validation
+     */
+    public BatchPackageWriter(byte[] cipherKey, byte[] cipherIv, long partSize, int spillThreshold,
+                              InvoiceSchemaValidator validator) {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("Part size must be positive: " + partSize);
+        }
+        this.cipherKey = cipherKey;
+        this.cipherIv = cipherIv;
+        this.partSize = partSize;
+        this.spillThreshold = spillThreshold;
+        this.validator = validator != null && validator.isEnabled() ? validator : null;
+        this.invoiceBuffer = this.validator != null ? new InvoiceBuffer() : null;
+        this.splitter = new PartSplittingOutputStream();
+        this.zip = new ZipOutputStream(splitter);
+    }
+
+    /**
+     * Renders an invoice template directly into a new ZIP entry.
+     */
+    public void addInvoice(String fileName, CompiledInvoiceTemplate template, Map<String, String> values) throws IOException {
+        add(fileName, out -> template.renderTo(out, values));
+    }
+
+    /**
+     * Marshals a typed invoice directly into a new ZIP entry.
+     */
+    public void addInvoice(String fileName, InvoiceMarshaller marshaller, Object invoice) throws IOException {
+        add(fileName, out -> marshaller.marshal(invoice, out));
+    }
+
+    /**
+     * Adds an already serialized invoice as a new ZIP entry.
+     */
+    public void addInvoice(String fileName, byte[] invoice) throws IOException {
+        add(fileName, out -> out.write(invoice));
+    }
+
+    private void add(String fileName, InvoiceContent content) throws IOException {
+        ensureOpen();
+        if (validator != null) {
+            invoiceBuffer.reset();
+            content.writeTo(invoiceBuffer);
+            ValidationResult result = validator.validate(invoiceBuffer.contents());
+            if (!result.valid()) {
+                throw new InvoiceValidationException(fileName + " does not conform to its schema", result);
+            }
+            content = invoiceBuffer::writeTo;
+        }
+        zip.putNextEntry(new ZipEntry(fileName));
+        content.writeTo(zip);
+        zip.closeEntry();
+        invoiceCount++;
+    }
+
+    /**
+     * Completes the ZIP, seals the last part and returns the package. The caller owns the returned package and must
+     * close it to release temporary files.
+     */
+    public BatchPackage finish() throws IOException {
+        ensureOpen();
+        // Writes the central directory and releases the deflater; closing the splitter itself is a no-op
+        zip.close();
+        splitter.closeCurrentPart();
+        finished = true;
+        return new BatchPackage(splitter.zipSize, Base64.getEncoder().encodeToString(splitter.zipDigest.digest()),
+                invoiceCount, List.copyOf(splitter.parts));
+    }
+
+    /**
+     * Discards all parts written so far unless {@link #finish()} already handed them over.
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            splitter.discard();
+        } finally {
+            try {
+                // Releases the deflater; the discarded splitter drops the central directory written on closing
+                zip.close();
+            } finally {
+                for (BatchPart part : splitter.parts) {
+                    part.delete();
+                }
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (finished) {
+            throw new IllegalStateException("Batch package already finished");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface InvoiceContent {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Reused buffer that lends its content to the validator without copying it.
+     */
+    private static final class InvoiceBuffer extends ByteArrayOutputStream {
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Receives the raw ZIP stream, hashes it and routes it into consecutive encrypted parts of at most partSize bytes.
+     */
+    private final class PartSplittingOutputStream extends OutputStream {
+        private final MessageDigest zipDigest = sha256();
+        private final List<BatchPart> parts = new ArrayList<>();
+        private long zipSize;
+        private PartSink current;
+        private boolean discarded;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (discarded) {
+                return;
+            }
+            zipDigest.update(b, off, len);
+            zipSize += len;
+            while (len > 0) {
+                if (current == null) {
+                    current = new PartSink(parts.size() + 1);
+                }
+                int chunk = (int) Math.min(len, partSize - current.plainSize);
+                current.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+                if (current.plainSize == partSize) {
+                    closeCurrentPart();
+                }
+            }
+        }
+
+        void closeCurrentPart() throws IOException {
+            if (current != null) {
+                parts.add(current.seal());
+                current = null;
+            }
+        }
+
+        void discard() throws IOException {
+            discarded = true;
+            if (current != null) {
+                current.discard();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Encrypting, hashing sink for a single part.
+     */
+    private final class PartSink {
+        private final int ordinalNumber;
+        private final MessageDigest encryptedDigest = sha256();
+        private final SpillableBuffer buffer;
+        private final CipherOutputStream cipherOut;
+        private long plainSize;
+
+        PartSink(int ordinalNumber) {
+            if (ordinalNumber > MAX_PARTS) {
+                throw new IllegalStateException("Batch exceeds " + MAX_PARTS + " parts; increase ksef.batch.part.size.bytes");
+            }
+            this.ordinalNumber = ordinalNumber;
+            this.buffer = new SpillableBuffer(spillThreshold);
+            try {
+                Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(cipherIv));
+                this.cipherOut = new CipherOutputStream(new DigestOutputStream(buffer, encryptedDigest), cipher);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot initialize AES cipher for batch part " + ordinalNumber, e);
+            }
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            cipherOut.write(b, off, len);
+            plainSize += len;
+        }
+
+        BatchPart seal() throws IOException {
+            // Closing the cipher stream writes the final padded block and closes the buffer
+            cipherOut.close();
+            return new BatchPart(ordinalNumber, plainSize, buffer.size(),
+                    Base64.getEncoder().encodeToString(encryptedDigest.digest()), buffer.content(), buffer.file());
+        }
+
+        void discard() throws IOException {
+            buffer.discard();
+        }
+    }
+
+    /**
+     * Output buffer that starts in heap and moves to a temporary file once it grows beyond a threshold.
+     */
+    private static final class SpillableBuffer extends OutputStream {
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream fileOut;
+        private Path file;
+        private long size;
+
+        SpillableBuffer(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && size + len > threshold) {
+                spill();
+            }
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+            size += len;
+        }
+
+        private void spill() throws IOException {
+            file = Files.createTempFile("ksef-batch-part-", ".zip.aes");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        byte[] content() {
+            return memory != null ? memory.toByteArray() : null;
+        }
+
+        Path file() {
+            return file;
+        }
+
+        void discard() throws IOException {
+            close();
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.bsg6.service.invoice;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * One encrypted part of a batch ZIP package.
+ * <p>
+ * The encrypted content is kept in heap when small and in a temporary file otherwise; callers read it through
+ * {@link #openStream()} or {@link #bodyPublisher()} and never need to know which.
+ * </p>
+ */
+public final class BatchPart {
+
+    private final int ordinalNumber;
+    private final long plainSize;
+    private final long encryptedSize;
+    private final String encryptedHash;
+    private final byte[] content;
+    private final Path file;
+
+    BatchPart(int ordinalNumber, long plainSize, long encryptedSize, String encryptedHash, byte[] content, Path file) {
+        this.ordinalNumber = ordinalNumber;
+        this.plainSize = plainSize;
+        this.encryptedSize = encryptedSize;
+        this.encryptedHash = encryptedHash;
+        this.content = content;
+        this.file = file;
+    }
+
+    /**
+     * Rebuilds a part from a copy of its encrypted content, e.g. one saved from {@link #openStream()} before a restart
+     * to resume the upload of the batch with {@link BatchPartUploader#restore}. The part takes over the file and
+     * deletes it when its package is closed.
+     *
+     * @param plainSize {@link #getPlainSize()} of the original part
+     */
+    public static BatchPart fromFile(int ordinalNumber, long plainSize, Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return new BatchPart(ordinalNumber, plainSize, Files.size(file),
+                Base64.getEncoder().encodeToString(digest.digest()), null, file);
+    }
+
+    /**
+     * 1-based ordinal number of the part, as declared in the open batch session request.
+     */
+    public int getOrdinalNumber() {
+        return ordinalNumber;
+    }
+
+    /**
+     * Size of the ZIP slice before encryption.
+     */
+    public long getPlainSize() {
+        return plainSize;
+    }
+
+    public long getEncryptedSize() {
+        return encryptedSize;
+    }
+
+    /**
+     * Base64 encoded SHA-256 of the encrypted part.
+     */
+    public String getEncryptedHash() {
+        return encryptedHash;
+    }
+
+    public boolean isSpilledToDisk() {
+        return file != null;
+    }
+
+    public InputStream openStream() throws IOException {
+        return file != null ? Files.newInputStream(file) : new ByteArrayInputStream(content);
+    }
+
+    public byte[] readAllBytes() throws IOException {
+        return file != null ? Files.readAllBytes(file) : content;
+    }
+
+    public HttpRequest.BodyPublisher bodyPublisher() throws FileNotFoundException {
+        return file != null ? HttpRequest.BodyPublishers.ofFile(file) : HttpRequest.BodyPublishers.ofByteArray(content);
+    }
+
+    void delete() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.bsg6.service.invoice;
+
+import com.bsg6.config.ConfigurationProps;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.session.batch.OpenBatchSessionResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uploads encrypted batch parts to the locations returned when a batch session is opened.
+ * <p>
+ * Parts are uploaded concurrently with at most {@code ksef.batch.upload.max.in.flight} requests in flight. Each part
+ * is retried on its own with exponential backoff and jitter on I/O errors, HTTP 408, 429 and 5xx. Every acknowledged
+ * part is recorded in {@link BatchUploadProgress}; if some parts still fail, the resulting
+ * {@link BatchUploadException} carries the progress so a later call uploads only the remaining parts.
+ * </p>
+ * <p>
+ * With {@code ksef.batch.upload.journal.dir} set, {@link #start} writes the upload instructions to a journal file in
+ * that directory and each acknowledgement is appended to it; {@link #restore} reads it back. The journal is deleted
+ * once every part is acknowledged. Resuming after a restart also needs the encrypted parts, which the caller keeps
+ * (parts spilled to disk are temporary files) and rebuilds with {@link BatchPart#fromFile}.
+ * </p>
+ */
+@Service
+public class BatchPartUploader {
+    private static final Logger log = LoggerFactory.getLogger(BatchPartUploader.class);
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final ConfigurationProps config;
+
+    public BatchPartUploader(HttpClient httpClient, ObjectMapper objectMapper, ConfigurationProps config) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.config = config;
+    }
+
+    /**
+     * Creates the upload progress of a freshly opened batch session.
+     */
+    public BatchUploadProgress start(OpenBatchSessionResponse response) throws IOException {
+        // The SDK response model is Jackson-mapped, so read the upload instructions in their wire format
+        JsonNode uploadRequests = objectMapper.valueToTree(response).path("partUploadRequests");
+
+        TreeMap<Integer, BatchUploadProgress.PartUploadRequest> requests = new TreeMap<>();
+        for (JsonNode uploadRequest : uploadRequests) {
+            Map<String, String> headers = new HashMap<>();
+            uploadRequest.path("headers").fields().forEachRemaining(header -> {
+                if (!header.getValue().isNull()) {
+                    headers.put(header.getKey(), header.getValue().asText());
+                }
+            });
+            int ordinalNumber = uploadRequest.path("ordinalNumber").asInt();
+            requests.put(ordinalNumber, new BatchUploadProgress.PartUploadRequest(ordinalNumber,
+                    uploadRequest.path("method").asText("PUT"), URI.create(uploadRequest.path("url").asText()), Map.copyOf(headers)));
+        }
+
+        if (requests.isEmpty()) {
+            throw new IllegalStateException("KSeF returned no part upload requests.");
+        }
+
+        Path journal = null;
+        if (config.getBatchUploadJournalDir() != null) {
+            Files.createDirectories(config.getBatchUploadJournalDir());
+            journal = config.getBatchUploadJournalDir().resolve(response.getReferenceNumber() + ".journal");
+            // First line: the upload instructions; every further line: one acknowledged ordinal number
+            Files.writeString(journal, objectMapper.writeValueAsString(
+                    new JournalHeader(response.getReferenceNumber(), List.copyOf(requests.values()))) + "\n",
+                    StandardCharsets.UTF_8);
+        }
+
+        return new BatchUploadProgress(response.getReferenceNumber(), requests, journal, List.of());
+    }
+
+    /**
+     * Rebuilds the progress of a batch from the journal written by {@link #start}, e.g. after a restart. The journal
+     * keeps being appended to. Upload the remaining parts with the parts rebuilt by {@link BatchPart#fromFile}.
+     */
+    public BatchUploadProgress restore(Path journal) throws IOException {
+        List<String> lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException("Empty batch upload journal " + journal);
+        }
+        JournalHeader header = objectMapper.readValue(lines.getFirst(), JournalHeader.class);
+
+        TreeMap<Integer, BatchUploadProgress.PartUploadRequest> requests = new TreeMap<>();
+        for (BatchUploadProgress.PartUploadRequest request : header.uploadRequests()) {
+            requests.put(request.ordinalNumber(), request);
+        }
+        Set<Integer> acknowledged = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            // the last line may be torn by a crash while it was written
+            if (!line.isBlank() && line.chars().allMatch(Character::isDigit)) {
+                acknowledged.add(Integer.valueOf(line));
+            }
+        }
+        return new BatchUploadProgress(header.sessionReferenceNumber(), requests, journal, acknowledged);
+    }
+
+    /**
+     * Uploads all parts not yet acknowledged in the progress.
+     *
+     * @param parts all parts of the batch; parts already acknowledged are skipped
+     * @throws BatchUploadException if at least one part could not be uploaded
+     */
+    public void upload(BatchUploadProgress progress, List<BatchPart> parts) throws IOException {
+        Map<Integer, BatchPart> partsByOrdinal = new HashMap<>();
+        for (BatchPart part : parts) {
+            partsByOrdinal.put(part.getOrdinalNumber(), part);
+        }
+
+        List<Integer> pending = progress.pendingOrdinals();
+        if (pending.isEmpty()) {
+            completed(progress);
+            return;
+        }
+
+        int inFlight = Math.max(1, Math.min(config.getBatchUploadMaxInFlight(), pending.size()));
+        List<Future<?>> uploads = new ArrayList<>(pending.size());
+        IOException failure = null;
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(inFlight,
+                Thread.ofVirtual().name("ksef-batch-upload-", 1).factory())) {
+            for (Integer ordinalNumber : pending) {
+                BatchPart part = partsByOrdinal.get(ordinalNumber);
+                if (part == null) {
+                    throw new IllegalArgumentException("No content for batch part " + ordinalNumber);
+                }
+                BatchUploadProgress.PartUploadRequest uploadRequest = progress.uploadRequest(ordinalNumber);
+                uploads.add(executor.submit(() -> {
+                    uploadWithRetry(uploadRequest, part);
+                    progress.acknowledge(ordinalNumber);
+                    log.debug("Batch {} part {} acknowledged", progress.getSessionReferenceNumber(), ordinalNumber);
+                    return null;
+                }));
+            }
+
+            for (Future<?> upload : uploads) {
+                try {
+                    upload.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BatchUploadException("Interrupted while uploading batch parts", progress,
+                    new InterruptedIOException());
+        }
+
+        if (failure != null) {
+            throw new BatchUploadException("Failed to upload batch parts " + progress.pendingOrdinals()
+                    + " of session " + progress.getSessionReferenceNumber(), progress, failure);
+        }
+        completed(progress);
+    }
+
+    private static void completed(BatchUploadProgress progress) throws IOException {
+        if (progress.getJournal() != null) {
+            Files.deleteIfExists(progress.getJournal());
+        }
+    }
+
+    private void uploadWithRetry(BatchUploadProgress.PartUploadRequest uploadRequest, BatchPart part) throws IOException, InterruptedException {
+        int maxAttempts = Math.max(1, config.getBatchUploadMaxAttempts());
+        Duration backoff = config.getBatchUploadRetryBackoff();
+
+        for (int attempt = 1; ; attempt++) {
+            int status;
+            try {
+                status = send(uploadRequest, part);
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                log.warn("Upload of batch part {} failed, attempt {}/{}: {}", part.getOrdinalNumber(), attempt, maxAttempts, e.toString());
+                pause(backoff, attempt);
+                continue;
+            }
+
+            if (status / 100 == 2) {
+                return;
+            }
+            if (!isRetryable(status) || attempt >= maxAttempts) {
+                throw new IOException("Upload of batch part " + part.getOrdinalNumber() + " failed with HTTP status " + status);
+            }
+            log.warn("Upload of batch part {} returned HTTP status {}, attempt {}/{}", part.getOrdinalNumber(), status, attempt, maxAttempts);
+            pause(backoff, attempt);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: waits between half and all of backoff * 2^(attempt - 1).
+     */
+    private static void pause(Duration backoff, int attempt) throws InterruptedException {
+        long ceiling = backoff.toMillis() << Math.min(attempt - 1, 10);
+        if (ceiling > 0) {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+        }
+    }
+
+    private int send(BatchUploadProgress.PartUploadRequest uploadRequest, BatchPart part) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uploadRequest.url())
+                .method(uploadRequest.method(), part.bodyPublisher());
+        uploadRequest.headers().forEach(builder::header);
+
+        return httpClient.send(builder.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * First line of a journal.
+     */
+    private record JournalHeader(String sessionReferenceNumber, List<BatchUploadProgress.PartUploadRequest> uploadRequests) {
+    }
+}
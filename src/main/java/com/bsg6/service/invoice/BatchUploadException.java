@@ -0,0 +1,35 @@
+package com.bsg6.service.invoice;
+
+import java.io.IOException;
+
+/**
+ * Thrown when some batch parts could not be uploaded after all retries. The attached progress records which parts
+ * were acknowledged, so the upload can be resumed.
+ */
+public class BatchUploadException extends IOException {
+
+    private final transient BatchUploadProgress progress;
+    private final transient BatchPackage batchPackage;
+
+    public BatchUploadException(String message, BatchUploadProgress progress, Throwable cause) {
+        this(message, progress, null, cause);
+    }
+
+    public BatchUploadException(String message, BatchUploadProgress progress, BatchPackage batchPackage, Throwable cause) {
+        super(message, cause);
+        this.progress = progress;
+        this.batchPackage = batchPackage;
+    }
+
+    public BatchUploadProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Parts of the batch, kept for {@link InvoiceService#resumeBatchUpload}; {@code null} if the caller passed the
+     * parts to {@link BatchPartUploader#upload} itself. The caller owns the package and closes it when giving up.
+     */
+    public BatchPackage getBatchPackage() {
+        return batchPackage;
+    }
+}
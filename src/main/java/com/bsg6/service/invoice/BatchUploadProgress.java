@@ -0,0 +1,116 @@
+package com.bsg6.service.invoice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upload state of a batch session: the upload instructions returned by KSeF and the parts acknowledged so far.
+ * <p>
+ * A progress object survives a failed {@link BatchPartUploader#upload} call, so passing it back together with the
+ * same parts resumes the batch from the first unacknowledged part instead of re-uploading everything.
+ * </p>
+ * <p>
+ * With {@code ksef.batch.upload.journal.dir} set, every acknowledgement is also appended to a journal file, from which
+ * {@link BatchPartUploader#restore} rebuilds the progress after the process that started the upload is gone. The
+ * parts themselves are not journaled; see {@link BatchPart#fromFile}.
+ * </p>
+ */
+public final class BatchUploadProgress {
+
+    /**
+     * Upload instruction for one part, as returned in {@code partUploadRequests} of the open batch session response.
+     */
+    public record PartUploadRequest(int ordinalNumber, String method, URI url, Map<String, String> headers) {
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(BatchUploadProgress.class);
+
+    private final String sessionReferenceNumber;
+    private final SortedMap<Integer, PartUploadRequest> uploadRequests;
+    private final Set<Integer> acknowledged = ConcurrentHashMap.newKeySet();
+    // null when acknowledgements are kept in memory only
+    private final Path journal;
+
+    BatchUploadProgress(String sessionReferenceNumber, SortedMap<Integer, PartUploadRequest> uploadRequests,
+                        Path journal, Collection<Integer> acknowledged) {
+        this.sessionReferenceNumber = sessionReferenceNumber;
+        this.uploadRequests = Collections.unmodifiableSortedMap(uploadRequests);
+        this.journal = journal;
+        this.acknowledged.addAll(acknowledged);
+    }
+
+    public String getSessionReferenceNumber() {
+        return sessionReferenceNumber;
+    }
+
+    /**
+     * Ordinal numbers of parts that still need to be uploaded, in ascending order.
+     */
+    public List<Integer> pendingOrdinals() {
+        List<Integer> pending = new ArrayList<>();
+        for (Integer ordinalNumber : uploadRequests.keySet()) {
+            if (!acknowledged.contains(ordinalNumber)) {
+                pending.add(ordinalNumber);
+            }
+        }
+        return pending;
+    }
+
+    public boolean isAcknowledged(int ordinalNumber) {
+        return acknowledged.contains(ordinalNumber);
+    }
+
+    public boolean isComplete() {
+        return acknowledged.containsAll(uploadRequests.keySet());
+    }
+
+    /**
+     * Journal file of the acknowledgements, or {@code null} if they are only kept in memory.
+     */
+    public Path getJournal() {
+        return journal;
+    }
+
+    SortedMap<Integer, PartUploadRequest> uploadRequests() {
+        return uploadRequests;
+    }
+
+    PartUploadRequest uploadRequest(int ordinalNumber) {
+        return uploadRequests.get(ordinalNumber);
+    }
+
+    void acknowledge(int ordinalNumber) {
+        if (acknowledged.add(ordinalNumber) && journal != null) {
+            // a part missing from the journal is just uploaded again after a restore, overwriting the same content
+            synchronized (this) {
+                try {
+                    Files.writeString(journal, ordinalNumber + "\n", StandardCharsets.US_ASCII,
+                            StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+                } catch (IOException e) {
+                    log.warn("Could not journal batch {} part {} in {}", sessionReferenceNumber, ordinalNumber, journal, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchUploadProgress{session=" + sessionReferenceNumber + ", acknowledged=" + acknowledged.size()
+                + "/" + uploadRequests.size() + "}";
+    }
+}
@@ -0,0 +1,146 @@
+package com.bsg6.service.invoice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Invoice template parsed once into alternating literal and placeholder segments.
+ * <p>
+ * Placeholders have the form {@code #name#} where name consists of lowercase letters, digits and underscores.
+ * Rendering writes literals and UTF-8 encoded values straight into an exactly sized byte array, so no
+ * intermediate {@link String} copies of the document are created. Placeholders without a value are written
+ * back verbatim, which lets later stages (e.g. batch invoice generation) fill them in.
+ * </p>
+ * Instances are immutable and safe to share between threads.
+ */
+public final class CompiledInvoiceTemplate {
+
+    private static final byte MARKER = '#';
+    private static final int MAX_PLACEHOLDER_LENGTH = 64;
+
+    // literals.length == placeholders.length + 1; literal i precedes placeholder i
+    private final byte[][] literals;
+    private final String[] placeholders;
+    private final byte[][] placeholderTokens;
+    private final int literalLength;
+
+    private CompiledInvoiceTemplate(byte[][] literals, String[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.placeholderTokens = new byte[placeholders.length][];
+        for (int i = 0; i < placeholders.length; i++) {
+            placeholderTokens[i] = ("#" + placeholders[i] + "#").getBytes(StandardCharsets.US_ASCII);
+        }
+        int length = 0;
+        for (byte[] literal : literals) {
+            length += literal.length;
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Parses a UTF-8 encoded template into segments.
+     */
+    public static CompiledInvoiceTemplate compile(byte[] template) {
+        List<byte[]> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+
+        int literalStart = 0;
+        int i = 0;
+        while (i < template.length) {
+            if (template[i] == MARKER) {
+                int end = findPlaceholderEnd(template, i + 1);
+                if (end > 0) {
+                    literals.add(Arrays.copyOfRange(template, literalStart, i));
+                    placeholders.add(new String(template, i + 1, end - i - 1, StandardCharsets.US_ASCII));
+                    i = end + 1;
+                    literalStart = i;
+                    continue;
+                }
+            }
+            i++;
+        }
+        literals.add(Arrays.copyOfRange(template, literalStart, template.length));
+
+        return new CompiledInvoiceTemplate(literals.toArray(new byte[0][]), placeholders.toArray(new String[0]));
+    }
+
+    /**
+     * Returns the index of the closing marker of a placeholder starting at {@code from}, or -1 if there is none.
+     */
+    private static int findPlaceholderEnd(byte[] template, int from) {
+        int limit = Math.min(template.length, from + MAX_PLACEHOLDER_LENGTH + 1);
+        for (int j = from; j < limit; j++) {
+            byte b = template[j];
+            if (b == MARKER) {
+                return j > from ? j : -1;
+            }
+            if (!((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_')) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Distinct placeholder names in order of first appearance.
+     */
+    public Set<String> placeholders() {
+        return new LinkedHashSet<>(Arrays.asList(placeholders));
+    }
+
+    /**
+     * Renders the template into a UTF-8 byte array sized exactly to the output.
+     *
+     * @param values placeholder name (without markers) to replacement value
+     */
+    public byte[] render(Map<String, String> values) {
+        byte[][] encoded = encodeValues(values);
+
+        int size = literalLength;
+        for (byte[] value : encoded) {
+            size += value.length;
+        }
+
+        byte[] out = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < placeholders.length; i++) {
+            System.arraycopy(literals[i], 0, out, pos, literals[i].length);
+            pos += literals[i].length;
+            System.arraycopy(encoded[i], 0, out, pos, encoded[i].length);
+            pos += encoded[i].length;
+        }
+        byte[] tail = literals[placeholders.length];
+        System.arraycopy(tail, 0, out, pos, tail.length);
+
+        return out;
+    }
+
+    /**
+     * Renders the template directly into a stream (e.g. a ZIP entry) without building the document in memory.
+     */
+    public void renderTo(OutputStream out, Map<String, String> values) throws IOException {
+        byte[][] encoded = encodeValues(values);
+        for (int i = 0; i < placeholders.length; i++) {
+            out.write(literals[i]);
+            out.write(encoded[i]);
+        }
+        out.write(literals[placeholders.length]);
+    }
+
+    private byte[][] encodeValues(Map<String, String> values) {
+        byte[][] encoded = new byte[placeholders.length][];
+        for (int i = 0; i < placeholders.length; i++) {
+            String value = values.get(placeholders[i]);
+            encoded[i] = value != null ? value.getBytes(StandardCharsets.UTF_8) : placeholderTokens[i];
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,258 @@
+package com.bsg6.service.invoice;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.error.KsefApiCalls;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.api.DefaultKsefClient;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Two-tier cache of downloaded invoices keyed by context and KSeF number.
+ * <p>
+ * A context is the identifier the access token was issued for, e.g. the NIP of the company. Invoices are cached per
+ * context, so an invoice downloaded with one context's token is never served to a caller of another context, which
+ * KSeF itself might refuse it to.
+ * </p>
+ * <p>
+ * Invoices are immutable once KSeF has numbered them, so entries never expire. The first tier is an LRU map in heap
+ * bounded by {@code ksef.invoice.cache.heap.max.bytes} of invoice content. If {@code ksef.invoice.cache.dir} is set,
+ * every downloaded invoice is also written there, and invoices evicted from heap are read back from disk instead of
+ * KSeF. Concurrent requests for the same invoice share one download. {@link #prefetch} loads many invoices ahead of
+ * use with at most {@code ksef.invoice.cache.prefetch.max.in.flight} downloads at a time.
+ * </p>
+ */
+@Service
+public class InvoiceCache {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceCache.class);
+
+    // also keeps a context or KSeF number from escaping the store directory
+    private static final Pattern IDENTIFIER = Pattern.compile("[0-9A-Za-z-]+");
+
+    /**
+     * Counters since startup; {@code heapBytes} and {@code heapEntries} are the current heap tier size.
+     */
+    public record Stats(long heapHits, long diskHits, long misses, long evictions, long heapBytes, int heapEntries) {
+
+        public double hitRatio() {
+            long requests = heapHits + diskHits + misses;
+            return requests == 0 ? 0 : (double) (heapHits + diskHits) / requests;
+        }
+    }
+
+    private final DefaultKsefClient ksefClient;
+    private final KsefApiCalls apiCalls;
+    private final long heapMaxBytes;
+    private final Path storeDir;
+    private final int prefetchMaxInFlight;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-invoice-cache-", 1).factory());
+
+    // access-ordered; guarded by itself
+    private final LinkedHashMap<Key, byte[]> heap = new LinkedHashMap<>(256, 0.75f, true);
+    private long heapBytes;
+    private final Map<Key, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder heapHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public InvoiceCache(DefaultKsefClient ksefClient, ConfigurationProps config, KsefApiCalls apiCalls) {
+        this.ksefClient = ksefClient;
+        this.apiCalls = apiCalls;
+        this.heapMaxBytes = config.getInvoiceCacheHeapMaxBytes();
+        this.storeDir = config.getInvoiceCacheDir();
+        this.prefetchMaxInFlight = config.getInvoiceCachePrefetchMaxInFlight();
+    }
+
+    private record Key(String context, String ksefNumber) {
+        Key {
+            if (!IDENTIFIER.matcher(context).matches()) {
+                throw new IllegalArgumentException("Not a context identifier: " + context);
+            }
+            if (!IDENTIFIER.matcher(ksefNumber).matches()) {
+                throw new IllegalArgumentException("Not a KSeF number: " + ksefNumber);
+            }
+        }
+    }
+
+    /**
+     * Returns the invoice XML, downloading it only if neither tier has it for this context. The returned array is the
+     * caller's own.
+     *
+     * @param context the identifier {@code accessToken} was issued for, e.g. the NIP
+     */
+    public byte[] get(String context, String ksefNumber, String accessToken) throws ApiException, IOException {
+        Key key = new Key(context, ksefNumber);
+        byte[] cached = fromHeap(key);
+        if (cached != null) {
+            heapHits.increment();
+            return cached.clone();
+        }
+
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, load);
+        if (running != null) {
+            return await(running).clone();
+        }
+        try {
+            byte[] invoice = load(key, accessToken);
+            load.complete(invoice);
+            return invoice.clone();
+        } catch (ApiException | IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    /**
+     * Loads the invoices into the cache of the context in the background.
+     *
+     * @param context the identifier {@code accessToken} was issued for, e.g. the NIP
+     * @return a future completed once every invoice is cached, or failed with the first download error
+     */
+    public CompletableFuture<Void> prefetch(String context, Collection<String> ksefNumbers, String accessToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            Semaphore permits = new Semaphore(prefetchMaxInFlight);
+            List<CompletableFuture<Void>> loads = new ArrayList<>(ksefNumbers.size());
+            for (String ksefNumber : ksefNumbers) {
+                if (contains(new Key(context, ksefNumber))) {
+                    continue;
+                }
+                permits.acquireUninterruptibly();
+                loads.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        get(context, ksefNumber, accessToken);
+                    } catch (ApiException e) {
+                        throw new CompletionException(e);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        permits.release();
+                    }
+                }, executor));
+            }
+            return loads;
+        }, executor).thenCompose(loads -> CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])));
+    }
+
+    public Stats stats() {
+        synchronized (heap) {
+            return new Stats(heapHits.sum(), diskHits.sum(), misses.sum(), evictions.sum(), heapBytes, heap.size());
+        }
+    }
+
+    private boolean contains(Key key) {
+        synchronized (heap) {
+            if (heap.containsKey(key)) {
+                return true;
+            }
+        }
+        return storeDir != null && Files.exists(storePath(key));
+    }
+
+    private byte[] load(Key key, String accessToken) throws ApiException, IOException {
+        if (storeDir != null) {
+            Path stored = storePath(key);
+            if (Files.exists(stored)) {
+                byte[] invoice = Files.readAllBytes(stored);
+                diskHits.increment();
+                toHeap(key, invoice);
+                return invoice;
+            }
+        }
+
+        misses.increment();
+        byte[] invoice = apiCalls.call("Downloading invoice " + key.ksefNumber(),
+                () -> ksefClient.getInvoice(key.ksefNumber(), accessToken));
+        if (storeDir != null) {
+            store(key, invoice);
+        }
+        toHeap(key, invoice);
+        return invoice;
+    }
+
+    private byte[] fromHeap(Key key) {
+        synchronized (heap) {
+            return heap.get(key);
+        }
+    }
+
+    private void toHeap(Key key, byte[] invoice) {
+        if (invoice.length > heapMaxBytes) {
+            return;
+        }
+        synchronized (heap) {
+            byte[] previous = heap.put(key, invoice);
+            heapBytes += invoice.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> eldest = heap.values().iterator();
+            while (heapBytes > heapMaxBytes && eldest.hasNext()) {
+                heapBytes -= eldest.next().length;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void store(Key key, byte[] invoice) {
+        Path target = storePath(key);
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.write(temp, invoice);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // the invoice is still served from heap; it is downloaded again once evicted
+            log.warn("Could not store invoice {} in {}: {}", key.ksefNumber(), storeDir, e.getMessage());
+        }
+    }
+
+    private Path storePath(Key key) {
+        // KSeF numbers start with the seller NIP; sharding by its last digits spreads them over directories
+        String ksefNumber = key.ksefNumber();
+        String shard = ksefNumber.length() >= 10 ? ksefNumber.substring(8, 10) : "_";
+        return storeDir.resolve(key.context()).resolve(shard).resolve(ksefNumber + ".xml");
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> running) throws ApiException, IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            switch (e.getCause()) {
+                case ApiException apiException -> throw apiException;
+                case IOException ioException -> throw ioException;
+                case RuntimeException runtimeException -> throw runtimeException;
+                default -> throw e;
+            }
+        }
+    }
+}
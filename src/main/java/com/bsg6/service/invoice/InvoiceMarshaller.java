@@ -0,0 +1,109 @@
+package com.bsg6.service.invoice;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.validation.InvoiceSchema;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Serializes the typed invoice model ({@code com.bsg6.model.fa2.Faktura}, {@code com.bsg6.model.fa3.Faktura})
+ * straight to an {@link OutputStream}.
+ * <p>
+ * A {@link JAXBContext} is expensive to build and thread-safe, so one per schema is created on first use and kept.
+ * {@link Marshaller}s are cheap but not thread-safe; each schema keeps a pool of up to
+ * {@code ksef.invoice.marshaller.pool.size} idle marshallers, so serialization costs the same on every call and from
+ * any thread, virtual ones included.
+ * </p>
+ */
+@Service
+public class InvoiceMarshaller {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceMarshaller.class);
+
+    private final int poolSize;
+    // guarded by itself; contexts are never replaced
+    private final Map<InvoiceSchema, JAXBContext> contexts = new EnumMap<>(InvoiceSchema.class);
+    private final Map<InvoiceSchema, BlockingQueue<Marshaller>> pools = new EnumMap<>(InvoiceSchema.class);
+
+    public InvoiceMarshaller(ConfigurationProps config) {
+        this.poolSize = config.getInvoiceMarshallerPoolSize();
+        for (InvoiceSchema schema : InvoiceSchema.values()) {
+            pools.put(schema, new ArrayBlockingQueue<>(poolSize));
+        }
+    }
+
+    /**
+     * Writes the invoice as UTF-8 XML. The stream is not closed, so it can be a ZIP entry of a batch package.
+     */
+    public void marshal(Object invoice, OutputStream out) throws IOException {
+        InvoiceSchema schema = schemaOf(invoice);
+        BlockingQueue<Marshaller> pool = pools.get(schema);
+        Marshaller marshaller = pool.poll();
+        if (marshaller == null) {
+            marshaller = newMarshaller(schema);
+        }
+        try {
+            marshaller.marshal(invoice, out);
+        } catch (JAXBException e) {
+            throw new IOException("Could not serialize " + schema + " invoice", e);
+        } finally {
+            pool.offer(marshaller);
+        }
+    }
+
+    public byte[] marshal(Object invoice) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        marshal(invoice, out);
+        return out.toByteArray();
+    }
+
+    private Marshaller newMarshaller(InvoiceSchema schema) {
+        try {
+            Marshaller marshaller = context(schema).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_ENCODING, StandardCharsets.UTF_8.name());
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+            return marshaller;
+        } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private JAXBContext context(InvoiceSchema schema) throws JAXBException {
+        synchronized (contexts) {
+            JAXBContext context = contexts.get(schema);
+            if (context == null) {
+                long started = System.nanoTime();
+                context = JAXBContext.newInstance(switch (schema) {
+                    case FA_2 -> com.bsg6.model.fa2.ObjectFactory.class;
+                    case FA_3 -> com.bsg6.model.fa3.ObjectFactory.class;
+                });
+                contexts.put(schema, context);
+                log.info("Created JAXB context for {} in {} ms", schema, (System.nanoTime() - started) / 1_000_000);
+            }
+            return context;
+        }
+    }
+
+    private static InvoiceSchema schemaOf(Object invoice) {
+        if (invoice instanceof com.bsg6.model.fa2.Faktura) {
+            return InvoiceSchema.FA_2;
+        }
+        if (invoice instanceof com.bsg6.model.fa3.Faktura) {
+            return InvoiceSchema.FA_3;
+        }
+        throw new IllegalArgumentException("Not an FA(2) or FA(3) invoice: "
+                + (invoice == null ? null : invoice.getClass().getName()));
+    }
+}
@@ -0,0 +1,156 @@
+package com.bsg6.service.invoice;
+
+import com.bsg6.model.InvoiceData;
+import com.bsg6.model.etd.TKodKraju;
+import com.bsg6.model.fa2.Faktura;
+import com.bsg6.model.fa2.TAdres;
+import com.bsg6.model.fa2.TKodFormularza;
+import com.bsg6.model.fa2.TKodWaluty;
+import com.bsg6.model.fa2.TNaglowek;
+import com.bsg6.model.fa2.TPodmiot1;
+import com.bsg6.model.fa2.TPodmiot2;
+import com.bsg6.model.fa2.TRodzajFaktury;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Builds typed FA(2) invoices with the same content as {@code invoice-template-min-fields.xml}, plus any number of
+ * invoice lines.
+ */
+public final class InvoiceModelFactory {
+
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private InvoiceModelFactory() {
+    }
+
+    /**
+     * Builds an FA(2) VAT invoice for the data, with the net amount split evenly over {@code lineCount} lines
+     * ({@code FaWiersz}); the last line takes the rounding remainder.
+     */
+    public static Faktura fa2(InvoiceData invoiceData, String invoiceNumber, LocalDate issueDate, int lineCount) {
+        Faktura invoice = new Faktura();
+        invoice.setNaglowek(header());
+        invoice.setPodmiot1(seller(invoiceData.sellerNip()));
+        invoice.setPodmiot2(buyer(invoiceData.buyerNip()));
+
+        Faktura.Fa fa = new Faktura.Fa();
+        fa.setKodWaluty(TKodWaluty.PLN);
+        fa.setP1(DATATYPE_FACTORY.newXMLGregorianCalendar(issueDate.toString()));
+        fa.setP2("FA/" + invoiceNumber);
+        fa.setP131(invoiceData.netAmount());
+        fa.setP141(invoiceData.vatAmount());
+        fa.setP15(invoiceData.grossAmount());
+        fa.setAdnotacje(annotations());
+        fa.setRodzajFaktury(TRodzajFaktury.VAT);
+        addLines(fa, invoiceData.netAmount(), lineCount);
+        invoice.setFa(fa);
+        return invoice;
+    }
+
+    private static TNaglowek header() {
+        TNaglowek.KodFormularza formCode = new TNaglowek.KodFormularza();
+        formCode.setValue(TKodFormularza.FA);
+        formCode.setKodSystemowy("FA (2)");
+        formCode.setWersjaSchemy("1-0E");
+
+        TNaglowek header = new TNaglowek();
+        header.setKodFormularza(formCode);
+        header.setWariantFormularza((byte) 2);
+        header.setDataWytworzeniaFa(dateTime(LocalDateTime.now()));
+        return header;
+    }
+
+    private static Faktura.Podmiot1 seller(String nip) {
+        TPodmiot1 identification = new TPodmiot1();
+        identification.setNIP(nip);
+        identification.setNazwa("Przykladowa Spolka z o.o.");
+
+        Faktura.Podmiot1 seller = new Faktura.Podmiot1();
+        seller.setDaneIdentyfikacyjne(identification);
+        seller.setAdres(address("ul. Przykladowa 1"));
+        return seller;
+    }
+
+    private static Faktura.Podmiot2 buyer(String nip) {
+        TPodmiot2 identification = new TPodmiot2();
+        identification.setNIP(nip);
+        identification.setNazwa("Klient Testowy Sp. z o.o.");
+
+        Faktura.Podmiot2 buyer = new Faktura.Podmiot2();
+        buyer.setDaneIdentyfikacyjne(identification);
+        buyer.setAdres(address("ul. Klienta 5"));
+        return buyer;
+    }
+
+    private static TAdres address(String line1) {
+        TAdres address = new TAdres();
+        address.setKodKraju(TKodKraju.PL);
+        address.setAdresL1(line1);
+        return address;
+    }
+
+    /**
+     * No exemption, new means of transport, margin scheme or split payment; answers 2 are "no".
+     */
+    private static Faktura.Fa.Adnotacje annotations() {
+        Faktura.Fa.Adnotacje.Zwolnienie exemption = new Faktura.Fa.Adnotacje.Zwolnienie();
+        exemption.setP19N((byte) 1);
+        Faktura.Fa.Adnotacje.NoweSrodkiTransportu transport = new Faktura.Fa.Adnotacje.NoweSrodkiTransportu();
+        transport.setP22N((byte) 1);
+        Faktura.Fa.Adnotacje.PMarzy margin = new Faktura.Fa.Adnotacje.PMarzy();
+        margin.setPPMarzyN((byte) 1);
+
+        Faktura.Fa.Adnotacje annotations = new Faktura.Fa.Adnotacje();
+        annotations.setP16((byte) 2);
+        annotations.setP17((byte) 2);
+        annotations.setP18((byte) 2);
+        annotations.setP18A((byte) 2);
+        annotations.setZwolnienie(exemption);
+        annotations.setNoweSrodkiTransportu(transport);
+        annotations.setP23((byte) 2);
+        annotations.setPMarzy(margin);
+        return annotations;
+    }
+
+    private static void addLines(Faktura.Fa fa, BigDecimal netAmount, int lineCount) {
+        if (lineCount <= 0) {
+            return;
+        }
+        BigDecimal lineNet = netAmount.divide(BigDecimal.valueOf(lineCount), 2, RoundingMode.DOWN);
+        BigDecimal last = netAmount.subtract(lineNet.multiply(BigDecimal.valueOf(lineCount - 1)));
+        for (int i = 1; i <= lineCount; i++) {
+            BigDecimal net = i == lineCount ? last : lineNet;
+            Faktura.Fa.FaWiersz line = new Faktura.Fa.FaWiersz();
+            line.setNrWierszaFa(BigInteger.valueOf(i));
+            line.setP7("Pozycja " + i);
+            line.setP8A("szt.");
+            line.setP8B(BigDecimal.ONE);
+            line.setP9A(net);
+            line.setP11(net);
+            fa.getFaWiersz().add(line);
+        }
+    }
+
+    private static XMLGregorianCalendar dateTime(LocalDateTime dateTime) {
+        return DATATYPE_FACTORY.newXMLGregorianCalendar(dateTime.truncatedTo(ChronoUnit.SECONDS).format(DATE_TIME_FORMAT));
+    }
+}
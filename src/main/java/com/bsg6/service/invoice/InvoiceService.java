@@ -1,6 +1,15 @@
 package com.bsg6.service.invoice;
 
 import com.bsg6.model.InvoiceData;
+import com.bsg6.service.crypto.EncryptionDataPool;
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.rules.InvoiceRuleEngine;
+import com.bsg6.service.session.SessionInvoicePages;
+import com.bsg6.service.session.SessionInvoicesPageException;
+import com.bsg6.service.validation.InvoiceSchemaValidator;
+import com.bsg6.service.validation.InvoiceValidationException;
+import com.bsg6.service.validation.ValidationResult;
+import com.bsg6.utils.ParallelUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -10,7 +19,6 @@ import pl.akmf.ksef.sdk.api.builders.session.SendInvoiceOnlineSessionRequestBuil
 import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
 import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.akmf.ksef.sdk.client.model.session.*;
-import pl.akmf.ksef.sdk.client.model.session.batch.BatchPartSendingInfo;
 import pl.akmf.ksef.sdk.client.model.session.batch.OpenBatchSessionRequest;
 import pl.akmf.ksef.sdk.client.model.session.batch.OpenBatchSessionResponse;
 import pl.akmf.ksef.sdk.client.model.session.online.SendInvoiceOnlineSessionRequest;
@@ -18,85 +26,122 @@ import pl.akmf.ksef.sdk.client.model.session.online.SendInvoiceResponse;
 import pl.akmf.ksef.sdk.system.FilesUtil;
 import pl.akmf.ksef.sdk.client.model.UpoVersion;
 
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
 
 @Service
 public class InvoiceService {
     private static final Logger log = LoggerFactory.getLogger(InvoiceService.class);
+    private static final DateTimeFormatter INVOICING_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     private final DefaultKsefClient ksefClient;
     private final DefaultCryptographyService defaultCryptographyService;
     private final com.bsg6.config.ConfigurationProps config;
+    private final InvoiceTemplateEngine templateEngine;
+    private final BatchPartUploader batchPartUploader;
+    private final EncryptionDataPool encryptionDataPool;
+    private final InvoiceCache invoiceCache;
+    private final InvoiceSchemaValidator schemaValidator;
+    private final InvoiceRuleEngine ruleEngine;
+    private final InvoiceMarshaller invoiceMarshaller;
+    private final KsefApiCalls apiCalls;
     private final String invoiceTemplatePath;
 
-    public InvoiceService(DefaultKsefClient ksefClient, DefaultCryptographyService defaultCryptographyService, com.bsg6.config.ConfigurationProps config) {
+    public InvoiceService(DefaultKsefClient ksefClient, DefaultCryptographyService defaultCryptographyService, com.bsg6.config.ConfigurationProps config,
+                          InvoiceTemplateEngine templateEngine, BatchPartUploader batchPartUploader,
+                          EncryptionDataPool encryptionDataPool, InvoiceCache invoiceCache,
+                          InvoiceSchemaValidator schemaValidator, InvoiceRuleEngine ruleEngine,
+                          InvoiceMarshaller invoiceMarshaller, KsefApiCalls apiCalls) {
         this.ksefClient = ksefClient;
         this.defaultCryptographyService = defaultCryptographyService;
         this.config = config;
+        this.templateEngine = templateEngine;
+        this.batchPartUploader = batchPartUploader;
+        this.encryptionDataPool = encryptionDataPool;
+        this.invoiceCache = invoiceCache;
+        this.schemaValidator = schemaValidator;
+        this.ruleEngine = ruleEngine;
+        this.invoiceMarshaller = invoiceMarshaller;
+        this.apiCalls = apiCalls;
         this.invoiceTemplatePath = config.getDefaultInvoiceTemplatePath();
     }
 
     public String sendInvoiceOnlineSession(InvoiceData invoiceTestCase, String sessionReferenceNumber, EncryptionData encryptionData,
                                            String accessToken) throws IOException, ApiException {
         // Render invoice from template with invoice number included
-        String invoiceXml = renderInvoiceFromTemplate(invoiceTestCase, true);
-        byte[] invoice = invoiceXml.getBytes(StandardCharsets.UTF_8);
+        byte[] invoice = renderInvoiceFromTemplate(invoiceTestCase, true);
 
-        byte[] encryptedInvoice = defaultCryptographyService.encryptBytesWithAES256(invoice,
-                encryptionData.cipherKey(),
-                encryptionData.cipherIv());
-
-        FileMetadata invoiceMetadata = defaultCryptographyService.getMetaData(invoice);
-        FileMetadata encryptedInvoiceMetadata = defaultCryptographyService.getMetaData(encryptedInvoice);
+        return sendOnline(ByteBuffer.wrap(invoice), sessionReferenceNumber, encryptionData, accessToken);
+    }
 
-        SendInvoiceOnlineSessionRequest sendInvoiceOnlineSessionRequest = new SendInvoiceOnlineSessionRequestBuilder()
-                .withInvoiceHash(invoiceMetadata.getHashSHA())
-                .withInvoiceSize(invoiceMetadata.getFileSize())
-                .withEncryptedInvoiceHash(encryptedInvoiceMetadata.getHashSHA())
-                .withEncryptedInvoiceSize(encryptedInvoiceMetadata.getFileSize())
-                .withEncryptedInvoiceContent(Base64.getEncoder().encodeToString(encryptedInvoice))
-                .build();
+    public String sendInvoiceXmlOnlineSession(String invoiceXml, String sessionReferenceNumber, EncryptionData encryptionData,
+                                              String accessToken) throws ApiException {
+        return sendOnline(ByteBuffer.wrap(invoiceXml.getBytes(StandardCharsets.UTF_8)), sessionReferenceNumber, encryptionData, accessToken);
+    }
 
-        SendInvoiceResponse sendInvoiceResponse = ksefClient.onlineSessionSendInvoice(sessionReferenceNumber, sendInvoiceOnlineSessionRequest, accessToken);
+    /**
+     * Sends UTF-8 invoice XML that is already in memory, e.g. a slice of a larger buffer. The remaining bytes of the
+     * buffer are sent; its position is not changed.
+     */
+    public String sendInvoiceXmlOnlineSession(ByteBuffer invoiceXml, String sessionReferenceNumber, EncryptionData encryptionData,
+                                              String accessToken) throws ApiException {
+        return sendOnline(invoiceXml, sessionReferenceNumber, encryptionData, accessToken);
+    }
 
-        return sendInvoiceResponse.getReferenceNumber();
+    /**
+     * Sends an invoice XML file as is. The file is memory-mapped, so its content is never decoded into a String.
+     */
+    public String sendInvoiceXmlOnlineSession(Path invoiceFile, String sessionReferenceNumber, EncryptionData encryptionData,
+                                              String accessToken) throws IOException, ApiException {
+        MappedByteBuffer invoice;
+        try (FileChannel channel = FileChannel.open(invoiceFile, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            invoice = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return sendOnline(invoice, sessionReferenceNumber, encryptionData, accessToken);
     }
 
-    public String sendInvoiceXmlOnlineSession(String invoiceXml, String sessionReferenceNumber, EncryptionData encryptionData,
-                                              String accessToken) throws ApiException {
-        byte[] invoice = invoiceXml.getBytes(StandardCharsets.UTF_8);
+    private String sendOnline(ByteBuffer invoice, String sessionReferenceNumber, EncryptionData encryptionData,
+                              String accessToken) throws ApiException {
+        // Rejected locally before anything is encrypted, if ksef.validation.enabled
+        schemaValidator.requireValid(invoice);
 
-        byte[] encryptedInvoice = defaultCryptographyService.encryptBytesWithAES256(invoice,
+        // Hashes, encryption and Base64 in one pass over the invoice
+        OnlineInvoiceEncoder.EncodedInvoice encoded = OnlineInvoiceEncoder.encode(invoice,
                 encryptionData.cipherKey(),
                 encryptionData.cipherIv());
 
-        FileMetadata invoiceMetadata = defaultCryptographyService.getMetaData(invoice);
-        FileMetadata encryptedInvoiceMetadata = defaultCryptographyService.getMetaData(encryptedInvoice);
-
         SendInvoiceOnlineSessionRequest sendInvoiceOnlineSessionRequest = new SendInvoiceOnlineSessionRequestBuilder()
-                .withInvoiceHash(invoiceMetadata.getHashSHA())
-                .withInvoiceSize(invoiceMetadata.getFileSize())
-                .withEncryptedInvoiceHash(encryptedInvoiceMetadata.getHashSHA())
-                .withEncryptedInvoiceSize(encryptedInvoiceMetadata.getFileSize())
-                .withEncryptedInvoiceContent(Base64.getEncoder().encodeToString(encryptedInvoice))
+                .withInvoiceHash(encoded.invoiceHash())
+                .withInvoiceSize(encoded.invoiceSize())
+                .withEncryptedInvoiceHash(encoded.encryptedInvoiceHash())
+                .withEncryptedInvoiceSize(encoded.encryptedInvoiceSize())
+                .withEncryptedInvoiceContent(encoded.encryptedInvoiceContent())
                 .build();
 
-        SendInvoiceResponse sendInvoiceResponse = ksefClient.onlineSessionSendInvoice(sessionReferenceNumber, sendInvoiceOnlineSessionRequest, accessToken);
+        SendInvoiceResponse sendInvoiceResponse = apiCalls.callNonIdempotent("Sending invoice to session " + sessionReferenceNumber,
+                () -> ksefClient.onlineSessionSendInvoice(sessionReferenceNumber, sendInvoiceOnlineSessionRequest, accessToken));
 
         return sendInvoiceResponse.getReferenceNumber();
     }
 
     public String openBatchSessionAndSendInvoicesParts(InvoiceData invoiceTestCase, String accessToken, int invoicesCount, int partsCount) throws IOException, ApiException {
         // Render invoice from template (invoice number will be generated per-invoice by generateInvoicesInMemory)
-        String invoiceTemplate = renderInvoiceFromTemplate(invoiceTestCase, false);
+        String invoiceTemplate = new String(renderInvoiceFromTemplate(invoiceTestCase, false), StandardCharsets.UTF_8);
 
-        EncryptionData encryptionData = defaultCryptographyService.getEncryptionData();
+        EncryptionData encryptionData = encryptionDataPool.take();
 
         Map<String, byte[]> invoicesInMemory = FilesUtil.generateInvoicesInMemory(invoicesCount, invoiceTestCase.sellerNip(), invoiceTemplate);
 
@@ -106,38 +151,172 @@ public class InvoiceService {
 
         byte[] zipBytes = FilesUtil.createZip(invoicesInMemory);
 
+        // Schema and amounts of every entry, as packaged, before anything is encrypted
+        if (schemaValidator.isEnabled()) {
+            Map<String, ValidationResult> results = schemaValidator.validateEntries(new ZipInputStream(new ByteArrayInputStream(zipBytes)));
+            for (Map.Entry<String, ValidationResult> result : results.entrySet()) {
+                if (!result.getValue().valid()) {
+                    throw new InvoiceValidationException(result.getKey() + " does not conform to its schema", result.getValue());
+                }
+            }
+        }
+
         // get ZIP metadata (before crypto)
         FileMetadata zipMetadata = defaultCryptographyService.getMetaData(zipBytes);
 
         List<byte[]> zipParts = FilesUtil.splitZip(partsCount, zipBytes);
 
         // Encrypt zip parts
-        List<BatchPartSendingInfo> encryptedZipParts = encryptZipParts(zipParts, encryptionData.cipherKey(), encryptionData.cipherIv());
+        List<BatchPart> encryptedZipParts = encryptZipParts(zipParts, encryptionData.cipherKey(), encryptionData.cipherIv());
 
         // Build request
-        OpenBatchSessionRequest request = buildOpenBatchSessionRequest(zipMetadata, encryptedZipParts, encryptionData);
+        OpenBatchSessionRequest request = buildOpenBatchSessionRequest(zipMetadata.getFileSize(), zipMetadata.getHashSHA(),
+                encryptedZipParts, encryptionData, SystemCode.FA_2, SchemaVersion.VERSION_1_0E, SessionValue.FA);
 
-        OpenBatchSessionResponse response = ksefClient.openBatchSession(request, UpoVersion.UPO_4_3, accessToken);
+        OpenBatchSessionResponse response = apiCalls.callNonIdempotent("Opening batch session",
+                () -> ksefClient.openBatchSession(request, UpoVersion.UPO_4_3, accessToken));
 
         if (response == null || response.getReferenceNumber() == null) {
             throw new IllegalStateException("KSeF returned no session reference number.");
         }
 
-        ksefClient.sendBatchParts(response, encryptedZipParts);
+        // The parts are in heap; the package only hands them to the caller if the upload has to be resumed
+        return resumeBatchUpload(batchPartUploader.start(response),
+                new BatchPackage(zipMetadata.getFileSize(), zipMetadata.getHashSHA(), invoicesCount, encryptedZipParts));
+    }
+
+    /**
+     * Streaming variant of {@link #openBatchSessionAndSendInvoicesParts}: invoices are rendered straight into a ZIP
+     * stream that is cut, encrypted and hashed part by part, with large parts spilled to temporary files. Neither the
+     * invoices nor the ZIP are ever held in heap as a whole; with {@code ksef.validation.enabled} each invoice is
+     * validated on its own before it is packaged.
+     */
+    public String openBatchSessionAndStreamInvoices(InvoiceData invoiceTestCase, String accessToken, int invoicesCount) throws IOException, ApiException {
+        CompiledInvoiceTemplate template = templateEngine.getTemplate(invoiceTemplatePath);
+        Map<String, String> values = templateValues(invoiceTestCase);
+
+        EncryptionData encryptionData = encryptionDataPool.take();
+
+        try (BatchPackageWriter writer = new BatchPackageWriter(encryptionData.cipherKey(), encryptionData.cipherIv(),
+                config.getBatchPartSize(), config.getBatchSpillThreshold(), schemaValidator)) {
+            for (int i = 1; i <= invoicesCount; i++) {
+                values.put("invoice_number", UUID.randomUUID().toString());
+                writer.addInvoice("invoice_" + i + ".xml", template, values);
+            }
+            return openBatchSessionAndUpload(writer, encryptionData, SystemCode.FA_2, SchemaVersion.VERSION_1_0E,
+                    SessionValue.FA, accessToken);
+        }
+    }
 
-        return response.getReferenceNumber();
+    /**
+     * Variant of {@link #openBatchSessionAndStreamInvoices} that builds each invoice as a typed FA(2) model with
+     * {@code linesPerInvoice} invoice lines and marshals it straight into the package, so invoices are not limited to
+     * what the template holds.
+     */
+    public String openBatchSessionAndMarshalInvoices(InvoiceData invoiceData, String accessToken, int invoicesCount,
+                                                     int linesPerInvoice) throws IOException, ApiException {
+        LocalDate invoicingDate = LocalDate.now();
+        ruleEngine.requireValid(invoiceData, invoicingDate);
+
+        EncryptionData encryptionData = encryptionDataPool.take();
+
+        try (BatchPackageWriter writer = new BatchPackageWriter(encryptionData.cipherKey(), encryptionData.cipherIv(),
+                config.getBatchPartSize(), config.getBatchSpillThreshold(), schemaValidator)) {
+            for (int i = 1; i <= invoicesCount; i++) {
+                writer.addInvoice("invoice_" + i + ".xml", invoiceMarshaller,
+                        InvoiceModelFactory.fa2(invoiceData, UUID.randomUUID().toString(), invoicingDate, linesPerInvoice));
+            }
+            return openBatchSessionAndUpload(writer, encryptionData, SystemCode.FA_2, SchemaVersion.VERSION_1_0E,
+                    SessionValue.FA, accessToken);
+        }
     }
 
-    private OpenBatchSessionRequest buildOpenBatchSessionRequest(FileMetadata zipMetadata, List<BatchPartSendingInfo> encryptedZipParts, EncryptionData encryptionData) {
+    /**
+     * Sends already serialized invoices through one batch session of the given form code, streaming them into the
+     * package like {@link #openBatchSessionAndStreamInvoices}. The session is left open for the caller to close.
+     *
+     * @return the batch session reference number
+     */
+    public String sendInvoicesBatchSession(List<byte[]> invoices, SystemCode systemCode, SchemaVersion schemaVersion,
+                                           SessionValue value, String accessToken) throws IOException, ApiException {
+        for (byte[] invoice : invoices) {
+            schemaValidator.requireValid(invoice);
+        }
+
+        EncryptionData encryptionData = encryptionDataPool.take();
+
+        try (BatchPackageWriter writer = new BatchPackageWriter(encryptionData.cipherKey(), encryptionData.cipherIv(),
+                config.getBatchPartSize(), config.getBatchSpillThreshold())) {
+            for (int i = 0; i < invoices.size(); i++) {
+                writer.addInvoice("invoice_" + (i + 1) + ".xml", invoices.get(i));
+            }
+            return openBatchSessionAndUpload(writer, encryptionData, systemCode, schemaVersion, value, accessToken);
+        }
+    }
+
+    private String openBatchSessionAndUpload(BatchPackageWriter writer, EncryptionData encryptionData, SystemCode systemCode,
+                                             SchemaVersion schemaVersion, SessionValue value, String accessToken)
+            throws IOException, ApiException {
+        BatchPackage batchPackage = writer.finish();
+        boolean keepParts = false;
+        try {
+            log.debug("Batch package: {} invoices, {} bytes in {} parts", batchPackage.invoiceCount(),
+                    batchPackage.zipSize(), batchPackage.parts().size());
+
+            OpenBatchSessionRequest request = buildOpenBatchSessionRequest(batchPackage.zipSize(), batchPackage.zipHash(),
+                    batchPackage.parts(), encryptionData, systemCode, schemaVersion, value);
+
+            OpenBatchSessionResponse response = apiCalls.callNonIdempotent("Opening batch session",
+                    () -> ksefClient.openBatchSession(request, UpoVersion.UPO_4_3, accessToken));
+
+            if (response == null || response.getReferenceNumber() == null) {
+                throw new IllegalStateException("KSeF returned no session reference number.");
+            }
+
+            return resumeBatchUpload(batchPartUploader.start(response), batchPackage);
+        } catch (BatchUploadException e) {
+            keepParts = true;
+            throw e;
+        } finally {
+            if (!keepParts) {
+                batchPackage.close();
+            }
+        }
+    }
+
+    /**
+     * Uploads the parts of an open batch session that are not acknowledged yet. After a {@link BatchUploadException},
+     * pass back its progress and package, or a progress restored by {@link BatchPartUploader#restore} together with
+     * the parts rebuilt by {@link BatchPart#fromFile}. The package is closed once the upload ends; only another {@link BatchUploadException} hands it
+     * back to the caller, so the spilled parts survive for the next attempt.
+     *
+     * @return the batch session reference number
+     */
+    public String resumeBatchUpload(BatchUploadProgress progress, BatchPackage batchPackage) throws IOException {
+        boolean keepParts = false;
+        try {
+            batchPartUploader.upload(progress, batchPackage.parts());
+            return progress.getSessionReferenceNumber();
+        } catch (BatchUploadException e) {
+            keepParts = true;
+            throw new BatchUploadException(e.getMessage(), progress, batchPackage, e.getCause());
+        } finally {
+            if (!keepParts) {
+                batchPackage.close();
+            }
+        }
+    }
+
+    private OpenBatchSessionRequest buildOpenBatchSessionRequest(long zipSize, String zipHash, List<BatchPart> encryptedZipParts,
+                                                                 EncryptionData encryptionData, SystemCode systemCode,
+                                                                 SchemaVersion schemaVersion, SessionValue value) {
         OpenBatchSessionRequestBuilder builder = OpenBatchSessionRequestBuilder.create()
-                .withFormCode(SystemCode.FA_2, SchemaVersion.VERSION_1_0E, SessionValue.FA)
+                .withFormCode(systemCode, schemaVersion, value)
                 .withOfflineMode(false)
-                .withBatchFile(zipMetadata.getFileSize(), zipMetadata.getHashSHA());
+                .withBatchFile(zipSize, zipHash);
 
-        for (int i = 0; i < encryptedZipParts.size(); i++) {
-            BatchPartSendingInfo part = encryptedZipParts.get(i);
-            builder = builder.addBatchFilePart(i + 1,
-                    part.getMetadata().getFileSize(), part.getMetadata().getHashSHA());
+        for (BatchPart part : encryptedZipParts) {
+            builder = builder.addBatchFilePart(part.getOrdinalNumber(), part.getEncryptedSize(), part.getEncryptedHash());
         }
 
         return builder.endBatchFile()
@@ -148,76 +327,91 @@ public class InvoiceService {
                 .build();
     }
 
-    public byte[] getInvoice(String ksefNumber, String accessToken) throws ApiException {
-        byte[] bytes = ksefClient.getInvoice(ksefNumber, accessToken);
-
-//        System.out.println(new String(bytes, StandardCharsets.UTF_8));
-
-        return bytes;
+    /**
+     * Invoice XML by KSeF number, served from {@link InvoiceCache} when it was downloaded before in the same context.
+     *
+     * @param context the identifier {@code accessToken} was issued for, e.g. the NIP
+     */
+    public byte[] getInvoice(String context, String ksefNumber, String accessToken) throws ApiException, IOException {
+        return invoiceCache.get(context, ksefNumber, accessToken);
     }
 
+    /**
+     * All invoices of the session, following continuation tokens. Holds the whole list in memory; iterate
+     * {@link SessionInvoicePages} directly for large batch sessions.
+     */
     public List<SessionInvoiceStatusResponse> getInvoices(String sessionReferenceNumber, String accessToken) throws ApiException {
-        SessionInvoicesResponse response = ksefClient.getSessionInvoices(sessionReferenceNumber, null, 100,
-                accessToken);
-
-        return response.getInvoices();
+        int pageSize = config.getSessionInvoicesPageSize();
+        try (Stream<SessionInvoiceStatusResponse> invoices = SessionInvoicePages.stream(continuationToken ->
+                apiCalls.call("Listing invoices of session " + sessionReferenceNumber,
+                        () -> ksefClient.getSessionInvoices(sessionReferenceNumber, continuationToken, pageSize, accessToken)))) {
+            return invoices.toList();
+        } catch (SessionInvoicesPageException e) {
+            throw (ApiException) e.getCause();
+        }
     }
 
     /**
      * Encrypts ZIP parts for batch processing.
      * Uses the injected defaultCryptographyService to avoid creating unnecessary instances.
+     * Parts are encrypted and hashed concurrently on up to {@code ksef.batch.encryption.parallelism} threads;
+     * results keep the order (and therefore the ordinal numbers) of the input parts.
      */
-    private List<BatchPartSendingInfo> encryptZipParts(List<byte[]> zipParts, byte[] cipherKey, byte[] cipherIv) {
-        List<BatchPartSendingInfo> encryptedZipParts = new ArrayList<>();
-        for (int i = 0; i < zipParts.size(); i++) {
-            byte[] encryptedZipPart = this.defaultCryptographyService.encryptBytesWithAES256(
-                    zipParts.get(i),
-                    cipherKey,
-                    cipherIv
-            );
-            FileMetadata zipPartMetadata = this.defaultCryptographyService.getMetaData(encryptedZipPart);
-            encryptedZipParts.add(new BatchPartSendingInfo(encryptedZipPart, zipPartMetadata, (i + 1)));
+    private List<BatchPart> encryptZipParts(List<byte[]> zipParts, byte[] cipherKey, byte[] cipherIv) throws IOException {
+        try {
+            return ParallelUtils.mapInOrder(zipParts.size(), config.getBatchEncryptionParallelism(), "ksef-batch-encrypt-",
+                    i -> encryptZipPart(zipParts.get(i), i + 1, cipherKey, cipherIv));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encrypting batch parts");
         }
-        return encryptedZipParts;
+    }
+
+    private BatchPart encryptZipPart(byte[] zipPart, int ordinalNumber, byte[] cipherKey, byte[] cipherIv) {
+        byte[] encryptedZipPart = this.defaultCryptographyService.encryptBytesWithAES256(
+                zipPart,
+                cipherKey,
+                cipherIv
+        );
+        FileMetadata zipPartMetadata = this.defaultCryptographyService.getMetaData(encryptedZipPart);
+        return new BatchPart(ordinalNumber, zipPart.length, zipPartMetadata.getFileSize(), zipPartMetadata.getHashSHA(),
+                encryptedZipPart, null);
     }
 
     /**
-     * Renders an invoice from the template by replacing placeholders with actual data.
+     * Renders an invoice from the compiled template by substituting placeholders with actual data.
      *
      * @param invoiceData The invoice data to populate the template with
      * @param includeInvoiceNumber Whether to replace the invoice_number placeholder (not used for batch)
-     * @return The rendered invoice as a string
+     * @return The rendered invoice as UTF-8 bytes
      */
-    private String renderInvoiceFromTemplate(InvoiceData invoiceData, boolean includeInvoiceNumber) throws IOException {
-        String invoicingDate = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-        String invoiceNumber = UUID.randomUUID().toString();
-
-        String template = new String(readBytesFromPath(invoiceTemplatePath), StandardCharsets.UTF_8);
-
-        String rendered = template
-                .replace("#seller_nip#", invoiceData.sellerNip())
-                .replace("#buyer_nip#", invoiceData.buyerNip())
-                .replace("#invoicing_date#", invoicingDate)
-                .replace("#net#", invoiceData.netAmount().toString())
-                .replace("#vat#", invoiceData.vatAmount().toString())
-                .replace("#gross#", invoiceData.grossAmount().toString());
+    private byte[] renderInvoiceFromTemplate(InvoiceData invoiceData, boolean includeInvoiceNumber) throws IOException {
+        Map<String, String> values = templateValues(invoiceData);
 
         // Invoice number replacement is handled by generateInvoicesInMemory() for batch processing
         if (includeInvoiceNumber) {
-            rendered = rendered.replace("#invoice_number#", invoiceNumber);
+            values.put("invoice_number", UUID.randomUUID().toString());
         }
 
-        return rendered;
+        return templateEngine.getTemplate(invoiceTemplatePath).render(values);
     }
 
-    private byte[] readBytesFromPath(String path) throws IOException {
-        byte[] fileBytes;
-        try (InputStream is = InvoiceService.class.getResourceAsStream(path)) {
-            if (is == null) {
-                throw new FileNotFoundException();
-            }
-            fileBytes = is.readAllBytes();
-        }
-        return fileBytes;
+    /**
+     * Placeholder values shared by all invoices rendered for the given data; invoice_number is left to the caller.
+     * Every invoice rendered from {@link InvoiceData} passes through here, so the business rules are checked here too.
+     */
+    private Map<String, String> templateValues(InvoiceData invoiceData) {
+        LocalDate invoicingDate = LocalDate.now();
+        ruleEngine.requireValid(invoiceData, invoicingDate);
+
+        Map<String, String> values = new HashMap<>(16);
+        values.put("seller_nip", invoiceData.sellerNip());
+        values.put("nip", invoiceData.sellerNip());
+        values.put("buyer_nip", invoiceData.buyerNip());
+        values.put("invoicing_date", invoicingDate.format(INVOICING_DATE_FORMAT));
+        values.put("net", invoiceData.netAmount().toString());
+        values.put("vat", invoiceData.vatAmount().toString());
+        values.put("gross", invoiceData.grossAmount().toString());
+        return values;
     }
 }
@@ -0,0 +1,42 @@
+package com.bsg6.service.invoice;
+
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads invoice templates from the classpath and keeps them compiled, one instance per template path.
+ */
+@Service
+public class InvoiceTemplateEngine {
+
+    private final Map<String, CompiledInvoiceTemplate> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the compiled template for a classpath resource, reading and parsing it on first use only.
+     */
+    public CompiledInvoiceTemplate getTemplate(String path) throws IOException {
+        CompiledInvoiceTemplate template = templates.get(path);
+        if (template == null) {
+            template = CompiledInvoiceTemplate.compile(readBytesFromPath(path));
+            CompiledInvoiceTemplate existing = templates.putIfAbsent(path, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    private byte[] readBytesFromPath(String path) throws IOException {
+        try (InputStream is = InvoiceTemplateEngine.class.getResourceAsStream(path)) {
+            if (is == null) {
+                throw new FileNotFoundException(path);
+            }
+            return is.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.bsg6.service.invoice;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Builds the payload of an online invoice send in a single pass over the invoice.
+ * <p>
+ * Each chunk of the invoice is hashed, AES-256-CBC encrypted into a scratch buffer, and the ciphertext is hashed and
+ * Base64 encoded straight into an output buffer sized up front. This replaces separate encrypt, two
+ * {@code getMetaData} and Base64 passes with their intermediate arrays; the only allocation proportional to the
+ * invoice is the final Base64 {@link String}. Ciphers, digests and buffers are pooled rather than thread-local, so
+ * they are reused from virtual threads too.
+ * </p>
+ * Thread-safe.
+ */
+public final class OnlineInvoiceEncoder {
+
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String SHA_256 = "SHA-256";
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_OUTPUT = 4 * 1024 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private static final BlockingQueue<Scratch> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    /**
+     * Hashes, sizes and content of an invoice as required by the online session send request.
+     */
+    public record EncodedInvoice(String invoiceHash, long invoiceSize, String encryptedInvoiceHash,
+                                 long encryptedInvoiceSize, String encryptedInvoiceContent) {
+    }
+
+    private OnlineInvoiceEncoder() {
+    }
+
+    public static EncodedInvoice encode(byte[] invoice, byte[] cipherKey, byte[] cipherIv) {
+        return encode(ByteBuffer.wrap(invoice), cipherKey, cipherIv);
+    }
+
+    /**
+     * Encodes the remaining bytes of the buffer without changing its position. Heap buffers are read in place,
+     * direct and mapped buffers are copied chunk by chunk into a pooled array.
+     */
+    public static EncodedInvoice encode(ByteBuffer invoice, byte[] cipherKey, byte[] cipherIv) {
+        long invoiceSize = invoice.remaining();
+        long encryptedSize = (invoiceSize / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+        long base64Length = (encryptedSize + 2) / 3 * 4;
+        if (base64Length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invoice too large for an online send: " + invoiceSize + " bytes");
+        }
+
+        Scratch scratch = acquire();
+        try {
+            scratch.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(cipherIv));
+            scratch.output.reset((int) base64Length);
+            OutputStream base64 = Base64.getEncoder().wrap(scratch.output);
+
+            ByteBuffer source = invoice.duplicate();
+            while (source.hasRemaining()) {
+                int length = Math.min(CHUNK_SIZE, source.remaining());
+                byte[] chunk;
+                int offset;
+                if (source.hasArray()) {
+                    chunk = source.array();
+                    offset = source.arrayOffset() + source.position();
+                    source.position(source.position() + length);
+                } else {
+                    source.get(scratch.input, 0, length);
+                    chunk = scratch.input;
+                    offset = 0;
+                }
+                scratch.plainDigest.update(chunk, offset, length);
+                emit(scratch, base64, scratch.cipher.update(chunk, offset, length, scratch.encrypted, 0));
+            }
+            emit(scratch, base64, scratch.cipher.doFinal(scratch.encrypted, 0));
+            // Writes the trailing padding; closing the output buffer itself is a no-op
+            base64.close();
+
+            return new EncodedInvoice(
+                    Base64.getEncoder().encodeToString(scratch.plainDigest.digest()), invoiceSize,
+                    Base64.getEncoder().encodeToString(scratch.encryptedDigest.digest()), encryptedSize,
+                    scratch.output.toLatin1String());
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Cannot encrypt invoice for online send", e);
+        } finally {
+            release(scratch);
+        }
+    }
+
+    private static void emit(Scratch scratch, OutputStream base64, int length) throws IOException {
+        scratch.encryptedDigest.update(scratch.encrypted, 0, length);
+        base64.write(scratch.encrypted, 0, length);
+    }
+
+    private static Scratch acquire() {
+        Scratch scratch = POOL.poll();
+        return scratch != null ? scratch : new Scratch();
+    }
+
+    private static void release(Scratch scratch) {
+        scratch.plainDigest.reset();
+        scratch.encryptedDigest.reset();
+        scratch.output.trim(MAX_RETAINED_OUTPUT);
+        POOL.offer(scratch);
+    }
+
+    /**
+     * Per-call working state, reused across calls through the pool.
+     */
+    private static final class Scratch {
+        final Cipher cipher;
+        final MessageDigest plainDigest;
+        final MessageDigest encryptedDigest;
+        final byte[] input = new byte[CHUNK_SIZE];
+        // update() may release up to one block buffered from the previous chunk
+        final byte[] encrypted = new byte[CHUNK_SIZE + 2 * AES_BLOCK_SIZE];
+        final OutputBuffer output = new OutputBuffer();
+
+        Scratch() {
+            try {
+                this.cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+                this.plainDigest = MessageDigest.getInstance(SHA_256);
+                this.encryptedDigest = MessageDigest.getInstance(SHA_256);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Growable byte buffer for the ASCII Base64 output.
+     */
+    private static final class OutputBuffer extends OutputStream {
+        private byte[] buffer = new byte[0];
+        private int count;
+
+        void reset(int capacity) {
+            if (buffer.length < capacity) {
+                buffer = new byte[capacity];
+            }
+            count = 0;
+        }
+
+        void trim(int maxRetained) {
+            if (buffer.length > maxRetained) {
+                buffer = new byte[0];
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+        }
+
+        String toLatin1String() {
+            return new String(buffer, 0, count, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
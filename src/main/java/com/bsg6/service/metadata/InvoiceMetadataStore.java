@@ -0,0 +1,173 @@
+package com.bsg6.service.metadata;
+
+import com.bsg6.config.ConfigurationProps;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Local append-only store of invoice metadata, one file per sync shard under {@code ksef.metadata.sync.dir}.
+ * <p>
+ * {@code <shard>.jsonl} holds one invoice metadata object per line in the order KSeF returned them.
+ * {@code <shard>.checkpoint.json} holds the shard's high-water mark and the committed length of the data file; it is
+ * replaced atomically after every appended page. Bytes past the committed length are left by a crash between the two
+ * writes and are cut off before the next append, so a page is either stored once with its checkpoint or not at all.
+ * </p>
+ */
+@Component
+public class InvoiceMetadataStore {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceMetadataStore.class);
+
+    private static final Pattern SHARD_ID = Pattern.compile("[0-9A-Za-z_-]+");
+
+    /**
+     * Resume point of a shard.
+     *
+     * @param permanentStorageDate permanent storage date of the newest stored invoice
+     * @param ksefNumbers          KSeF numbers already stored with exactly that date; KSeF returns them again when the
+     *                             next query starts from the date
+     * @param complete             {@code true} once a closed date range has been fully read and needs no more queries
+     */
+    public record Checkpoint(Instant permanentStorageDate, Set<String> ksefNumbers, boolean complete) {
+
+        public Checkpoint {
+            ksefNumbers = Set.copyOf(ksefNumbers);
+        }
+    }
+
+    private record State(Checkpoint checkpoint, long length) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Path root;
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    public InvoiceMetadataStore(ObjectMapper objectMapper, ConfigurationProps config) {
+        this.objectMapper = objectMapper;
+        this.root = config.getMetadataSyncDir();
+    }
+
+    public Optional<Checkpoint> checkpoint(String shardId) throws IOException {
+        synchronized (lock(shardId)) {
+            return Optional.ofNullable(readState(shardId)).map(State::checkpoint);
+        }
+    }
+
+    /**
+     * Appends one page of invoice metadata and moves the shard's checkpoint.
+     */
+    public void append(String shardId, List<JsonNode> invoices, Checkpoint checkpoint) throws IOException {
+        synchronized (lock(shardId)) {
+            Files.createDirectories(root);
+            State state = readState(shardId);
+            long committed = state == null ? 0 : state.length();
+
+            StringBuilder lines = new StringBuilder();
+            for (JsonNode invoice : invoices) {
+                lines.append(objectMapper.writeValueAsString(invoice)).append('\n');
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+            try (FileChannel data = FileChannel.open(dataFile(shardId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (data.size() > committed) {
+                    log.warn("Dropping {} uncommitted bytes of metadata shard {}", data.size() - committed, shardId);
+                    data.truncate(committed);
+                }
+                data.position(committed);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    data.write(buffer);
+                }
+                data.force(false);
+            }
+            writeState(shardId, new State(checkpoint, committed + bytes.length));
+        }
+    }
+
+    /**
+     * Streams the committed invoice metadata of a shard; the caller must close the stream.
+     */
+    public Stream<JsonNode> read(String shardId) throws IOException {
+        long length;
+        synchronized (lock(shardId)) {
+            State state = readState(shardId);
+            if (state == null) {
+                return Stream.empty();
+            }
+            length = state.length();
+        }
+        long[] position = {0};
+        return Files.lines(dataFile(shardId), StandardCharsets.UTF_8)
+                // lines past the committed length were never checkpointed
+                .takeWhile(line -> (position[0] += line.getBytes(StandardCharsets.UTF_8).length + 1) <= length)
+                .map(line -> {
+                    try {
+                        return objectMapper.readTree(line);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private State readState(String shardId) throws IOException {
+        Path file = checkpointFile(shardId);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        JsonNode state = objectMapper.readTree(file.toFile());
+        Set<String> ksefNumbers = new LinkedHashSet<>();
+        state.path("ksefNumbers").forEach(ksefNumber -> ksefNumbers.add(ksefNumber.asText()));
+        return new State(new Checkpoint(Instant.parse(state.path("permanentStorageDate").asText()), ksefNumbers,
+                state.path("complete").asBoolean()), state.path("length").asLong());
+    }
+
+    private void writeState(String shardId, State state) throws IOException {
+        ObjectNode json = objectMapper.createObjectNode()
+                .put("permanentStorageDate", state.checkpoint().permanentStorageDate().toString())
+                .put("complete", state.checkpoint().complete())
+                .put("length", state.length());
+        state.checkpoint().ksefNumbers().forEach(json.putArray("ksefNumbers")::add);
+
+        Path target = checkpointFile(shardId);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, objectMapper.writeValueAsBytes(json));
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Object lock(String shardId) {
+        if (!SHARD_ID.matcher(shardId).matches()) {
+            throw new IllegalArgumentException("Not a shard id: " + shardId);
+        }
+        return locks.computeIfAbsent(shardId, id -> new Object());
+    }
+
+    private Path dataFile(String shardId) {
+        return root.resolve(shardId + ".jsonl");
+    }
+
+    private Path checkpointFile(String shardId) {
+        return root.resolve(shardId + ".checkpoint.json");
+    }
+}
@@ -0,0 +1,239 @@
+package com.bsg6.service.metadata;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.metadata.InvoiceMetadataStore.Checkpoint;
+import com.bsg6.service.rest.KsefRestClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Incremental mirror of invoice metadata from {@code POST /api/v2/invoices/query/metadata}.
+ * <p>
+ * Invoices are read by permanent storage date in ascending order, the order KSeF recommends for incremental
+ * downloads. Each {@link Shard} is a subject type and a date range; pages are appended to
+ * {@link InvoiceMetadataStore} together with a checkpoint, so the next sync of the shard starts at the newest stored
+ * date instead of the beginning of the range. Invoices at that date are returned again and skipped by KSeF number.
+ * When a query reaches the KSeF limit of 10 000 results it is truncated and restarted from the last date read. A shard
+ * without an end date follows KSeF's permanent storage high-water mark and never misses invoices that are stored
+ * late; a shard with an end date is marked complete once read and is not queried again. {@link #sync(List, String)}
+ * runs up to {@code ksef.metadata.sync.parallelism} shards at a time.
+ * </p>
+ */
+@Service
+public class InvoiceMetadataSync {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceMetadataSync.class);
+
+    private static final String QUERY_PATH = "/api/v2/invoices/query/metadata";
+    private static final DateTimeFormatter SHARD_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss").withZone(ZoneOffset.UTC);
+
+    /**
+     * Role of the authenticated context on the invoice.
+     */
+    public enum SubjectType {
+        SELLER("Subject1"),
+        BUYER("Subject2"),
+        THIRD_PARTY("Subject3"),
+        AUTHORIZED("SubjectAuthorized");
+
+        private final String apiValue;
+
+        SubjectType(String apiValue) {
+            this.apiValue = apiValue;
+        }
+
+        public String apiValue() {
+            return apiValue;
+        }
+    }
+
+    /**
+     * Invoices of one subject type with a permanent storage date in {@code [from, to]}; {@code to} is {@code null}
+     * for a shard that keeps following new invoices.
+     */
+    public record Shard(SubjectType subjectType, Instant from, Instant to) {
+
+        /**
+         * Stable identifier, used to name the shard's files in the store.
+         */
+        public String id() {
+            return subjectType.name().toLowerCase() + "-" + SHARD_DATE.format(from) + "-"
+                    + (to == null ? "open" : SHARD_DATE.format(to));
+        }
+
+        /**
+         * Splits {@code [from, to)} into consecutive closed shards of at most {@code span}. The shards are independent
+         * and can be synced in parallel.
+         */
+        public static List<Shard> split(SubjectType subjectType, Instant from, Instant to, Duration span) {
+            List<Shard> shards = new ArrayList<>();
+            for (Instant start = from; start.isBefore(to); start = start.plus(span)) {
+                Instant end = start.plus(span).isBefore(to) ? start.plus(span) : to;
+                // the API range is inclusive, so shards must not share their boundary instant
+                shards.add(new Shard(subjectType, start, end.minusMillis(1)));
+            }
+            return shards;
+        }
+    }
+
+    /**
+     * Outcome of one sync of a shard; {@code skipped} counts invoices returned again at the checkpoint date.
+     */
+    public record ShardResult(Shard shard, int queries, int appended, int skipped, Instant permanentStorageDate) {
+    }
+
+    private final KsefRestClient restClient;
+    private final InvoiceMetadataStore store;
+    private final int pageSize;
+    private final int parallelism;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-metadata-sync-", 1).factory());
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    public InvoiceMetadataSync(KsefRestClient restClient, InvoiceMetadataStore store, ConfigurationProps config) {
+        this.restClient = restClient;
+        this.store = store;
+        this.pageSize = config.getMetadataSyncPageSize();
+        this.parallelism = config.getMetadataSyncParallelism();
+    }
+
+    /**
+     * Syncs the shards in parallel.
+     *
+     * @return a future completed once every shard is synced, or failed with the first error
+     */
+    public CompletableFuture<List<ShardResult>> sync(List<Shard> shards, String accessToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            Semaphore permits = new Semaphore(parallelism);
+            List<CompletableFuture<ShardResult>> results = new ArrayList<>(shards.size());
+            for (Shard shard : shards) {
+                permits.acquireUninterruptibly();
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return sync(shard, accessToken);
+                    } catch (ApiException e) {
+                        throw new CompletionException(e);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        permits.release();
+                    }
+                }, executor));
+            }
+            return results.stream().map(CompletableFuture::join).toList();
+        }, executor);
+    }
+
+    /**
+     * Appends the shard's invoices that are newer than its checkpoint to the store.
+     */
+    public ShardResult sync(Shard shard, String accessToken) throws ApiException, IOException {
+        String shardId = shard.id();
+        if (!running.add(shardId)) {
+            throw new IllegalStateException("Shard " + shardId + " is already being synced");
+        }
+        try {
+            return syncShard(shard, shardId, accessToken);
+        } finally {
+            running.remove(shardId);
+        }
+    }
+
+    private ShardResult syncShard(Shard shard, String shardId, String accessToken) throws ApiException, IOException {
+        Checkpoint checkpoint = store.checkpoint(shardId)
+                .orElse(new Checkpoint(shard.from(), Set.of(), false));
+        if (checkpoint.complete()) {
+            return new ShardResult(shard, 0, 0, 0, checkpoint.permanentStorageDate());
+        }
+
+        Instant from = checkpoint.permanentStorageDate();
+        Set<String> seen = new HashSet<>(checkpoint.ksefNumbers());
+        int pageOffset = 0;
+        int queries = 0;
+        int appended = 0;
+        int skipped = 0;
+        while (true) {
+            JsonNode response = restClient.post(QUERY_PATH + "?pageOffset=" + pageOffset + "&pageSize=" + pageSize
+                    + "&sortOrder=Asc", query(shard, from), accessToken);
+            queries++;
+
+            Instant newest = checkpoint.permanentStorageDate();
+            List<JsonNode> fresh = new ArrayList<>();
+            for (JsonNode invoice : response.path("invoices")) {
+                String ksefNumber = invoice.path("ksefNumber").asText();
+                Instant stored = Instant.parse(invoice.path("permanentStorageDate").asText());
+                if (stored.isBefore(newest) || (stored.equals(newest) && !seen.add(ksefNumber))) {
+                    skipped++;
+                    continue;
+                }
+                if (stored.isAfter(newest)) {
+                    newest = stored;
+                    seen.clear();
+                    seen.add(ksefNumber);
+                }
+                fresh.add(invoice);
+            }
+
+            boolean hasMore = response.path("hasMore").asBoolean();
+            boolean complete = !hasMore && shard.to() != null && !hwm(response).isBefore(shard.to());
+            checkpoint = new Checkpoint(newest, seen, complete);
+            if (!fresh.isEmpty() || complete) {
+                store.append(shardId, fresh, checkpoint);
+                appended += fresh.size();
+            }
+            if (!hasMore) {
+                break;
+            }
+            if (response.path("isTruncated").asBoolean()) {
+                if (!newest.isAfter(from)) {
+                    throw new IllegalStateException("More than the query limit of invoices in shard " + shardId
+                            + " share the permanent storage date " + from);
+                }
+                from = newest;
+                pageOffset = 0;
+            } else {
+                pageOffset++;
+            }
+        }
+        log.info("Synced invoice metadata shard {}: {} new, {} already stored, {} queries", shardId, appended, skipped, queries);
+        return new ShardResult(shard, queries, appended, skipped, checkpoint.permanentStorageDate());
+    }
+
+    private static Map<String, Object> query(Shard shard, Instant from) {
+        Map<String, Object> dateRange = new LinkedHashMap<>();
+        dateRange.put("dateType", "PermanentStorage");
+        dateRange.put("from", from.toString());
+        if (shard.to() != null) {
+            dateRange.put("to", shard.to().toString());
+        }
+        // invoices newer than the high-water mark may still be joined by earlier-dated ones and are read next time
+        dateRange.put("restrictToPermanentStorageHwmDate", true);
+        return Map.of("subjectType", shard.subjectType().apiValue(), "dateRange", dateRange);
+    }
+
+    private static Instant hwm(JsonNode response) {
+        String hwm = response.path("permanentStorageHwmDate").asText(null);
+        return hwm == null ? Instant.MIN : Instant.parse(hwm);
+    }
+}
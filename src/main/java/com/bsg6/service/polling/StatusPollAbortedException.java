@@ -0,0 +1,13 @@
+package com.bsg6.service.polling;
+
+/**
+ * Thrown by a probe when probing again cannot succeed, e.g. because the operation was rejected or the token used to
+ * check it expired. The poll then fails at once with this exception instead of probing until its timeout; the cause is
+ * the failure of the probe.
+ */
+public class StatusPollAbortedException extends RuntimeException {
+
+    public StatusPollAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
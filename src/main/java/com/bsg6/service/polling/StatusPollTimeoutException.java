@@ -0,0 +1,12 @@
+package com.bsg6.service.polling;
+
+/**
+ * Thrown when a polled operation does not reach the expected state within its timeout. The cause, if any, is the
+ * failure of the last probe.
+ */
+public class StatusPollTimeoutException extends RuntimeException {
+
+    public StatusPollTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,129 @@
+package com.bsg6.service.polling;
+
+import com.bsg6.config.ConfigurationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Non-blocking poller for KSeF operations that complete asynchronously (authentication, session processing, UPO).
+ * <p>
+ * All pollers share one scheduler thread that only keeps time; each probe runs on its own virtual thread, so waiting
+ * sessions do not pin a thread between probes. The first probe runs after {@code ksef.polling.initial.delay.millis};
+ * the delay then doubles, with jitter, up to the maximum interval given for the operation.
+ * </p>
+ */
+@Service
+public class StatusPoller {
+    private static final Logger log = LoggerFactory.getLogger(StatusPoller.class);
+
+    /**
+     * A single status check. Exceptions are treated as "not done yet" and retried until the timeout, except
+     * {@link StatusPollAbortedException}, which fails the poll at once.
+     */
+    @FunctionalInterface
+    public interface Probe<T> {
+        T check() throws Exception;
+    }
+
+    private final Duration initialDelay;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("ksef-status-poller").daemon(true).factory());
+    private final Executor probeExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-status-probe-", 1).factory());
+
+    public StatusPoller(ConfigurationProps config) {
+        this.initialDelay = config.getPollingInitialDelay();
+    }
+
+    /**
+     * Polls until the probe result satisfies the condition.
+     *
+     * @param description  used in logs and in the timeout message
+     * @param timeout      overall time limit; the future then fails with {@link StatusPollTimeoutException}
+     * @param maxInterval  upper bound of the delay between probes
+     * @return a future completed with the first result accepted by the condition
+     */
+    public <T> CompletableFuture<T> poll(String description, Probe<T> probe, Predicate<? super T> condition,
+                                         Duration timeout, Duration maxInterval) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        schedule(new Poll<>(description, probe, condition, deadline, maxInterval, result), 0);
+        return result;
+    }
+
+    /**
+     * Waits for a polling future, rethrowing its failure as thrown by the probe or poller.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(e.getCause());
+        }
+    }
+
+    private record Poll<T>(String description, Probe<T> probe, Predicate<? super T> condition, long deadline,
+                           Duration maxInterval, CompletableFuture<T> result) {
+    }
+
+    private <T> void schedule(Poll<T> poll, int attempt) {
+        long delay = delayMillis(attempt, poll.maxInterval());
+        scheduler.schedule(() -> probeExecutor.execute(() -> probe(poll, attempt)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> void probe(Poll<T> poll, int attempt) {
+        if (poll.result().isDone()) {
+            return; // cancelled by the caller
+        }
+
+        Exception failure = null;
+        try {
+            T value = poll.probe().check();
+            if (poll.condition().test(value)) {
+                poll.result().complete(value);
+                return;
+            }
+        } catch (StatusPollAbortedException e) {
+            log.debug("{}: probe {} aborted polling: {}", poll.description(), attempt + 1, e.toString());
+            poll.result().completeExceptionally(e);
+            return;
+        } catch (Exception e) {
+            failure = e;
+            log.debug("{}: probe {} failed: {}", poll.description(), attempt + 1, e.toString());
+        } catch (Throwable t) {
+            poll.result().completeExceptionally(t);
+            return;
+        }
+
+        if (System.nanoTime() - poll.deadline() >= 0) {
+            poll.result().completeExceptionally(new StatusPollTimeoutException(
+                    poll.description() + " did not complete after " + (attempt + 1) + " probes", failure));
+            return;
+        }
+        schedule(poll, attempt + 1);
+    }
+
+    /**
+     * initialDelay * 2^attempt, capped at maxInterval, with the upper half randomised.
+     */
+    private long delayMillis(int attempt, Duration maxInterval) {
+        long ceiling = Math.min(initialDelay.toMillis() << Math.min(attempt, 20), maxInterval.toMillis());
+        return ceiling <= 1 ? ceiling : ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+}
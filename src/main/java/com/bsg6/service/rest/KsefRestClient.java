@@ -0,0 +1,112 @@
+package com.bsg6.service.rest;
+
+import com.bsg6.config.ConfigurationProps;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thin JSON client for KSeF endpoints described in {@code opeapi-spec.json} that the SDK client does not cover.
+ * <p>
+ * Requests go through the shared {@link HttpClient} bean, which applies the per-family timeouts, against
+ * {@link ConfigurationProps#getBaseUri()}. Non-2xx responses are reported as {@link ApiException} carrying the HTTP
+ * status and the raw response body, the same way the SDK reports them.
+ * </p>
+ */
+@Component
+public class KsefRestClient {
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final ConfigurationProps config;
+
+    public KsefRestClient(HttpClient httpClient, ObjectMapper objectMapper, ConfigurationProps config) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.config = config;
+    }
+
+    public JsonNode get(String path, String bearerToken) throws ApiException, IOException {
+        return readJson(send(request(path, bearerToken).GET().build()));
+    }
+
+    public JsonNode post(String path, Object body, String bearerToken) throws ApiException, IOException {
+        HttpRequest.BodyPublisher publisher = body == null
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body));
+
+        return readJson(send(request(path, bearerToken)
+                .header("Content-Type", "application/json")
+                .POST(publisher)
+                .build()));
+    }
+
+    /**
+     * Streams a binary resource. The caller must close the returned stream.
+     *
+     * @param uri absolute URI (e.g. a pre-signed storage link) or a path relative to the KSeF base URI
+     */
+    public InputStream download(String uri, String bearerToken) throws ApiException, IOException {
+        HttpRequest.Builder builder = uri.startsWith("http")
+                ? HttpRequest.newBuilder(URI.create(uri))
+                : request(uri, bearerToken).setHeader("Accept", "*/*");
+        HttpResponse<InputStream> response = sendRaw(builder.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() / 100 != 2) {
+            try (InputStream body = response.body()) {
+                throw error(response, new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return response.body();
+    }
+
+    public ObjectMapper objectMapper() {
+        return objectMapper;
+    }
+
+    private HttpRequest.Builder request(String path, String bearerToken) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(config.getBaseUri() + path))
+                .header("Accept", "application/json");
+        if (bearerToken != null) {
+            builder.header("Authorization", "Bearer " + bearerToken);
+        }
+        return builder;
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest request) throws ApiException, IOException {
+        HttpResponse<byte[]> response = sendRaw(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() / 100 != 2) {
+            throw error(response, new String(response.body(), StandardCharsets.UTF_8));
+        }
+        return response;
+    }
+
+    private <T> HttpResponse<T> sendRaw(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calling " + request.uri());
+        }
+    }
+
+    private JsonNode readJson(HttpResponse<byte[]> response) throws IOException {
+        byte[] body = response.body();
+        return body.length == 0 ? objectMapper.nullNode() : objectMapper.readTree(body);
+    }
+
+    private static ApiException error(HttpResponse<?> response, String body) {
+        return new ApiException(response.statusCode(),
+                response.request().method() + " " + response.uri().getPath() + " failed with HTTP status " + response.statusCode(),
+                response.headers(), body);
+    }
+}
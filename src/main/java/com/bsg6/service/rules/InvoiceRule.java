@@ -0,0 +1,19 @@
+package com.bsg6.service.rules;
+
+import com.bsg6.model.InvoiceData;
+
+import java.time.LocalDate;
+
+/**
+ * A rule compiled from one line of the rules file.
+ */
+record InvoiceRule(String id, Check check) {
+
+    @FunctionalInterface
+    interface Check {
+        /**
+         * @return why the invoice breaks the rule, or {@code null} if it does not
+         */
+        String violation(InvoiceData invoice, LocalDate issueDate, LocalDate today);
+    }
+}
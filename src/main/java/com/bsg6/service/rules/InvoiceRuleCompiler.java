@@ -0,0 +1,238 @@
+package com.bsg6.service.rules;
+
+import com.bsg6.model.InvoiceData;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compiles the lines of a rules file into {@link InvoiceRule}s.
+ * <p>
+ * Field names, dates and rates are resolved once, here, so evaluating a rule is a few field reads and comparisons;
+ * a message is only built when the rule is broken. See {@code invoice-rules.conf} for the syntax.
+ * </p>
+ */
+final class InvoiceRuleCompiler {
+    private static final String ISSUE_DATE = "issueDate";
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private static final Map<String, Function<InvoiceData, String>> TEXT_FIELDS = Map.of(
+            "sellerNip", InvoiceData::sellerNip,
+            "buyerNip", InvoiceData::buyerNip);
+    private static final Map<String, Function<InvoiceData, BigDecimal>> AMOUNT_FIELDS = Map.of(
+            "netAmount", InvoiceData::netAmount,
+            "vatAmount", InvoiceData::vatAmount,
+            "grossAmount", InvoiceData::grossAmount);
+
+    private InvoiceRuleCompiler() {
+    }
+
+    static List<InvoiceRule> compile(List<String> lines, String source) {
+        List<InvoiceRule> rules = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                int equals = line.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("expected <id> = <type> <arguments>");
+                }
+                String id = line.substring(0, equals).strip();
+                if (!ids.add(id)) {
+                    throw new IllegalArgumentException("duplicate rule id " + id);
+                }
+                String[] tokens = line.substring(equals + 1).strip().split("\\s+");
+                String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
+                rules.add(new InvoiceRule(id, check(tokens[0], args)));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return List.copyOf(rules);
+    }
+
+    private static InvoiceRule.Check check(String type, String[] args) {
+        return switch (type) {
+            case "nip-checksum" -> nipChecksum(arity(args, 1)[0]);
+            case "positive" -> signum(args, 1, "is not positive");
+            case "non-negative" -> signum(args, 0, "is negative");
+            case "max-scale" -> maxScale(args);
+            case "sum" -> sum(args);
+            case "vat-rate" -> vatRate(args);
+            case "not-future" -> notFuture(arity(args, 1)[0]);
+            case "not-before" -> notBefore(arity(args, 2));
+            default -> throw new IllegalArgumentException("unknown rule type " + type);
+        };
+    }
+
+    private static InvoiceRule.Check nipChecksum(String field) {
+        Function<InvoiceData, String> nip = textField(field);
+        return (invoice, issueDate, today) -> IdentifierGeneratorUtils.isValidNip(nip.apply(invoice))
+                ? null
+                : field + " '" + nip.apply(invoice) + "' is not a NIP with a valid check digit";
+    }
+
+    private static InvoiceRule.Check signum(String[] fields, int minimum, String message) {
+        List<Function<InvoiceData, BigDecimal>> amounts = amountFields(atLeast(fields, 1));
+        return (invoice, issueDate, today) -> {
+            for (int i = 0; i < fields.length; i++) {
+                BigDecimal amount = amounts.get(i).apply(invoice);
+                if (amount == null || amount.signum() < minimum) {
+                    return fields[i] + " " + amount + " " + message;
+                }
+            }
+            return null;
+        };
+    }
+
+    private static InvoiceRule.Check maxScale(String[] args) {
+        atLeast(args, 2);
+        int scale = Integer.parseInt(args[0]);
+        String[] fields = Arrays.copyOfRange(args, 1, args.length);
+        List<Function<InvoiceData, BigDecimal>> amounts = amountFields(fields);
+        return (invoice, issueDate, today) -> {
+            for (int i = 0; i < fields.length; i++) {
+                BigDecimal amount = amounts.get(i).apply(invoice);
+                // 100.10 and 100.1 are the same amount; only significant decimals count
+                if (amount != null && amount.stripTrailingZeros().scale() > scale) {
+                    return fields[i] + " " + amount + " has more than " + scale + " decimal places";
+                }
+            }
+            return null;
+        };
+    }
+
+    private static InvoiceRule.Check sum(String[] args) {
+        int equals = Arrays.asList(args).indexOf("=");
+        if (equals < 1 || equals != args.length - 2) {
+            throw new IllegalArgumentException("expected sum <field> + <field>... = <field>");
+        }
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < equals; i++) {
+            boolean operator = i % 2 == 1;
+            if (operator != "+".equals(args[i])) {
+                throw new IllegalArgumentException("expected sum <field> + <field>... = <field>");
+            }
+            if (!operator) {
+                terms.add(args[i]);
+            }
+        }
+        List<Function<InvoiceData, BigDecimal>> addends = amountFields(terms.toArray(String[]::new));
+        Function<InvoiceData, BigDecimal> total = amountField(args[args.length - 1]);
+        String expression = String.join(" + ", terms);
+        return (invoice, issueDate, today) -> {
+            BigDecimal expected = total.apply(invoice);
+            if (expected == null) {
+                return null;
+            }
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Function<InvoiceData, BigDecimal> addend : addends) {
+                BigDecimal amount = addend.apply(invoice);
+                if (amount == null) {
+                    return null;
+                }
+                sum = sum.add(amount);
+            }
+            return sum.compareTo(expected) == 0
+                    ? null
+                    : expression + " = " + sum + ", but " + args[args.length - 1] + " is " + expected;
+        };
+    }
+
+    private static InvoiceRule.Check vatRate(String[] args) {
+        atLeast(args, 3);
+        Function<InvoiceData, BigDecimal> net = amountField(args[0]);
+        Function<InvoiceData, BigDecimal> vat = amountField(args[1]);
+        String[] rateNames = Arrays.copyOfRange(args, 2, args.length);
+        BigDecimal[] rates = new BigDecimal[rateNames.length];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = new BigDecimal(rateNames[i]).divide(HUNDRED);
+        }
+        return (invoice, issueDate, today) -> {
+            BigDecimal netAmount = net.apply(invoice);
+            BigDecimal vatAmount = vat.apply(invoice);
+            if (netAmount == null || vatAmount == null) {
+                return null;
+            }
+            for (BigDecimal rate : rates) {
+                if (netAmount.multiply(rate).setScale(2, RoundingMode.HALF_UP).compareTo(vatAmount) == 0) {
+                    return null;
+                }
+            }
+            return args[1] + " " + vatAmount + " is not " + args[0] + " " + netAmount + " at any of the rates "
+                    + String.join("%, ", rateNames) + "%";
+        };
+    }
+
+    private static InvoiceRule.Check notFuture(String field) {
+        dateField(field);
+        return (invoice, issueDate, today) -> issueDate == null || !issueDate.isAfter(today)
+                ? null
+                : field + " " + issueDate + " is in the future";
+    }
+
+    private static InvoiceRule.Check notBefore(String[] args) {
+        dateField(args[0]);
+        LocalDate earliest = LocalDate.parse(args[1]);
+        return (invoice, issueDate, today) -> issueDate == null || !issueDate.isBefore(earliest)
+                ? null
+                : args[0] + " " + issueDate + " is before " + earliest;
+    }
+
+    private static Function<InvoiceData, String> textField(String name) {
+        Function<InvoiceData, String> field = TEXT_FIELDS.get(name);
+        if (field == null) {
+            throw new IllegalArgumentException("unknown identifier field " + name);
+        }
+        return field;
+    }
+
+    private static Function<InvoiceData, BigDecimal> amountField(String name) {
+        Function<InvoiceData, BigDecimal> field = AMOUNT_FIELDS.get(name);
+        if (field == null) {
+            throw new IllegalArgumentException("unknown amount field " + name);
+        }
+        return field;
+    }
+
+    private static List<Function<InvoiceData, BigDecimal>> amountFields(String[] names) {
+        List<Function<InvoiceData, BigDecimal>> fields = new ArrayList<>(names.length);
+        for (String name : names) {
+            fields.add(amountField(name));
+        }
+        return List.copyOf(fields);
+    }
+
+    private static void dateField(String name) {
+        if (!ISSUE_DATE.equals(name)) {
+            throw new IllegalArgumentException("unknown date field " + name);
+        }
+    }
+
+    private static String[] arity(String[] args, int count) {
+        if (args.length != count) {
+            throw new IllegalArgumentException("expected " + count + " argument(s), got " + args.length);
+        }
+        return args;
+    }
+
+    private static String[] atLeast(String[] args, int count) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("expected at least " + count + " argument(s), got " + args.length);
+        }
+        return args;
+    }
+}
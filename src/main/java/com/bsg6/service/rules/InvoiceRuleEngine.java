@@ -0,0 +1,111 @@
+package com.bsg6.service.rules;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.InvoiceData;
+import com.bsg6.utils.ParallelUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks invoice data against the business rules declared in {@code ksef.rules.file} (NIP check digits, VAT rates,
+ * rounding, totals and dates) before an invoice costs a KSeF submission.
+ * <p>
+ * The rules are compiled once at startup; an invoice is checked in one pass over the compiled rules. A batch is cut
+ * into {@code ksef.rules.parallelism} slices that are checked concurrently, with results in the order of the batch.
+ * </p>
+ */
+@Service
+public class InvoiceRuleEngine {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceRuleEngine.class);
+
+    private final List<InvoiceRule> rules;
+    private final boolean enabled;
+    private final int parallelism;
+
+    public InvoiceRuleEngine(ConfigurationProps config) {
+        this.rules = load(config.getRulesFile());
+        this.enabled = config.isRulesEnabled();
+        this.parallelism = config.getRulesParallelism();
+        log.info("Loaded {} invoice rules from {}", rules.size(), config.getRulesFile());
+    }
+
+    /**
+     * {@code true} if invoices should be checked before sending ({@code ksef.rules.enabled}).
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the broken rules, in the order of the rules file; empty if the invoice passes
+     */
+    public List<RuleViolation> evaluate(InvoiceData invoice, LocalDate issueDate) {
+        return evaluate(invoice, issueDate, LocalDate.now());
+    }
+
+    /**
+     * Checks every invoice of a batch issued on the given day.
+     *
+     * @return the broken rules of each invoice, in the order of the batch
+     */
+    public List<List<RuleViolation>> evaluateAll(List<InvoiceData> invoices, LocalDate issueDate) {
+        LocalDate today = LocalDate.now();
+        try {
+            return ParallelUtils.mapInOrder(invoices.size(), parallelism, "ksef-rules-",
+                    i -> evaluate(invoices.get(i), issueDate, today));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking invoice rules", e);
+        }
+    }
+
+    /**
+     * Throws {@link InvoiceRuleException} if rules are enabled and the invoice breaks any of them.
+     */
+    public void requireValid(InvoiceData invoice, LocalDate issueDate) {
+        if (!enabled) {
+            return;
+        }
+        List<RuleViolation> violations = evaluate(invoice, issueDate);
+        if (!violations.isEmpty()) {
+            throw new InvoiceRuleException("Invoice breaks business rules", violations);
+        }
+    }
+
+    private List<RuleViolation> evaluate(InvoiceData invoice, LocalDate issueDate, LocalDate today) {
+        List<RuleViolation> violations = null;
+        for (InvoiceRule rule : rules) {
+            String violation = rule.check().violation(invoice, issueDate, today);
+            if (violation != null) {
+                if (violations == null) {
+                    violations = new ArrayList<>(2);
+                }
+                violations.add(new RuleViolation(rule.id(), violation));
+            }
+        }
+        return violations == null ? List.of() : violations;
+    }
+
+    private static List<InvoiceRule> load(String resource) {
+        try (InputStream is = InvoiceRuleEngine.class.getResourceAsStream(resource)) {
+            if (is == null) {
+                throw new IllegalStateException("Invoice rules " + resource + " not found on the classpath");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            return InvoiceRuleCompiler.compile(reader.lines().toList(), resource);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read invoice rules " + resource, e);
+        }
+    }
+}
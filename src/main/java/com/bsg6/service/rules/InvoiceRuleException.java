@@ -0,0 +1,20 @@
+package com.bsg6.service.rules;
+
+import java.util.List;
+
+/**
+ * Thrown instead of sending an invoice that breaks business rules.
+ */
+public class InvoiceRuleException extends IllegalArgumentException {
+
+    private final transient List<RuleViolation> violations;
+
+    public InvoiceRuleException(String message, List<RuleViolation> violations) {
+        super(message + ": " + violations);
+        this.violations = List.copyOf(violations);
+    }
+
+    public List<RuleViolation> getViolations() {
+        return violations;
+    }
+}
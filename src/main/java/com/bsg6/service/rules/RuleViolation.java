@@ -0,0 +1,12 @@
+package com.bsg6.service.rules;
+
+/**
+ * A business rule that an invoice breaks, by its id in the rules file.
+ */
+public record RuleViolation(String rule, String message) {
+
+    @Override
+    public String toString() {
+        return rule + ": " + message;
+    }
+}
@@ -0,0 +1,257 @@
+package com.bsg6.service.session;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.crypto.EncryptionDataPool;
+import com.bsg6.service.invoice.InvoiceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+import pl.akmf.ksef.sdk.client.model.session.SchemaVersion;
+import pl.akmf.ksef.sdk.client.model.session.SessionStatusResponse;
+import pl.akmf.ksef.sdk.client.model.session.SessionValue;
+import pl.akmf.ksef.sdk.client.model.session.SystemCode;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends invoices through a pool of long-lived online sessions instead of opening a session per invoice.
+ * <p>
+ * Up to {@code ksef.session.pool.size} sessions are kept open per context and form code. Each send goes to the
+ * session with the fewest requests in flight, and a new session is opened only when all of them are saturated.
+ * Up to {@code ksef.session.pool.max.in.flight} sends run concurrently through one session. A session is retired
+ * after {@code ksef.session.pool.max.invoices} invoices or {@code ksef.session.pool.max.age.minutes}. Once its
+ * last send completes it is closed in the background and its UPO is awaited. {@link #drain()} retires all sessions
+ * and collects the outcome of each, whether it closed or failed to.
+ * </p>
+ */
+@Service
+public class OnlineSessionPool {
+    private static final Logger log = LoggerFactory.getLogger(OnlineSessionPool.class);
+
+    /**
+     * Sessions are pooled per context and form code.
+     */
+    public record SessionKey(String contextNip, SystemCode systemCode, SchemaVersion schemaVersion, SessionValue value) {
+    }
+
+    public record SentInvoice(String sessionReferenceNumber, String invoiceReferenceNumber) {
+    }
+
+    /**
+     * A retired session after close, with the status that carries its UPO, or with the failure of closing it or of
+     * awaiting its UPO; exactly one of {@code status} and {@code failure} is set.
+     */
+    public record ClosedSession(SessionKey key, String referenceNumber, int invoiceCount, SessionStatusResponse status,
+                                Throwable failure) {
+
+        public boolean failed() {
+            return failure != null;
+        }
+    }
+
+    private record OpenedSession(String referenceNumber, EncryptionData encryptionData) {
+    }
+
+    private final class PooledSession {
+        final SessionKey key;
+        final Instant openedAt = Instant.now();
+        final CompletableFuture<OpenedSession> opened = new CompletableFuture<>();
+        final Semaphore permits = new Semaphore(maxInFlight);
+        final AtomicInteger sent = new AtomicInteger();
+        volatile String accessToken;
+        // guarded by the session list of the key
+        int assigned;
+        int inFlight;
+        boolean retired;
+
+        PooledSession(SessionKey key) {
+            this.key = key;
+        }
+    }
+
+    private final OnlineSessionService onlineSessionService;
+    private final InvoiceService invoiceService;
+    private final EncryptionDataPool encryptionDataPool;
+    private final int poolSize;
+    private final int maxInvoices;
+    private final int maxInFlight;
+    private final Duration maxAge;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-session-pool-", 1).factory());
+
+    private final Map<SessionKey, List<PooledSession>> pools = new ConcurrentHashMap<>();
+    private final Queue<CompletableFuture<ClosedSession>> closing = new ConcurrentLinkedQueue<>();
+
+    public OnlineSessionPool(OnlineSessionService onlineSessionService, InvoiceService invoiceService,
+                             EncryptionDataPool encryptionDataPool, ConfigurationProps config) {
+        this.onlineSessionService = onlineSessionService;
+        this.invoiceService = invoiceService;
+        this.encryptionDataPool = encryptionDataPool;
+        this.poolSize = config.getSessionPoolSize();
+        this.maxInvoices = config.getSessionPoolMaxInvoices();
+        this.maxInFlight = config.getSessionPoolMaxInFlight();
+        this.maxAge = config.getSessionPoolMaxAge();
+    }
+
+    public CompletableFuture<SentInvoice> send(SessionKey key, byte[] invoiceXml, String accessToken) {
+        return send(key, ByteBuffer.wrap(invoiceXml), accessToken);
+    }
+
+    /**
+     * Sends an invoice through a pooled session of the key, opening one if needed.
+     *
+     * @param accessToken access token of the key's context; the latest one given is also used to close the session
+     * @return a future completed when KSeF has accepted the invoice for processing
+     */
+    public CompletableFuture<SentInvoice> send(SessionKey key, ByteBuffer invoiceXml, String accessToken) {
+        PooledSession session = assign(key, accessToken);
+        return session.opened
+                .thenApplyAsync(opened -> {
+                    session.permits.acquireUninterruptibly();
+                    try {
+                        String invoiceReferenceNumber = invoiceService.sendInvoiceXmlOnlineSession(invoiceXml,
+                                opened.referenceNumber(), opened.encryptionData(), accessToken);
+                        session.sent.incrementAndGet();
+                        return new SentInvoice(opened.referenceNumber(), invoiceReferenceNumber);
+                    } catch (ApiException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        session.permits.release();
+                    }
+                }, executor)
+                .whenComplete((sent, failure) -> release(session));
+    }
+
+    /**
+     * Retires all pooled sessions and completes once every session retired so far is closed and has its UPO, or has
+     * failed to. A failed session is reported in the list like the others, see {@link ClosedSession#failed()}.
+     */
+    public CompletableFuture<List<ClosedSession>> drain() {
+        for (List<PooledSession> sessions : pools.values()) {
+            synchronized (sessions) {
+                for (PooledSession session : List.copyOf(sessions)) {
+                    retire(sessions, session);
+                }
+            }
+        }
+
+        List<CompletableFuture<ClosedSession>> pending = new ArrayList<>();
+        for (CompletableFuture<ClosedSession> future; (future = closing.poll()) != null; ) {
+            pending.add(future);
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+                .thenApply(done -> pending.stream().map(CompletableFuture::join).toList());
+    }
+
+    private PooledSession assign(SessionKey key, String accessToken) {
+        List<PooledSession> sessions = pools.computeIfAbsent(key, k -> new ArrayList<>());
+        PooledSession chosen;
+        boolean created = false;
+        synchronized (sessions) {
+            retireUnusable(sessions);
+            chosen = sessions.stream().min(Comparator.comparingInt(session -> session.inFlight)).orElse(null);
+            if (chosen == null || (chosen.inFlight >= maxInFlight && sessions.size() < poolSize)) {
+                chosen = new PooledSession(key);
+                sessions.add(chosen);
+                created = true;
+            }
+            chosen.accessToken = accessToken;
+            chosen.inFlight++;
+            if (++chosen.assigned >= maxInvoices) {
+                retire(sessions, chosen);
+            }
+        }
+        if (created) {
+            open(chosen);
+        }
+        return chosen;
+    }
+
+    private void release(PooledSession session) {
+        List<PooledSession> sessions = pools.get(session.key);
+        synchronized (sessions) {
+            session.inFlight--;
+            if (session.retired && session.inFlight == 0) {
+                close(session);
+            }
+        }
+    }
+
+    private void retireUnusable(List<PooledSession> sessions) {
+        Instant oldest = Instant.now().minus(maxAge);
+        for (PooledSession session : List.copyOf(sessions)) {
+            if (session.opened.isCompletedExceptionally() || session.openedAt.isBefore(oldest)) {
+                retire(sessions, session);
+            }
+        }
+    }
+
+    private void retire(List<PooledSession> sessions, PooledSession session) {
+        sessions.remove(session);
+        if (session.retired) {
+            return;
+        }
+        session.retired = true;
+        if (session.inFlight == 0) {
+            close(session);
+        }
+    }
+
+    private void open(PooledSession session) {
+        executor.execute(() -> {
+            try {
+                EncryptionData encryptionData = encryptionDataPool.take();
+                String referenceNumber = onlineSessionService.openOnlineSession(encryptionData, session.key.systemCode(),
+                        session.key.schemaVersion(), session.key.value(), session.accessToken).getReferenceNumber();
+                log.info("Opened pooled online session {} for {}", referenceNumber, session.key);
+                session.opened.complete(new OpenedSession(referenceNumber, encryptionData));
+            } catch (Exception e) {
+                session.opened.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void close(PooledSession session) {
+        // sessions that failed to open were already reported to every send routed to them
+        if (session.opened.isCompletedExceptionally()) {
+            return;
+        }
+        // closed only once its sends completed, which each waited for the session to open
+        String referenceNumber = session.opened.join().referenceNumber();
+        closing.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                onlineSessionService.closeOnlineSession(referenceNumber, session.accessToken);
+            } catch (ApiException e) {
+                throw new CompletionException(e);
+            }
+            log.info("Closed pooled online session {} after {} invoices", referenceNumber, session.sent.get());
+            return referenceNumber;
+        }, executor).thenCompose(closed -> onlineSessionService.waitUntilUpoGeneratedAsync(closed, session.accessToken))
+                .handle((status, failure) -> {
+                    if (failure == null) {
+                        return new ClosedSession(session.key, referenceNumber, session.sent.get(), status, null);
+                    }
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
+                    log.warn("Pooled online session {} failed to close: {}", referenceNumber, cause.toString());
+                    return new ClosedSession(session.key, referenceNumber, session.sent.get(), null, cause);
+                }));
+    }
+}
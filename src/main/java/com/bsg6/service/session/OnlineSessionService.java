@@ -1,5 +1,7 @@
 package com.bsg6.service.session;
 
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.polling.StatusPoller;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,8 +14,9 @@ import pl.akmf.ksef.sdk.client.model.session.*;
 import pl.akmf.ksef.sdk.client.model.session.online.OpenOnlineSessionRequest;
 import pl.akmf.ksef.sdk.client.model.session.online.OpenOnlineSessionResponse;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-import static org.awaitility.Awaitility.await;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 @Service
 public class OnlineSessionService {
@@ -21,10 +24,15 @@ public class OnlineSessionService {
     private static final Logger log = LoggerFactory.getLogger(OnlineSessionService.class);
     private final DefaultKsefClient ksefClient;
     private final com.bsg6.config.ConfigurationProps config;
+    private final StatusPoller statusPoller;
+    private final KsefApiCalls apiCalls;
 
-    public OnlineSessionService(DefaultKsefClient ksefClient, com.bsg6.config.ConfigurationProps config) {
+    public OnlineSessionService(DefaultKsefClient ksefClient, com.bsg6.config.ConfigurationProps config, StatusPoller statusPoller,
+                                KsefApiCalls apiCalls) {
         this.ksefClient = ksefClient;
         this.config = config;
+        this.statusPoller = statusPoller;
+        this.apiCalls = apiCalls;
     }
 
     /**
@@ -42,7 +50,8 @@ public class OnlineSessionService {
                 .withEncryptionInfo(encryptionData.encryptionInfo())
                 .build();
 
-        OpenOnlineSessionResponse response = ksefClient.openOnlineSession(request, UpoVersion.UPO_4_3,accessToken);
+        OpenOnlineSessionResponse response = apiCalls.callNonIdempotent("Opening online session",
+                () -> ksefClient.openOnlineSession(request, UpoVersion.UPO_4_3, accessToken));
 
         if (response == null || response.getReferenceNumber() == null) {
             throw new IllegalStateException("KSeF returned no session reference number.");
@@ -56,9 +65,7 @@ public class OnlineSessionService {
      */
     public boolean waitUntilInvoicesProcessed(String sessionReference, String accessToken) {
         try {
-            await().atMost(config.getSessionProcessingTimeout())
-                    .pollInterval(config.getSessionProcessingInterval())
-                    .until(() -> isInvoicesInSessionProcessed(sessionReference, accessToken));
+            StatusPoller.await(waitUntilInvoicesProcessedAsync(sessionReference, accessToken));
 
             return true; // processed before timeout
         } catch (Exception e) {
@@ -66,24 +73,46 @@ public class OnlineSessionService {
         }
     }
 
+    /**
+     * Completes with the session status once invoices in the session are processed.
+     */
+    public CompletableFuture<SessionStatusResponse> waitUntilInvoicesProcessedAsync(String sessionReference, String accessToken) {
+        return statusPoller.poll("Processing of session " + sessionReference,
+                apiCalls.probe("Status of session " + sessionReference, () -> ksefClient.getSessionStatus(sessionReference, accessToken)),
+                OnlineSessionService::isInvoicesInSessionProcessed,
+                config.getSessionProcessingTimeout(),
+                config.getSessionProcessingInterval());
+    }
+
     /**
      * Close the online session.
      */
     public void closeOnlineSession(String sessionReference, String accessToken) throws ApiException {
-        ksefClient.closeOnlineSession(sessionReference, accessToken);
+        apiCalls.runNonIdempotent("Closing online session " + sessionReference,
+                () -> ksefClient.closeOnlineSession(sessionReference, accessToken));
     }
 
     public void closeBatchSession(String sessionReference, String accessToken) throws ApiException {
-        ksefClient.closeBatchSession(sessionReference, accessToken);
+        apiCalls.runNonIdempotent("Closing batch session " + sessionReference,
+                () -> ksefClient.closeBatchSession(sessionReference, accessToken));
     }
 
     /**
      * Wait for UPO to be generated.
      */
     public void waitUntilUpoGenerated(String sessionReference, String accessToken) {
-        await().atMost(config.getSessionUpoTimeout())
-                .pollInterval(config.getSessionUpoInterval())
-                .until(() -> isUpoGenerated(sessionReference, accessToken));
+        StatusPoller.await(waitUntilUpoGeneratedAsync(sessionReference, accessToken));
+    }
+
+    /**
+     * Completes with the session status once the session UPO is generated.
+     */
+    public CompletableFuture<SessionStatusResponse> waitUntilUpoGeneratedAsync(String sessionReference, String accessToken) {
+        return statusPoller.poll("UPO of session " + sessionReference,
+                apiCalls.probe("Status of session " + sessionReference, () -> ksefClient.getSessionStatus(sessionReference, accessToken)),
+                OnlineSessionService::isSessionCompleted,
+                config.getSessionUpoTimeout(),
+                config.getSessionUpoInterval());
     }
 
     /**
@@ -108,63 +137,90 @@ public class OnlineSessionService {
         return getOnlineSessionUpo(sessionReference, upoReference, accessToken);
     }
 
-    private boolean isInvoicesInSessionProcessed(String sessionReferenceNumber, String accessToken) {
-        try {
-            SessionStatusResponse statusResponse = ksefClient.getSessionStatus(sessionReferenceNumber, accessToken);
-            return statusResponse != null &&
-                    statusResponse.getSuccessfulInvoiceCount() != null &&
-                    statusResponse.getSuccessfulInvoiceCount() > 0;
-        } catch (Exception e) {
-            return false;
-        }
+    private static boolean isInvoicesInSessionProcessed(SessionStatusResponse statusResponse) {
+        return statusResponse != null &&
+                statusResponse.getSuccessfulInvoiceCount() != null &&
+                statusResponse.getSuccessfulInvoiceCount() > 0;
     }
 
-    private boolean isUpoGenerated(String sessionReferenceNumber, String accessToken) {
-        try {
-            SessionStatusResponse statusResponse = ksefClient.getSessionStatus(sessionReferenceNumber, accessToken);
-            return statusResponse != null && statusResponse.getStatus().getCode() == 200;
-        } catch (Exception e) {
-            return false;
-        }
+    private static boolean isSessionCompleted(SessionStatusResponse statusResponse) {
+        return statusResponse != null && statusResponse.getStatus().getCode() == 200;
     }
 
     public UpoPageResponse getOnlineSessionUpoAfterCloseSession(String sessionReferenceNumber, String accessToken) throws ApiException {
-        SessionStatusResponse statusResponse = ksefClient.getSessionStatus(sessionReferenceNumber, accessToken);
+        SessionStatusResponse statusResponse = apiCalls.call("Status of session " + sessionReferenceNumber,
+                () -> ksefClient.getSessionStatus(sessionReferenceNumber, accessToken));
 
         return statusResponse.getUpo().getPages().getFirst();
     }
 
+    /**
+     * All UPO pages of a closed session; large sessions have more than one.
+     */
+    public List<UpoPageResponse> getSessionUpoPages(String sessionReferenceNumber, String accessToken) throws ApiException {
+        SessionStatusResponse statusResponse = apiCalls.call("Status of session " + sessionReferenceNumber,
+                () -> ksefClient.getSessionStatus(sessionReferenceNumber, accessToken));
+
+        return statusResponse.getUpo() == null ? List.of() : statusResponse.getUpo().getPages();
+    }
+
+    /**
+     * First invoice of the session, for single-invoice online sessions; use {@link #streamSessionInvoices} to read
+     * all of them.
+     */
     public SessionInvoiceStatusResponse getOnlineSessionDocuments(String sessionReferenceNumber, String accessToken) throws ApiException {
-        SessionInvoicesResponse sessionInvoices = ksefClient.getSessionInvoices(sessionReferenceNumber, null, 10, accessToken);
+        SessionInvoicesResponse sessionInvoices = apiCalls.call("Listing invoices of session " + sessionReferenceNumber,
+                () -> ksefClient.getSessionInvoices(sessionReferenceNumber, null, 10, accessToken));
 
         return sessionInvoices.getInvoices().getFirst();
     }
 
+    /**
+     * All invoices of the session, fetched lazily {@code ksef.session.invoices.page.size} at a time with the next page
+     * prefetched. Close the stream when not consuming it to the end.
+     *
+     * @throws SessionInvoicesPageException during iteration if KSeF rejects a page request
+     */
+    public Stream<SessionInvoiceStatusResponse> streamSessionInvoices(String sessionReferenceNumber, String accessToken) {
+        int pageSize = config.getSessionInvoicesPageSize();
+        return SessionInvoicePages.stream(continuationToken ->
+                apiCalls.call("Listing invoices of session " + sessionReferenceNumber,
+                        () -> ksefClient.getSessionInvoices(sessionReferenceNumber, continuationToken, pageSize, accessToken)));
+    }
+
     public byte[] getOnlineSessionInvoiceUpo(String sessionReferenceNumber, String ksefNumber, String accessToken) throws ApiException {
         log.debug("getOnlineSessionInvoiceUpo: sessionReferenceNumber: {}, ksefNumber: {}", sessionReferenceNumber, ksefNumber);
 
-        return ksefClient.getSessionInvoiceUpoByKsefNumber(sessionReferenceNumber, ksefNumber, accessToken);
+        return apiCalls.call("UPO of invoice " + ksefNumber,
+                () -> ksefClient.getSessionInvoiceUpoByKsefNumber(sessionReferenceNumber, ksefNumber, accessToken));
     }
 
     public byte[] getOnlineSessionInvoiceUpoByInvoiceReferenceNumber(String sessionReferenceNumber, String invoiceReferenceNumber, String accessToken) throws ApiException {
 
-        return ksefClient.getSessionInvoiceUpoByReferenceNumber(sessionReferenceNumber, invoiceReferenceNumber, accessToken);
+        return apiCalls.call("UPO of invoice " + invoiceReferenceNumber,
+                () -> ksefClient.getSessionInvoiceUpoByReferenceNumber(sessionReferenceNumber, invoiceReferenceNumber, accessToken));
     }
 
     public byte[] getOnlineSessionUpo(String sessionReferenceNumber, String upoReferenceNumber, String accessToken) throws ApiException {
 
-        return ksefClient.getSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken);
+        return apiCalls.call("UPO " + upoReferenceNumber + " of session " + sessionReferenceNumber,
+                () -> ksefClient.getSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken));
     }
 
     public SessionStatusResponse getBatchSessionStatus(String referenceNumber, String accessToken)
             throws ApiException {
 
-        return await()
-                .atMost(config.getBatchStatusTimeout())
-                .pollInterval(config.getBatchStatusInterval())
-                .until(
-                        () -> ksefClient.getSessionStatus(referenceNumber, accessToken),
-                        response -> response.getStatus().getCode() == 200
-                );
+        return KsefApiCalls.await(getBatchSessionStatusAsync(referenceNumber, accessToken));
+    }
+
+    /**
+     * Completes with the batch session status once the session is processed.
+     */
+    public CompletableFuture<SessionStatusResponse> getBatchSessionStatusAsync(String referenceNumber, String accessToken) {
+        return statusPoller.poll("Batch session " + referenceNumber,
+                apiCalls.probe("Status of session " + referenceNumber, () -> ksefClient.getSessionStatus(referenceNumber, accessToken)),
+                OnlineSessionService::isSessionCompleted,
+                config.getBatchStatusTimeout(),
+                config.getBatchStatusInterval());
     }
 }
\ No newline at end of file
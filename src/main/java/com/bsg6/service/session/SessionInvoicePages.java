@@ -0,0 +1,133 @@
+package com.bsg6.service.session;
+
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.SessionInvoiceStatusResponse;
+import pl.akmf.ksef.sdk.client.model.session.SessionInvoicesResponse;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy iterator over all invoices of a session that follows KSeF continuation tokens page by page.
+ * <p>
+ * The first page is fetched on the first {@link #hasNext()}. As soon as a page arrives the next one is requested in
+ * the background, so at most two pages are held at a time regardless of how many invoices the session has.
+ * </p>
+ * Not thread-safe; close it when abandoning the iteration early.
+ */
+public final class SessionInvoicePages implements Iterator<SessionInvoiceStatusResponse>, AutoCloseable {
+
+    private static final ExecutorService PREFETCH = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-invoice-page-", 1).factory());
+
+    /**
+     * Fetches one page; {@code continuationToken} is {@code null} for the first one.
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+        SessionInvoicesResponse fetch(String continuationToken) throws ApiException;
+    }
+
+    private final PageFetcher fetcher;
+    private Iterator<SessionInvoiceStatusResponse> page = Collections.emptyIterator();
+    private CompletableFuture<SessionInvoicesResponse> nextPage;
+    private boolean started;
+    private boolean closed;
+
+    public SessionInvoicePages(PageFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Streams all invoices lazily; closing the stream stops prefetching.
+     */
+    public static Stream<SessionInvoiceStatusResponse> stream(PageFetcher fetcher) {
+        SessionInvoicePages pages = new SessionInvoicePages(fetcher);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pages::close);
+    }
+
+    /**
+     * @throws SessionInvoicesPageException if a page cannot be fetched
+     */
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (closed) {
+                return false;
+            }
+            SessionInvoicesResponse response;
+            if (!started) {
+                started = true;
+                response = fetch(null);
+            } else if (nextPage != null) {
+                response = await(nextPage);
+            } else {
+                return false;
+            }
+
+            String continuationToken = response.getContinuationToken();
+            nextPage = continuationToken == null || continuationToken.isBlank() ? null : prefetch(continuationToken);
+            List<SessionInvoiceStatusResponse> invoices = response.getInvoices();
+            page = invoices == null ? Collections.emptyIterator() : invoices.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public SessionInvoiceStatusResponse next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        page = Collections.emptyIterator();
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+    }
+
+    private CompletableFuture<SessionInvoicesResponse> prefetch(String continuationToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetch(continuationToken);
+            } catch (ApiException e) {
+                throw new CompletionException(e);
+            }
+        }, PREFETCH);
+    }
+
+    private SessionInvoicesResponse fetch(String continuationToken) {
+        try {
+            return fetcher.fetch(continuationToken);
+        } catch (ApiException e) {
+            throw new SessionInvoicesPageException("Fetching session invoices failed", e);
+        }
+    }
+
+    private static SessionInvoicesResponse await(CompletableFuture<SessionInvoicesResponse> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new SessionInvoicesPageException("Fetching session invoices failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.bsg6.service.session;
+
+/**
+ * Thrown while iterating session invoices when KSeF rejects a page request. The cause is the SDK's
+ * {@code ApiException}.
+ */
+public class SessionInvoicesPageException extends RuntimeException {
+
+    public SessionInvoicesPageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
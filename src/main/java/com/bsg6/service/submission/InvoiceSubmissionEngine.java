@@ -0,0 +1,253 @@
+package com.bsg6.service.submission;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.invoice.InvoiceService;
+import com.bsg6.service.session.OnlineSessionPool;
+import com.bsg6.service.session.OnlineSessionPool.SessionKey;
+import com.bsg6.service.session.OnlineSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Single entry point for sending invoices that chooses between online and batch sessions per invoice.
+ * <p>
+ * Invoices go online through {@link OnlineSessionPool} while the backlog of a context and form code is short. The
+ * engine keeps a moving average of how long KSeF takes to accept an online invoice; combined with the pool's
+ * concurrency ({@code ksef.session.pool.size} x {@code ksef.session.pool.max.in.flight}) this gives the observed
+ * online throughput and the expected wait of a new invoice. Once that wait exceeds
+ * {@code ksef.submission.latency.sla.seconds}, or more than {@code ksef.submission.batch.queue.depth} invoices are
+ * queued online, new invoices are collected into a batch instead. A batch is sent when it reaches
+ * {@code ksef.submission.batch.max.invoices} or {@code ksef.submission.batch.max.wait.seconds} after its first
+ * invoice, whichever comes first, and routing returns to online once the backlog has cleared.
+ * </p>
+ */
+@Service
+public class InvoiceSubmissionEngine {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceSubmissionEngine.class);
+
+    // weight of the newest online latency sample in the moving average
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    public enum Route {
+        ONLINE, BATCH
+    }
+
+    /**
+     * Where an invoice was sent. Batch invoices get their invoice reference numbers only once KSeF has processed the
+     * package, so {@code invoiceReferenceNumber} is {@code null} for them.
+     */
+    public record Submission(Route route, String sessionReferenceNumber, String invoiceReferenceNumber) {
+    }
+
+    private record PendingInvoice(byte[] invoiceXml, CompletableFuture<Submission> result) {
+    }
+
+    private static final class PendingBatch {
+        final SessionKey key;
+        final List<PendingInvoice> invoices = new ArrayList<>();
+        volatile String accessToken;
+        // guarded by the lane
+        boolean sealed;
+
+        PendingBatch(SessionKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Routing state of one context and form code.
+     */
+    private static final class Lane {
+        final AtomicInteger onlineQueued = new AtomicInteger();
+        PendingBatch collecting;
+    }
+
+    private final OnlineSessionPool sessionPool;
+    private final InvoiceService invoiceService;
+    private final OnlineSessionService onlineSessionService;
+    private final int batchQueueDepth;
+    private final Duration latencySla;
+    private final int batchMaxInvoices;
+    private final Duration batchMaxWait;
+    private final int onlineConcurrency;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-submission-", 1).factory());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("ksef-submission-timer").daemon(true).factory());
+
+    private final Map<SessionKey, Lane> lanes = new ConcurrentHashMap<>();
+    private final List<CompletableFuture<?>> batchesInFlight = new ArrayList<>();
+    private volatile double onlineLatencyMillis;
+
+    public InvoiceSubmissionEngine(OnlineSessionPool sessionPool, InvoiceService invoiceService,
+                                   OnlineSessionService onlineSessionService, ConfigurationProps config) {
+        this.sessionPool = sessionPool;
+        this.invoiceService = invoiceService;
+        this.onlineSessionService = onlineSessionService;
+        this.batchQueueDepth = config.getSubmissionBatchQueueDepth();
+        this.latencySla = config.getSubmissionLatencySla();
+        this.batchMaxInvoices = config.getSubmissionBatchMaxInvoices();
+        this.batchMaxWait = config.getSubmissionBatchMaxWait();
+        this.onlineConcurrency = config.getSessionPoolSize() * config.getSessionPoolMaxInFlight();
+    }
+
+    /**
+     * Submits every invoice of the stream in encounter order.
+     */
+    public List<CompletableFuture<Submission>> submitAll(SessionKey key, Stream<byte[]> invoices, String accessToken) {
+        return invoices.map(invoiceXml -> submit(key, invoiceXml, accessToken)).toList();
+    }
+
+    /**
+     * Routes one invoice to an online or batch session of the key.
+     *
+     * @param accessToken access token of the key's context
+     * @return a future completed when KSeF has accepted the invoice or the batch package carrying it
+     */
+    public CompletableFuture<Submission> submit(SessionKey key, byte[] invoiceXml, String accessToken) {
+        Lane lane = lanes.computeIfAbsent(key, k -> new Lane());
+        PendingBatch full = null;
+        PendingInvoice batched = null;
+        synchronized (lane) {
+            if (lane.collecting != null || shouldBatch(lane)) {
+                if (lane.collecting == null) {
+                    lane.collecting = startBatch(lane, key);
+                }
+                PendingBatch batch = lane.collecting;
+                batch.accessToken = accessToken;
+                batched = new PendingInvoice(invoiceXml, new CompletableFuture<>());
+                batch.invoices.add(batched);
+                if (batch.invoices.size() >= batchMaxInvoices) {
+                    full = seal(lane, batch);
+                }
+            }
+        }
+        if (batched != null) {
+            if (full != null) {
+                send(full);
+            }
+            return batched.result();
+        }
+        return sendOnline(lane, key, invoiceXml, accessToken);
+    }
+
+    /**
+     * Sends every collecting batch, then drains the online session pool. Completes once all batches are uploaded and
+     * closed and all pooled online sessions are closed with their UPO.
+     */
+    public CompletableFuture<Void> drain() {
+        for (Lane lane : lanes.values()) {
+            PendingBatch batch;
+            synchronized (lane) {
+                batch = lane.collecting == null ? null : seal(lane, lane.collecting);
+            }
+            if (batch != null) {
+                send(batch);
+            }
+        }
+
+        List<CompletableFuture<?>> pending;
+        synchronized (batchesInFlight) {
+            pending = List.copyOf(batchesInFlight);
+            batchesInFlight.clear();
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+                .handle((done, failure) -> null)
+                .thenCompose(done -> sessionPool.drain())
+                .<Void>thenApply(closed -> null);
+    }
+
+    private boolean shouldBatch(Lane lane) {
+        int queued = lane.onlineQueued.get();
+        // with nothing queued an invoice always goes online, which also keeps the latency estimate current
+        if (queued == 0) {
+            return false;
+        }
+        return queued >= batchQueueDepth || expectedOnlineWait(queued).compareTo(latencySla) > 0;
+    }
+
+    /**
+     * Expected time for a new online invoice to be accepted behind {@code queued} others, from the observed latency.
+     */
+    private Duration expectedOnlineWait(int queued) {
+        double rounds = Math.ceil((queued + 1) / (double) onlineConcurrency);
+        return Duration.ofMillis((long) (rounds * onlineLatencyMillis));
+    }
+
+    private PendingBatch startBatch(Lane lane, SessionKey key) {
+        PendingBatch batch = new PendingBatch(key);
+        log.info("Online backlog for {} is {} invoices, collecting a batch", key, lane.onlineQueued.get());
+        timer.schedule(() -> {
+            PendingBatch due;
+            synchronized (lane) {
+                due = batch.sealed ? null : seal(lane, batch);
+            }
+            if (due != null) {
+                send(due);
+            }
+        }, batchMaxWait.toMillis(), TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    private PendingBatch seal(Lane lane, PendingBatch batch) {
+        batch.sealed = true;
+        if (lane.collecting == batch) {
+            lane.collecting = null;
+        }
+        return batch;
+    }
+
+    private CompletableFuture<Submission> sendOnline(Lane lane, SessionKey key, byte[] invoiceXml, String accessToken) {
+        lane.onlineQueued.incrementAndGet();
+        long started = System.nanoTime();
+        return sessionPool.send(key, invoiceXml, accessToken)
+                .whenComplete((sent, failure) -> {
+                    lane.onlineQueued.decrementAndGet();
+                    if (failure == null) {
+                        recordOnlineLatency(System.nanoTime() - started);
+                    }
+                })
+                .thenApply(sent -> new Submission(Route.ONLINE, sent.sessionReferenceNumber(), sent.invoiceReferenceNumber()));
+    }
+
+    private void recordOnlineLatency(long nanos) {
+        double millis = nanos / 1_000_000.0;
+        double current = onlineLatencyMillis;
+        // racy updates only lose samples, which the average tolerates
+        onlineLatencyMillis = current == 0 ? millis : current + LATENCY_SMOOTHING * (millis - current);
+    }
+
+    private void send(PendingBatch batch) {
+        CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            List<byte[]> invoices = batch.invoices.stream().map(PendingInvoice::invoiceXml).toList();
+            try {
+                String referenceNumber = invoiceService.sendInvoicesBatchSession(invoices, batch.key.systemCode(),
+                        batch.key.schemaVersion(), batch.key.value(), batch.accessToken);
+                onlineSessionService.closeBatchSession(referenceNumber, batch.accessToken);
+                log.info("Sent batch session {} with {} invoices for {}", referenceNumber, invoices.size(), batch.key);
+                Submission submission = new Submission(Route.BATCH, referenceNumber, null);
+                batch.invoices.forEach(invoice -> invoice.result().complete(submission));
+            } catch (Exception e) {
+                batch.invoices.forEach(invoice -> invoice.result().completeExceptionally(e));
+            }
+        }, executor);
+        synchronized (batchesInFlight) {
+            batchesInFlight.removeIf(CompletableFuture::isDone);
+            batchesInFlight.add(sent);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.bsg6.service.upo;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.rest.KsefRestClient;
+import com.bsg6.service.session.OnlineSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.SessionInvoiceStatusResponse;
+import pl.akmf.ksef.sdk.client.model.session.UpoPageResponse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk archive of invoice and session UPOs.
+ * <p>
+ * Documents are streamed from KSeF straight into gzip files under {@code ksef.upo.archive.dir}, named by the SHA-256
+ * of their content ({@code objects/ab/abcdef....xml.gz}), so identical documents are stored once. An append-only
+ * {@code index.tsv} maps each invoice UPO by KSeF number, and each session UPO by
+ * {@code session/<session reference>/<UPO reference>}, to its content hash. Documents already in the index are never
+ * downloaded again. {@link #archiveSession} downloads all UPOs of a session with at most
+ * {@code ksef.upo.archive.max.in.flight} downloads running at a time.
+ * </p>
+ */
+@Service
+public class UpoArchive {
+    private static final Logger log = LoggerFactory.getLogger(UpoArchive.class);
+
+    private static final String INDEX_FILE = "index.tsv";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String TEMP_DIR = "tmp";
+
+    /**
+     * An archived document; {@code downloaded} is {@code false} if it was already in the archive.
+     */
+    public record ArchivedUpo(String key, String sha256, Path path, boolean downloaded) {
+    }
+
+    private final KsefRestClient restClient;
+    private final OnlineSessionService onlineSessionService;
+    private final Path root;
+    private final int maxInFlight;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ksef-upo-archive-", 1).factory());
+
+    private final Map<String, String> index = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<ArchivedUpo>> inFlight = new ConcurrentHashMap<>();
+    private BufferedWriter indexWriter;
+
+    public UpoArchive(KsefRestClient restClient, OnlineSessionService onlineSessionService, ConfigurationProps config) {
+        this.restClient = restClient;
+        this.onlineSessionService = onlineSessionService;
+        this.root = config.getUpoArchiveDir();
+        this.maxInFlight = config.getUpoArchiveMaxInFlight();
+    }
+
+    /**
+     * Archives the UPO of every invoice of the session that has a KSeF number, and every session UPO page.
+     *
+     * @return a future completed once all documents are archived, or failed with the first download error
+     */
+    public CompletableFuture<List<ArchivedUpo>> archiveSession(String sessionReferenceNumber, String accessToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            Semaphore permits = new Semaphore(maxInFlight);
+            List<CompletableFuture<ArchivedUpo>> archived = new ArrayList<>();
+            try {
+                for (UpoPageResponse page : onlineSessionService.getSessionUpoPages(sessionReferenceNumber, accessToken)) {
+                    archived.add(submit(permits, () -> archiveSessionUpo(sessionReferenceNumber, page.getReferenceNumber(), accessToken)));
+                }
+                try (Stream<SessionInvoiceStatusResponse> invoices =
+                             onlineSessionService.streamSessionInvoices(sessionReferenceNumber, accessToken)) {
+                    invoices.map(SessionInvoiceStatusResponse::getKsefNumber)
+                            .filter(ksefNumber -> ksefNumber != null)
+                            .forEach(ksefNumber -> archived.add(submit(permits,
+                                    () -> archiveInvoiceUpo(sessionReferenceNumber, ksefNumber, accessToken))));
+                }
+            } catch (ApiException e) {
+                throw new CompletionException(e);
+            }
+            return archived.stream().map(CompletableFuture::join).toList();
+        }, executor);
+    }
+
+    /**
+     * Archives the UPO of one invoice unless it is already archived.
+     */
+    public ArchivedUpo archiveInvoiceUpo(String sessionReferenceNumber, String ksefNumber, String accessToken)
+            throws ApiException, IOException {
+        return archive(ksefNumber,
+                "/api/v2/sessions/" + sessionReferenceNumber + "/invoices/ksef/" + ksefNumber + "/upo", accessToken);
+    }
+
+    /**
+     * Archives one session UPO page unless it is already archived.
+     */
+    public ArchivedUpo archiveSessionUpo(String sessionReferenceNumber, String upoReferenceNumber, String accessToken)
+            throws ApiException, IOException {
+        return archive(sessionKey(sessionReferenceNumber, upoReferenceNumber),
+                "/api/v2/sessions/" + sessionReferenceNumber + "/upo/" + upoReferenceNumber, accessToken);
+    }
+
+    /**
+     * Opens the archived UPO of an invoice, decompressed, if there is one. The caller must close the stream.
+     */
+    public Optional<InputStream> openInvoiceUpo(String ksefNumber) throws IOException {
+        return open(ksefNumber);
+    }
+
+    public Optional<InputStream> openSessionUpo(String sessionReferenceNumber, String upoReferenceNumber) throws IOException {
+        return open(sessionKey(sessionReferenceNumber, upoReferenceNumber));
+    }
+
+    @FunctionalInterface
+    private interface Download {
+        ArchivedUpo run() throws ApiException, IOException;
+    }
+
+    private CompletableFuture<ArchivedUpo> submit(Semaphore permits, Download download) {
+        // blocks the producer rather than queueing every document of a large session
+        permits.acquireUninterruptibly();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return download.run();
+            } catch (ApiException e) {
+                throw new CompletionException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    private ArchivedUpo archive(String key, String path, String accessToken) throws ApiException, IOException {
+        ensureLoaded();
+        String known = index.get(key);
+        if (known != null) {
+            return new ArchivedUpo(key, known, objectPath(known), false);
+        }
+
+        CompletableFuture<ArchivedUpo> download = new CompletableFuture<>();
+        CompletableFuture<ArchivedUpo> running = inFlight.putIfAbsent(key, download);
+        if (running != null) {
+            return awaitOther(running);
+        }
+        try {
+            ArchivedUpo archived = store(key, path, accessToken);
+            download.complete(archived);
+            return archived;
+        } catch (ApiException | IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, download);
+        }
+    }
+
+    private ArchivedUpo store(String key, String path, String accessToken) throws ApiException, IOException {
+        Path temp = root.resolve(TEMP_DIR).resolve(UUID.randomUUID() + ".part");
+        MessageDigest digest = sha256();
+        try {
+            try (InputStream body = new DigestInputStream(restClient.download(path, accessToken), digest);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                body.transferTo(out);
+            }
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            Path target = objectPath(sha256);
+            if (Files.exists(target)) {
+                Files.delete(temp);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            appendToIndex(key, sha256);
+            log.debug("Archived UPO {} as {}", key, sha256);
+            return new ArchivedUpo(key, sha256, target, true);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Optional<InputStream> open(String key) throws IOException {
+        ensureLoaded();
+        String sha256 = index.get(key);
+        if (sha256 == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new GZIPInputStream(Files.newInputStream(objectPath(sha256))));
+    }
+
+    private synchronized void ensureLoaded() throws IOException {
+        if (indexWriter != null) {
+            return;
+        }
+        Files.createDirectories(root.resolve(OBJECTS_DIR));
+        Files.createDirectories(root.resolve(TEMP_DIR));
+        Path indexFile = root.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try (Stream<String> lines = Files.lines(indexFile, StandardCharsets.UTF_8)) {
+                lines.map(line -> line.split("\t"))
+                        .filter(fields -> fields.length == 2 && Files.exists(objectPath(fields[1])))
+                        .forEach(fields -> index.put(fields[0], fields[1]));
+            }
+            log.info("Loaded {} archived UPOs from {}", index.size(), root);
+        }
+        indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private synchronized void appendToIndex(String key, String sha256) throws IOException {
+        // the object is in place before its index line, so a crash leaves at most an unreferenced object
+        indexWriter.write(key + "\t" + sha256 + "\n");
+        indexWriter.flush();
+        index.put(key, sha256);
+    }
+
+    private Path objectPath(String sha256) {
+        return root.resolve(OBJECTS_DIR).resolve(sha256.substring(0, 2)).resolve(sha256 + ".xml.gz");
+    }
+
+    private static String sessionKey(String sessionReferenceNumber, String upoReferenceNumber) {
+        return "session/" + sessionReferenceNumber + "/" + upoReferenceNumber;
+    }
+
+    private static ArchivedUpo awaitOther(CompletableFuture<ArchivedUpo> running) throws ApiException, IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            switch (e.getCause()) {
+                case ApiException apiException -> throw apiException;
+                case IOException ioException -> throw ioException;
+                case RuntimeException runtimeException -> throw runtimeException;
+                default -> throw e;
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.bsg6.service.validation;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that net plus VAT equals gross while the schema validator pulls events through it.
+ * <p>
+ * Two rules are checked, in constant memory however many lines the invoice has:
+ * <ul>
+ *     <li>the net sums {@code P_13_*} plus the VAT sums {@code P_14_*} of {@code Fa} equal the gross total
+ *     {@code P_15} (the {@code P_14_*W} amounts are VAT converted to PLN and are not added);</li>
+ *     <li>in each {@code FaWiersz} that states all three, net {@code P_11} plus VAT {@code P_11Vat} equals gross
+ *     {@code P_11A}.</li>
+ * </ul>
+ * Amounts are compared exactly, so {@code 100.99 + 23.23 = 124.21} is an error. Values that are not decimals are left
+ * to the schema.
+ * </p>
+ */
+final class AmountRulesReader extends StreamReaderDelegate {
+    private static final Pattern NET_SUM = Pattern.compile("P_13_\\d+(_\\d+)?");
+    private static final Pattern VAT_SUM = Pattern.compile("P_14_\\d+");
+
+    private final List<ValidationResult.Error> errors;
+    private final StringBuilder text = new StringBuilder();
+    private int depth;
+    private int invoiceDepth = -1;
+    private boolean inLine;
+    private boolean capturing;
+
+    private BigDecimal sums = BigDecimal.ZERO;
+    private BigDecimal total;
+    private Location totalLocation;
+
+    private BigDecimal lineNet;
+    private BigDecimal lineVat;
+    private BigDecimal lineGross;
+
+    AmountRulesReader(XMLStreamReader reader, List<ValidationResult.Error> errors) {
+        super(reader);
+        this.errors = errors;
+        if (reader.getEventType() == START_ELEMENT) {
+            // positioned on the root element, which will not be seen through next()
+            depth = 1;
+        }
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        int event = super.next();
+        switch (event) {
+            case START_ELEMENT -> started(getLocalName());
+            case CHARACTERS, CDATA -> {
+                if (capturing) {
+                    text.append(getTextCharacters(), getTextStart(), getTextLength());
+                }
+            }
+            case END_ELEMENT -> ended(getLocalName());
+            case END_DOCUMENT -> finished();
+            default -> {
+            }
+        }
+        return event;
+    }
+
+    private void started(String name) {
+        depth++;
+        if (invoiceDepth == -1 && depth == 2 && "Fa".equals(name)) {
+            invoiceDepth = depth;
+        } else if (depth == invoiceDepth + 1 && "FaWiersz".equals(name)) {
+            inLine = true;
+            lineNet = null;
+            lineVat = null;
+            lineGross = null;
+        }
+        capturing = isTotal(name) || inLine && isLineAmount(name);
+        text.setLength(0);
+    }
+
+    private void ended(String name) {
+        if (capturing) {
+            capturing = false;
+            BigDecimal amount = decimal(text);
+            if (amount != null) {
+                if (inLine) {
+                    switch (name) {
+                        case "P_11" -> lineNet = amount;
+                        case "P_11Vat" -> lineVat = amount;
+                        default -> lineGross = amount;
+                    }
+                } else if ("P_15".equals(name)) {
+                    total = amount;
+                    totalLocation = getLocation();
+                } else {
+                    sums = sums.add(amount);
+                }
+            }
+        } else if (inLine && depth == invoiceDepth + 1) {
+            inLine = false;
+            if (lineNet != null && lineVat != null && lineGross != null
+                    && lineNet.add(lineVat).compareTo(lineGross) != 0) {
+                error(getLocation(), "FaWiersz: P_11 " + lineNet + " + P_11Vat " + lineVat + " = "
+                        + lineNet.add(lineVat) + ", but P_11A is " + lineGross);
+            }
+        }
+        depth--;
+    }
+
+    private void finished() {
+        if (total != null && sums.compareTo(total) != 0) {
+            error(totalLocation, "Fa: P_13_* + P_14_* = " + sums + ", but P_15 is " + total);
+        }
+    }
+
+    private boolean isTotal(String name) {
+        return depth == invoiceDepth + 1
+                && ("P_15".equals(name) || NET_SUM.matcher(name).matches() || VAT_SUM.matcher(name).matches());
+    }
+
+    private boolean isLineAmount(String name) {
+        return depth == invoiceDepth + 2 && ("P_11".equals(name) || "P_11Vat".equals(name) || "P_11A".equals(name));
+    }
+
+    private void error(Location location, String message) {
+        errors.add(new ValidationResult.Error(
+                location == null ? -1 : location.getLineNumber(),
+                location == null ? -1 : location.getColumnNumber(),
+                message));
+    }
+
+    private static BigDecimal decimal(CharSequence value) {
+        try {
+            return new BigDecimal(value.toString().strip());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
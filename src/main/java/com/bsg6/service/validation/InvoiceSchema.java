@@ -0,0 +1,37 @@
+package com.bsg6.service.validation;
+
+/**
+ * Invoice schemas bundled in {@code src/main/resources}, with the target namespace that identifies their documents.
+ */
+public enum InvoiceSchema {
+    FA_2("schemat_FA(2)_v1-0E.xsd", "http://crd.gov.pl/wzor/2023/06/29/12648/"),
+    FA_3("schemat_FA(3)_v1-0E.xsd", "http://crd.gov.pl/wzor/2025/06/25/13775/");
+
+    private final String resource;
+    private final String namespace;
+
+    InvoiceSchema(String resource, String namespace) {
+        this.resource = resource;
+        this.namespace = namespace;
+    }
+
+    public String resource() {
+        return resource;
+    }
+
+    public String namespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the schema of documents in the namespace, or {@code null} if no bundled schema has it
+     */
+    public static InvoiceSchema forNamespace(String namespace) {
+        for (InvoiceSchema schema : values()) {
+            if (schema.namespace.equals(namespace)) {
+                return schema;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,321 @@
+package com.bsg6.service.validation;
+
+import com.bsg6.config.ConfigurationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Validates invoice XML against the bundled FA(2) and FA(3) schemas before it is encrypted and sent.
+ * <p>
+ * Documents are pulled through one StAX reader that picks the schema from the root element, feeds the schema
+ * validator and checks the amounts ({@link AmountRulesReader}) on the way, so even invoices with thousands of
+ * {@code FaWiersz} lines are validated in a single pass without building a tree.
+ * </p>
+ * <p>
+ * Each schema is compiled once, on first use, into a thread-safe {@link Schema}. {@link Validator}s are not
+ * thread-safe, so every schema keeps a pool of up to {@code ksef.validation.validator.pool.size} idle validators that
+ * are reused. Validation collects up to {@code ksef.validation.max.errors} violations with their position
+ * instead of stopping at the first one. Imported type definitions are resolved by {@link SchemaImportResolver}.
+ * </p>
+ */
+@Service
+public class InvoiceSchemaValidator {
+    private static final Logger log = LoggerFactory.getLogger(InvoiceSchemaValidator.class);
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+    // FA(3) allows up to 50 000 DaneFaKorygowanej inside an optional sequence; the JDK validator expands such a bound
+    // into one automaton state per occurrence and runs out of memory, so it is compiled as unbounded and the limit is
+    // left to KSeF
+    private static final String CORRECTED_INVOICES_BOUND = "maxOccurs=\"50000\"";
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final SchemaImportResolver importResolver;
+    private final boolean enabled;
+    private final int poolSize;
+    private final int maxErrors;
+    // guarded by itself; compiled schemas are never replaced
+    private final Map<InvoiceSchema, Schema> schemas = new EnumMap<>(InvoiceSchema.class);
+    private final Map<InvoiceSchema, BlockingQueue<Validator>> pools = new EnumMap<>(InvoiceSchema.class);
+
+    public InvoiceSchemaValidator(ConfigurationProps config) {
+        this.importResolver = new SchemaImportResolver(config.getValidationSchemaDir(), config.isValidationSchemaDownload());
+        this.enabled = config.isValidationEnabled();
+        this.poolSize = config.getValidationValidatorPoolSize();
+        this.maxErrors = config.getValidationMaxErrors();
+        for (InvoiceSchema schema : InvoiceSchema.values()) {
+            pools.put(schema, new ArrayBlockingQueue<>(poolSize));
+        }
+    }
+
+    /**
+     * {@code true} if invoices should be validated before sending ({@code ksef.validation.enabled}).
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Validates a document against the schema named by its root element namespace.
+     */
+    public ValidationResult validate(byte[] invoiceXml) {
+        return validate(ByteBuffer.wrap(invoiceXml));
+    }
+
+    /**
+     * Validates the remaining bytes of the buffer without changing its position.
+     */
+    public ValidationResult validate(ByteBuffer invoiceXml) {
+        try {
+            return validate(new ByteBufferInputStream(invoiceXml.duplicate()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Validates a document read from the stream, e.g. straight from a file or a ZIP entry, in a single pass and in
+     * constant memory. The stream is read up to the end of the document and not closed.
+     */
+    public ValidationResult validate(InputStream invoiceXml) throws IOException {
+        List<ValidationResult.Error> errors = new ArrayList<>();
+        XMLStreamReader reader = null;
+        try {
+            // the parser closes its input at the end of the document, which would end a ZIP entry's whole package
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new FilterInputStream(invoiceXml) {
+                @Override
+                public void close() {
+                }
+            });
+            // the root element picks the schema; the validator continues from it on the same reader
+            reader.nextTag();
+            InvoiceSchema schema = InvoiceSchema.forNamespace(reader.getNamespaceURI());
+            if (schema == null) {
+                errors.add(new ValidationResult.Error(-1, -1, "Root element is not in the namespace of a bundled invoice schema"));
+                return new ValidationResult(null, errors);
+            }
+            validate(schema, new AmountRulesReader(reader, errors), errors);
+            return new ValidationResult(schema, errors);
+        } catch (XMLStreamException e) {
+            errors.add(error(e));
+            return new ValidationResult(null, errors);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Could not close XML reader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Validates every entry of a batch package ZIP as it is read, without extracting it.
+     *
+     * @return results keyed by entry name, in package order
+     */
+    public Map<String, ValidationResult> validateEntries(ZipInputStream batchPackage) throws IOException {
+        Map<String, ValidationResult> results = new LinkedHashMap<>();
+        for (ZipEntry entry = batchPackage.getNextEntry(); entry != null; entry = batchPackage.getNextEntry()) {
+            if (!entry.isDirectory()) {
+                results.put(entry.getName(), validate(batchPackage));
+            }
+        }
+        return results;
+    }
+
+    private void validate(InvoiceSchema schema, XMLStreamReader reader, List<ValidationResult.Error> errors)
+            throws IOException {
+        BlockingQueue<Validator> pool = pools.get(schema);
+        Validator validator = pool.poll();
+        if (validator == null) {
+            validator = newValidator(schema);
+        }
+        try {
+            validator.setErrorHandler(new Collector(errors, maxErrors));
+            validator.validate(new StAXSource(reader));
+        } catch (SAXParseException e) {
+            // fatal error or the error limit; already collected
+        } catch (SAXException e) {
+            // malformed XML surfaces from the reader wrapped by the StAX to SAX bridge
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof XMLStreamException)) {
+                cause = cause.getCause();
+            }
+            errors.add(cause == null ? new ValidationResult.Error(-1, -1, e.getMessage()) : error((XMLStreamException) cause));
+        } finally {
+            // validate() starts from a clean state; Validator.reset() would also drop the security settings
+            pool.offer(validator);
+        }
+    }
+
+    /**
+     * Throws {@link InvoiceValidationException} if validation is enabled and the invoice is not valid.
+     */
+    public void requireValid(ByteBuffer invoiceXml) {
+        if (!enabled) {
+            return;
+        }
+        ValidationResult result = validate(invoiceXml);
+        if (!result.valid()) {
+            throw new InvoiceValidationException("Invoice does not conform to its schema", result);
+        }
+    }
+
+    public void requireValid(byte[] invoiceXml) {
+        requireValid(ByteBuffer.wrap(invoiceXml));
+    }
+
+    private Validator newValidator(InvoiceSchema schema) {
+        Validator validator = compiled(schema).newValidator();
+        try {
+            validator.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            // documents are self-contained; nothing they reference is fetched
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        } catch (SAXException e) {
+            throw new IllegalStateException(e);
+        }
+        return validator;
+    }
+
+    private Schema compiled(InvoiceSchema schema) {
+        synchronized (schemas) {
+            Schema compiled = schemas.get(schema);
+            if (compiled == null) {
+                compiled = compile(schema);
+                schemas.put(schema, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    private Schema compile(InvoiceSchema schema) {
+        long started = System.nanoTime();
+        URL resource = InvoiceSchemaValidator.class.getClassLoader().getResource(schema.resource());
+        if (resource == null) {
+            throw new IllegalStateException(schema.resource() + " not found on the classpath");
+        }
+        try {
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            // the schemas allow up to 10 000 invoice lines, more than secure processing lets a content model expand
+            // to; they are trusted, and external access is still restricted below
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            // remote imports go through the resolver, which hands the parser a local stream
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file,jar");
+            factory.setResourceResolver(importResolver);
+            String xsd;
+            try (InputStream in = resource.openStream()) {
+                xsd = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Schema compiled = factory.newSchema(new StreamSource(
+                    new StringReader(xsd.replace(CORRECTED_INVOICES_BOUND, "maxOccurs=\"unbounded\"")),
+                    resource.toExternalForm()));
+            log.info("Compiled invoice schema {} in {} ms", schema, (System.nanoTime() - started) / 1_000_000);
+            return compiled;
+        } catch (SAXException | IOException e) {
+            throw new IllegalStateException("Invoice schema " + schema.resource() + " does not compile", e);
+        }
+    }
+
+    private static ValidationResult.Error error(XMLStreamException e) {
+        return new ValidationResult.Error(
+                e.getLocation() == null ? -1 : e.getLocation().getLineNumber(),
+                e.getLocation() == null ? -1 : e.getLocation().getColumnNumber(),
+                e.getMessage());
+    }
+
+    /**
+     * Collects errors up to the limit, then stops validation.
+     */
+    private static final class Collector implements ErrorHandler {
+        private final List<ValidationResult.Error> errors;
+        private final int limit;
+
+        Collector(List<ValidationResult.Error> errors, int limit) {
+            this.errors = errors;
+            this.limit = limit;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) {
+            // warnings do not make a document invalid
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            add(exception.getLineNumber(), exception.getColumnNumber(), exception.getMessage());
+            if (errors.size() >= limit) {
+                throw exception;
+            }
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            add(exception.getLineNumber(), exception.getColumnNumber(), exception.getMessage());
+            throw exception;
+        }
+
+        private void add(int line, int column, String message) {
+            errors.add(new ValidationResult.Error(line, column, message));
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, read);
+            return read;
+        }
+    }
+}
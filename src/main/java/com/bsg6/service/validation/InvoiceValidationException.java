@@ -0,0 +1,18 @@
+package com.bsg6.service.validation;
+
+/**
+ * Thrown instead of sending an invoice that does not conform to its schema.
+ */
+public class InvoiceValidationException extends IllegalArgumentException {
+
+    private final transient ValidationResult result;
+
+    public InvoiceValidationException(String message, ValidationResult result) {
+        super(message + ": " + result.errors());
+        this.result = result;
+    }
+
+    public ValidationResult getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bsg6.service.validation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Resolves the schemas imported by the invoice schemas, which refer to the Ministry of Finance type definitions on
+ * {@code crd.gov.pl} by absolute URL.
+ * <p>
+ * A schema at {@code http://crd.gov.pl/a/b.xsd} is looked up as the classpath resource {@code xsd/crd.gov.pl/a/b.xsd},
+ * where the ETD definitions imported by FA(2) and FA(3) are bundled, then in the local schema directory as
+ * {@code crd.gov.pl/a/b.xsd}. If neither has it and downloading is enabled, it is fetched once and saved to the
+ * directory, so later compilations work offline. Only {@code crd.gov.pl} is contacted.
+ * </p>
+ */
+final class SchemaImportResolver implements LSResourceResolver {
+    private static final Logger log = LoggerFactory.getLogger(SchemaImportResolver.class);
+
+    private static final String TRUSTED_HOST = "crd.gov.pl";
+    private static final Duration DOWNLOAD_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Path schemaDir;
+    private final boolean download;
+    private final DOMImplementationLS domImplementation;
+
+    SchemaImportResolver(Path schemaDir, boolean download) {
+        this.schemaDir = schemaDir;
+        this.download = download;
+        try {
+            this.domImplementation = (DOMImplementationLS) DOMImplementationRegistry.newInstance().getDOMImplementation("LS");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+        if (systemId == null) {
+            return null;
+        }
+        URI location = baseURI == null ? URI.create(systemId) : URI.create(baseURI).resolve(systemId);
+        if (!TRUSTED_HOST.equals(location.getHost())) {
+            // bundled schemas and anything else on the classpath or disk resolve normally
+            return null;
+        }
+
+        LSInput input = domImplementation.createLSInput();
+        input.setSystemId(location.toString());
+        input.setPublicId(publicId);
+        input.setByteStream(open(location));
+        return input;
+    }
+
+    private InputStream open(URI location) {
+        String relative = location.getHost() + location.getPath();
+        InputStream bundled = SchemaImportResolver.class.getClassLoader().getResourceAsStream("xsd/" + relative);
+        if (bundled != null) {
+            return bundled;
+        }
+        try {
+            Path local = schemaDir.resolve(relative).normalize();
+            if (!local.startsWith(schemaDir.normalize())) {
+                throw new IllegalArgumentException("Schema location escapes the schema directory: " + location);
+            }
+            if (!Files.exists(local)) {
+                if (!download) {
+                    throw new IllegalStateException("Schema " + location + " is not in " + schemaDir
+                            + " and ksef.validation.schema.download is off");
+                }
+                fetch(location, local);
+            }
+            return new ByteArrayInputStream(Files.readAllBytes(local));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load schema " + location, e);
+        }
+    }
+
+    private static void fetch(URI location, Path target) throws IOException {
+        log.info("Downloading schema {} to {}", location, target);
+        HttpResponse<byte[]> response;
+        try (HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(DOWNLOAD_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build()) {
+            response = client.send(HttpRequest.newBuilder(location).timeout(DOWNLOAD_TIMEOUT).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + location);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Downloading " + location + " failed with HTTP status " + response.statusCode());
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.write(temp, response.body());
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
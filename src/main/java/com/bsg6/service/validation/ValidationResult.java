@@ -0,0 +1,28 @@
+package com.bsg6.service.validation;
+
+import java.util.List;
+
+/**
+ * Outcome of validating one invoice; {@code schema} is {@code null} if the document matched no bundled schema.
+ */
+public record ValidationResult(InvoiceSchema schema, List<Error> errors) {
+
+    /**
+     * A schema or amount violation at a position of the document; line and column are -1 when unknown.
+     */
+    public record Error(int line, int column, String message) {
+
+        @Override
+        public String toString() {
+            return line + ":" + column + " " + message;
+        }
+    }
+
+    public ValidationResult {
+        errors = List.copyOf(errors);
+    }
+
+    public boolean valid() {
+        return errors.isEmpty();
+    }
+}
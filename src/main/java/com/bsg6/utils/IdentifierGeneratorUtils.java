@@ -77,6 +77,27 @@ public class IdentifierGeneratorUtils {
         return prefix + rest;
     }
 
+    // Sprawdza, czy NIP ma 10 cyfr i poprawną cyfrę kontrolną:
+    // suma cyfr 1-9 z wagami 6, 5, 7, 2, 3, 4, 5, 6, 7 modulo 11 równa ostatniej cyfrze (reszta 10 jest niedozwolona).
+    public static boolean isValidNip(String nip) {
+        if (nip == null || nip.length() != 10) {
+            return false;
+        }
+        int[] weights = {6, 5, 7, 2, 3, 4, 5, 6, 7};
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            char c = nip.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            if (i < 9) {
+                sum += (c - '0') * weights[i];
+            }
+        }
+        int control = sum % 11;
+        return control != 10 && control == nip.charAt(9) - '0';
+    }
+
     // --- PESEL ---
     // Generuje losowy poprawny PESEL (11 cyfr, z częścią daty w formacie RRMMDD).
     // Wyrażenie regularne używane do walidacji:
@@ -0,0 +1,61 @@
+package com.bsg6.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+public class ParallelUtils {
+
+    /**
+     * Computes {@code task} for indexes {@code 0..count-1} on up to {@code parallelism} platform threads named
+     * {@code threadName} plus a number. The indexes are cut into one slice of consecutive indexes per thread; with a
+     * single slice everything runs on the calling thread.
+     *
+     * @return the results in index order
+     * @throws InterruptedException if interrupted while waiting for the slices; the pool is shut down
+     */
+    public static <R> List<R> mapInOrder(int count, int parallelism, String threadName, IntFunction<R> task)
+            throws InterruptedException {
+        int slices = Math.min(parallelism, count);
+        if (slices <= 1) {
+            return computeSlice(0, count, task);
+        }
+
+        int sliceSize = (count + slices - 1) / slices;
+        List<R> results = new ArrayList<>(count);
+        try (ExecutorService executor = Executors.newFixedThreadPool(slices,
+                Thread.ofPlatform().name(threadName, 1).factory())) {
+            List<Future<List<R>>> futures = new ArrayList<>(slices);
+            for (int from = 0; from < count; from += sliceSize) {
+                int sliceFrom = from;
+                int sliceTo = Math.min(from + sliceSize, count);
+                futures.add(executor.submit(() -> computeSlice(sliceFrom, sliceTo, task)));
+            }
+
+            for (Future<List<R>> future : futures) {
+                results.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException("Parallel task failed", e.getCause());
+        }
+        return results;
+    }
+
+    private static <R> List<R> computeSlice(int from, int to, IntFunction<R> task) {
+        List<R> results = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            results.add(task.apply(i));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,129 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.AuthTokensPair;
+import com.bsg6.service.auth.AuthTokenCache;
+import com.bsg6.service.rest.KsefRestClient;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Single-threaded because the tests share the stub server, the cache and the authentication counters.
+ */
+@Test(singleThreaded = true)
+public class AuthTokenCacheTest {
+
+    private final AtomicInteger authentications = new AtomicInteger();
+    private final AtomicInteger refreshes = new AtomicInteger();
+    private HttpServer server;
+    private AuthTokenCache cache;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v2/auth/token/refresh", exchange -> {
+            Assert.assertEquals(exchange.getRequestHeaders().getFirst("Authorization"), "Bearer refresh-token");
+            byte[] body = ("{\"accessToken\":{\"token\":\"refreshed-" + refreshes.incrementAndGet()
+                    + "\",\"validUntil\":\"" + Instant.now().plusSeconds(3600) + "\"}}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        TestProps config = new TestProps("http://localhost:" + server.getAddress().getPort());
+        cache = new AuthTokenCache(new KsefRestClient(HttpClient.newHttpClient(), new ObjectMapper(), config), config);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameContextAuthenticateOnce() throws Exception {
+        AuthTokenCache.Authenticator slowAuthenticator = () -> {
+            authentications.incrementAndGet();
+            LockSupport.parkNanos(Duration.ofMillis(200).toNanos());
+            return new AuthTokensPair(jwt(Instant.now().plusSeconds(3600)), jwt(Instant.now().plusSeconds(7200)));
+        };
+
+        List<Future<AuthTokensPair>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> cache.getTokens("NIP:1111111111", slowAuthenticator)));
+            }
+        }
+
+        AuthTokensPair first = results.getFirst().get();
+        for (Future<AuthTokensPair> result : results) {
+            Assert.assertSame(result.get(), first);
+        }
+        Assert.assertEquals(authentications.get(), 1);
+
+        cache.getTokens("NIP:2222222222", slowAuthenticator);
+        Assert.assertEquals(authentications.get(), 2);
+    }
+
+    @Test
+    public void tokenCloseToExpiryIsRefreshedInBackground() throws Exception {
+        AuthTokensPair initial = new AuthTokensPair(jwt(Instant.now().plusSeconds(30)), "refresh-token");
+        AuthTokenCache.Authenticator authenticator = () -> {
+            authentications.incrementAndGet();
+            return initial;
+        };
+
+        Assert.assertSame(cache.getTokens("NIP:1111111111", authenticator), initial);
+        // still valid, so the caller gets it immediately while the refresh runs
+        Assert.assertSame(cache.getTokens("NIP:1111111111", authenticator), initial);
+
+        await().atMost(5, SECONDS).until(() -> cache.getTokens("NIP:1111111111", authenticator).accessToken().equals("refreshed-1"));
+        Assert.assertEquals(authentications.get(), 1);
+        Assert.assertEquals(refreshes.get(), 1);
+    }
+
+    private static String jwt(Instant expiresAt) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(("{\"exp\":" + expiresAt.getEpochSecond() + "}").getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    private static final class TestProps extends ConfigurationProps {
+        private final String baseUri;
+
+        private TestProps(String baseUri) {
+            this.baseUri = baseUri;
+        }
+
+        @Override
+        public String getBaseUri() {
+            return baseUri;
+        }
+
+        @Override
+        public Duration getAuthTokenRefreshAhead() {
+            return Duration.ofSeconds(120);
+        }
+    }
+}
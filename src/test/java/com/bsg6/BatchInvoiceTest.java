@@ -2,6 +2,7 @@ package com.bsg6;
 
 import com.bsg6.model.InvoiceData;
 import jakarta.xml.bind.JAXBException;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.akmf.ksef.sdk.client.model.session.SessionInvoiceStatusResponse;
@@ -33,4 +34,24 @@ public class BatchInvoiceTest extends KsefBaseIntegrationTest {
 
         onlineSessionService.getOnlineSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken);
     }
+
+    @Test
+    void streamingBatchSessionE2EIntegrationTest() throws JAXBException, IOException, ApiException {
+        InvoiceData invoiceTestCase = new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"));
+
+        String accessToken = authService.authWithCustomNipAndRsa(invoiceTestCase.sellerNip()).accessToken();
+
+        String sessionReferenceNumber = invoiceService.openBatchSessionAndStreamInvoices(invoiceTestCase, accessToken, DEFAULT_INVOICES_COUNT);
+
+        onlineSessionService.closeBatchSession(sessionReferenceNumber, accessToken);
+
+        String upoReferenceNumber = onlineSessionService.getBatchSessionStatus(sessionReferenceNumber, accessToken)
+                .getUpo().getPages().getFirst().getReferenceNumber();
+
+        List<SessionInvoiceStatusResponse> documents = invoiceService.getInvoices(sessionReferenceNumber, accessToken);
+
+        Assert.assertEquals(documents.size(), DEFAULT_INVOICES_COUNT);
+
+        onlineSessionService.getOnlineSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken);
+    }
 }
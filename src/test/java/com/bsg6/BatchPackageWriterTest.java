@@ -0,0 +1,124 @@
+package com.bsg6;
+
+import com.bsg6.service.invoice.BatchPackage;
+import com.bsg6.service.invoice.BatchPackageWriter;
+import com.bsg6.service.invoice.BatchPart;
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+import com.bsg6.service.validation.InvoiceValidationException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipInputStream;
+
+public class BatchPackageWriterTest {
+
+    private static final String TEMPLATE_PATH = "/invoice/output/ksef/fa_2/invoice-template-min-fields.xml";
+    private static final int INVOICES_COUNT = 40;
+
+    @Test
+    public void decryptedPartsReassembleIntoDeclaredZip() throws Exception {
+        byte[] cipherKey = new byte[32];
+        byte[] cipherIv = new byte[16];
+        new SecureRandom().nextBytes(cipherKey);
+        new SecureRandom().nextBytes(cipherIv);
+
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+        Map<String, String> values = new HashMap<>(Map.of("seller_nip", "1234563218", "buyer_nip", "8567346215"));
+
+        BatchPackage batchPackage;
+        // Small parts and spill threshold so that parts are cut mid-entry and some end up on disk
+        try (BatchPackageWriter writer = new BatchPackageWriter(cipherKey, cipherIv, 3000, 1500)) {
+            for (int i = 1; i <= INVOICES_COUNT; i++) {
+                values.put("invoice_number", UUID.randomUUID().toString());
+                writer.addInvoice("invoice_" + i + ".xml", template, values);
+            }
+            batchPackage = writer.finish();
+        }
+
+        try (batchPackage) {
+            Assert.assertTrue(batchPackage.parts().size() > 1);
+            Assert.assertTrue(batchPackage.parts().stream().anyMatch(BatchPart::isSpilledToDisk));
+
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            for (BatchPart part : batchPackage.parts()) {
+                byte[] encrypted = part.readAllBytes();
+                Assert.assertEquals(encrypted.length, part.getEncryptedSize());
+                Assert.assertEquals(sha256(encrypted), part.getEncryptedHash());
+
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(cipherIv));
+                zip.write(cipher.doFinal(encrypted));
+            }
+
+            byte[] zipBytes = zip.toByteArray();
+            Assert.assertEquals(zipBytes.length, batchPackage.zipSize());
+            Assert.assertEquals(sha256(zipBytes), batchPackage.zipHash());
+
+            int entries = 0;
+            try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+                while (zipIn.getNextEntry() != null) {
+                    Assert.assertFalse(new String(zipIn.readAllBytes()).contains("#invoice_number#"));
+                    entries++;
+                }
+            }
+            Assert.assertEquals(entries, INVOICES_COUNT);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidInvoiceBeforePackagingIt() throws Exception {
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+        Map<String, String> values = Map.of("seller_nip", "1234563218", "buyer_nip", "8567346215",
+                "invoice_number", UUID.randomUUID().toString(), "invoicing_date", "2025-12-01",
+                "net", "100.00", "vat", "23.00", "gross", "123.00");
+        byte[] invalid = InvoiceSchemaValidatorTest.text("/invoice/output/ksef/fa_2/generated/faktura-100-12-2025.xml")
+                .replace("<NIP>1234563218</NIP>", "<NIP>0234563218</NIP>").getBytes(StandardCharsets.UTF_8);
+
+        try (BatchPackageWriter writer = new BatchPackageWriter(new byte[32], new byte[16], 3000, 1500,
+                InvoiceSchemaValidatorTest.validator(true))) {
+            writer.addInvoice("invoice_1.xml", template, values);
+
+            InvoiceValidationException e = Assert.expectThrows(InvoiceValidationException.class,
+                    () -> writer.addInvoice("invoice_2.xml", invalid));
+            Assert.assertTrue(e.getMessage().startsWith("invoice_2.xml"), e.getMessage());
+
+            try (BatchPackage batchPackage = writer.finish()) {
+                Assert.assertEquals(batchPackage.invoiceCount(), 1);
+            }
+        }
+    }
+
+    @Test
+    public void abandonedPackageIsDiscarded() throws Exception {
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+        Map<String, String> values = Map.of("seller_nip", "1234563218", "buyer_nip", "8567346215",
+                "invoice_number", "FV/1/12/2025");
+
+        BatchPackageWriter writer = new BatchPackageWriter(new byte[32], new byte[16], 3000, 1500);
+        writer.addInvoice("invoice_1.xml", template, values);
+        writer.addInvoice("invoice_2.xml", template, values);
+        // closing mid-package ends the ZIP into the discarded parts
+        writer.close();
+        writer.close();
+
+        Assert.expectThrows(IllegalStateException.class, writer::finish);
+        Assert.expectThrows(IllegalStateException.class, () -> writer.addInvoice("invoice_3.xml", template, values));
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+}
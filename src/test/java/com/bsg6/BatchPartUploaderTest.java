@@ -0,0 +1,186 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.invoice.BatchPackage;
+import com.bsg6.service.invoice.BatchPackageWriter;
+import com.bsg6.service.invoice.BatchPart;
+import com.bsg6.service.invoice.BatchPartUploader;
+import com.bsg6.service.invoice.BatchUploadException;
+import com.bsg6.service.invoice.BatchUploadProgress;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.session.batch.OpenBatchSessionResponse;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-threaded because the tests share the stub upload server and its per-part counters.
+ */
+@Test(singleThreaded = true)
+public class BatchPartUploaderTest {
+
+    private static final int PARTS_COUNT = 4;
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> failuresLeft = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        attempts.clear();
+        failuresLeft.clear();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/upload/", exchange -> {
+            int ordinalNumber = Integer.parseInt(exchange.getRequestURI().getPath().substring("/upload/".length()));
+            exchange.getRequestBody().readAllBytes();
+            attempts.computeIfAbsent(ordinalNumber, k -> new AtomicInteger()).incrementAndGet();
+            int left = failuresLeft.getOrDefault(ordinalNumber, 0);
+            if (left > 0) {
+                failuresLeft.put(ordinalNumber, left - 1);
+            }
+            exchange.sendResponseHeaders(left > 0 ? 503 : 201, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void retriesFailedPartsAndResumesFromUnacknowledgedOnes() throws Exception {
+        BatchPartUploader uploader = new BatchPartUploader(HttpClient.newHttpClient(), objectMapper, new TestProps());
+
+        // part 2 recovers within the retry budget, part 3 does not
+        failuresLeft.put(2, 1);
+        failuresLeft.put(3, 5);
+
+        try (BatchPackage batchPackage = buildPackage()) {
+            Assert.assertEquals(batchPackage.parts().size(), PARTS_COUNT);
+            BatchUploadProgress progress = uploader.start(openBatchSessionResponse());
+
+            BatchUploadException failure = Assert.expectThrows(BatchUploadException.class,
+                    () -> uploader.upload(progress, batchPackage.parts()));
+
+            Assert.assertSame(failure.getProgress(), progress);
+            Assert.assertEquals(progress.pendingOrdinals(), List.of(3));
+            Assert.assertEquals(attempts.get(2).get(), 2);
+            Assert.assertEquals(attempts.get(3).get(), 3);
+
+            failuresLeft.clear();
+            uploader.upload(progress, batchPackage.parts());
+
+            Assert.assertTrue(progress.isComplete());
+            Assert.assertEquals(attempts.get(1).get(), 1);
+            Assert.assertEquals(attempts.get(3).get(), 4);
+        }
+    }
+
+    @Test
+    public void restoresAcknowledgedPartsFromJournal() throws Exception {
+        Path journalDir = Files.createTempDirectory("ksef-batch-journal-");
+        BatchPartUploader uploader = new BatchPartUploader(HttpClient.newHttpClient(), objectMapper, new TestProps() {
+            @Override
+            public Path getBatchUploadJournalDir() {
+                return journalDir;
+            }
+        });
+
+        failuresLeft.put(2, 5);
+
+        BatchUploadProgress progress = uploader.start(openBatchSessionResponse());
+        List<BatchPart> saved = new ArrayList<>();
+        try (BatchPackage batchPackage = buildPackage()) {
+            Assert.expectThrows(BatchUploadException.class, () -> uploader.upload(progress, batchPackage.parts()));
+            for (BatchPart part : batchPackage.parts()) {
+                Path copy = journalDir.resolve("part-" + part.getOrdinalNumber());
+                try (InputStream in = part.openStream()) {
+                    Files.copy(in, copy);
+                }
+                saved.add(BatchPart.fromFile(part.getOrdinalNumber(), part.getPlainSize(), copy));
+                Assert.assertEquals(saved.getLast().getEncryptedHash(), part.getEncryptedHash());
+                Assert.assertEquals(saved.getLast().getEncryptedSize(), part.getEncryptedSize());
+            }
+        }
+
+        // as after a restart: only the journal and the saved parts are left
+        BatchUploadProgress restored = uploader.restore(progress.getJournal());
+        Assert.assertEquals(restored.getSessionReferenceNumber(), progress.getSessionReferenceNumber());
+        Assert.assertEquals(restored.pendingOrdinals(), List.of(2));
+
+        failuresLeft.clear();
+        try (BatchPackage rebuilt = new BatchPackage(0, null, 1, saved)) {
+            uploader.upload(restored, rebuilt.parts());
+        }
+
+        Assert.assertTrue(restored.isComplete());
+        Assert.assertEquals(attempts.get(1).get(), 1);
+        Assert.assertEquals(attempts.get(2).get(), 4);
+        Assert.assertFalse(Files.exists(progress.getJournal()));
+        Assert.assertFalse(Files.exists(journalDir.resolve("part-2")));
+        Files.delete(journalDir);
+    }
+
+    private BatchPackage buildPackage() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        try (BatchPackageWriter writer = new BatchPackageWriter(new byte[32], new byte[16], 1100, 1 << 20)) {
+            writer.addInvoice("invoice_1.xml", random);
+            return writer.finish();
+        }
+    }
+
+    private OpenBatchSessionResponse openBatchSessionResponse() throws Exception {
+        StringBuilder json = new StringBuilder("{\"referenceNumber\":\"20250101-SB-0000000000-0000000000-00\",\"partUploadRequests\":[");
+        for (int i = 1; i <= PARTS_COUNT; i++) {
+            json.append(i > 1 ? "," : "")
+                    .append("{\"ordinalNumber\":").append(i)
+                    .append(",\"method\":\"PUT\",\"url\":\"http://localhost:").append(server.getAddress().getPort())
+                    .append("/upload/").append(i).append("\",\"headers\":{\"x-ms-blob-type\":\"BlockBlob\"}}");
+        }
+        json.append("]}");
+        return objectMapper.readValue(json.toString(), OpenBatchSessionResponse.class);
+    }
+
+    private static class TestProps extends ConfigurationProps {
+        @Override
+        public int getBatchUploadMaxInFlight() {
+            return 2;
+        }
+
+        @Override
+        public int getBatchUploadMaxAttempts() {
+            return 3;
+        }
+
+        @Override
+        public Duration getBatchUploadRetryBackoff() {
+            return Duration.ofMillis(10);
+        }
+
+        @Override
+        public Path getBatchUploadJournalDir() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.auth.CertificateCache;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.api.services.DefaultCertificateService;
+import pl.akmf.ksef.sdk.client.model.auth.EncryptionMethod;
+import pl.akmf.ksef.sdk.client.model.certificate.SelfSignedCertificate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+
+public class CertificateCacheTest {
+
+    @Test
+    public void companySealIsGeneratedOncePerContext() {
+        CertificateCache cache = new CertificateCache(new DefaultCertificateService(), new TestProps(null));
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+
+        CertificateCache.Credentials first = cache.companySeal(nip, EncryptionMethod.Rsa);
+        Assert.assertSame(cache.companySeal(nip, EncryptionMethod.Rsa), first);
+        Assert.assertNotEquals(cache.companySeal(IdentifierGeneratorUtils.generateRandomNIP(), EncryptionMethod.Rsa), first);
+        Assert.assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void persistedCertificateIsReusedByNewCache() throws Exception {
+        Path storeDir = Files.createTempDirectory("ksef-certs");
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+
+        CertificateCache.Credentials generated = new CertificateCache(new DefaultCertificateService(), new TestProps(storeDir))
+                .companySeal(nip, EncryptionMethod.Rsa);
+        CertificateCache.Credentials loaded = new CertificateCache(new DefaultCertificateService(), new TestProps(storeDir))
+                .companySeal(nip, EncryptionMethod.Rsa);
+
+        Assert.assertEquals(loaded.certificate(), generated.certificate());
+        Assert.assertEquals(loaded.privateKey().getEncoded(), generated.privateKey().getEncoded());
+    }
+
+    @Test
+    public void warmUpPreGeneratesSeals() {
+        CountingCertificateService certificateService = new CountingCertificateService();
+        CertificateCache cache = new CertificateCache(certificateService, new TestProps(null));
+        List<String> nips = List.of(IdentifierGeneratorUtils.generateRandomNIP(), IdentifierGeneratorUtils.generateRandomNIP());
+
+        cache.warmUpCompanySeals(nips, EncryptionMethod.Rsa);
+
+        // size() also counts seals still being generated; wait until both are generated
+        await().atMost(30, SECONDS).until(() -> certificateService.companySeals.get() == nips.size());
+        for (String nip : nips) {
+            Assert.assertNotNull(cache.companySeal(nip, EncryptionMethod.Rsa));
+        }
+        Assert.assertEquals(certificateService.companySeals.get(), nips.size());
+        Assert.assertEquals(cache.size(), nips.size());
+    }
+
+    private static final class CountingCertificateService extends DefaultCertificateService {
+        private final AtomicInteger companySeals = new AtomicInteger();
+
+        @Override
+        public SelfSignedCertificate getCompanySeal(String organizationName, String organizationIdentifier,
+                                                    String commonName, EncryptionMethod encryptionMethod) {
+            SelfSignedCertificate seal = super.getCompanySeal(organizationName, organizationIdentifier, commonName, encryptionMethod);
+            companySeals.incrementAndGet();
+            return seal;
+        }
+    }
+
+    private static final class TestProps extends ConfigurationProps {
+        private final Path storeDir;
+
+        private TestProps(Path storeDir) {
+            this.storeDir = storeDir;
+        }
+
+        @Override
+        public Path getCertificateStoreDir() {
+            return storeDir;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.error.ErrorCatalog;
+import com.bsg6.service.error.ErrorCategory;
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.error.KsefError;
+import com.bsg6.service.polling.StatusPollTimeoutException;
+import com.bsg6.service.polling.StatusPoller;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ErrorCatalogTest {
+
+    private final ErrorCatalog catalog = new ErrorCatalog(new ObjectMapper(), new ConfigurationProps());
+    private final KsefApiCalls apiCalls = new KsefApiCalls(catalog, new ConfigurationProps());
+    private final StatusPoller poller = new StatusPoller(new ConfigurationProps());
+
+    @Test
+    public void loadsEveryListedCode() {
+        Assert.assertEquals(catalog.size(), 92);
+        Assert.assertEquals(catalog.lookup(21405).message(), "Dokument nie jest zgodny ze schemą (json).");
+        Assert.assertEquals(catalog.lookup(9101).message(), "Nieprawidłowy dokument.");
+        Assert.assertNull(catalog.lookup(21000));
+        Assert.assertNull(catalog.lookup(0));
+    }
+
+    @DataProvider
+    public Object[][] failures() {
+        return new Object[][]{
+                {400, body(21405), 21405, ErrorCategory.PERMANENT_VALIDATION},
+                {429, body(21121), 21121, ErrorCategory.THROTTLING},
+                {401, body(21302), 21302, ErrorCategory.AUTH_EXPIRED},
+                {400, body(21113), 21113, ErrorCategory.AUTH_EXPIRED},
+                {404, body(21173), 21173, ErrorCategory.RETRYABLE},
+                // not listed: the HTTP status decides
+                {503, body(99999), 99999, ErrorCategory.RETRYABLE},
+                {400, body(99999), 99999, ErrorCategory.PERMANENT_VALIDATION},
+                {429, "{\"status\":{\"code\":429,\"description\":\"Too Many Requests\"}}", 0, ErrorCategory.THROTTLING},
+                {502, "<html>Bad Gateway</html>", 0, ErrorCategory.RETRYABLE},
+                {401, null, 0, ErrorCategory.AUTH_EXPIRED},
+                {0, null, 0, ErrorCategory.RETRYABLE},
+        };
+    }
+
+    @Test(dataProvider = "failures")
+    public void classifiesByKsefCodeThenHttpStatus(int status, String body, int code, ErrorCategory category) {
+        KsefError error = catalog.classify(failure(status, body));
+
+        Assert.assertEquals(error.code(), code);
+        Assert.assertEquals(error.category(), category);
+    }
+
+    @Test
+    public void expiredAuthenticationEndsStatusPollingAtOnce() {
+        AtomicInteger probes = new AtomicInteger();
+
+        CompletableFuture<Boolean> result = poller.poll("expired", apiCalls.probe("Session status", () -> {
+            probes.incrementAndGet();
+            throw failure(401, body(21302));
+        }), done -> done, Duration.ofSeconds(5), Duration.ofMillis(50));
+
+        ApiException error = Assert.expectThrows(ApiException.class, () -> KsefApiCalls.await(result));
+        Assert.assertEquals(catalog.classify(error).category(), ErrorCategory.AUTH_EXPIRED);
+        Assert.assertEquals(probes.get(), 1);
+    }
+
+    @Test
+    public void transientFailuresKeepStatusPolling() {
+        AtomicInteger probes = new AtomicInteger();
+
+        CompletableFuture<Boolean> result = poller.poll("unavailable", apiCalls.probe("Session status", () -> {
+            probes.incrementAndGet();
+            throw failure(503, body(99999));
+        }), done -> done, Duration.ofMillis(300), Duration.ofMillis(20));
+
+        StatusPollTimeoutException timeout = Assert.expectThrows(StatusPollTimeoutException.class, () -> KsefApiCalls.await(result));
+        Assert.assertTrue(timeout.getCause() instanceof ApiException);
+        Assert.assertTrue(probes.get() > 1);
+    }
+
+    @Test
+    public void nonIdempotentCallIsRepeatedOnlyWhenThrottled() throws ApiException {
+        AtomicInteger sends = new AtomicInteger();
+        Assert.expectThrows(ApiException.class, () -> apiCalls.callNonIdempotent("Sending invoice", () -> {
+            sends.incrementAndGet();
+            throw failure(503, body(99999));
+        }));
+        Assert.assertEquals(sends.get(), 1);
+
+        AtomicInteger throttled = new AtomicInteger();
+        String result = apiCalls.callNonIdempotent("Sending invoice", () -> {
+            if (throttled.incrementAndGet() == 1) {
+                throw failure(429, body(21121));
+            }
+            return "sent";
+        });
+        Assert.assertEquals(result, "sent");
+        Assert.assertEquals(throttled.get(), 2);
+    }
+
+    private static ApiException failure(int status, String body) {
+        return new ApiException(status, "failed", HttpHeaders.of(Map.of(), (name, value) -> true), body);
+    }
+
+    private static String body(int exceptionCode) {
+        return "{\"exception\":{\"exceptionDetailList\":[{\"exceptionCode\":" + exceptionCode
+                + ",\"exceptionDescription\":\"Błąd\",\"details\":[]}],\"referenceNumber\":\"EX-1\"}}";
+    }
+}
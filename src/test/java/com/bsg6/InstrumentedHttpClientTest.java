@@ -0,0 +1,76 @@
+package com.bsg6;
+
+import com.bsg6.config.EndpointFamily;
+import com.bsg6.config.InstrumentedHttpClient;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+public class InstrumentedHttpClientTest {
+
+    private HttpServer server;
+    private InstrumentedHttpClient client;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", exchange -> {
+            try {
+                // slower than the auth timeout, faster than the session timeout
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        client = new InstrumentedHttpClient(HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build(),
+                "localhost", Map.of(
+                        EndpointFamily.AUTH, Duration.ofMillis(100),
+                        EndpointFamily.SESSION, Duration.ofSeconds(5),
+                        EndpointFamily.DEFAULT, Duration.ofSeconds(5)));
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void appliesTimeoutOfEndpointFamilyAndCountsRequests() throws Exception {
+        HttpResponse<Void> response = client.send(request("/api/v2/sessions/online"), HttpResponse.BodyHandlers.discarding());
+        Assert.assertEquals(response.statusCode(), 200);
+
+        Assert.expectThrows(HttpTimeoutException.class,
+                () -> client.send(request("/api/v2/auth/challenge"), HttpResponse.BodyHandlers.discarding()));
+
+        client.sendAsync(request("/api/v2/invoices/query/metadata"), HttpResponse.BodyHandlers.discarding()).join();
+
+        InstrumentedHttpClient.Stats stats = client.stats();
+        Assert.assertEquals(stats.inFlight(), 0);
+        Assert.assertEquals(stats.completed(), 2);
+        Assert.assertEquals(stats.failed(), 1);
+        Assert.assertEquals(stats.families().get(EndpointFamily.SESSION).requests(), 1);
+        Assert.assertEquals(stats.families().get(EndpointFamily.AUTH).failures(), 1);
+        Assert.assertEquals(stats.families().get(EndpointFamily.INVOICE).requests(), 1);
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + path)).GET().build();
+    }
+}
@@ -0,0 +1,149 @@
+package com.bsg6;
+
+import com.bsg6.model.Result;
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+import com.bsg6.service.validation.InvoiceSchemaValidator;
+import com.bsg6.service.validation.ValidationResult;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class InvoiceAmountRulesTest {
+
+    private static final String TEMPLATE_PATH = "/invoice/output/ksef/fa_2/invoice-template-min-fields.xml";
+    private static final String INVOICE_WITH_LINES = "/invoice/validation/fa2-with-lines.xml";
+
+    private final InvoiceSchemaValidator validator = InvoiceSchemaValidatorTest.validator(true);
+
+    @DataProvider
+    public Object[][] totals() {
+        return new Object[][]{
+                {new Result(true, "valid TC - zero VAT"), "100.00", "0.00", "100.00"},
+                {new Result(true, "valid TC - small amounts"), "0.01", "0.01", "0.02"},
+                {new Result(true, "valid TC - large amounts"), "999999.99", "229999.99", "1229999.98"},
+                {new Result(true, "valid TC - minimum positive values"), "0.01", "0.00", "0.01"},
+                {new Result(true, "valid TC - 5% VAT rate"), "1000.00", "50.00", "1050.00"},
+                {new Result(true, "valid TC - fractional amounts"), "33.33", "7.66", "40.99"},
+                {new Result(false, "invalid net amount - zero"), "0", "23.00", "123.00"},
+                {new Result(false, "invalid net amount - negative"), "-100.00", "23.00", "123.00"},
+                {new Result(false, "invalid gross amount - zero"), "100.00", "23.00", "0.00"},
+                {new Result(false, "invalid gross amount - negative"), "100.00", "23.00", "-123.00"},
+                {new Result(false, "incorrect calculation - gross too high"), "100.00", "23.00", "150.00"},
+                {new Result(false, "incorrect calculation - gross too low"), "100.00", "23.00", "100.00"},
+                {new Result(false, "incorrect calculation - VAT mismatch"), "100.00", "50.00", "123.00"},
+                {new Result(false, "invalid - precision mismatch in calculation"), "100.99", "23.23", "124.21"},
+        };
+    }
+
+    @Test(dataProvider = "totals")
+    public void grossTotalMustBeNetPlusVat(Result result, String net, String vat, String gross) throws IOException {
+        ValidationResult validation = validator.validate(invoice(net, vat, gross));
+
+        Assert.assertEquals(validation.valid(), result.shouldPass(), result.description() + ": " + validation.errors());
+        if (!result.shouldPass()) {
+            Assert.assertEquals(messages(validation),
+                    List.of("Fa: P_13_* + P_14_* = " + new BigDecimal(net).add(new BigDecimal(vat))
+                            + ", but P_15 is " + gross), result.description());
+        }
+    }
+
+    @Test
+    public void acceptsInvoiceWhoseLinesAddUp() {
+        ValidationResult result = validator.validate(InvoiceSchemaValidatorTest.resource(INVOICE_WITH_LINES));
+
+        Assert.assertTrue(result.valid(), result.errors().toString());
+    }
+
+    @Test
+    public void reportsEveryLineThatDoesNotAddUp() {
+        String invoice = InvoiceSchemaValidatorTest.text(INVOICE_WITH_LINES)
+                .replace("<P_11A>123.00</P_11A>", "<P_11A>124.00</P_11A>")
+                .replace("<P_11Vat>46.00</P_11Vat>", "<P_11Vat>45.00</P_11Vat>");
+
+        ValidationResult result = validator.validate(invoice.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(messages(result), List.of(
+                "FaWiersz: P_11 100.00 + P_11Vat 23.00 = 123.00, but P_11A is 124.00",
+                "FaWiersz: P_11 200.00 + P_11Vat 45.00 = 245.00, but P_11A is 246.00"));
+        // reported where each line ends
+        Assert.assertEquals(result.errors().get(0).line(), 62);
+        Assert.assertEquals(result.errors().get(1).line(), 73);
+    }
+
+    @Test
+    public void reportsTotalThatDoesNotAddUpAtP15() {
+        String invoice = InvoiceSchemaValidatorTest.text(INVOICE_WITH_LINES)
+                .replace("<P_15>369.00</P_15>", "<P_15>396.00</P_15>");
+
+        ValidationResult result = validator.validate(invoice.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(messages(result), List.of("Fa: P_13_* + P_14_* = 369.00, but P_15 is 396.00"));
+        Assert.assertEquals(result.errors().get(0).line(), 34);
+    }
+
+    @Test
+    public void ignoresAmountsOutsideFaAndFaWiersz() {
+        // Same names one level too deep are not totals or line amounts; the schema reports them, the amount rules do not
+        String invoice = InvoiceSchemaValidatorTest.text(INVOICE_WITH_LINES)
+                .replace("<P_16>2</P_16>", "<P_16>2</P_16><P_13_1>1000.00</P_13_1><P_15>1.00</P_15>")
+                .replace("<P_12>23</P_12>", "<P_12>23</P_12><FaWiersz><P_11>1.00</P_11><P_11Vat>1.00</P_11Vat><P_11A>9.00</P_11A></FaWiersz>");
+
+        ValidationResult result = validator.validate(invoice.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertFalse(result.valid());
+        Assert.assertTrue(messages(result).stream().noneMatch(message -> message.startsWith("Fa")), result.errors().toString());
+    }
+
+    @Test
+    public void validatesEveryEntryOfBatchPackage() throws IOException {
+        byte[] valid = InvoiceSchemaValidatorTest.resource(INVOICE_WITH_LINES);
+        byte[] wrongTotal = InvoiceSchemaValidatorTest.text(INVOICE_WITH_LINES)
+                .replace("<P_15>369.00</P_15>", "<P_15>370.00</P_15>").getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+            for (Map.Entry<String, byte[]> entry : List.of(Map.entry("invoice_1.xml", valid),
+                    Map.entry("invoice_2.xml", wrongTotal), Map.entry("invoice_3.xml", valid))) {
+                zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+                zipOut.write(entry.getValue());
+                zipOut.closeEntry();
+            }
+        }
+
+        Map<String, ValidationResult> results;
+        try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            results = validator.validateEntries(zipIn);
+        }
+
+        Assert.assertEquals(List.copyOf(results.keySet()), List.of("invoice_1.xml", "invoice_2.xml", "invoice_3.xml"));
+        Assert.assertTrue(results.get("invoice_1.xml").valid(), results.get("invoice_1.xml").errors().toString());
+        Assert.assertEquals(messages(results.get("invoice_2.xml")), List.of("Fa: P_13_* + P_14_* = 369.00, but P_15 is 370.00"));
+        // the entry after an invalid one is still read from its start
+        Assert.assertTrue(results.get("invoice_3.xml").valid(), results.get("invoice_3.xml").errors().toString());
+    }
+
+    private static byte[] invoice(String net, String vat, String gross) throws IOException {
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.renderTo(out, Map.of("seller_nip", "1234563218", "buyer_nip", "8567346215",
+                "invoice_number", "FV/1/12/2025", "invoicing_date", "2025-12-01",
+                "net", net, "vat", vat, "gross", gross));
+        return out.toByteArray();
+    }
+
+    private static List<String> messages(ValidationResult result) {
+        return result.errors().stream().map(ValidationResult.Error::message).toList();
+    }
+}
@@ -0,0 +1,64 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.invoice.InvoiceCache;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Downloads invoices through {@link InvoiceCache} from {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class InvoiceCacheTest extends MockKsefBaseTest {
+
+    @Test
+    public void downloadedInvoicesAreServedFromHeapThenDisk() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        String sessionReferenceNumber = sendProcessedBatch(nip, 5, accessToken);
+        List<String> ksefNumbers;
+        try (Stream<SessionInvoiceStatusResponse> sessionInvoices =
+                     onlineSessionService.streamSessionInvoices(sessionReferenceNumber, accessToken)) {
+            ksefNumbers = sessionInvoices.map(SessionInvoiceStatusResponse::getKsefNumber).toList();
+        }
+
+        Path cacheDir = Files.createTempDirectory("invoice-cache");
+        ConfigurationProps props = new MockProps(server.baseUri()) {
+            @Override
+            public Path getInvoiceCacheDir() {
+                return cacheDir;
+            }
+        };
+        long downloadsBefore = server.requestCount("GET /api/v2/invoices/ksef/{ksefNumber}");
+
+        InvoiceCache cache = new InvoiceCache(ksefClient, props, apiCalls);
+        cache.prefetch(nip, ksefNumbers, accessToken).join();
+        for (String ksefNumber : ksefNumbers) {
+            Assert.assertTrue(new String(cache.get(nip, ksefNumber, accessToken), StandardCharsets.UTF_8).contains(nip));
+        }
+        Assert.assertEquals(cache.stats().misses(), 5);
+        Assert.assertEquals(cache.stats().heapHits(), 5);
+
+        // a new instance finds the invoices on disk
+        InvoiceCache restarted = new InvoiceCache(ksefClient, props, apiCalls);
+        Assert.assertEquals(restarted.get(nip, ksefNumbers.getFirst(), accessToken), cache.get(nip, ksefNumbers.getFirst(), accessToken));
+        Assert.assertEquals(restarted.stats().diskHits(), 1);
+        Assert.assertEquals(server.requestCount("GET /api/v2/invoices/ksef/{ksefNumber}") - downloadsBefore, 5);
+
+        // another context is not served the cached copy; KSeF decides whether it may download the invoice
+        String otherNip = IdentifierGeneratorUtils.generateRandomNIP();
+        String otherAccessToken = authService.authWithCustomNipAndRsa(otherNip).accessToken();
+        Assert.expectThrows(ApiException.class, () -> restarted.get(otherNip, ksefNumbers.getFirst(), otherAccessToken));
+        Assert.assertEquals(restarted.stats().misses(), 1);
+    }
+}
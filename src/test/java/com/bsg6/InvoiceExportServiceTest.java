@@ -0,0 +1,69 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.export.InvoiceExportService;
+import com.bsg6.service.metadata.InvoiceMetadataSync;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs export jobs of {@link InvoiceExportService} against {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class InvoiceExportServiceTest extends MockKsefBaseTest {
+
+    @Test
+    public void exportJobUnpacksTruncatedPackagesAndIsNotRepeated() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        Instant from = Instant.now().minus(Duration.ofHours(1));
+        sendProcessedBatch(nip, 12, accessToken);
+        sendProcessedBatch(nip, 12, accessToken);
+
+        Path exportDir = Files.createTempDirectory("invoice-export");
+        ConfigurationProps props = new MockProps(server.baseUri()) {
+            @Override
+            public Path getExportDir() {
+                return exportDir;
+            }
+        };
+        InvoiceExportService exportService = new InvoiceExportService(restClient, encryptionDataPool, statusPoller, props);
+        long exportsBefore = server.requestCount("POST /api/v2/invoices/exports");
+
+        server.withExportLimits(15, 1024);
+        try {
+            // the first package stops after 3 invoices of the second session, the second export starts at its date
+            InvoiceExportService.ExportResult result = exportService.export("seller", InvoiceMetadataSync.SubjectType.SELLER,
+                    from, null, accessToken).join();
+            Assert.assertEquals(result.packages(), 2);
+            Assert.assertEquals(result.invoices(), 24);
+        } finally {
+            server.withExportLimits(10_000, 50 * 1024 * 1024);
+        }
+
+        try (Stream<Path> files = Files.list(exportDir.resolve("seller").resolve("invoices"))) {
+            List<Path> invoices = files.toList();
+            Assert.assertEquals(invoices.size(), 24);
+            for (Path invoice : invoices) {
+                Assert.assertTrue(invoice.getFileName().toString().startsWith(nip));
+                Assert.assertTrue(Files.readString(invoice).contains(nip));
+            }
+        }
+        Assert.assertTrue(Files.exists(exportDir.resolve("seller").resolve("metadata").resolve("2.json")));
+
+        // the checkpoint marks the job complete, so running it again exports nothing
+        InvoiceExportService.ExportResult again = new InvoiceExportService(restClient, encryptionDataPool, statusPoller, props)
+                .export("seller", InvoiceMetadataSync.SubjectType.SELLER, from, null, accessToken).join();
+        Assert.assertEquals(again.invoices(), 24);
+        Assert.assertEquals(server.requestCount("POST /api/v2/invoices/exports") - exportsBefore, 2);
+    }
+}
@@ -28,37 +28,12 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
                         new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"))},
                 {new Result(true, "valid TC - different VAT rate (8%)"),
                         new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("8.00"), new BigDecimal("108.00"))}
-//                {new Result(true, "valid TC - zero VAT"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("0.00"), new BigDecimal("100.00"))},
-//                {new Result(true, "valid TC - small amounts"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("0.01"), new BigDecimal("0.01"), new BigDecimal("0.02"))},
-//                {new Result(true, "valid TC - large amounts"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("999999.99"), new BigDecimal("229999.99"), new BigDecimal("1229999.98"))},
-//
-//                // Invalid net amount
-//                {new Result(false, "invalid net amount - zero"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("0"), new BigDecimal("23.00"), new BigDecimal("123.00"))},
-//                {new Result(false, "invalid net amount - negative"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("-100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"))},
+                // Net, VAT and gross totals that do not add up are rejected locally; see InvoiceAmountRulesTest
 //
 //                // Invalid VAT amount
 //                {new Result(false, "invalid VAT amount - negative"),
 //                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("-23.00"), new BigDecimal("77.00"))},
 //
-//                // Invalid gross amount
-//                {new Result(false, "invalid gross amount - zero"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("0.00"))},
-//                {new Result(false, "invalid gross amount - negative"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("-123.00"))},
-//
-//                // Incorrect calculations (net + vat != gross)
-//                {new Result(false, "incorrect calculation - gross too high"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("150.00"))},
-//                {new Result(false, "incorrect calculation - gross too low"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("100.00"))},
-//                {new Result(false, "incorrect calculation - VAT mismatch"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.00"), new BigDecimal("50.00"), new BigDecimal("123.00"))},
-//
 //                // Invalid seller NIP scenarios
 //                {new Result(false, "invalid seller NIP - too short"),
 //                        new InvoiceData("123", "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"))},
@@ -80,12 +55,8 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
 //                // Edge cases with decimal precision
 //                {new Result(true, "valid TC - high precision amounts"),
 //                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.999"), new BigDecimal("23.230"), new BigDecimal("124.229"))},
-//                {new Result(false, "invalid - precision mismatch in calculation"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("100.99"), new BigDecimal("23.23"), new BigDecimal("124.21"))},
 //
 //                // Boundary value analysis
-//                {new Result(true, "valid TC - minimum positive values"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("0.01"), new BigDecimal("0.00"), new BigDecimal("0.01"))},
 //                {new Result(false, "invalid - all zero amounts"),
 //                        new InvoiceData("1234563218", "8567346215", new BigDecimal("0.00"), new BigDecimal("0.00"), new BigDecimal("0.00"))},
 //
@@ -94,12 +65,6 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
 //                        new InvoiceData("9876543210", "1234567890", new BigDecimal("200.00"), new BigDecimal("46.00"), new BigDecimal("246.00"))},
 //                {new Result(true, "valid TC - same seller and buyer NIP"),
 //                        new InvoiceData("1234563218", "1234563218", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"))},
-//
-//                // Special VAT scenarios
-//                {new Result(true, "valid TC - 5% VAT rate"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("1000.00"), new BigDecimal("50.00"), new BigDecimal("1050.00"))},
-//                {new Result(true, "valid TC - fractional amounts"),
-//                        new InvoiceData("1234563218", "8567346215", new BigDecimal("33.33"), new BigDecimal("7.66"), new BigDecimal("40.99"))}
         };
     }
 
@@ -107,7 +72,7 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
     public void sendSimpleInvoiceTest(Result result, InvoiceData invoiceTestCase) throws Exception {
         String accessToken = authService.authWithCustomNipAndRsa(invoiceTestCase.sellerNip()).accessToken();
 
-        encryptionData = defaultCryptographyService.getEncryptionData();
+        encryptionData = encryptionDataPool.take();
 
         String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2, SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken)
                 .getReferenceNumber();
@@ -140,7 +105,7 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
         onlineSessionService.getOnlineSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken);
 
         // Step 8: Get invoice
-        invoiceService.getInvoice(sessionInvoice.getKsefNumber(), accessToken);
+        invoiceService.getInvoice(invoiceTestCase.sellerNip(), sessionInvoice.getKsefNumber(), accessToken);
     }
 
     @DataProvider
@@ -154,22 +119,15 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
         return java.nio.file.Files.list(xmlDir)
                 .filter(path -> path.toString().endsWith(".xml"))
                 .sorted()
-                .map(path -> {
-                    try {
-                        String xmlContent = java.nio.file.Files.readString(path);
-                        return new Object[]{xmlContent};
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                })
+                .map(path -> new Object[]{path})
                 .toArray(Object[][]::new);
     }
 
     @Test(dataProvider = "getGeneratedXmlInvoices")
-    public void sendGeneratedXmlInvoiceTest(String invoiceXml) throws Exception {
+    public void sendGeneratedXmlInvoiceTest(java.nio.file.Path invoiceXml) throws Exception {
         String accessToken = authService.authWithCustomNipAndRsa("1234563218").accessToken();
 
-        encryptionData = defaultCryptographyService.getEncryptionData();
+        encryptionData = encryptionDataPool.take();
 
         String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2, SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken)
                 .getReferenceNumber();
@@ -202,6 +160,6 @@ public class InvoiceIntegrationTest extends KsefBaseIntegrationTest {
         onlineSessionService.getOnlineSessionUpo(sessionReferenceNumber, upoReferenceNumber, accessToken);
 
         // Step 8: Get invoice
-        invoiceService.getInvoice(sessionInvoice.getKsefNumber(), accessToken);
+        invoiceService.getInvoice("1234563218", sessionInvoice.getKsefNumber(), accessToken);
     }
 }
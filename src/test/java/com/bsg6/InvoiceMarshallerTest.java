@@ -0,0 +1,73 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.InvoiceData;
+import com.bsg6.service.invoice.InvoiceMarshaller;
+import com.bsg6.service.invoice.InvoiceModelFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class InvoiceMarshallerTest {
+
+    private static final InvoiceData INVOICE_DATA = new InvoiceData("1234563218", "8567346215",
+            new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"));
+
+    private final InvoiceMarshaller marshaller = new InvoiceMarshaller(new ConfigurationProps());
+
+    @Test
+    public void marshalsEveryLineWithNetSplitExactly() throws Exception {
+        byte[] xml = marshaller.marshal(InvoiceModelFactory.fa2(INVOICE_DATA, "1", LocalDate.of(2025, 12, 9), 3000));
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+
+        Assert.assertEquals(document.getDocumentElement().getNamespaceURI(), "http://crd.gov.pl/wzor/2023/06/29/12648/");
+        Assert.assertEquals(text(document, "P_1"), "2025-12-09");
+        Assert.assertEquals(text(document, "P_15"), "123.00");
+        NodeList lineNets = document.getElementsByTagNameNS("*", "P_11");
+        Assert.assertEquals(lineNets.getLength(), 3000);
+        BigDecimal sum = BigDecimal.ZERO;
+        for (int i = 0; i < lineNets.getLength(); i++) {
+            sum = sum.add(new BigDecimal(lineNets.item(i).getTextContent()));
+        }
+        Assert.assertEquals(sum, INVOICE_DATA.netAmount());
+    }
+
+    @Test
+    public void pooledMarshallersGiveSameOutputAcrossThreads() throws Exception {
+        Object invoice = InvoiceModelFactory.fa2(INVOICE_DATA, "2", LocalDate.of(2025, 12, 9), 10);
+        byte[] expected = marshaller.marshal(invoice);
+
+        List<Future<byte[]>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> marshaller.marshal(invoice)));
+            }
+            for (Future<byte[]> result : results) {
+                Assert.assertEquals(result.get(), expected);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsObjectsOutsideInvoiceModel() {
+        Assert.expectThrows(IllegalArgumentException.class, () -> marshaller.marshal("<Faktura/>"));
+    }
+
+    private static String text(Document document, String localName) {
+        return document.getElementsByTagNameNS("*", localName).item(0).getTextContent();
+    }
+}
@@ -0,0 +1,77 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.metadata.InvoiceMetadataStore;
+import com.bsg6.service.metadata.InvoiceMetadataSync;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Syncs invoice metadata with {@link InvoiceMetadataSync} from {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class InvoiceMetadataSyncTest extends MockKsefBaseTest {
+
+    @Test
+    public void invoiceMetadataIsSyncedIncrementallyFromCheckpoint() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        InvoiceMetadataSync.Shard shard = new InvoiceMetadataSync.Shard(InvoiceMetadataSync.SubjectType.SELLER,
+                Instant.now().minus(Duration.ofHours(1)), null);
+        // two batch sessions stored at two instants
+        sendProcessedBatch(nip, 12, accessToken);
+        sendProcessedBatch(nip, 12, accessToken);
+
+        Path syncDir = Files.createTempDirectory("invoice-metadata");
+        ConfigurationProps props = new MockProps(server.baseUri()) {
+            @Override
+            public Path getMetadataSyncDir() {
+                return syncDir;
+            }
+
+            @Override
+            public int getMetadataSyncPageSize() {
+                return 10;
+            }
+        };
+        InvoiceMetadataStore store = new InvoiceMetadataStore(restClient.objectMapper(), props);
+        InvoiceMetadataSync sync = new InvoiceMetadataSync(restClient, store, props);
+
+        server.withMetadataQueryLimit(15);
+        try {
+            // the second page reaches the limit, so the query restarts from the second session's date
+            InvoiceMetadataSync.ShardResult first = sync.sync(List.of(shard), accessToken).join().getFirst();
+            Assert.assertEquals(first.appended(), 24);
+            Assert.assertEquals(first.queries(), 4);
+
+            InvoiceMetadataSync.ShardResult unchanged = sync.sync(shard, accessToken);
+            Assert.assertEquals(unchanged.appended(), 0);
+            Assert.assertEquals(unchanged.skipped(), 12, "invoices at the checkpoint date are returned again");
+
+            sendProcessedBatch(nip, 5, accessToken);
+            InvoiceMetadataSync.ShardResult next = new InvoiceMetadataSync(restClient,
+                    new InvoiceMetadataStore(restClient.objectMapper(), props), props).sync(shard, accessToken);
+            Assert.assertEquals(next.appended(), 5);
+        } finally {
+            server.withMetadataQueryLimit(10_000);
+        }
+
+        try (Stream<JsonNode> stored = store.read(shard.id())) {
+            List<String> ksefNumbers = stored.map(invoice -> invoice.path("ksefNumber").asText()).toList();
+            Assert.assertEquals(ksefNumbers.size(), 29);
+            Assert.assertEquals(new HashSet<>(ksefNumbers).size(), 29);
+            Assert.assertTrue(ksefNumbers.stream().allMatch(ksefNumber -> ksefNumber.startsWith(nip)));
+        }
+    }
+}
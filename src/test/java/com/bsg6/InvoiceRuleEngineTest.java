@@ -0,0 +1,90 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.model.InvoiceData;
+import com.bsg6.service.rules.InvoiceRuleEngine;
+import com.bsg6.service.rules.InvoiceRuleException;
+import com.bsg6.service.rules.RuleViolation;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InvoiceRuleEngineTest {
+
+    private static final LocalDate TODAY = LocalDate.now();
+
+    private final InvoiceRuleEngine engine = new InvoiceRuleEngine(new ConfigurationProps() {
+        @Override
+        public boolean isRulesEnabled() {
+            return true;
+        }
+    });
+
+    @DataProvider
+    public Object[][] invoices() {
+        return new Object[][]{
+                {invoice("1234563218", "8567346215", "100.00", "23.00", "123.00"), List.of()},
+                {invoice("1234563218", "8567346215", "100.00", "8.00", "108.00"), List.of()},
+                {invoice("1234563218", "8567346215", "100.00", "0.00", "100.00"), List.of()},
+                {invoice("1234563218", "8567346215", "999999.99", "230000.00", "1229999.99"), List.of()},
+                {invoice("1234563218", "8567346215", "0", "0.00", "0.00"), List.of("net-positive", "gross-positive")},
+                {invoice("1234563218", "8567346215", "100.00", "-23.00", "77.00"), List.of("vat-non-negative", "vat-rate")},
+                {invoice("1234563218", "8567346215", "100.00", "23.00", "150.00"), List.of("gross-total")},
+                {invoice("1234563218", "8567346215", "100.00", "50.00", "150.00"), List.of("vat-rate")},
+                {invoice("1234563218", "8567346215", "100.999", "23.23", "124.229"), List.of("amount-rounding")},
+                {invoice("123", "8567346215", "100.00", "23.00", "123.00"), List.of("seller-nip")},
+                {invoice("1234563219", "", "100.00", "23.00", "123.00"), List.of("seller-nip", "buyer-nip")},
+        };
+    }
+
+    @Test(dataProvider = "invoices")
+    public void reportsBrokenRulesInFileOrder(InvoiceData invoice, List<String> brokenRules) {
+        Assert.assertEquals(ids(engine.evaluate(invoice, TODAY)), brokenRules);
+    }
+
+    @Test
+    public void checksIssueDate() {
+        InvoiceData invoice = invoice("1234563218", "8567346215", "100.00", "23.00", "123.00");
+
+        Assert.assertEquals(ids(engine.evaluate(invoice, TODAY.plusDays(1))), List.of("issue-date-not-future"));
+        Assert.assertEquals(ids(engine.evaluate(invoice, LocalDate.of(2021, 12, 31))), List.of("issue-date-not-before-ksef"));
+    }
+
+    @Test
+    public void batchResultsKeepInvoiceOrder() {
+        List<InvoiceData> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(i % 7 == 0
+                    ? invoice("1234563218", "8567346215", "100.00", "23.00", "124.00")
+                    : invoice("1234563218", "8567346215", "100.00", "23.00", "123.00"));
+        }
+
+        List<List<RuleViolation>> results = engine.evaluateAll(batch, TODAY);
+
+        Assert.assertEquals(results.size(), batch.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(ids(results.get(i)), i % 7 == 0 ? List.of("gross-total") : List.of(), "invoice " + i);
+        }
+    }
+
+    @Test
+    public void requireValidThrowsWithViolations() {
+        InvoiceData invoice = invoice("1234563218", "8567346215", "100.00", "23.00", "100.00");
+
+        InvoiceRuleException e = Assert.expectThrows(InvoiceRuleException.class, () -> engine.requireValid(invoice, TODAY));
+        Assert.assertEquals(ids(e.getViolations()), List.of("gross-total"));
+    }
+
+    private static List<String> ids(List<RuleViolation> violations) {
+        return violations.stream().map(RuleViolation::rule).toList();
+    }
+
+    private static InvoiceData invoice(String sellerNip, String buyerNip, String net, String vat, String gross) {
+        return new InvoiceData(sellerNip, buyerNip, new BigDecimal(net), new BigDecimal(vat), new BigDecimal(gross));
+    }
+}
@@ -0,0 +1,110 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.validation.InvoiceSchema;
+import com.bsg6.service.validation.InvoiceSchemaValidator;
+import com.bsg6.service.validation.InvoiceValidationException;
+import com.bsg6.service.validation.ValidationResult;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+public class InvoiceSchemaValidatorTest {
+
+    private static final String FA2_INVOICE = "/invoice/output/ksef/fa_2/generated/faktura-100-12-2025.xml";
+    private static final String FA3_INVOICE = "/invoice/validation/fa3-min-fields.xml";
+
+    private final InvoiceSchemaValidator validator = validator(true);
+
+    @Test
+    public void acceptsFa2Invoice() {
+        ValidationResult result = validator.validate(resource(FA2_INVOICE));
+
+        Assert.assertEquals(result.schema(), InvoiceSchema.FA_2);
+        Assert.assertTrue(result.valid(), result.errors().toString());
+    }
+
+    @Test
+    public void acceptsFa3Invoice() {
+        ValidationResult result = validator.validate(resource(FA3_INVOICE));
+
+        Assert.assertEquals(result.schema(), InvoiceSchema.FA_3);
+        Assert.assertTrue(result.valid(), result.errors().toString());
+    }
+
+    @Test
+    public void reportsEverySchemaViolationWithItsLine() {
+        String invoice = text(FA2_INVOICE)
+                .replace("<NIP>1234563218</NIP>", "<NIP>0234563218</NIP>")
+                .replace("<KodKraju>PL</KodKraju>", "<KodKraju>QQ</KodKraju>");
+
+        ValidationResult result = validator.validate(invoice.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(result.schema(), InvoiceSchema.FA_2);
+        Assert.assertFalse(result.valid());
+        // NIP of the seller (line 10) and both country codes (lines 14 and 24), by the bundled ETD types
+        Assert.assertTrue(result.errors().stream().anyMatch(error -> error.line() == 10), result.errors().toString());
+        Assert.assertTrue(result.errors().stream().anyMatch(error -> error.line() == 14), result.errors().toString());
+        Assert.assertTrue(result.errors().stream().anyMatch(error -> error.line() == 24), result.errors().toString());
+    }
+
+    @Test
+    public void requireValidRejectsMissingElement() {
+        byte[] invoice = text(FA3_INVOICE).replace("<GV>2</GV>", "").getBytes(StandardCharsets.UTF_8);
+
+        InvoiceValidationException e = Assert.expectThrows(InvoiceValidationException.class, () -> validator.requireValid(invoice));
+        Assert.assertEquals(e.getResult().schema(), InvoiceSchema.FA_3);
+    }
+
+    @Test
+    public void rejectsDocumentOutsideInvoiceNamespaces() {
+        ValidationResult result = validator.validate(bytes("<Faktura><NIP>1</NIP></Faktura>"));
+
+        Assert.assertFalse(result.valid());
+        Assert.assertNull(result.schema());
+    }
+
+    @Test
+    public void reportsPositionOfMalformedXml() {
+        ValidationResult result = validator.validate(bytes("<?xml version=\"1.0\"?>\n<Faktura xmlns=>"));
+
+        Assert.assertFalse(result.valid());
+        Assert.assertEquals(result.errors().size(), 1);
+        Assert.assertEquals(result.errors().getFirst().line(), 2);
+    }
+
+    @Test
+    public void requireValidIsNoOpWhenDisabled() {
+        validator(false).requireValid(bytes("not xml at all"));
+    }
+
+    static InvoiceSchemaValidator validator(boolean enabled) {
+        return new InvoiceSchemaValidator(new ConfigurationProps() {
+            @Override
+            public boolean isValidationEnabled() {
+                return enabled;
+            }
+        });
+    }
+
+    static byte[] resource(String path) {
+        try (InputStream in = InvoiceSchemaValidatorTest.class.getResourceAsStream(path)) {
+            Assert.assertNotNull(in, path);
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String text(String path) {
+        return new String(resource(path), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.session.OnlineSessionPool;
+import com.bsg6.service.submission.InvoiceSubmissionEngine;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Routes invoices with {@link InvoiceSubmissionEngine} against {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class InvoiceSubmissionEngineTest extends MockKsefBaseTest {
+
+    @Test
+    public void submissionEngineMovesOnlineBacklogToBatchSessions() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        OnlineSessionPool.SessionKey key = new OnlineSessionPool.SessionKey(nip, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA);
+        ConfigurationProps props = new MockProps(server.baseUri()) {
+            @Override
+            public int getSubmissionBatchQueueDepth() {
+                return 4;
+            }
+        };
+        InvoiceSubmissionEngine engine = new InvoiceSubmissionEngine(
+                new OnlineSessionPool(onlineSessionService, invoiceService, encryptionDataPool, props),
+                invoiceService, onlineSessionService, props);
+        long batchesBefore = server.requestCount("POST /api/v2/sessions/batch");
+
+        List<CompletableFuture<InvoiceSubmissionEngine.Submission>> submissions = engine.submitAll(key,
+                IntStream.range(0, 40).mapToObj(i -> ("<Faktura><NIP>" + nip + "</NIP><P_2>FV/" + i + "</P_2></Faktura>")
+                        .getBytes(StandardCharsets.UTF_8)), accessToken);
+        engine.drain().join();
+
+        Map<InvoiceSubmissionEngine.Route, Long> routes = submissions.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.groupingBy(InvoiceSubmissionEngine.Submission::route, Collectors.counting()));
+        Assert.assertTrue(routes.getOrDefault(InvoiceSubmissionEngine.Route.ONLINE, 0L) >= 1, routes.toString());
+        Assert.assertTrue(routes.getOrDefault(InvoiceSubmissionEngine.Route.BATCH, 0L) >= 1, routes.toString());
+        Assert.assertTrue(server.requestCount("POST /api/v2/sessions/batch") > batchesBefore);
+    }
+}
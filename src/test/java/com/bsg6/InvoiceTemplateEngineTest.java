@@ -0,0 +1,60 @@
+package com.bsg6;
+
+import com.bsg6.service.invoice.CompiledInvoiceTemplate;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+public class InvoiceTemplateEngineTest {
+
+    private static final String TEMPLATE_PATH = "/invoice/output/ksef/fa_2/invoice-template-min-fields.xml";
+
+    @Test
+    public void rendersAllPlaceholders() throws Exception {
+        CompiledInvoiceTemplate template = new InvoiceTemplateEngine().getTemplate(TEMPLATE_PATH);
+
+        Assert.assertEquals(template.placeholders(),
+                Set.of("seller_nip", "buyer_nip", "invoicing_date", "invoice_number", "net", "vat", "gross"));
+
+        String rendered = new String(template.render(Map.of(
+                "seller_nip", "1234563218",
+                "buyer_nip", "8567346215",
+                "invoicing_date", "2025-12-09",
+                "invoice_number", "1/12/2025",
+                "net", "100.00",
+                "vat", "23.00",
+                "gross", "123.00")), StandardCharsets.UTF_8);
+
+        Assert.assertFalse(rendered.contains("#"), rendered);
+        Assert.assertTrue(rendered.contains("<NIP>1234563218</NIP>"));
+        Assert.assertTrue(rendered.contains("<P_2>FA/1/12/2025</P_2>"));
+        Assert.assertTrue(rendered.contains("<P_15>123.00</P_15>"));
+    }
+
+    @Test
+    public void keepsPlaceholdersWithoutValueAndLiteralMarkers() throws Exception {
+        CompiledInvoiceTemplate template = CompiledInvoiceTemplate.compile(
+                "<a>#net#</a><b>#invoice_number#</b><c>&#35;# #Not_A_Placeholder# ##</c>".getBytes(StandardCharsets.UTF_8));
+
+        byte[] rendered = template.render(Map.of("net", "żółć"));
+
+        Assert.assertEquals(new String(rendered, StandardCharsets.UTF_8),
+                "<a>żółć</a><b>#invoice_number#</b><c>&#35;# #Not_A_Placeholder# ##</c>");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.renderTo(out, Map.of("net", "żółć"));
+        Assert.assertEquals(out.toByteArray(), rendered);
+    }
+
+    @Test
+    public void cachesCompiledTemplatePerPath() throws Exception {
+        InvoiceTemplateEngine engine = new InvoiceTemplateEngine();
+
+        Assert.assertSame(engine.getTemplate(TEMPLATE_PATH), engine.getTemplate(TEMPLATE_PATH));
+    }
+}
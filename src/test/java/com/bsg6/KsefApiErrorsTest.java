@@ -0,0 +1,67 @@
+package com.bsg6;
+
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+/**
+ * Checks how KSeF errors injected by {@link MockKsefServer} reach callers and which calls are retried.
+ * Single-threaded because injected errors apply to every request of a route.
+ */
+@Test(singleThreaded = true)
+public class KsefApiErrorsTest extends MockKsefBaseTest {
+
+    @Test
+    public void injectedErrorIsReportedAsKsefException() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        EncryptionData encryptionData = encryptionDataPool.take();
+        String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken).getReferenceNumber();
+
+        server.injectError("POST /api/v2/sessions/online/{referenceNumber}/invoices", 21405, 1.0, 1);
+
+        ApiException error = Assert.expectThrows(ApiException.class, () ->
+                invoiceService.sendInvoiceOnlineSession(invoice(nip), sessionReferenceNumber, encryptionData, accessToken));
+        Assert.assertEquals(error.getCode(), 400);
+        Assert.assertTrue(error.getResponseBody().contains("21405"));
+
+        // the injection was limited to one request
+        Assert.assertNotNull(invoiceService.sendInvoiceOnlineSession(invoice(nip), sessionReferenceNumber, encryptionData, accessToken));
+    }
+
+    @Test
+    public void throttledCallIsRetried() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        EncryptionData encryptionData = encryptionDataPool.take();
+        String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken).getReferenceNumber();
+        long injectedBefore = server.injectedErrorCount();
+
+        server.injectError("POST /api/v2/sessions/online/{referenceNumber}/invoices", 21121, 1.0, 2);
+
+        Assert.assertNotNull(invoiceService.sendInvoiceOnlineSession(invoice(nip), sessionReferenceNumber, encryptionData, accessToken));
+        Assert.assertEquals(server.injectedErrorCount() - injectedBefore, 2);
+    }
+
+    @Test
+    public void failedSendIsNotRepeatedUnlessThrottled() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        EncryptionData encryptionData = encryptionDataPool.take();
+        String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken).getReferenceNumber();
+        long sendsBefore = server.requestCount("POST /api/v2/sessions/online/{referenceNumber}/invoices");
+
+        // retryable for a read, but the invoice may have been accepted before the failure
+        server.injectError("POST /api/v2/sessions/online/{referenceNumber}/invoices", 21173, 1.0, 1);
+
+        Assert.expectThrows(ApiException.class, () ->
+                invoiceService.sendInvoiceOnlineSession(invoice(nip), sessionReferenceNumber, encryptionData, accessToken));
+        Assert.assertEquals(server.requestCount("POST /api/v2/sessions/online/{referenceNumber}/invoices") - sendsBefore, 1);
+    }
+}
@@ -2,6 +2,7 @@ package com.bsg6;
 
 import com.bsg6.model.AuthTokensPair;
 import com.bsg6.service.auth.AuthService;
+import com.bsg6.service.crypto.EncryptionDataPool;
 import com.bsg6.service.invoice.InvoiceService;
 import com.bsg6.service.session.OnlineSessionService;
 import jakarta.xml.bind.JAXBException;
@@ -50,6 +51,10 @@ public abstract class KsefBaseIntegrationTest extends AbstractTestNGSpringContex
     @Autowired
     protected DefaultCryptographyService defaultCryptographyService;
 
+    /** Pre-generated session encryption data */
+    @Autowired
+    protected EncryptionDataPool encryptionDataPool;
+
     /** Service for managing online sessions */
     @Autowired
     protected OnlineSessionService onlineSessionService;
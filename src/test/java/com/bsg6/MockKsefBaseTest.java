@@ -0,0 +1,138 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.config.KsefConfiguration;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.model.InvoiceData;
+import com.bsg6.service.auth.AuthService;
+import com.bsg6.service.auth.AuthTokenCache;
+import com.bsg6.service.auth.CertificateCache;
+import com.bsg6.service.crypto.EncryptionDataPool;
+import com.bsg6.service.crypto.PublicKeyCertificateCache;
+import com.bsg6.service.error.ErrorCatalog;
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.invoice.BatchPartUploader;
+import com.bsg6.service.invoice.InvoiceCache;
+import com.bsg6.service.invoice.InvoiceMarshaller;
+import com.bsg6.service.invoice.InvoiceService;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+import com.bsg6.service.polling.StatusPoller;
+import com.bsg6.service.rest.KsefRestClient;
+import com.bsg6.service.rules.InvoiceRuleEngine;
+import com.bsg6.service.session.OnlineSessionPool;
+import com.bsg6.service.session.OnlineSessionService;
+import com.bsg6.service.validation.InvoiceSchemaValidator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import pl.akmf.ksef.sdk.api.DefaultKsefClient;
+import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+import java.math.BigDecimal;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Base class for tests that run the client services against a {@link MockKsefServer} instead of the KSeF test
+ * environment. Each test class starts its own server; subclasses run single-threaded because they count the requests
+ * the server received.
+ */
+public abstract class MockKsefBaseTest {
+
+    protected MockKsefServer server;
+    protected AuthService authService;
+    protected OnlineSessionService onlineSessionService;
+    protected InvoiceService invoiceService;
+    protected EncryptionDataPool encryptionDataPool;
+    protected OnlineSessionPool sessionPool;
+    protected DefaultKsefClient ksefClient;
+    protected StatusPoller statusPoller;
+    protected KsefRestClient restClient;
+    protected KsefApiCalls apiCalls;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        server = new MockKsefServer().withProcessingDelay(Duration.ofMillis(100)).start();
+
+        KsefConfiguration configuration = new KsefConfiguration();
+        ConfigurationProps props = new MockProps(server.baseUri());
+        ObjectMapper objectMapper = configuration.ksefObjectMapper();
+        HttpClient httpClient = configuration.ksefHttpClient(props);
+        ksefClient = configuration.ksefClient(httpClient, props, objectMapper);
+        statusPoller = new StatusPoller(props);
+
+        restClient = new KsefRestClient(httpClient, objectMapper, props);
+        ErrorCatalog errorCatalog = new ErrorCatalog(objectMapper, props);
+        apiCalls = new KsefApiCalls(errorCatalog, props);
+        DefaultCryptographyService cryptographyService = configuration.defaultCryptographyService(ksefClient);
+        encryptionDataPool = new EncryptionDataPool(ksefClient, cryptographyService,
+                new PublicKeyCertificateCache(restClient, props), props);
+        authService = new AuthService(new CertificateCache(configuration.certificateService(), props),
+                configuration.signatureService(), ksefClient, props, new AuthTokenCache(restClient, props), statusPoller,
+                apiCalls, errorCatalog);
+        onlineSessionService = new OnlineSessionService(ksefClient, props, statusPoller, apiCalls);
+        invoiceService = new InvoiceService(ksefClient, cryptographyService, props, new InvoiceTemplateEngine(),
+                new BatchPartUploader(httpClient, objectMapper, props), encryptionDataPool, new InvoiceCache(ksefClient, props, apiCalls),
+                new InvoiceSchemaValidator(props), new InvoiceRuleEngine(props), new InvoiceMarshaller(props), apiCalls);
+        sessionPool = new OnlineSessionPool(onlineSessionService, invoiceService, encryptionDataPool, props);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Sends {@code count} invoices of the seller in one batch session, closes it and waits for its UPO.
+     *
+     * @return the session reference number
+     */
+    protected String sendProcessedBatch(String nip, int count, String accessToken) throws Exception {
+        List<byte[]> invoices = IntStream.range(0, count)
+                .mapToObj(i -> ("<Faktura><NIP>" + nip + "</NIP><P_2>FV/" + i + "</P_2></Faktura>").getBytes(StandardCharsets.UTF_8))
+                .toList();
+        String sessionReferenceNumber = invoiceService.sendInvoicesBatchSession(invoices, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken);
+        onlineSessionService.closeBatchSession(sessionReferenceNumber, accessToken);
+        onlineSessionService.waitUntilUpoGenerated(sessionReferenceNumber, accessToken);
+        return sessionReferenceNumber;
+    }
+
+    protected static InvoiceData invoice(String sellerNip) {
+        return new InvoiceData(sellerNip, "8567346215", new BigDecimal("100.00"), new BigDecimal("23.00"), new BigDecimal("123.00"));
+    }
+
+    protected static class MockProps extends ConfigurationProps {
+        private final String baseUri;
+
+        protected MockProps(String baseUri) {
+            this.baseUri = baseUri;
+        }
+
+        @Override
+        public String getBaseUri() {
+            return baseUri;
+        }
+
+        @Override
+        public Duration getApiRetryBackoff() {
+            return Duration.ofMillis(10);
+        }
+
+        // batch parts are encrypted concurrently however few processors the machine has
+        @Override
+        public int getBatchEncryptionParallelism() {
+            return 4;
+        }
+
+        // the mock server accepts any payload, and the tests send placeholder XML
+        @Override
+        public boolean isValidationEnabled() {
+            return false;
+        }
+    }
+}
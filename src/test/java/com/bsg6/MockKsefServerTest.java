@@ -0,0 +1,144 @@
+package com.bsg6;
+
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.session.OnlineSessionService;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Runs the online and batch session flows against {@link MockKsefServer} instead of the KSeF test environment.
+ */
+@Test(singleThreaded = true)
+public class MockKsefServerTest extends MockKsefBaseTest {
+
+    @Test
+    public void onlineSessionRoundTrip() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        EncryptionData encryptionData = encryptionDataPool.take();
+
+        String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken).getReferenceNumber();
+        invoiceService.sendInvoiceOnlineSession(invoice(nip), sessionReferenceNumber, encryptionData, accessToken);
+
+        Assert.assertTrue(onlineSessionService.waitUntilInvoicesProcessed(sessionReferenceNumber, accessToken));
+        onlineSessionService.closeOnlineSession(sessionReferenceNumber, accessToken);
+        onlineSessionService.waitUntilUpoGenerated(sessionReferenceNumber, accessToken);
+
+        SessionInvoiceStatusResponse sessionInvoice = onlineSessionService.getOnlineSessionDocuments(sessionReferenceNumber, accessToken);
+        Assert.assertTrue(sessionInvoice.getKsefNumber().startsWith(nip));
+
+        String invoiceXml = new String(invoiceService.getInvoice(nip, sessionInvoice.getKsefNumber(), accessToken), StandardCharsets.UTF_8);
+        Assert.assertTrue(invoiceXml.contains(nip), "Downloaded invoice should be the decrypted original");
+    }
+
+    @Test
+    public void invoiceFileIsSentFromMappedBytes() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        EncryptionData encryptionData = encryptionDataPool.take();
+        String sessionReferenceNumber = onlineSessionService.openOnlineSession(encryptionData, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA, accessToken).getReferenceNumber();
+
+        // non-ASCII content must reach KSeF byte for byte
+        Path invoiceFile = Files.createTempFile("invoice-", ".xml");
+        byte[] invoiceXml = ("<Faktura><Podmiot1><NIP>" + nip + "</NIP><Nazwa>Zażółć gęślą jaźń</Nazwa></Podmiot1></Faktura>")
+                .getBytes(StandardCharsets.UTF_8);
+        Files.write(invoiceFile, invoiceXml);
+
+        invoiceService.sendInvoiceXmlOnlineSession(invoiceFile, sessionReferenceNumber, encryptionData, accessToken);
+        Assert.assertTrue(onlineSessionService.waitUntilInvoicesProcessed(sessionReferenceNumber, accessToken));
+
+        String ksefNumber = onlineSessionService.getOnlineSessionDocuments(sessionReferenceNumber, accessToken).getKsefNumber();
+        Assert.assertEquals(invoiceService.getInvoice(nip, ksefNumber, accessToken), invoiceXml);
+        Files.delete(invoiceFile);
+    }
+
+    @Test
+    public void sessionEncryptionDataIsPreGeneratedAndNeverShared() throws Exception {
+        EncryptionData first = encryptionDataPool.take();
+        await().atMost(Duration.ofSeconds(10)).until(() -> encryptionDataPool.available() > 0);
+
+        long hits = encryptionDataPool.hits();
+        EncryptionData second = encryptionDataPool.take();
+
+        Assert.assertEquals(encryptionDataPool.hits(), hits + 1);
+        Assert.assertFalse(Arrays.equals(first.cipherKey(), second.cipherKey()));
+        Assert.assertFalse(Arrays.equals(first.cipherIv(), second.cipherIv()));
+    }
+
+    @Test
+    public void sessionInvoicesAreStreamedAcrossPages() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        String sessionReferenceNumber = sendProcessedBatch(nip, 25, accessToken);
+
+        OnlineSessionService pagedSessionService = new OnlineSessionService(ksefClient, new MockProps(server.baseUri()) {
+            @Override
+            public int getSessionInvoicesPageSize() {
+                return 10;
+            }
+        }, statusPoller, apiCalls);
+        long pagesBefore = server.requestCount("GET /api/v2/sessions/{referenceNumber}/invoices");
+
+        try (Stream<SessionInvoiceStatusResponse> sessionInvoices =
+                     pagedSessionService.streamSessionInvoices(sessionReferenceNumber, accessToken)) {
+            List<String> ksefNumbers = sessionInvoices.map(SessionInvoiceStatusResponse::getKsefNumber).toList();
+            Assert.assertEquals(ksefNumbers.size(), 25);
+            Assert.assertEquals(new HashSet<>(ksefNumbers).size(), 25);
+        }
+        Assert.assertEquals(server.requestCount("GET /api/v2/sessions/{referenceNumber}/invoices") - pagesBefore, 3);
+    }
+
+    @Test
+    public void batchPartsEncryptedConcurrentlyDecryptToTheZipInOrder() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+
+        // the server checks every part against its declared hash and accepts the batch only if the parts, decrypted
+        // one by one and joined in ordinal order, give back the declared ZIP
+        String sessionReferenceNumber = invoiceService.openBatchSessionAndSendInvoicesParts(invoice(nip), accessToken, 30, 6);
+        onlineSessionService.closeBatchSession(sessionReferenceNumber, accessToken);
+        onlineSessionService.waitUntilUpoGenerated(sessionReferenceNumber, accessToken);
+
+        List<SessionInvoiceStatusResponse> invoices = invoiceService.getInvoices(sessionReferenceNumber, accessToken);
+        Assert.assertEquals(invoices.size(), 30);
+        Assert.assertTrue(invoices.stream().allMatch(invoice -> invoice.getKsefNumber() != null));
+    }
+
+    @Test
+    public void specRequestLimitsAnswer429WithRetryAfter() throws Exception {
+        try (MockKsefServer limited = new MockKsefServer().withRateLimitScale(0.05).start();
+             HttpClient client = HttpClient.newHttpClient()) {
+            HttpRequest challenge = HttpRequest.newBuilder(URI.create(limited.baseUri() + "/api/v2/auth/challenge"))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+
+            HttpResponse<String> last = null;
+            for (int i = 0; i < 10 && (last == null || last.statusCode() != 429); i++) {
+                last = client.send(challenge, HttpResponse.BodyHandlers.ofString());
+            }
+
+            Assert.assertEquals(last.statusCode(), 429);
+            Assert.assertTrue(last.headers().firstValue("Retry-After").isPresent());
+            Assert.assertTrue(limited.rateLimitedCount() > 0);
+        }
+    }
+}
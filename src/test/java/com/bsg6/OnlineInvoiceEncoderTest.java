@@ -0,0 +1,70 @@
+package com.bsg6;
+
+import com.bsg6.service.invoice.OnlineInvoiceEncoder;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+public class OnlineInvoiceEncoderTest {
+
+    private final SecureRandom random = new SecureRandom();
+
+    @DataProvider
+    public Object[][] invoiceSizes() {
+        // around AES block and Base64 group boundaries and across several chunks
+        return new Object[][]{{0}, {1}, {15}, {16}, {17}, {47}, {48}, {16 * 1024 + 5}, {200_000}};
+    }
+
+    @Test(dataProvider = "invoiceSizes")
+    public void matchesSeparateEncryptHashAndEncodeSteps(int size) throws Exception {
+        byte[] invoice = randomBytes(size);
+        byte[] cipherKey = randomBytes(32);
+        byte[] cipherIv = randomBytes(16);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(cipherIv));
+        byte[] encrypted = cipher.doFinal(invoice);
+
+        OnlineInvoiceEncoder.EncodedInvoice encoded = OnlineInvoiceEncoder.encode(invoice, cipherKey, cipherIv);
+
+        Assert.assertEquals(encoded.invoiceHash(), sha256(invoice));
+        Assert.assertEquals(encoded.invoiceSize(), invoice.length);
+        Assert.assertEquals(encoded.encryptedInvoiceHash(), sha256(encrypted));
+        Assert.assertEquals(encoded.encryptedInvoiceSize(), encrypted.length);
+        Assert.assertEquals(encoded.encryptedInvoiceContent(), Base64.getEncoder().encodeToString(encrypted));
+    }
+
+    @Test
+    public void directBufferSliceGivesSameResultAsArray() {
+        byte[] invoice = randomBytes(50_000);
+        byte[] cipherKey = randomBytes(32);
+        byte[] cipherIv = randomBytes(16);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(invoice.length + 10);
+        direct.position(10);
+        direct.put(invoice);
+        direct.position(10);
+
+        Assert.assertEquals(OnlineInvoiceEncoder.encode(direct, cipherKey, cipherIv),
+                OnlineInvoiceEncoder.encode(invoice, cipherKey, cipherIv));
+        Assert.assertEquals(direct.position(), 10, "Encoding must not consume the buffer");
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+}
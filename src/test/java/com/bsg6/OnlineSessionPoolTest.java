@@ -0,0 +1,68 @@
+package com.bsg6;
+
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.session.OnlineSessionPool;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.session.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends invoices through {@link OnlineSessionPool} against {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class OnlineSessionPoolTest extends MockKsefBaseTest {
+
+    @Test
+    public void pooledSessionsCarryManyInvoices() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        OnlineSessionPool.SessionKey key = new OnlineSessionPool.SessionKey(nip, SystemCode.FA_2,
+                SchemaVersion.VERSION_1_0E, SessionValue.FA);
+        long sessionsBefore = server.requestCount("POST /api/v2/sessions/online");
+
+        List<CompletableFuture<OnlineSessionPool.SentInvoice>> sends = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            byte[] invoiceXml = ("<Faktura><NIP>" + nip + "</NIP><P_2>FV/" + i + "</P_2></Faktura>").getBytes(StandardCharsets.UTF_8);
+            sends.add(sessionPool.send(key, invoiceXml, accessToken));
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).join();
+
+        List<OnlineSessionPool.ClosedSession> closed = sessionPool.drain().join();
+
+        long sessionsOpened = server.requestCount("POST /api/v2/sessions/online") - sessionsBefore;
+        Assert.assertTrue(sessionsOpened >= 1 && sessionsOpened <= 2, "Opened " + sessionsOpened + " sessions");
+        Assert.assertEquals(closed.size(), sessionsOpened);
+        Assert.assertEquals(closed.stream().mapToInt(OnlineSessionPool.ClosedSession::invoiceCount).sum(), 30);
+        closed.forEach(session -> Assert.assertEquals((int) session.status().getStatus().getCode(), 200));
+    }
+
+    @Test
+    public void drainReportsSessionThatFailedToCloseWithTheOthers() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            String nip = IdentifierGeneratorUtils.generateRandomNIP();
+            String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+            OnlineSessionPool.SessionKey key = new OnlineSessionPool.SessionKey(nip, SystemCode.FA_2,
+                    SchemaVersion.VERSION_1_0E, SessionValue.FA);
+            byte[] invoiceXml = ("<Faktura><NIP>" + nip + "</NIP><P_2>FV/1</P_2></Faktura>").getBytes(StandardCharsets.UTF_8);
+            sessionPool.send(key, invoiceXml, accessToken).join();
+        }
+
+        server.injectError("POST /api/v2/sessions/online/{referenceNumber}/close", 21405, 1.0, 1);
+        List<OnlineSessionPool.ClosedSession> closed = sessionPool.drain().join();
+
+        Assert.assertEquals(closed.size(), 2);
+        List<OnlineSessionPool.ClosedSession> failed = closed.stream().filter(OnlineSessionPool.ClosedSession::failed).toList();
+        Assert.assertEquals(failed.size(), 1);
+        Assert.assertTrue(failed.getFirst().failure() instanceof ApiException, failed.getFirst().failure().toString());
+        Assert.assertNull(failed.getFirst().status());
+        closed.stream().filter(session -> !session.failed())
+                .forEach(session -> Assert.assertEquals((int) session.status().getStatus().getCode(), 200));
+    }
+}
@@ -0,0 +1,49 @@
+package com.bsg6;
+
+import com.bsg6.utils.ParallelUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+public class ParallelUtilsTest {
+
+    @Test
+    public void resultsKeepIndexOrderAcrossThreads() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        List<Integer> results = ParallelUtils.mapInOrder(10, 4, "parallel-test-", i -> {
+            threads.add(Thread.currentThread().getName());
+            return i * i;
+        });
+
+        Assert.assertEquals(results, IntStream.range(0, 10).map(i -> i * i).boxed().toList());
+        Assert.assertEquals(threads.size(), 4);
+        Assert.assertTrue(threads.stream().allMatch(name -> name.startsWith("parallel-test-")));
+    }
+
+    @Test
+    public void singleSliceRunsOnCallingThread() throws Exception {
+        String caller = Thread.currentThread().getName();
+
+        List<String> results = ParallelUtils.mapInOrder(3, 1, "parallel-test-", i -> Thread.currentThread().getName());
+
+        Assert.assertEquals(results, List.of(caller, caller, caller));
+    }
+
+    @Test
+    public void taskFailureIsRethrownAsIs() {
+        IllegalArgumentException failure = Assert.expectThrows(IllegalArgumentException.class,
+                () -> ParallelUtils.mapInOrder(8, 4, "parallel-test-", i -> {
+                    if (i == 5) {
+                        throw new IllegalArgumentException("bad " + i);
+                    }
+                    return i;
+                }));
+
+        Assert.assertEquals(failure.getMessage(), "bad 5");
+    }
+}
@@ -0,0 +1,79 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.service.polling.StatusPollAbortedException;
+import com.bsg6.service.polling.StatusPollTimeoutException;
+import com.bsg6.service.polling.StatusPoller;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StatusPollerTest {
+
+    private final StatusPoller poller = new StatusPoller(new TestProps());
+
+    @Test
+    public void completesWithFirstAcceptedResult() {
+        AtomicInteger probes = new AtomicInteger();
+
+        CompletableFuture<Integer> result = poller.poll("counter", probes::incrementAndGet, count -> count == 3,
+                Duration.ofSeconds(5), Duration.ofMillis(50));
+
+        Assert.assertEquals(StatusPoller.await(result), 3);
+        Assert.assertEquals(probes.get(), 3);
+    }
+
+    @Test
+    public void probeFailuresAreRetriedAndReportedOnTimeout() {
+        AtomicInteger probes = new AtomicInteger();
+
+        CompletableFuture<Boolean> result = poller.poll("failing", () -> {
+            probes.incrementAndGet();
+            throw new IOException("status unavailable");
+        }, done -> done, Duration.ofMillis(300), Duration.ofMillis(50));
+
+        StatusPollTimeoutException timeout = Assert.expectThrows(StatusPollTimeoutException.class, () -> StatusPoller.await(result));
+        Assert.assertTrue(timeout.getCause() instanceof IOException);
+        Assert.assertTrue(probes.get() > 1);
+    }
+
+    @Test
+    public void abortedProbeFailsThePollAtOnce() {
+        AtomicInteger probes = new AtomicInteger();
+
+        CompletableFuture<Boolean> result = poller.poll("rejected", () -> {
+            probes.incrementAndGet();
+            throw new StatusPollAbortedException("rejected", new IOException("status 400"));
+        }, done -> done, Duration.ofSeconds(5), Duration.ofMillis(50));
+
+        StatusPollAbortedException aborted = Assert.expectThrows(StatusPollAbortedException.class, () -> StatusPoller.await(result));
+        Assert.assertTrue(aborted.getCause() instanceof IOException);
+        Assert.assertEquals(probes.get(), 1);
+    }
+
+    @Test
+    public void manyPollsShareTheScheduler() {
+        List<CompletableFuture<Integer>> polls = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            AtomicInteger probes = new AtomicInteger();
+            polls.add(poller.poll("session " + i, probes::incrementAndGet, count -> count == 4,
+                    Duration.ofSeconds(10), Duration.ofMillis(40)));
+        }
+
+        CompletableFuture.allOf(polls.toArray(CompletableFuture[]::new)).join();
+        polls.forEach(poll -> Assert.assertEquals(poll.join(), 4));
+    }
+
+    private static final class TestProps extends ConfigurationProps {
+        @Override
+        public Duration getPollingInitialDelay() {
+            return Duration.ofMillis(5);
+        }
+    }
+}
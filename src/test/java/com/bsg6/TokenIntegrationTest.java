@@ -3,8 +3,22 @@ package com.bsg6;
 import com.bsg6.config.ConfigurationProps;
 import com.bsg6.config.KsefConfiguration;
 import com.bsg6.service.auth.AuthService;
+import com.bsg6.service.auth.AuthTokenCache;
+import com.bsg6.service.auth.CertificateCache;
+import com.bsg6.service.crypto.EncryptionDataPool;
+import com.bsg6.service.crypto.PublicKeyCertificateCache;
+import com.bsg6.service.error.ErrorCatalog;
+import com.bsg6.service.error.KsefApiCalls;
+import com.bsg6.service.invoice.BatchPartUploader;
+import com.bsg6.service.invoice.InvoiceCache;
+import com.bsg6.service.invoice.InvoiceMarshaller;
 import com.bsg6.service.invoice.InvoiceService;
+import com.bsg6.service.invoice.InvoiceTemplateEngine;
+import com.bsg6.service.polling.StatusPoller;
+import com.bsg6.service.rest.KsefRestClient;
+import com.bsg6.service.rules.InvoiceRuleEngine;
 import com.bsg6.service.session.OnlineSessionService;
+import com.bsg6.service.validation.InvoiceSchemaValidator;
 import com.bsg6.utils.IdentifierGeneratorUtils;
 import com.bsg6.model.AuthTokensPair;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -29,7 +43,11 @@ import pl.akmf.ksef.sdk.client.model.xml.SubjectIdentifierTypeEnum;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.awaitility.Awaitility.await;
 
-@SpringBootTest(classes = {KsefConfiguration.class, AuthService.class, OnlineSessionService.class, InvoiceService.class})
+@SpringBootTest(classes = {KsefConfiguration.class, AuthService.class, OnlineSessionService.class, InvoiceService.class,
+        InvoiceTemplateEngine.class, BatchPartUploader.class, AuthTokenCache.class, KsefRestClient.class,
+        CertificateCache.class, StatusPoller.class, EncryptionDataPool.class, PublicKeyCertificateCache.class,
+        InvoiceCache.class, InvoiceSchemaValidator.class, InvoiceRuleEngine.class,
+        InvoiceMarshaller.class, ErrorCatalog.class, KsefApiCalls.class})
 public class TokenIntegrationTest extends KsefBaseIntegrationTest {
 
     @Test
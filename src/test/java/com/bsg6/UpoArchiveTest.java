@@ -0,0 +1,51 @@
+package com.bsg6;
+
+import com.bsg6.config.ConfigurationProps;
+import com.bsg6.mock.MockKsefServer;
+import com.bsg6.service.upo.UpoArchive;
+import com.bsg6.utils.IdentifierGeneratorUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Archives session UPOs with {@link UpoArchive} from {@link MockKsefServer}.
+ */
+@Test(singleThreaded = true)
+public class UpoArchiveTest extends MockKsefBaseTest {
+
+    @Test
+    public void sessionUposAreArchivedOnceAndReadBackFromDisk() throws Exception {
+        String nip = IdentifierGeneratorUtils.generateRandomNIP();
+        String accessToken = authService.authWithCustomNipAndRsa(nip).accessToken();
+        String sessionReferenceNumber = sendProcessedBatch(nip, 12, accessToken);
+
+        Path archiveDir = Files.createTempDirectory("upo-archive");
+        ConfigurationProps props = new MockProps(server.baseUri()) {
+            @Override
+            public Path getUpoArchiveDir() {
+                return archiveDir;
+            }
+        };
+        UpoArchive archive = new UpoArchive(restClient, onlineSessionService, props);
+
+        List<UpoArchive.ArchivedUpo> first = archive.archiveSession(sessionReferenceNumber, accessToken).join();
+        Assert.assertEquals(first.size(), 13, "12 invoice UPOs and one session UPO");
+        Assert.assertTrue(first.stream().allMatch(UpoArchive.ArchivedUpo::downloaded));
+
+        String ksefNumber = first.stream().map(UpoArchive.ArchivedUpo::key).filter(key -> !key.startsWith("session/"))
+                .findFirst().orElseThrow();
+        byte[] upo = archive.openInvoiceUpo(ksefNumber).orElseThrow().readAllBytes();
+        Assert.assertTrue(new String(upo, StandardCharsets.UTF_8).contains(ksefNumber));
+
+        // a new instance reads the index from disk and downloads nothing
+        List<UpoArchive.ArchivedUpo> second = new UpoArchive(restClient, onlineSessionService, props)
+                .archiveSession(sessionReferenceNumber, accessToken).join();
+        Assert.assertEquals(second.size(), 13);
+        Assert.assertTrue(second.stream().noneMatch(UpoArchive.ArchivedUpo::downloaded));
+    }
+}
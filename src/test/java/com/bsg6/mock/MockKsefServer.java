@@ -0,0 +1,1233 @@
+package com.bsg6.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.akmf.ksef.sdk.api.services.DefaultCertificateService;
+import pl.akmf.ksef.sdk.client.model.auth.EncryptionMethod;
+import pl.akmf.ksef.sdk.client.model.certificate.SelfSignedCertificate;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * In-process stand-in for the KSeF API, for running the pipeline offline and under load.
+ * <p>
+ * Routes, success statuses and request limits come from {@code opeapi-spec.json}. The authentication, online and
+ * batch session, session invoice, UPO, invoice download, invoice metadata query, invoice export and public key endpoints are implemented with in-memory
+ * state; any other operation of the spec answers 501. Invoices are really decrypted with the session key, so hashes,
+ * sizes and ZIP packages sent by the client are verified as KSeF would.
+ * </p>
+ * <p>
+ * Behaviour knobs: response latency, processing delay of asynchronous operations, scaling of the spec request
+ * limits (429 with {@code Retry-After}), and error injection with exception codes from {@code ksef-error-list.txt}.
+ * Run {@link #main} to start a standalone instance and point the tests at it with {@code -DKSEF_API=<base uri>}.
+ * </p>
+ */
+public final class MockKsefServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MockKsefServer.class);
+
+    private static final Pattern CONTEXT_NIP = Pattern.compile("<(?:\\w+:)?Nip>(\\d{10})</(?:\\w+:)?Nip>");
+    private static final Pattern INVOICE_NUMBER = Pattern.compile("<P_2>([^<]*)</P_2>");
+    private static final Pattern INVOICING_DATE = Pattern.compile("<P_1>([^<]*)</P_1>");
+    private static final Pattern BUYER_NIP = Pattern.compile("<Podmiot2>.*?<NIP>(\\d{10})</NIP>", Pattern.DOTALL);
+    private static final DateTimeFormatter REFERENCE_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final Duration ACCESS_TOKEN_LIFETIME = Duration.ofMinutes(15);
+    private static final Duration REFRESH_TOKEN_LIFETIME = Duration.ofDays(7);
+    private static final String STORAGE_PATH = "/mock-storage/";
+
+    @FunctionalInterface
+    private interface Handler {
+        Reply handle(Call call) throws Exception;
+    }
+
+    private record Call(HttpExchange exchange, SpecRoutes.Route route, Map<String, String> parameters, byte[] body) {
+        String bearer() {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            return authorization != null && authorization.startsWith("Bearer ") ? authorization.substring(7) : null;
+        }
+
+        String header(String name) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+
+        String query(String name) {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null) {
+                return null;
+            }
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+    }
+
+    private record Reply(int status, String contentType, byte[] body, Map<String, String> headers) {
+    }
+
+    /**
+     * KSeF-style failure raised by handlers; rendered as an {@code ExceptionResponse}.
+     */
+    private static final class KsefError extends RuntimeException {
+        final int httpStatus;
+        final int exceptionCode;
+
+        KsefError(int httpStatus, int exceptionCode, String details) {
+            super(details);
+            this.httpStatus = httpStatus;
+            this.exceptionCode = exceptionCode;
+        }
+    }
+
+    private record Grant(String nip, Instant validUntil) {
+    }
+
+    private static final class AuthOperation {
+        final String referenceNumber;
+        final String nip;
+        final Instant startedAt = Instant.now();
+        volatile boolean redeemed;
+
+        AuthOperation(String referenceNumber, String nip) {
+            this.referenceNumber = referenceNumber;
+            this.nip = nip;
+        }
+    }
+
+    private record DeclaredPart(int ordinalNumber, long size, String hash) {
+    }
+
+    private static final class StoredInvoice {
+        final int ordinalNumber;
+        final String referenceNumber;
+        final String ksefNumber;
+        final String invoiceHash;
+        final String fileName;
+        final Instant acquiredAt;
+        final byte[] content;
+
+        StoredInvoice(int ordinalNumber, String referenceNumber, String ksefNumber, String invoiceHash, String fileName,
+                      Instant acquiredAt, byte[] content) {
+            this.ordinalNumber = ordinalNumber;
+            this.referenceNumber = referenceNumber;
+            this.ksefNumber = ksefNumber;
+            this.invoiceHash = invoiceHash;
+            this.fileName = fileName;
+            this.acquiredAt = acquiredAt;
+            this.content = content;
+        }
+    }
+
+    private static final class Session {
+        final String referenceNumber;
+        final boolean batch;
+        final String nip;
+        final byte[] key;
+        final byte[] iv;
+        final String upoReferenceNumber;
+        final List<StoredInvoice> invoices = new CopyOnWriteArrayList<>();
+        final Map<Integer, DeclaredPart> declaredParts = new TreeMap<>();
+        final Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<>();
+        long declaredFileSize;
+        String declaredFileHash;
+        volatile Instant closedAt;
+        volatile Integer failureCode;
+        boolean batchProcessed;
+
+        Session(String referenceNumber, boolean batch, String nip, byte[] key, byte[] iv) {
+            this.referenceNumber = referenceNumber;
+            this.batch = batch;
+            this.nip = nip;
+            this.key = key;
+            this.iv = iv;
+            this.upoReferenceNumber = referenceNumber + "-UPO";
+        }
+    }
+
+    /**
+     * A prepared export; the package description is built when the export is requested.
+     */
+    private record Export(String referenceNumber, String nip, Instant startedAt, Map<String, Object> invoicePackage) {
+    }
+
+    private record Injection(String routeKey, int exceptionCode, double probability, AtomicInteger remaining) {
+    }
+
+    private static final class Window {
+        long second = -1, minute = -1, hour = -1;
+        int perSecond, perMinute, perHour;
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SpecRoutes specRoutes;
+    private final Map<Integer, String> errorCatalog;
+    private final Map<String, Handler> handlers = new HashMap<>();
+    private final X509Certificate encryptionCertificate;
+    private final PrivateKey encryptionKey;
+
+    private final Map<String, AuthOperation> authOperations = new ConcurrentHashMap<>();
+    private final Map<String, Grant> accessTokens = new ConcurrentHashMap<>();
+    private final Map<String, Grant> refreshTokens = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, StoredInvoice> invoicesByKsefNumber = new ConcurrentHashMap<>();
+    private final Map<String, Export> exports = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> exportParts = new ConcurrentHashMap<>();
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final List<Injection> injections = new CopyOnWriteArrayList<>();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+
+    private volatile Duration minLatency = Duration.ZERO;
+    private volatile Duration maxLatency = Duration.ZERO;
+    private volatile Duration processingDelay = Duration.ofMillis(200);
+    private volatile double rateLimitScale = 0;
+    private volatile int metadataQueryLimit = 10_000;
+    private volatile int exportMaxInvoices = 10_000;
+    private volatile int exportMaxPartSize = 50 * 1024 * 1024;
+
+    private HttpServer server;
+
+    public MockKsefServer() throws IOException {
+        this.specRoutes = SpecRoutes.load(objectMapper);
+        this.errorCatalog = loadErrorCatalog();
+
+        SelfSignedCertificate certificate = new DefaultCertificateService()
+                .getCompanySeal("KSeF Mock", "VATPL-0000000000", "KSeF Mock", EncryptionMethod.Rsa);
+        this.encryptionCertificate = certificate.certificate();
+        this.encryptionKey = certificate.getPrivateKey();
+
+        registerHandlers();
+    }
+
+    // ==================== Configuration ====================
+
+    /**
+     * Every response is delayed by a random time between min and max.
+     */
+    public MockKsefServer withLatency(Duration min, Duration max) {
+        this.minLatency = min;
+        this.maxLatency = max;
+        return this;
+    }
+
+    /**
+     * Time KSeF needs to process an authentication, an invoice or a closed session.
+     */
+    public MockKsefServer withProcessingDelay(Duration processingDelay) {
+        this.processingDelay = processingDelay;
+        return this;
+    }
+
+    /**
+     * Enforces the request limits documented in the spec, multiplied by the scale; 0 disables rate limiting.
+     */
+    public MockKsefServer withRateLimitScale(double rateLimitScale) {
+        this.rateLimitScale = rateLimitScale;
+        return this;
+    }
+
+    /**
+     * Results of one invoice metadata query after which KSeF truncates it; 10 000 like the real service.
+     */
+    public MockKsefServer withMetadataQueryLimit(int metadataQueryLimit) {
+        this.metadataQueryLimit = metadataQueryLimit;
+        return this;
+    }
+
+    /**
+     * Invoices after which an export package is truncated, and the size its ZIP is split into parts of.
+     */
+    public MockKsefServer withExportLimits(int maxInvoices, int maxPartSize) {
+        this.exportMaxInvoices = maxInvoices;
+        this.exportMaxPartSize = maxPartSize;
+        return this;
+    }
+
+    /**
+     * Fails requests of a route with the given KSeF exception code.
+     *
+     * @param routeKey    method and spec path template, e.g. {@code "POST /api/v2/sessions/online/{referenceNumber}/invoices"}
+     * @param probability chance of failing each request, 1.0 fails all of them
+     * @param times       number of failures to inject, or -1 for no limit
+     */
+    public MockKsefServer injectError(String routeKey, int exceptionCode, double probability, int times) {
+        if (!errorCatalog.containsKey(exceptionCode)) {
+            throw new IllegalArgumentException("Unknown KSeF exception code " + exceptionCode);
+        }
+        if (specRoutes.routes().stream().noneMatch(route -> route.key().equals(routeKey))) {
+            throw new IllegalArgumentException("No such operation in the spec: " + routeKey);
+        }
+        injections.add(new Injection(routeKey, exceptionCode, probability, new AtomicInteger(times)));
+        return this;
+    }
+
+    public MockKsefServer clearInjectedErrors() {
+        injections.clear();
+        return this;
+    }
+
+    // ==================== Lifecycle and statistics ====================
+
+    public MockKsefServer start() throws IOException {
+        return start(0);
+    }
+
+    public MockKsefServer start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::dispatch);
+        server.start();
+        log.info("Mock KSeF listening on {}", baseUri());
+        return this;
+    }
+
+    public String baseUri() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long requestCount(String routeKey) {
+        LongAdder count = requestCounts.get(routeKey);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long rateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    public long injectedErrorCount() {
+        return injectedErrors.sum();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MockKsefServer server = new MockKsefServer()
+                .withLatency(Duration.ofMillis(20), Duration.ofMillis(80))
+                .withRateLimitScale(1.0)
+                .start(args.length > 0 ? Integer.parseInt(args[0]) : 8089);
+        System.out.println("Mock KSeF running, start tests with -DKSEF_API=" + server.baseUri());
+        Thread.currentThread().join();
+    }
+
+    // ==================== Dispatching ====================
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+
+            delay();
+
+            if (path.startsWith(STORAGE_PATH) && method.equals("PUT")) {
+                send(exchange, uploadPart(path.substring(STORAGE_PATH.length()), body));
+                return;
+            }
+            if (path.startsWith(STORAGE_PATH) && method.equals("GET")) {
+                byte[] part = exportParts.get(path.substring(STORAGE_PATH.length()));
+                send(exchange, part == null
+                        ? new Reply(404, null, new byte[0], Map.of())
+                        : new Reply(200, "application/octet-stream", part, Map.of()));
+                return;
+            }
+
+            SpecRoutes.Route route = specRoutes.find(method, path);
+            if (route == null) {
+                send(exchange, error(new KsefError(404, 21162, method + " " + path + " is not a KSeF operation")));
+                return;
+            }
+            requestCounts.computeIfAbsent(route.key(), k -> new LongAdder()).increment();
+            Call call = new Call(exchange, route, route.match(path), body);
+
+            Reply reply;
+            try {
+                reply = limitReply(call);
+                if (reply == null) {
+                    injectError(route);
+                    Handler handler = handlers.get(route.key());
+                    reply = handler == null
+                            ? error(new KsefError(501, 21162, route.key() + " is not implemented by the mock"))
+                            : handler.handle(call);
+                }
+            } catch (KsefError e) {
+                reply = error(e);
+            } catch (Exception e) {
+                log.warn("Mock KSeF failed on {}", route.key(), e);
+                reply = error(new KsefError(500, 21162, e.toString()));
+            }
+            send(exchange, reply);
+        }
+    }
+
+    private void delay() {
+        long min = minLatency.toMillis();
+        long max = maxLatency.toMillis();
+        if (max <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : max);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Reply limitReply(Call call) {
+        double scale = rateLimitScale;
+        SpecRoutes.RateLimit limit = call.route().rateLimit();
+        if (scale <= 0) {
+            return null;
+        }
+
+        String bearer = call.bearer();
+        Grant grant = bearer == null ? null : accessTokens.get(bearer);
+        Window window = windows.computeIfAbsent(limit.group() + "|" + (grant == null ? "anonymous" : grant.nip()), k -> new Window());
+
+        long now = System.currentTimeMillis();
+        long retryAfter;
+        synchronized (window) {
+            if (window.second != now / 1000) {
+                window.second = now / 1000;
+                window.perSecond = 0;
+            }
+            if (window.minute != now / 60_000) {
+                window.minute = now / 60_000;
+                window.perMinute = 0;
+            }
+            if (window.hour != now / 3_600_000) {
+                window.hour = now / 3_600_000;
+                window.perHour = 0;
+            }
+
+            if (exceeded(window.perHour, limit.perHour(), scale)) {
+                retryAfter = 3600 - (now / 1000) % 3600;
+            } else if (exceeded(window.perMinute, limit.perMinute(), scale)) {
+                retryAfter = 60 - (now / 1000) % 60;
+            } else if (exceeded(window.perSecond, limit.perSecond(), scale)) {
+                retryAfter = 1;
+            } else {
+                window.perSecond++;
+                window.perMinute++;
+                window.perHour++;
+                return null;
+            }
+        }
+
+        rateLimited.increment();
+        return json(429, status(429, "Too Many Requests",
+                        List.of("Przekroczono limit żądań dla grupy " + limit.group() + ". Spróbuj ponownie za " + retryAfter + " s.")),
+                Map.of("Retry-After", Long.toString(retryAfter)));
+    }
+
+    private static boolean exceeded(int count, int limit, double scale) {
+        return limit > 0 && count >= Math.max(1, (int) Math.ceil(limit * scale));
+    }
+
+    private void injectError(SpecRoutes.Route route) {
+        for (Injection injection : injections) {
+            if (!injection.routeKey().equals(route.key())
+                    || ThreadLocalRandom.current().nextDouble() >= injection.probability()) {
+                continue;
+            }
+            int remaining = injection.remaining().getAndUpdate(left -> left > 0 ? left - 1 : left);
+            if (remaining == 0) {
+                continue;
+            }
+            injectedErrors.increment();
+            int code = injection.exceptionCode();
+            throw new KsefError(httpStatusOf(code), code, "Injected by the mock");
+        }
+    }
+
+    private static int httpStatusOf(int exceptionCode) {
+        if (exceptionCode == 21121) {
+            return 429;
+        }
+        return exceptionCode / 100 == 213 ? 401 : 400;
+    }
+
+    private void send(HttpExchange exchange, Reply reply) throws IOException {
+        reply.headers().forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        if (reply.contentType() != null) {
+            exchange.getResponseHeaders().add("Content-Type", reply.contentType());
+        }
+        exchange.sendResponseHeaders(reply.status(), reply.body().length == 0 ? -1 : reply.body().length);
+        if (reply.body().length > 0) {
+            exchange.getResponseBody().write(reply.body());
+        }
+    }
+
+    // ==================== Handlers ====================
+
+    private void registerHandlers() {
+        handlers.put("GET /api/v2/security/public-key-certificates", this::publicKeyCertificates);
+
+        handlers.put("POST /api/v2/auth/challenge", this::challenge);
+        handlers.put("POST /api/v2/auth/xades-signature", this::xadesSignature);
+        handlers.put("GET /api/v2/auth/{referenceNumber}", this::authStatus);
+        handlers.put("POST /api/v2/auth/token/redeem", this::redeemToken);
+        handlers.put("POST /api/v2/auth/token/refresh", this::refreshToken);
+
+        handlers.put("POST /api/v2/sessions/online", call -> openSession(call, false));
+        handlers.put("POST /api/v2/sessions/online/{referenceNumber}/invoices", this::sendInvoice);
+        handlers.put("POST /api/v2/sessions/online/{referenceNumber}/close", this::closeSession);
+        handlers.put("POST /api/v2/sessions/batch", call -> openSession(call, true));
+        handlers.put("POST /api/v2/sessions/batch/{referenceNumber}/close", this::closeSession);
+
+        handlers.put("GET /api/v2/sessions/{referenceNumber}", this::sessionStatus);
+        handlers.put("GET /api/v2/sessions/{referenceNumber}/invoices", this::sessionInvoices);
+        handlers.put("GET /api/v2/sessions/{referenceNumber}/invoices/{invoiceReferenceNumber}", this::sessionInvoice);
+        handlers.put("GET /api/v2/sessions/{referenceNumber}/invoices/ksef/{ksefNumber}/upo", this::invoiceUpoByKsefNumber);
+        handlers.put("GET /api/v2/sessions/{referenceNumber}/invoices/{invoiceReferenceNumber}/upo", this::invoiceUpoByReferenceNumber);
+        handlers.put("GET /api/v2/sessions/{referenceNumber}/upo/{upoReferenceNumber}", this::sessionUpo);
+
+        handlers.put("GET /api/v2/invoices/ksef/{ksefNumber}", this::downloadInvoice);
+        handlers.put("POST /api/v2/invoices/query/metadata", this::queryInvoiceMetadata);
+        handlers.put("POST /api/v2/invoices/exports", this::startExport);
+        handlers.put("GET /api/v2/invoices/exports/{referenceNumber}", this::exportStatus);
+    }
+
+    private Reply publicKeyCertificates(Call call) throws GeneralSecurityException {
+        return json(call.route().successStatus(), List.of(object(
+                "certificate", Base64.getEncoder().encodeToString(encryptionCertificate.getEncoded()),
+                "validFrom", encryptionCertificate.getNotBefore().toInstant().toString(),
+                "validTo", encryptionCertificate.getNotAfter().toInstant().toString(),
+                "usage", List.of("KsefTokenEncryption", "SymmetricKeyEncryption"))));
+    }
+
+    private Reply challenge(Call call) {
+        Instant now = Instant.now();
+        return json(call.route().successStatus(), object(
+                "challenge", referenceNumber("CR"),
+                "timestamp", now.toString(),
+                "timestampMs", now.toEpochMilli()));
+    }
+
+    private Reply xadesSignature(Call call) {
+        Matcher nip = CONTEXT_NIP.matcher(new String(call.body(), StandardCharsets.UTF_8));
+        if (!nip.find()) {
+            throw new KsefError(400, 21160, "Brak identyfikatora kontekstu NIP");
+        }
+
+        AuthOperation operation = new AuthOperation(referenceNumber("AU"), nip.group(1));
+        authOperations.put(operation.referenceNumber, operation);
+        return json(call.route().successStatus(), object(
+                "referenceNumber", operation.referenceNumber,
+                "authenticationToken", tokenInfo(token("auth", operation.referenceNumber, Instant.now().plus(Duration.ofMinutes(5))),
+                        Instant.now().plus(Duration.ofMinutes(5)))));
+    }
+
+    private Reply authStatus(Call call) {
+        AuthOperation operation = authOperation(call, call.parameters().get("referenceNumber"));
+        boolean ready = !Instant.now().isBefore(operation.startedAt.plus(processingDelay));
+        return json(call.route().successStatus(), object(
+                "startDate", operation.startedAt.toString(),
+                "authenticationMethod", "QualifiedSeal",
+                "status", ready ? status(200, "Uwierzytelnianie zakończone sukcesem", null)
+                        : status(100, "Uwierzytelnianie w toku", null),
+                "isTokenRedeemed", operation.redeemed));
+    }
+
+    private Reply redeemToken(Call call) {
+        AuthOperation operation = authOperation(call, null);
+        if (Instant.now().isBefore(operation.startedAt.plus(processingDelay))) {
+            throw new KsefError(400, 21304, "Uwierzytelnianie w toku");
+        }
+        synchronized (operation) {
+            if (operation.redeemed) {
+                throw new KsefError(400, 21303, "Token uwierzytelniający został już wykorzystany");
+            }
+            operation.redeemed = true;
+        }
+
+        Instant accessValidUntil = Instant.now().plus(ACCESS_TOKEN_LIFETIME);
+        Instant refreshValidUntil = Instant.now().plus(REFRESH_TOKEN_LIFETIME);
+        String accessToken = token("access", operation.nip, accessValidUntil);
+        String refreshToken = token("refresh", operation.nip, refreshValidUntil);
+        accessTokens.put(accessToken, new Grant(operation.nip, accessValidUntil));
+        refreshTokens.put(refreshToken, new Grant(operation.nip, refreshValidUntil));
+
+        return json(call.route().successStatus(), object(
+                "accessToken", tokenInfo(accessToken, accessValidUntil),
+                "refreshToken", tokenInfo(refreshToken, refreshValidUntil)));
+    }
+
+    private Reply refreshToken(Call call) {
+        Grant refresh = call.bearer() == null ? null : refreshTokens.get(call.bearer());
+        if (refresh == null || Instant.now().isAfter(refresh.validUntil())) {
+            throw new KsefError(401, 21302, "Token odświeżający nieaktywny");
+        }
+
+        Instant validUntil = Instant.now().plus(ACCESS_TOKEN_LIFETIME);
+        String accessToken = token("access", refresh.nip(), validUntil);
+        accessTokens.put(accessToken, new Grant(refresh.nip(), validUntil));
+        return json(call.route().successStatus(), object("accessToken", tokenInfo(accessToken, validUntil)));
+    }
+
+    private Reply openSession(Call call, boolean batch) throws Exception {
+        Grant grant = requireAccess(call);
+        JsonNode request = objectMapper.readTree(call.body());
+
+        JsonNode encryption = request.path("encryption");
+        if (encryption.isMissingNode()) {
+            throw new KsefError(400, 21136, null);
+        }
+        byte[] key = decryptSymmetricKey(encryption.path("encryptedSymmetricKey").asText());
+        byte[] iv = Base64.getDecoder().decode(encryption.path("initializationVector").asText());
+
+        Session session = new Session(referenceNumber(batch ? "SB" : "SO"), batch, grant.nip(), key, iv);
+        if (batch) {
+            JsonNode batchFile = request.path("batchFile");
+            JsonNode fileParts = batchFile.path("fileParts");
+            if (fileParts.isEmpty()) {
+                throw new KsefError(400, 21141, null);
+            }
+            session.declaredFileSize = batchFile.path("fileSize").asLong();
+            session.declaredFileHash = batchFile.path("fileHash").asText();
+            for (JsonNode part : fileParts) {
+                int ordinalNumber = part.path("ordinalNumber").asInt();
+                session.declaredParts.put(ordinalNumber,
+                        new DeclaredPart(ordinalNumber, part.path("fileSize").asLong(), part.path("fileHash").asText()));
+            }
+        }
+        sessions.put(session.referenceNumber, session);
+
+        if (!batch) {
+            return json(call.route().successStatus(), object(
+                    "referenceNumber", session.referenceNumber,
+                    "validUntil", Instant.now().plus(Duration.ofHours(12)).toString()));
+        }
+
+        List<Map<String, Object>> uploadRequests = new ArrayList<>();
+        for (DeclaredPart part : session.declaredParts.values()) {
+            uploadRequests.add(object(
+                    "ordinalNumber", part.ordinalNumber(),
+                    "method", "PUT",
+                    "url", baseUri() + STORAGE_PATH + session.referenceNumber + "/" + part.ordinalNumber(),
+                    "headers", Map.of("x-ms-blob-type", "BlockBlob")));
+        }
+        return json(call.route().successStatus(), object(
+                "referenceNumber", session.referenceNumber,
+                "partUploadRequests", uploadRequests));
+    }
+
+    private Reply uploadPart(String target, byte[] body) {
+        String[] segments = target.split("/");
+        Session session = segments.length == 2 ? sessions.get(segments[0]) : null;
+        DeclaredPart part = session == null ? null : session.declaredParts.get(Integer.parseInt(segments[1]));
+        if (part == null || session.closedAt != null) {
+            return new Reply(404, null, new byte[0], Map.of());
+        }
+        if (body.length != part.size() || !sha256Base64(body).equals(part.hash())) {
+            return new Reply(400, null, new byte[0], Map.of());
+        }
+        session.uploadedParts.put(part.ordinalNumber(), body);
+        return new Reply(201, null, new byte[0], Map.of());
+    }
+
+    private Reply sendInvoice(Call call) throws Exception {
+        Grant grant = requireAccess(call);
+        Session session = session(call, grant);
+        if (session.batch) {
+            throw new KsefError(400, 21146, null);
+        }
+        if (session.closedAt != null) {
+            throw new KsefError(400, 21154, null);
+        }
+
+        JsonNode request = objectMapper.readTree(call.body());
+        byte[] encrypted = Base64.getDecoder().decode(request.path("encryptedInvoiceContent").asText());
+        if (encrypted.length != request.path("encryptedInvoiceSize").asLong()
+                || !sha256Base64(encrypted).equals(request.path("encryptedInvoiceHash").asText())) {
+            throw new KsefError(400, 21403, "Skrót lub rozmiar zaszyfrowanej faktury nie zgadza się z treścią");
+        }
+
+        byte[] invoice;
+        try {
+            invoice = aes(session, encrypted);
+        } catch (GeneralSecurityException e) {
+            throw new KsefError(400, 20005, e.getMessage());
+        }
+        if (invoice.length != request.path("invoiceSize").asLong()
+                || !sha256Base64(invoice).equals(request.path("invoiceHash").asText())) {
+            throw new KsefError(400, 21403, "Skrót lub rozmiar faktury nie zgadza się z treścią");
+        }
+
+        StoredInvoice stored = store(session, invoice, null);
+        return json(call.route().successStatus(), object("referenceNumber", stored.referenceNumber));
+    }
+
+    private Reply closeSession(Call call) {
+        Session session = session(call, requireAccess(call));
+        if (session.closedAt != null) {
+            throw new KsefError(400, session.batch ? 21151 : 21154, null);
+        }
+        if (session.batch && !session.uploadedParts.keySet().containsAll(session.declaredParts.keySet())) {
+            throw new KsefError(400, 21156, "Nie przesłano wszystkich części pakietu");
+        }
+        session.closedAt = Instant.now();
+        return new Reply(call.route().successStatus(), null, new byte[0], Map.of());
+    }
+
+    private Reply sessionStatus(Call call) {
+        Session session = session(call, requireAccess(call));
+        boolean processed = isProcessed(session);
+
+        Map<String, Object> status;
+        if (session.failureCode != null) {
+            status = status(session.failureCode, "Błąd weryfikacji pakietu", null);
+        } else if (processed) {
+            status = status(200, "Sesja przetworzona pomyślnie", null);
+        } else if (session.closedAt != null) {
+            status = status(session.batch ? 150 : 170, "Trwa przetwarzanie", null);
+        } else {
+            status = status(100, session.batch ? "Sesja wsadowa rozpoczęta" : "Sesja interaktywna otwarta", null);
+        }
+
+        long successful = session.invoices.stream().filter(this::isProcessed).count();
+        Map<String, Object> response = object(
+                "status", status,
+                "invoiceCount", session.invoices.size(),
+                "successfulInvoiceCount", successful,
+                "failedInvoiceCount", 0);
+        if (processed) {
+            response.put("upo", object("pages", List.of(object(
+                    "referenceNumber", session.upoReferenceNumber,
+                    "downloadUrl", baseUri() + "/api/v2/sessions/" + session.referenceNumber + "/upo/" + session.upoReferenceNumber,
+                    "downloadUrlExpirationDate", Instant.now().plus(Duration.ofHours(1)).toString()))));
+        }
+        return json(call.route().successStatus(), response);
+    }
+
+    private Reply sessionInvoices(Call call) {
+        Session session = session(call, requireAccess(call));
+        isProcessed(session);
+
+        int pageSize = call.query("pageSize") == null ? 10 : Integer.parseInt(call.query("pageSize"));
+        String continuationToken = call.header("x-continuation-token");
+        int from = continuationToken == null || continuationToken.isBlank() ? 0 : Integer.parseInt(continuationToken);
+        int to = Math.min(session.invoices.size(), from + pageSize);
+
+        List<Map<String, Object>> page = new ArrayList<>();
+        for (StoredInvoice invoice : session.invoices.subList(Math.min(from, to), to)) {
+            page.add(invoiceStatus(session, invoice));
+        }
+        Map<String, Object> response = object("invoices", page);
+        if (to < session.invoices.size()) {
+            response.put("continuationToken", Integer.toString(to));
+        }
+        return json(call.route().successStatus(), response);
+    }
+
+    private Reply sessionInvoice(Call call) {
+        Session session = session(call, requireAccess(call));
+        return json(call.route().successStatus(), invoiceStatus(session, invoiceByReference(session, call.parameters().get("invoiceReferenceNumber"))));
+    }
+
+    private Reply invoiceUpoByKsefNumber(Call call) {
+        Session session = session(call, requireAccess(call));
+        String ksefNumber = call.parameters().get("ksefNumber");
+        StoredInvoice invoice = session.invoices.stream()
+                .filter(candidate -> candidate.ksefNumber.equals(ksefNumber) && isProcessed(candidate))
+                .findFirst()
+                .orElseThrow(() -> new KsefError(400, 21164, ksefNumber));
+        return xml(call.route().successStatus(), upo(session, List.of(invoice)));
+    }
+
+    private Reply invoiceUpoByReferenceNumber(Call call) {
+        Session session = session(call, requireAccess(call));
+        StoredInvoice invoice = invoiceByReference(session, call.parameters().get("invoiceReferenceNumber"));
+        if (!isProcessed(invoice)) {
+            throw new KsefError(400, 21164, invoice.referenceNumber);
+        }
+        return xml(call.route().successStatus(), upo(session, List.of(invoice)));
+    }
+
+    private Reply sessionUpo(Call call) {
+        Session session = session(call, requireAccess(call));
+        if (!isProcessed(session) || !session.upoReferenceNumber.equals(call.parameters().get("upoReferenceNumber"))) {
+            throw new KsefError(400, 21168, call.parameters().get("upoReferenceNumber"));
+        }
+        return xml(call.route().successStatus(), upo(session, session.invoices));
+    }
+
+    private Reply downloadInvoice(Call call) {
+        Grant grant = requireAccess(call);
+        StoredInvoice invoice = invoicesByKsefNumber.get(call.parameters().get("ksefNumber"));
+        if (invoice == null || !isProcessed(invoice) || !invoice.ksefNumber.startsWith(grant.nip())) {
+            throw new KsefError(400, 21164, call.parameters().get("ksefNumber"));
+        }
+        return new Reply(call.route().successStatus(), "application/xml", invoice.content, Map.of());
+    }
+
+    private Reply queryInvoiceMetadata(Call call) throws IOException {
+        Grant grant = requireAccess(call);
+        Instant hwm = Instant.now();
+        List<StoredInvoice> matching = queryInvoices(grant, objectMapper.readTree(call.body()), hwm);
+        int pageOffset = call.query("pageOffset") == null ? 0 : Integer.parseInt(call.query("pageOffset"));
+        int pageSize = call.query("pageSize") == null ? 10 : Integer.parseInt(call.query("pageSize"));
+
+        int start = Math.min(pageOffset * pageSize, Math.min(matching.size(), metadataQueryLimit));
+        int end = Math.min(start + pageSize, Math.min(matching.size(), metadataQueryLimit));
+        boolean hasMore = end < matching.size();
+        List<Map<String, Object>> invoices = matching.subList(start, end).stream().map(this::invoiceMetadata).toList();
+        return json(call.route().successStatus(), object(
+                "hasMore", hasMore,
+                "isTruncated", hasMore && end >= metadataQueryLimit,
+                "permanentStorageHwmDate", hwm.toString(),
+                "invoices", invoices));
+    }
+
+    private Reply startExport(Call call) throws Exception {
+        Grant grant = requireAccess(call);
+        JsonNode request = objectMapper.readTree(call.body());
+        JsonNode encryption = request.path("encryption");
+        if (encryption.isMissingNode()) {
+            throw new KsefError(400, 21136, null);
+        }
+        byte[] key = decryptSymmetricKey(encryption.path("encryptedSymmetricKey").asText());
+        byte[] iv = Base64.getDecoder().decode(encryption.path("initializationVector").asText());
+
+        Instant hwm = Instant.now();
+        List<StoredInvoice> matching = queryInvoices(grant, request.path("filters"), hwm);
+        List<StoredInvoice> included = matching.subList(0, Math.min(matching.size(), exportMaxInvoices));
+        boolean truncated = included.size() < matching.size();
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream entries = new ZipOutputStream(zip)) {
+            for (StoredInvoice invoice : included) {
+                entries.putNextEntry(new ZipEntry(invoice.ksefNumber + ".xml"));
+                entries.write(invoice.content);
+                entries.closeEntry();
+            }
+            entries.putNextEntry(new ZipEntry("_metadata.json"));
+            entries.write(objectMapper.writeValueAsBytes(object("invoices", included.stream().map(this::invoiceMetadata).toList())));
+            entries.closeEntry();
+        }
+
+        String referenceNumber = referenceNumber("EH");
+        byte[] zipBytes = zip.toByteArray();
+        List<Map<String, Object>> parts = new ArrayList<>();
+        for (int offset = 0, ordinalNumber = 1; offset < zipBytes.length; offset += exportMaxPartSize, ordinalNumber++) {
+            byte[] part = Arrays.copyOfRange(zipBytes, offset, Math.min(zipBytes.length, offset + exportMaxPartSize));
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(part);
+            String partName = referenceNumber + "-" + ordinalNumber + ".zip.aes";
+            exportParts.put("exports/" + partName, encrypted);
+            parts.add(object(
+                    "ordinalNumber", ordinalNumber,
+                    "partName", partName,
+                    "method", "GET",
+                    "url", baseUri() + STORAGE_PATH + "exports/" + partName,
+                    "partSize", part.length,
+                    "partHash", sha256Base64(part),
+                    "encryptedPartSize", encrypted.length,
+                    "encryptedPartHash", sha256Base64(encrypted),
+                    "expirationDate", hwm.plus(Duration.ofHours(1)).toString()));
+        }
+        Instant last = included.isEmpty() ? null : included.getLast().acquiredAt.plus(processingDelay);
+        exports.put(referenceNumber, new Export(referenceNumber, grant.nip(), Instant.now(), object(
+                "invoiceCount", included.size(),
+                "size", zipBytes.length,
+                "parts", parts,
+                "isTruncated", truncated,
+                "lastPermanentStorageDate", truncated ? last.toString() : null,
+                "permanentStorageHwmDate", hwm.toString())));
+        return json(call.route().successStatus(), object("referenceNumber", referenceNumber));
+    }
+
+    private Reply exportStatus(Call call) {
+        Grant grant = requireAccess(call);
+        Export export = exports.get(call.parameters().get("referenceNumber"));
+        if (export == null || !export.nip().equals(grant.nip())) {
+            throw new KsefError(400, 21175, call.parameters().get("referenceNumber"));
+        }
+        if (Instant.now().isBefore(export.startedAt().plus(processingDelay))) {
+            return json(call.route().successStatus(), object("status", status(100, "Eksport faktur w toku", null)));
+        }
+        return json(call.route().successStatus(), object(
+                "status", status(200, "Eksport faktur zakończony sukcesem", null),
+                "completedDate", export.startedAt().plus(processingDelay).toString(),
+                "packageExpirationDate", export.startedAt().plus(Duration.ofDays(7)).toString(),
+                "package", export.invoicePackage()));
+    }
+
+    // ==================== State helpers ====================
+
+    private AuthOperation authOperation(Call call, String referenceNumber) {
+        String token = call.bearer();
+        AuthOperation operation = null;
+        if (token != null) {
+            String claimed = claim(token, "sub");
+            operation = claimed == null ? null : authOperations.get(claimed);
+        }
+        if (operation == null || (referenceNumber != null && !operation.referenceNumber.equals(referenceNumber))) {
+            throw new KsefError(401, 21116, "Nieprawidłowy token uwierzytelniający");
+        }
+        return operation;
+    }
+
+    private Grant requireAccess(Call call) {
+        Grant grant = call.bearer() == null ? null : accessTokens.get(call.bearer());
+        if (grant == null) {
+            throw new KsefError(401, 21301, null);
+        }
+        if (Instant.now().isAfter(grant.validUntil())) {
+            throw new KsefError(401, 21302, null);
+        }
+        return grant;
+    }
+
+    private Session session(Call call, Grant grant) {
+        Session session = sessions.get(call.parameters().get("referenceNumber"));
+        if (session == null || !session.nip.equals(grant.nip())) {
+            throw new KsefError(400, 21173, call.parameters().get("referenceNumber"));
+        }
+        return session;
+    }
+
+    private StoredInvoice invoiceByReference(Session session, String referenceNumber) {
+        return session.invoices.stream()
+                .filter(invoice -> invoice.referenceNumber.equals(referenceNumber))
+                .findFirst()
+                .orElseThrow(() -> new KsefError(400, 21164, referenceNumber));
+    }
+
+    private StoredInvoice store(Session session, byte[] content, String fileName) {
+        // batch invoices are acquired together with their package
+        Instant now = session.batch ? session.closedAt : Instant.now();
+        String ksefNumber = session.nip + "-" + REFERENCE_DATE.format(LocalDate.now(ZoneOffset.UTC)) + "-"
+                + randomHex(6) + "-" + randomHex(1);
+        StoredInvoice invoice = new StoredInvoice(session.invoices.size() + 1, referenceNumber("EE"), ksefNumber,
+                sha256Base64(content), fileName, now, content);
+        session.invoices.add(invoice);
+        invoicesByKsefNumber.put(ksefNumber, invoice);
+        return invoice;
+    }
+
+    private boolean isProcessed(StoredInvoice invoice) {
+        return !Instant.now().isBefore(invoice.acquiredAt.plus(processingDelay));
+    }
+
+    private boolean isProcessed(Session session) {
+        Instant closedAt = session.closedAt;
+        if (closedAt == null || Instant.now().isBefore(closedAt.plus(processingDelay))) {
+            return false;
+        }
+        if (session.batch) {
+            processBatch(session);
+        }
+        return session.failureCode == null;
+    }
+
+    /**
+     * Decrypts and unpacks the uploaded parts once the batch session is due, storing every ZIP entry as an invoice.
+     */
+    private void processBatch(Session session) {
+        synchronized (session) {
+            if (session.batchProcessed) {
+                return;
+            }
+            session.batchProcessed = true;
+
+            try {
+                ByteArrayOutputStream zip = new ByteArrayOutputStream();
+                for (Map.Entry<Integer, DeclaredPart> part : session.declaredParts.entrySet()) {
+                    zip.write(aes(session, session.uploadedParts.get(part.getKey())));
+                }
+                byte[] zipBytes = zip.toByteArray();
+                if (zipBytes.length != session.declaredFileSize || !sha256Base64(zipBytes).equals(session.declaredFileHash)) {
+                    session.failureCode = 445;
+                    return;
+                }
+
+                try (ZipInputStream entries = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+                    for (ZipEntry entry; (entry = entries.getNextEntry()) != null; ) {
+                        if (!entry.isDirectory()) {
+                            store(session, entries.readAllBytes(), entry.getName());
+                        }
+                    }
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                log.warn("Mock KSeF could not process batch {}: {}", session.referenceNumber, e.toString());
+                session.failureCode = 445;
+            }
+        }
+    }
+
+    private Map<String, Object> invoiceStatus(Session session, StoredInvoice invoice) {
+        boolean processed = isProcessed(invoice);
+        String xml = new String(invoice.content, StandardCharsets.UTF_8);
+        Matcher invoiceNumber = INVOICE_NUMBER.matcher(xml);
+        Matcher invoicingDate = INVOICING_DATE.matcher(xml);
+
+        Map<String, Object> status = object(
+                "ordinalNumber", invoice.ordinalNumber,
+                "invoiceNumber", invoiceNumber.find() ? invoiceNumber.group(1) : null,
+                "ksefNumber", processed ? invoice.ksefNumber : null,
+                "referenceNumber", invoice.referenceNumber,
+                "invoiceHash", invoice.invoiceHash,
+                "invoiceFileName", invoice.fileName,
+                "acquisitionDate", invoice.acquiredAt.toString(),
+                "invoicingDate", invoicingDate.find() ? invoicingDate.group(1) + "T00:00:00Z" : invoice.acquiredAt.toString(),
+                "invoicingMode", session.batch ? "Offline" : "Online",
+                "status", processed ? status(200, "Sukces", null) : status(150, "Trwa przetwarzanie", null));
+        if (processed) {
+            status.put("permanentStorageDate", invoice.acquiredAt.plus(processingDelay).toString());
+            status.put("upoDownloadUrl", baseUri() + "/api/v2/sessions/" + session.referenceNumber + "/invoices/ksef/"
+                    + invoice.ksefNumber + "/upo");
+        }
+        return status;
+    }
+
+    /**
+     * Processed invoices of the grant's context matching the subject type and permanent storage date range, in the
+     * order KSeF returns them.
+     */
+    private List<StoredInvoice> queryInvoices(Grant grant, JsonNode filters, Instant hwm) {
+        JsonNode dateRange = filters.path("dateRange");
+        if (!"PermanentStorage".equals(dateRange.path("dateType").asText())) {
+            throw new KsefError(400, 21405, "Mock supports only PermanentStorage date ranges");
+        }
+        Instant from = Instant.parse(dateRange.path("from").asText());
+        Instant to = dateRange.hasNonNull("to") ? Instant.parse(dateRange.path("to").asText()) : hwm;
+        String subjectType = filters.path("subjectType").asText();
+
+        // processed invoices are in permanent storage from the end of their processing delay
+        return invoicesByKsefNumber.values().stream()
+                .filter(this::isProcessed)
+                .filter(invoice -> switch (subjectType) {
+                    case "Subject1" -> invoice.ksefNumber.startsWith(grant.nip());
+                    case "Subject2" -> grant.nip().equals(buyerNip(invoice));
+                    default -> false;
+                })
+                .filter(invoice -> {
+                    Instant stored = invoice.acquiredAt.plus(processingDelay);
+                    return !stored.isBefore(from) && !stored.isAfter(to);
+                })
+                .sorted(Comparator.comparing((StoredInvoice invoice) -> invoice.acquiredAt).thenComparing(invoice -> invoice.ksefNumber))
+                .toList();
+    }
+
+    private Map<String, Object> invoiceMetadata(StoredInvoice invoice) {
+        String xml = new String(invoice.content, StandardCharsets.UTF_8);
+        Matcher invoiceNumber = INVOICE_NUMBER.matcher(xml);
+        Matcher invoicingDate = INVOICING_DATE.matcher(xml);
+        String buyerNip = buyerNip(invoice);
+        return object(
+                "ksefNumber", invoice.ksefNumber,
+                "invoiceNumber", invoiceNumber.find() ? invoiceNumber.group(1) : invoice.referenceNumber,
+                "issueDate", invoicingDate.find() ? invoicingDate.group(1) : LocalDate.ofInstant(invoice.acquiredAt, ZoneOffset.UTC).toString(),
+                "invoicingDate", invoice.acquiredAt.toString(),
+                "acquisitionDate", invoice.acquiredAt.toString(),
+                "permanentStorageDate", invoice.acquiredAt.plus(processingDelay).toString(),
+                "seller", object("nip", invoice.ksefNumber.substring(0, 10)),
+                "buyer", object("identifier", buyerNip == null ? object("type", "None") : object("type", "Nip", "value", buyerNip)),
+                "invoiceHash", invoice.invoiceHash);
+    }
+
+    private static String buyerNip(StoredInvoice invoice) {
+        Matcher buyer = BUYER_NIP.matcher(new String(invoice.content, StandardCharsets.UTF_8));
+        return buyer.find() ? buyer.group(1) : null;
+    }
+
+    private byte[] upo(Session session, List<StoredInvoice> invoices) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Potwierdzenie>\n")
+                .append("  <NumerReferencyjnySesji>").append(session.referenceNumber).append("</NumerReferencyjnySesji>\n")
+                .append("  <Uwierzytelnienie><IdKontekstu><Nip>").append(session.nip).append("</Nip></IdKontekstu></Uwierzytelnienie>\n");
+        for (StoredInvoice invoice : invoices) {
+            xml.append("  <Dokument>")
+                    .append("<NumerKSeFDokumentu>").append(invoice.ksefNumber).append("</NumerKSeFDokumentu>")
+                    .append("<NumerFaktury>").append(invoice.referenceNumber).append("</NumerFaktury>")
+                    .append("<SkrotDokumentu>").append(invoice.invoiceHash).append("</SkrotDokumentu>")
+                    .append("</Dokument>\n");
+        }
+        return xml.append("</Potwierdzenie>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ==================== Crypto and formatting ====================
+
+    private byte[] decryptSymmetricKey(String encryptedKey) {
+        try {
+            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPPadding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey,
+                    new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT));
+            return cipher.doFinal(Base64.getDecoder().decode(encryptedKey));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new KsefError(400, 21213, e.getMessage());
+        }
+    }
+
+    private static byte[] aes(Session session, byte[] encrypted) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(session.key, "AES"), new IvParameterSpec(session.iv));
+        return cipher.doFinal(encrypted);
+    }
+
+    private static String sha256Base64(byte[] content) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Unsigned JWT carrying the subject and expiry, enough for clients that read the {@code exp} claim.
+     */
+    private String token(String type, String subject, Instant validUntil) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String claims = "{\"typ\":\"" + type + "\",\"sub\":\"" + subject + "\",\"exp\":" + validUntil.getEpochSecond()
+                + ",\"jti\":\"" + randomHex(8) + "\"}";
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    private String claim(String token, String name) {
+        String[] segments = token.split("\\.");
+        if (segments.length < 2) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(Base64.getUrlDecoder().decode(segments[1])).path(name).asText(null);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String referenceNumber(String type) {
+        return REFERENCE_DATE.format(LocalDate.now(ZoneOffset.UTC)) + "-" + type + "-" + randomHex(5) + "-" + randomHex(5) + "-" + randomHex(1);
+    }
+
+    private static String randomHex(int bytes) {
+        byte[] random = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(random);
+        return HexFormat.of().withUpperCase().formatHex(random);
+    }
+
+    private static Map<String, Object> tokenInfo(String token, Instant validUntil) {
+        return object("token", token, "validUntil", validUntil.toString());
+    }
+
+    private static Map<String, Object> status(int code, String description, List<String> details) {
+        return object("code", code, "description", description, "details", details);
+    }
+
+    /**
+     * Ordered JSON object from alternating keys and values; null values are left out.
+     */
+    private static Map<String, Object> object(Object... keysAndValues) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (keysAndValues[i + 1] != null) {
+                object.put((String) keysAndValues[i], keysAndValues[i + 1]);
+            }
+        }
+        return object;
+    }
+
+    private Reply json(int status, Object body) {
+        return json(status, body, Map.of());
+    }
+
+    private Reply json(int status, Object body, Map<String, String> headers) {
+        try {
+            return new Reply(status, "application/json", objectMapper.writeValueAsBytes(body), headers);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Reply xml(int status, byte[] body) {
+        return new Reply(status, "application/xml", body, Map.of());
+    }
+
+    private Reply error(KsefError error) {
+        Map<String, Object> detail = object(
+                "exceptionCode", error.exceptionCode,
+                "exceptionDescription", errorCatalog.getOrDefault(error.exceptionCode, "Błąd"),
+                "details", error.getMessage() == null ? List.of() : List.of(error.getMessage()));
+        return json(error.httpStatus, object("exception", object(
+                "exceptionDetailList", List.of(detail),
+                "referenceNumber", referenceNumber("EX"),
+                "serviceCode", "00-" + randomHex(8),
+                "serviceCtx", "srvMOCK",
+                "serviceName", "mock-ksef",
+                "timestamp", Instant.now().toString())));
+    }
+
+    private static Map<Integer, String> loadErrorCatalog() throws IOException {
+        Map<Integer, String> catalog = new HashMap<>();
+        try (InputStream in = MockKsefServer.class.getResourceAsStream("/ksef-error-list.txt")) {
+            if (in == null) {
+                throw new IOException("ksef-error-list.txt not found on the classpath");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line; (line = reader.readLine()) != null; ) {
+                int separator = line.indexOf(" : ");
+                if (separator > 0) {
+                    catalog.put(Integer.parseInt(line.substring(0, separator).trim()), line.substring(separator + 3).trim());
+                }
+            }
+        }
+        return Map.copyOf(catalog);
+    }
+}
@@ -0,0 +1,133 @@
+package com.bsg6.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Route table of the KSeF API read from {@code opeapi-spec.json}.
+ * <p>
+ * Each operation becomes a {@link Route} with its path template, success status and the request limits documented
+ * in its 429 response ({@code | **Limity liczby żądań** | req/s | req/min | req/h | group}).
+ * </p>
+ */
+final class SpecRoutes {
+
+    private static final Pattern LIMITS_ROW = Pattern.compile(
+            "\\|\\s*\\*\\*Limity liczby żądań\\*\\*\\s*\\|\\s*([\\d-]+)\\s*\\|\\s*([\\d-]+)\\s*\\|\\s*([\\d-]+)\\s*\\|\\s*([^|\\n]*)");
+    private static final Pattern PATH_PARAMETER = Pattern.compile("\\{([^}]+)}");
+
+    /**
+     * Request limits of one group; 0 means unlimited.
+     */
+    record RateLimit(String group, int perSecond, int perMinute, int perHour) {
+    }
+
+    record Route(String method, String template, Pattern pattern, List<String> parameterNames, int successStatus,
+                 RateLimit rateLimit) {
+
+        String key() {
+            return method + " " + template;
+        }
+
+        Map<String, String> match(String path) {
+            Matcher matcher = pattern.matcher(path);
+            if (!matcher.matches()) {
+                return null;
+            }
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (int i = 0; i < parameterNames.size(); i++) {
+                parameters.put(parameterNames.get(i), matcher.group(i + 1));
+            }
+            return parameters;
+        }
+    }
+
+    private final List<Route> routes;
+
+    private SpecRoutes(List<Route> routes) {
+        this.routes = routes;
+    }
+
+    static SpecRoutes load(ObjectMapper objectMapper) throws IOException {
+        try (InputStream in = SpecRoutes.class.getResourceAsStream("/opeapi-spec.json")) {
+            if (in == null) {
+                throw new IOException("opeapi-spec.json not found on the classpath");
+            }
+            JsonNode paths = objectMapper.readTree(in).path("paths");
+
+            List<Route> routes = new ArrayList<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = paths.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> path = it.next();
+                path.getValue().fields().forEachRemaining(operation ->
+                        routes.add(route(operation.getKey().toUpperCase(), path.getKey(), operation.getValue())));
+            }
+            // literal segments win over path parameters, e.g. /sessions/{ref}/invoices/failed over /invoices/{invoiceRef}
+            routes.sort(Comparator.comparingInt((Route route) -> route.parameterNames().size())
+                    .thenComparing(Route::template, Comparator.reverseOrder()));
+            return new SpecRoutes(List.copyOf(routes));
+        }
+    }
+
+    Route find(String method, String path) {
+        for (Route route : routes) {
+            if (route.method().equals(method) && route.pattern().matcher(path).matches()) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    List<Route> routes() {
+        return routes;
+    }
+
+    private static Route route(String method, String template, JsonNode operation) {
+        List<String> parameterNames = new ArrayList<>();
+        Matcher parameter = PATH_PARAMETER.matcher(template);
+        StringBuilder regex = new StringBuilder();
+        int last = 0;
+        while (parameter.find()) {
+            regex.append(Pattern.quote(template.substring(last, parameter.start()))).append("([^/]+)");
+            parameterNames.add(parameter.group(1));
+            last = parameter.end();
+        }
+        regex.append(Pattern.quote(template.substring(last)));
+
+        int successStatus = 200;
+        for (Iterator<String> codes = operation.path("responses").fieldNames(); codes.hasNext(); ) {
+            String code = codes.next();
+            if (code.startsWith("2")) {
+                successStatus = Integer.parseInt(code);
+                break;
+            }
+        }
+
+        return new Route(method, template, Pattern.compile(regex.toString()), List.copyOf(parameterNames), successStatus,
+                rateLimit(method + " " + template, operation.path("responses").path("429").path("description").asText("")));
+    }
+
+    private static RateLimit rateLimit(String routeKey, String description) {
+        Matcher row = LIMITS_ROW.matcher(description);
+        if (!row.find()) {
+            return new RateLimit(routeKey, 0, 0, 0);
+        }
+        String group = row.group(4).trim();
+        return new RateLimit(group.isEmpty() || group.equals("-") ? routeKey : group,
+                limit(row.group(1)), limit(row.group(2)), limit(row.group(3)));
+    }
+
+    private static int limit(String value) {
+        return value.equals("-") ? 0 : Integer.parseInt(value);
+    }
+}